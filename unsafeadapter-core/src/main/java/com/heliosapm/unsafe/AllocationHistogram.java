@@ -0,0 +1,274 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.unsafe;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.openmbean.ArrayType;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+
+import jsr166e.LongAdder;
+
+/**
+ * <p>Title: AllocationHistogram</p>
+ * <p>Description: A lock-free histogram of non negative long values, such as allocation sizes or lifetimes, in power of two buckets.</p>
+ * <p>Bucket zero counts zero values and bucket <code>b</code> counts the values from <code>2<sup>b-1</sup></code> to 
+ * <code>2<sup>b</sup>-1</code>, so 64 buckets cover every long with a relative error under a factor of two. 
+ * Recording a value is one atomic increment of its bucket plus a {@link LongAdder} add, and percentiles are read from 
+ * a snapshot of the buckets, reporting the upper bound of the bucket the percentile falls in, capped at the maximum recorded value.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.unsafe.AllocationHistogram</code></p>
+ */
+public class AllocationHistogram {
+	/** The number of buckets */
+	public static final int BUCKETS = 64;
+	/** The percentiles reported in the composite data */
+	public static final double[] PERCENTILES = {50d, 90d, 99d, 99.9d};
+	/** The composite data item names */
+	private static final String[] ITEM_NAMES = {"count", "sum", "mean", "max", "p50", "p90", "p99", "p999", "buckets"};
+	
+	/** The histogram name */
+	private final String name;
+	/** The unit of the recorded values */
+	private final String unit;
+	/** The bucket counts */
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	/** The sum of the recorded values */
+	private final LongAdder sum = new LongAdder();
+	/** The maximum recorded value */
+	private final AtomicLong max = new AtomicLong(0L);
+	/** The composite type of this histogram's composite data */
+	private final CompositeType compositeType;
+	
+	/**
+	 * Creates a new AllocationHistogram
+	 * @param name The histogram name
+	 * @param unit The unit of the recorded values
+	 */
+	public AllocationHistogram(final String name, final String unit) {
+		this.name = name;
+		this.unit = unit;
+		try {
+			compositeType = new CompositeType(name, "Histogram of " + name + " in " + unit, ITEM_NAMES, 
+					new String[]{
+						"The number of recorded values", "The sum of the recorded values in " + unit, "The mean recorded value in " + unit, 
+						"The maximum recorded value in " + unit, "The 50th percentile in " + unit, "The 90th percentile in " + unit, 
+						"The 99th percentile in " + unit, "The 99.9th percentile in " + unit, 
+						"The bucket counts, bucket b counting the values from 2^(b-1) to 2^b - 1"
+					}, 
+					new OpenType<?>[]{
+						SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, 
+						SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, SimpleType.LONG, 
+						ArrayType.getPrimitiveArrayType(long[].class)
+					});
+		} catch (OpenDataException ex) {
+			throw new RuntimeException("Failed to create composite type for histogram [" + name + "]", ex);
+		}
+	}
+	
+	/**
+	 * Returns the bucket the passed value is counted in
+	 * @param value The value
+	 * @return the bucket index
+	 */
+	public static int bucketOf(final long value) {
+		return value <= 0L ? 0 : 64 - Long.numberOfLeadingZeros(value);
+	}
+	
+	/**
+	 * Returns the largest value counted in the passed bucket
+	 * @param bucket The bucket index
+	 * @return the bucket's upper bound
+	 */
+	public static long upperBound(final int bucket) {
+		return bucket >= 63 ? Long.MAX_VALUE : (1L << bucket) - 1;
+	}
+	
+	/**
+	 * Records a value. Negative values are recorded as zero.
+	 * @param value The value to record
+	 */
+	public void record(final long value) {
+		final long v = value < 0L ? 0L : value;
+		buckets.incrementAndGet(bucketOf(v));
+		sum.add(v);
+		long m = max.get();
+		while(v > m) {
+			if(max.compareAndSet(m, v)) break;
+			m = max.get();
+		}
+	}
+	
+	/**
+	 * Returns a snapshot of the bucket counts
+	 * @return the bucket counts
+	 */
+	public long[] getBuckets() {
+		final long[] snapshot = new long[BUCKETS];
+		for(int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = buckets.get(i);
+		}
+		return snapshot;
+	}
+	
+	/**
+	 * Returns the number of recorded values
+	 * @return the number of recorded values
+	 */
+	public long getCount() {
+		long count = 0L;
+		for(int i = 0; i < BUCKETS; i++) {
+			count += buckets.get(i);
+		}
+		return count;
+	}
+	
+	/**
+	 * Returns the sum of the recorded values
+	 * @return the sum of the recorded values
+	 */
+	public long getSum() {
+		return sum.longValue();
+	}
+	
+	/**
+	 * Returns the maximum recorded value
+	 * @return the maximum recorded value
+	 */
+	public long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * Returns the mean recorded value
+	 * @return the mean recorded value, or zero if none have been recorded
+	 */
+	public long getMean() {
+		final long count = getCount();
+		return count==0L ? 0L : getSum() / count;
+	}
+	
+	/**
+	 * Returns the upper bound of the bucket the passed percentile of the recorded values falls in, capped at the maximum recorded value
+	 * @param percentile The percentile, from 0 to 100
+	 * @return the percentile value, or zero if none have been recorded
+	 */
+	public long getPercentile(final double percentile) {
+		return percentile(getBuckets(), percentile);
+	}
+	
+	/**
+	 * Returns the upper bound of the bucket the passed percentile of the passed bucket counts falls in, capped at the maximum recorded value
+	 * @param snapshot A snapshot of the bucket counts
+	 * @param percentile The percentile, from 0 to 100
+	 * @return the percentile value, or zero if none have been recorded
+	 */
+	private long percentile(final long[] snapshot, final double percentile) {
+		if(percentile < 0d || percentile > 100d) throw new IllegalArgumentException("Invalid percentile [" + percentile + "]");
+		long count = 0L;
+		for(long c: snapshot) {
+			count += c;
+		}
+		if(count==0L) return 0L;
+		final long rank = Math.max(1L, (long)Math.ceil(count * percentile / 100d));
+		long seen = 0L;
+		for(int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if(seen >= rank) return Math.min(upperBound(i), max.get());
+		}
+		return max.get();
+	}
+	
+	/**
+	 * Returns the histogram as JMX composite data
+	 * @return the composite data
+	 */
+	public CompositeData toCompositeData() {
+		final long[] snapshot = getBuckets();
+		long count = 0L;
+		for(long c: snapshot) {
+			count += c;
+		}
+		final long total = getSum();
+		final Object[] values = new Object[ITEM_NAMES.length];
+		values[0] = count;
+		values[1] = total;
+		values[2] = count==0L ? 0L : total / count;
+		values[3] = getMax();
+		for(int i = 0; i < PERCENTILES.length; i++) {
+			values[4 + i] = percentile(snapshot, PERCENTILES[i]);
+		}
+		values[8] = snapshot;
+		try {
+			return new CompositeDataSupport(compositeType, ITEM_NAMES, values);
+		} catch (OpenDataException ex) {
+			throw new RuntimeException("Failed to create composite data for histogram [" + name + "]", ex);
+		}
+	}
+	
+	/**
+	 * Zeroes the histogram
+	 */
+	public void reset() {
+		for(int i = 0; i < BUCKETS; i++) {
+			buckets.set(i, 0L);
+		}
+		sum.reset();
+		max.set(0L);
+	}
+	
+	/**
+	 * Returns the histogram name
+	 * @return the histogram name
+	 */
+	public String getName() {
+		return name;
+	}
+	
+	/**
+	 * Returns the unit of the recorded values
+	 * @return the unit
+	 */
+	public String getUnit() {
+		return unit;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format("AllocationHistogram [%s, count: %s, mean: %s %s, p50: %s, p99: %s, max: %s]", 
+				name, getCount(), getMean(), unit, getPercentile(50d), getPercentile(99d), getMax());
+	}
+}
@@ -0,0 +1,157 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.unsafe;
+
+import com.heliosapm.unsafe.Callbacks.SlotVisitor;
+
+/**
+ * <p>Title: AllocationHistograms</p>
+ * <p>Description: Records the distributions of allocation sizes, reallocation growth ratios and allocation lifetimes 
+ * in {@link AllocationHistogram}s, to size slabs, arenas and buffers from the observed workload.</p>
+ * <p>Every live allocation is kept in an {@link OffHeapAddressTable} keyed by address with its size and the nano time 
+ * it was allocated, so the growth of a reallocation and the lifetime of a freed or cleared allocation are known whether 
+ * or not allocations are tracked. A reallocated block keeps its original allocation time.</p>
+ * <p>The histograms themselves are recorded without locks, but the live allocation table takes the monitor of the segment
+ * an address hashes to, so enabling histograms serializes the allocations, reallocations and frees that land in the same segment.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.unsafe.AllocationHistograms</code></p>
+ */
+public class AllocationHistograms {
+	/** The histogram of allocation sizes */
+	private final AllocationHistogram sizes = new AllocationHistogram("AllocationSizes", "bytes");
+	/** The histogram of reallocation growth ratios, the new size as a percentage of the prior size */
+	private final AllocationHistogram growth = new AllocationHistogram("ReallocationGrowth", "percent of prior size");
+	/** The histogram of allocation lifetimes, from allocation to free or clear */
+	private final AllocationHistogram lifetimes = new AllocationHistogram("AllocationLifetimes", "ns.");
+	/** The live allocations keyed by address, with the allocation nano time stored as the overhead */
+	private final OffHeapAddressTable live = new OffHeapAddressTable(1024, true);
+	/** Records the lifetime of a removed allocation */
+	private final SlotVisitor lifetimeRecorder = new SlotVisitor() {
+		@Override
+		public boolean visitSlot(final int index, final long address, final long size, final long allocatedAt) {
+			lifetimes.record(System.nanoTime() - allocatedAt);
+			return true;
+		}
+	};
+	
+	/**
+	 * Records a new allocation
+	 * @param address The allocated address
+	 * @param size The allocation size in bytes
+	 */
+	public void allocated(final long address, final long size) {
+		sizes.record(size);
+		live.put(address, size, System.nanoTime());
+	}
+	
+	/**
+	 * Records a freed or cleared allocation
+	 * @param address The freed address
+	 */
+	public void freed(final long address) {
+		live.remove(address, lifetimeRecorder);
+	}
+	
+	/**
+	 * Records a re-allocation. The growth ratio is only recorded if the prior allocation was recorded with a non zero size.
+	 * @param priorAddress The address that was re-allocated
+	 * @param address The new address
+	 * @param size The new allocation size in bytes
+	 */
+	public void reallocated(final long priorAddress, final long address, final long size) {
+		final long priorSize = live.getSize(priorAddress);
+		long allocatedAt = System.nanoTime();
+		if(priorSize >= 0) {
+			// a zero byte prior allocation has no growth ratio but still ends its lifetime entry
+			if(priorSize > 0) growth.record(growthPercent(size, priorSize));
+			allocatedAt = live.getOverhead(priorAddress);
+			live.remove(priorAddress, null);
+		}
+		live.put(address, size, allocatedAt);
+	}
+	
+	/**
+	 * Computes the size of a reallocation as a percentage of its prior size without overflowing
+	 * @param size The new size in bytes
+	 * @param priorSize The prior size in bytes, greater than zero
+	 * @return the new size in percent of the prior size, or {@link Long#MAX_VALUE} if that does not fit in a long
+	 */
+	static long growthPercent(final long size, final long priorSize) {
+		final long whole = size / priorSize;
+		if(whole >= Long.MAX_VALUE / 100) return Long.MAX_VALUE;
+		final long remainder = size % priorSize;
+		return whole * 100 + (priorSize <= Long.MAX_VALUE / 100 ? remainder * 100 / priorSize : remainder / (priorSize / 100));
+	}
+	
+	/**
+	 * Returns the histogram of allocation sizes in bytes
+	 * @return the allocation size histogram
+	 */
+	public AllocationHistogram getSizes() {
+		return sizes;
+	}
+	
+	/**
+	 * Returns the histogram of reallocation growth ratios, as the new size in percent of the prior size
+	 * @return the reallocation growth histogram
+	 */
+	public AllocationHistogram getGrowth() {
+		return growth;
+	}
+	
+	/**
+	 * Returns the histogram of allocation lifetimes in ns.
+	 * @return the allocation lifetime histogram
+	 */
+	public AllocationHistogram getLifetimes() {
+		return lifetimes;
+	}
+	
+	/**
+	 * Returns the number of live allocations being timed
+	 * @return the number of live allocations
+	 */
+	public int getLiveCount() {
+		return live.size();
+	}
+	
+	/**
+	 * Zeroes the histograms. The live allocations keep their allocation times.
+	 */
+	public void reset() {
+		sizes.reset();
+		growth.reset();
+		lifetimes.reset();
+	}
+	
+	/**
+	 * Zeroes the histograms and forgets the live allocations
+	 */
+	public void clear() {
+		reset();
+		live.clear();
+	}
+}
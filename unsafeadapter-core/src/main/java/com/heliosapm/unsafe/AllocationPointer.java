@@ -26,6 +26,10 @@ package com.heliosapm.unsafe;
 
 import java.lang.ref.ReferenceQueue;
 
+import jsr166e.LongAdder;
+
+import com.heliosapm.unsafe.Callbacks.SlotVisitor;
+
 /**
  * <p>Title: AllocationPointer</p>
  * <p>Description: A container for managing deallocatable memory block keyAddresses</p>
@@ -43,6 +47,12 @@ public class AllocationPointer implements ReferenceProvider<AllocationPointer>,
 	private final long address;
 	/** The phantom reference to this allocation pointer if one has been requested */
 	private AllocationPointerPhantomRef phantomRef = null;
+	/** The parent allocation pointer, strongly referenced so that it cannot be collected before this child */
+	private AllocationPointer parent = null;
+	/** The byte total of the allocation tree this allocation pointer belongs to, or null if it does not belong to one */
+	private volatile LongAdder tree = null;
+	/** The allocation tag the memory allocated in this allocation pointer is accounted under */
+	private volatile int tag = AllocationTag.UNTAGGED;
 
 	// =====================================
 	//  MUST BE CREATED BY UA
@@ -75,9 +85,10 @@ public class AllocationPointer implements ReferenceProvider<AllocationPointer>,
 	}
 	
 	/**
-	 * Returns the address of the slot at the passed dimension
+	 * Returns the address of the slot at the passed dimension. A packed AllocationPointer only has the first.
 	 * @param dim The dimension to get the address of
 	 * @return the address
+	 * @throws IllegalArgumentException if this AllocationPointer has no block for the passed dimension
 	 */
 	public final long getAddressOfDim(final byte dim) {
 		return AllocationPointerOperations.getAddressOfDim(address, dim);
@@ -103,7 +114,20 @@ public class AllocationPointer implements ReferenceProvider<AllocationPointer>,
 	 * @param refId The UnsafeAdapter's ref manager assigned reference id
 	 */
 	AllocationPointer(boolean memTracking, boolean memAlignment, long refId) {
-		address = AllocationPointerOperations.newAllocationPointer(memTracking, memAlignment, refId);
+		this(memTracking, memAlignment, refId, false);
+	}
+	
+	/**
+	 * Creates a new AllocationPointer
+	 * @param memTracking Indicates if memory tracking is enabled
+	 * @param memAlignment Indicates if cache-line memory alignment is enabled 
+	 * @param refId The UnsafeAdapter's ref manager assigned reference id
+	 * @param concurrent true if slots may be assigned by several threads at once
+	 */
+	AllocationPointer(boolean memTracking, boolean memAlignment, long refId, boolean concurrent) {
+		address = concurrent ?
+				AllocationPointerOperations.newConcurrentAllocationPointer(memTracking, memAlignment, refId) :
+				AllocationPointerOperations.newAllocationPointer(memTracking, memAlignment, refId);
 	}
 	
 	/**
@@ -135,8 +159,7 @@ public class AllocationPointer implements ReferenceProvider<AllocationPointer>,
 	 * @return the index of the slot the address was inserted into
 	 */
 	public final int assignSlot(final long newAddress, final long size, final long alignmentOverhead) {
-		AllocationPointerOperations.assignSlot(address, newAddress, size, alignmentOverhead);
-		return AllocationPointerOperations.getLastIndex(address);
+		return AllocationPointerOperations.assignSlot(address, newAddress, size, alignmentOverhead);
 	}
 	
 	/**
@@ -145,11 +168,27 @@ public class AllocationPointer implements ReferenceProvider<AllocationPointer>,
 	 * @return the index of the slot the address was inserted into
 	 */
 	public final int assignSlot(final long newAddress) {
-		AllocationPointerOperations.assignSlot(address, newAddress, 0L, 0L);
-		return AllocationPointerOperations.getLastIndex(address);
+		return AllocationPointerOperations.assignSlot(address, newAddress, 0L, 0L);
 	}
 	
 	
+	/**
+	 * Assigns the passed freshly allocated addresses to the next available slots, extending this pointer at most once
+	 * @param newAddresses The addresses to assign
+	 * @param sizes The sizes of the allocations being registered in bytes
+	 */
+	public final void assignSlots(final long[] newAddresses, final long[] sizes) {
+		AllocationPointerOperations.assignSlots(address, newAddresses, sizes);
+	}
+	
+	/**
+	 * Extends this pointer, if necessary, so that it has at least the passed number of slots
+	 * @param capacity The minimum number of slots required
+	 */
+	public final void ensureCapacity(final int capacity) {
+		AllocationPointerOperations.ensureCapacity(address, capacity);
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 * @see com.heliosapm.unsafe.AddressAssignable#setAllocated(long, long, long)
@@ -242,6 +281,131 @@ public class AllocationPointer implements ReferenceProvider<AllocationPointer>,
 		return AllocationPointerOperations.getCapacity(address);
 	}
 	
+	/**
+	 * Indicates if this AllocationPointer keeps the address, size and overhead of each slot together in one block
+	 * @return true if packed, false if each dimension has its own block
+	 */
+	public final boolean isPacked() {
+		return AllocationPointerOperations.isPacked(address);
+	}
+	
+	/**
+	 * Returns the parent of this AllocationPointer
+	 * @return the parent AllocationPointer, or null if this AllocationPointer is not a child
+	 */
+	public final AllocationPointer getParent() {
+		return parent;
+	}
+	
+	/**
+	 * Returns the total bytes allocated in the allocation tree this AllocationPointer belongs to.
+	 * Sizes are only recorded when memory tracking is enabled, so this is zero otherwise.
+	 * @return the tree byte total, or -1 if this AllocationPointer is not a parent or a child
+	 */
+	public final long getTreeAllocatedBytes() {
+		final LongAdder t = tree;
+		return t==null ? -1L : t.longValue();
+	}
+	
+	/**
+	 * Returns the total bytes allocated on behalf of the addresses in this AllocationPointer
+	 * @return the total number of bytes allocated or zero if mem tracking is not enabled
+	 */
+	public final long getTotalAllocationSize() {
+		return AllocationPointerOperations.getTotalTrackedAllocationBytes(address);
+	}
+	
+	/**
+	 * Attaches this AllocationPointer to its parent's allocation tree
+	 * @param parent The parent AllocationPointer
+	 * @param tree The byte total of the allocation tree
+	 */
+	final void setParent(final AllocationPointer parent, final LongAdder tree) {
+		this.parent = parent;
+		this.tree = tree;
+	}
+	
+	/**
+	 * Returns the byte total of the allocation tree this AllocationPointer belongs to
+	 * @return the tree byte total, or null if this AllocationPointer does not belong to a tree
+	 */
+	final LongAdder getTree() {
+		return tree;
+	}
+	
+	/**
+	 * Sets the byte total of the allocation tree rooted at this AllocationPointer
+	 * @param tree the tree byte total
+	 */
+	final void setTree(final LongAdder tree) {
+		this.tree = tree;
+	}
+	
+	/**
+	 * Returns the allocation tag the memory allocated in this AllocationPointer is accounted under
+	 * @return the allocation tag, or {@link AllocationTag#UNTAGGED}
+	 */
+	public final int getTag() {
+		return tag;
+	}
+	
+	/**
+	 * Sets the allocation tag the memory allocated in this AllocationPointer is accounted under.
+	 * The tag must be set before the first allocation so that freed memory is uncounted from the tag it was counted under.
+	 * @param tag The allocation tag, from 0 to {@link AllocationTag#MAX_TAGS}-1 
+	 * @return this AllocationPointer
+	 */
+	public final synchronized AllocationPointer setTag(final int tag) {
+		AllocationTag.checkTag(tag);
+		if(getSize()!=0) throw new IllegalStateException("The tag of an AllocationPointer can only be set before its first allocation");
+		this.tag = tag;
+		if(phantomRef!=null) phantomRef.setTag(tag);
+		return this;
+	}
+	
+	/**
+	 * Adds the passed delta to the byte total of the allocation tree this AllocationPointer belongs to, if it belongs to one
+	 * @param delta The number of bytes allocated, or freed if negative
+	 */
+	final void adjustTree(final long delta) {
+		final LongAdder t = tree;
+		if(t!=null && delta!=0L) t.add(delta);
+	}
+	
+	/**
+	 * Indicates if slots of this AllocationPointer can be assigned, cleared and read by several threads at once.
+	 * Cleared slots of a concurrent AllocationPointer are not reused and it cannot be compacted.
+	 * @return true if concurrent, false otherwise
+	 */
+	public final boolean isConcurrent() {
+		return AllocationPointerOperations.isConcurrent(address);
+	}
+	
+	/**
+	 * Returns the number of cleared slots that will be reused before this AllocationPointer grows
+	 * @return the number of free slots
+	 */
+	public final int getFreeSlotCount() {
+		return AllocationPointerOperations.getFreeSlotCount(address);
+	}
+	
+	/**
+	 * Squeezes the cleared slots out of this AllocationPointer and shrinks its capacity to fit.
+	 * Slot indexes previously returned by this AllocationPointer are not valid afterwards.
+	 * @return the number of slots reclaimed
+	 */
+	public final int compact() {
+		return AllocationPointerOperations.compact(address);
+	}
+	
+	/**
+	 * Indicates if this AllocationPointer has grown large enough to have built a hashed address index
+	 * @return true if address lookups are hashed, false if they are a linear scan
+	 */
+	public final boolean isIndexed() {
+		return AllocationPointerOperations.isIndexed(address);
+	}
+	
 	/**
 	 * Returns the index of the most recently assigned address slot, or -1 if none are assigned
 	 * @return the index of the most recently assigned address slot
@@ -337,6 +501,15 @@ public class AllocationPointer implements ReferenceProvider<AllocationPointer>,
 	}
 	
 	
+	/**
+	 * Passes each occupied slot of this AllocationPointer to the visitor, in index order, without allocating any arrays
+	 * @param visitor The visitor each occupied slot is passed to. Visiting stops if it returns false.
+	 * @return the number of occupied slots visited
+	 */
+	public final int forEachSlot(final SlotVisitor visitor) {
+		return AllocationPointerOperations.forEachSlot(address, visitor);
+	}
+	
 	/**
 	 * Returns the total byte size of this AllocationPointer
 	 * @return the total byte size of this AllocationPointer
@@ -355,7 +528,16 @@ public class AllocationPointer implements ReferenceProvider<AllocationPointer>,
 	public final synchronized AllocationPointerPhantomRef getReference(ReferenceQueue<? super AllocationPointer> refQueue) {
 		if(phantomRef==null) {
 			phantomRef = new AllocationPointerPhantomRef(this, address, refQueue);
+			phantomRef.setTag(tag);
+		}
+		return phantomRef;
 	}
+	
+	/**
+	 * Returns the phantom reference to this AllocationPointer if one has been created
+	 * @return the phantom reference or null if this AllocationPointer has not been registered
+	 */
+	final synchronized AllocationPointerPhantomRef getRegisteredReference() {
 		return phantomRef;
 	}
 
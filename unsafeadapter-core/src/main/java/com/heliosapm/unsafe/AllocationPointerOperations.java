@@ -31,6 +31,8 @@ import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
 
 import sun.misc.Unsafe;
 
+import com.heliosapm.unsafe.Callbacks.SlotVisitor;
+
 /**
  * <p>Title: AllocationPointerOperations</p>
  * <p>Description: Static methods for maniplulating an unsafe memory block containing an 
@@ -38,27 +40,34 @@ import sun.misc.Unsafe;
  * and which will be deallocated when the referencing object becomes phantom reachable.</p> 
  * <p>Structure of AllocationPointer Header:
  * <pre>
- *                4 bytes     4 bytes     8 bytes               1 byte
- *             +----------++----------++-----------------------++----+
- *             | capacity || size     || reference id          || dim|
- *             +----------++----------++-----------------------++----+
- *                 int         int           long                byte
- *             +----------------------------------------------------->
+ *                4 bytes     4 bytes     8 bytes               1 byte  8 bytes               4 bytes     4 bytes     1 byte  4 bytes
+ *             +----------++----------++-----------------------++----++-----------------------++----------++----------++------++----------+
+ *             | capacity || size     || reference id          || dim|| address index         || free head|| free cnt || strd || 1st chunk|
+ *             +----------++----------++-----------------------++----++-----------------------++----------++----------++------++----------+
+ *                 int         int           long                byte        address               int         int      byte     int
+ *             +------------------------------------------------------------------------------------------------------------------------->
  * </pre></p>
  * <p>Structure of AllocationPointer:
  * <pre>
- *                 17 bytes            8 bytes       8 bytes          8 bytes     
+ *                 38 bytes            8 bytes       8 bytes          8 bytes     
  *             +-------------------++------------++------------    +-------------+
  *             |  Header           || Slot 1     || Slot 2     ::::| Slot n      |
  *             +-------------------++------------++------------    +-------------+
  *                                     long          long             long        
  *             +------------------------------------------------------------------>                       
  * </pre></p>
+ * <p>By default each dimension (address, size and overhead) is a block of the above structure and the root block
+ * holds the address of each. A packed AllocationPointer (see {@link #PACKED_LAYOUT_PROP}) has one block whose slots
+ * hold the address, size and overhead together, with the stride in the header set to the dimension,
+ * so one extend reallocates one block and a slot's triplet is read from one place.</p>
+ * <p>A concurrent AllocationPointer (see {@link #newConcurrentAllocationPointer(boolean, boolean, long)}) is packed, but its first block
+ * holds a directory of up to {@link #CHUNK_DIRECTORY_SIZE} chunks of doubling size in place of the slots. Chunks are installed with a CAS
+ * and never move, so threads can read slots while others grow the pointer, and slots are reserved with a CAS on the size.
+ * Cleared slots are recycled through a lock-free free slot stack, so the pointer only grows to the most slots live at once.</p>
  * <p><b>NOTE !</b>  Managed memory is for TESTING only !  It will be SLOW ! </p>
  * <p>Company: Helios Development Group LLC</p>
  * @author Whitehead (nwhitehead AT heliosdev DOT org)
  * <p><code>com.heliosapm.unsafe.AllocationPointerOperations</code></p>
- * TODO:  AP should contain size and overhead pointers within the base structure so the whole triplet can be referred to by one long.
  */
 @SuppressWarnings("restriction")
 public class AllocationPointerOperations {
@@ -73,8 +82,8 @@ public class AllocationPointerOperations {
 	
 	/** The byte size of a long */
 	public static final long LONG_SIZE = 8;
-	/** The size of the memory block header in bytes (2 ints, 1 byte and 1 long) */
-	public static final int HEADER_SIZE = 8 + 4 + 4 + 1;
+	/** The size of the memory block header in bytes (2 ints, 1 long, 1 byte, the address index pointer, 2 free slot list ints, the stride byte and the first chunk int) */
+	public static final int HEADER_SIZE = 8 + 4 + 4 + 1 + 8 + 4 + 4 + 1 + 4;
 	
 	/** The capacity offfset */
 	public static final int CAP_OFFSET = 0;
@@ -84,6 +93,43 @@ public class AllocationPointerOperations {
 	public static final int REFID_OFFSET = 8;
 	/** The dimension offfset */
 	public static final int DIM_OFFSET = 16;
+	/** The address index pointer offset (only used in the first dimension) */
+	public static final int INDEX_OFFSET = 17;
+	/** The offset of the head of the free slot list, the index of the first free slot plus one (only used in the first dimension) */
+	public static final int FREE_HEAD_OFFSET = 25;
+	/** The offset of the number of slots in the free slot list (only used in the first dimension) */
+	public static final int FREE_COUNT_OFFSET = 29;
+	/** The offset of the stride, the number of values each slot of the block holds: the dimension for a packed AllocationPointer, otherwise one */
+	public static final int STRIDE_OFFSET = 33;
+	/** The offset of the number of slots in the first chunk of a concurrent AllocationPointer, which is zero for any other */
+	public static final int CHUNK_OFFSET = 34;
+	
+	/** The number of entries in the chunk directory of a concurrent AllocationPointer, where chunk <code>n</code> has twice the slots of chunk <code>n-1</code> */
+	public static final int CHUNK_DIRECTORY_SIZE = 32;
+	/** The minimum number of slots in the first chunk of a concurrent AllocationPointer */
+	public static final int MIN_FIRST_CHUNK = 16;
+	/** The 8 byte aligned offset, past the chunk directory, of the head of the free slot stack of a concurrent AllocationPointer: 
+	 * a version stamp in the high int and the index plus one of the top free slot in the low int */
+	public static final int CONCURRENT_FREE_OFFSET = (HEADER_SIZE + (CHUNK_DIRECTORY_SIZE * (int)LONG_SIZE) + 7) & ~7;
+	/** The offset of the number of slots in the free slot stack of a concurrent AllocationPointer */
+	public static final int CONCURRENT_FREE_COUNT_OFFSET = CONCURRENT_FREE_OFFSET + 8;
+	/** The size of the header block of a concurrent AllocationPointer, including the chunk directory and the free slot stack */
+	public static final int CONCURRENT_HEADER_SIZE = CONCURRENT_FREE_COUNT_OFFSET + 8;
+	
+	/** The system prop to override the number of slots above which an AllocationPointer builds a hashed address index. Zero disables the index. */
+	public static final String INDEX_THRESHOLD_PROP = "allocation.pointer.index.threshold";
+	/** The default number of slots above which an AllocationPointer builds a hashed address index */
+	public static final int DEFAULT_INDEX_THRESHOLD = 64;
+	/** The number of slots above which an AllocationPointer builds a hashed address index */
+	public static final int INDEX_THRESHOLD;
+	/** The size of the address index header in bytes (capacity, used entries and live entries ints, plus padding) */
+	public static final int INDEX_HEADER_SIZE = 16;
+	/** The minimum capacity of the address index */
+	private static final int INDEX_MIN_CAPACITY = 16;
+	/** The address index entry value for a never used entry */
+	private static final int INDEX_EMPTY = 0;
+	/** The address index entry value for a removed entry */
+	private static final int INDEX_DELETED = -1;
 	
 	/** The default allocation size */
 	public static final int DEFAULT_ALLOC_SIZE_PROP = 1;
@@ -98,6 +144,22 @@ public class AllocationPointerOperations {
 	/** The managed memory allocation flag */
 	public static final boolean MANAGED_ALLOC;	
 	
+	/** The system prop to create new AllocationPointers with the packed single block layout */
+	public static final String PACKED_LAYOUT_PROP = "allocation.pointer.packed";
+	/** The default packed layout flag */
+	public static final boolean DEFAULT_PACKED_LAYOUT = false;
+	/** Indicates if new AllocationPointers are created with the packed single block layout */
+	public static final boolean PACKED_LAYOUT;
+	
+	/** The system prop defining how many released AllocationPointer structures are kept for reuse per layout. Zero disables pooling. */
+	public static final String POOL_SIZE_PROP = "allocation.pointer.pool.size";
+	/** The default number of pooled AllocationPointer structures per layout */
+	public static final int DEFAULT_POOL_SIZE = 256;
+	/** The number of released AllocationPointer structures kept for reuse per layout */
+	public static final int POOL_SIZE;
+	/** The structure pools, one per dimension and layout */
+	private static final StructurePool[] pools;
+	
 	
 	/** The size of a memory pointer in bytes */
 	public static final int ADDRESS_SIZE;	
@@ -148,8 +210,25 @@ public class AllocationPointerOperations {
 			tmp = 1;
 		}
 		ALLOC_SIZE = tmp;
+		try { 
+			tmp = Integer.parseInt(System.getProperty(INDEX_THRESHOLD_PROP, "" + DEFAULT_INDEX_THRESHOLD));
+		} catch (Exception ex) {
+			tmp = DEFAULT_INDEX_THRESHOLD;
+		}
+		INDEX_THRESHOLD = tmp;
 //		ALLOC_MEM_SIZE = ALLOC_SIZE * ADDRESS_SIZE;
 		MANAGED_ALLOC = System.getProperties().containsKey(MANAGED_ALLOC_PROP);
+		PACKED_LAYOUT = Boolean.parseBoolean(System.getProperty(PACKED_LAYOUT_PROP, "" + DEFAULT_PACKED_LAYOUT));
+		try { 
+			tmp = Integer.parseInt(System.getProperty(POOL_SIZE_PROP, "" + DEFAULT_POOL_SIZE));
+		} catch (Exception ex) {
+			tmp = DEFAULT_POOL_SIZE;
+		}
+		POOL_SIZE = Math.max(0, tmp);
+		pools = new StructurePool[6];
+		for(int i = 0; i < pools.length; i++) {
+			pools[i] = new StructurePool(POOL_SIZE);
+		}
 		if(MANAGED_ALLOC) {
 			totalAllocated = new AtomicLong(0L); 
 			totalOverhead = new AtomicLong(0L);
@@ -201,13 +280,26 @@ public class AllocationPointerOperations {
     
     
 	/**
-	 * Allocates a new AllocationPointerOperations.
+	 * Allocates a new AllocationPointerOperations, packed if {@link #PACKED_LAYOUT} is true.
 	 * @param memTracking Indicates if memory tracking is enabled
 	 * @param memAlignment Indicates if cache-line memory alignment is enabled 
 	 * @param refId The UnsafeAdapter's ref manager assigned reference id
 	 * @return the address of the created memory block. 
 	 */
 	static final long newAllocationPointer(boolean memTracking, boolean memAlignment, long refId) {
+		return newAllocationPointer(memTracking, memAlignment, refId, PACKED_LAYOUT);
+	}
+	
+	/**
+	 * Allocates a new AllocationPointerOperations.
+	 * @param memTracking Indicates if memory tracking is enabled
+	 * @param memAlignment Indicates if cache-line memory alignment is enabled 
+	 * @param refId The UnsafeAdapter's ref manager assigned reference id
+	 * @param packed true to keep the address, size and overhead of each slot together in one block,
+	 * false to keep each dimension in its own block
+	 * @return the address of the created memory block. 
+	 */
+	static final long newAllocationPointer(boolean memTracking, boolean memAlignment, long refId, boolean packed) {
 		byte dim = ONE_BYTE;
 		if(memTracking) {
 			dim++;
@@ -215,17 +307,62 @@ public class AllocationPointerOperations {
 				dim++;
 			}
 		}
+		final long pooled = pools[poolIndex(dim, packed)].pop();
+		if(pooled!=0L) {
+			setReferenceId(pooled, refId);
+			return pooled;
+		}
+		if(packed) {
+			long address = _allocateMemory(ADDRESS_SIZE);
+			unsafe.putAddress(address, _allocateMemory(ALLOC_SIZE * ADDRESS_SIZE * dim + HEADER_SIZE));
+			initAllocationPointer(getAddressOfDim(address, ZERO_BYTE), refId, dim, dim);
+			return address;
+		}
 		long address = _allocateMemory(dim * ADDRESS_SIZE);
 		unsafe.putAddress(address, _allocateMemory(ALLOC_SIZE * ADDRESS_SIZE + HEADER_SIZE));
-		initAllocationPointer(getAddressOfDim(address, ZERO_BYTE), refId, dim);
+		initAllocationPointer(getAddressOfDim(address, ZERO_BYTE), refId, dim, ONE_BYTE);
 		if(dim>1) {
 			unsafe.putAddress(address + ADDRESS_SIZE, _allocateMemory(ALLOC_SIZE * ADDRESS_SIZE + HEADER_SIZE));
-			initAllocationPointer(getAddressOfDim(address, ONE_BYTE), 0L, ZERO_BYTE);
+			initAllocationPointer(blockAddress(address, ONE_BYTE), 0L, ZERO_BYTE, ONE_BYTE);
 			if(dim>2) {
 				unsafe.putAddress(address + ADDRESS_SIZE + ADDRESS_SIZE, _allocateMemory(ALLOC_SIZE * ADDRESS_SIZE + HEADER_SIZE));
-				initAllocationPointer(getAddressOfDim(address, TWO_BYTE), 0L, ZERO_BYTE);
+				initAllocationPointer(blockAddress(address, TWO_BYTE), 0L, ZERO_BYTE, ONE_BYTE);
+			}
+		}
+		return address;
+	}
+	
+	/**
+	 * Allocates a new concurrent AllocationPointerOperations, on which slots can be assigned, reassigned, cleared and read
+	 * by several threads at once. Its first chunk has {@link #ALLOC_SIZE} or {@link #MIN_FIRST_CHUNK} slots, whichever is more.
+	 * @param memTracking Indicates if memory tracking is enabled
+	 * @param memAlignment Indicates if cache-line memory alignment is enabled 
+	 * @param refId The UnsafeAdapter's ref manager assigned reference id
+	 * @return the address of the created memory block. 
+	 */
+	static final long newConcurrentAllocationPointer(boolean memTracking, boolean memAlignment, long refId) {
+		byte dim = ONE_BYTE;
+		if(memTracking) {
+			dim++;
+			if(memAlignment) {
+				dim++;
 			}
 		}
+		final int firstChunk = Math.max(ALLOC_SIZE, MIN_FIRST_CHUNK);
+		final long address = _allocateMemory(ADDRESS_SIZE);
+		final long headerAddress = _allocateMemory(CONCURRENT_HEADER_SIZE);
+		unsafe.putInt(headerAddress, 0);
+		unsafe.putInt(headerAddress + SIZE_OFFSET, 0);
+		unsafe.putLong(headerAddress + REFID_OFFSET, refId);
+		unsafe.putByte(headerAddress + DIM_OFFSET, dim);
+		unsafe.putAddress(headerAddress + INDEX_OFFSET, 0L);
+		unsafe.putInt(headerAddress + FREE_HEAD_OFFSET, 0);
+		unsafe.putInt(headerAddress + FREE_COUNT_OFFSET, 0);
+		unsafe.putByte(headerAddress + STRIDE_OFFSET, dim);
+		unsafe.putInt(headerAddress + CHUNK_OFFSET, firstChunk);
+		unsafe.setMemory(headerAddress + HEADER_SIZE, CONCURRENT_HEADER_SIZE - HEADER_SIZE, ZERO_BYTE);
+		unsafe.putAddress(address, headerAddress);
+		ensureChunk(headerAddress, 0);
 		return address;
 	}
 	
@@ -252,8 +389,9 @@ public class AllocationPointerOperations {
 	private static final long _reallocateMemory(final long address, final long size) {
 		final long addr = unsafe.reallocateMemory(address, size);
 		if(MANAGED_ALLOC) {
-			allocations.put(addr, new long[]{size});
+			// remove first, the block may have been resized in place
 			final long[] prior = allocations.remove(address);
+			allocations.put(addr, new long[]{size});
 			totalAllocated.addAndGet(size - ((prior!=null && prior.length>0) ? prior[0] : 0));
 		}
 		return addr;
@@ -264,7 +402,7 @@ public class AllocationPointerOperations {
 	 * @param address The address of the memory block to free
 	 */
 	private static final void _freeMemory(final long address) {
-		unsafe.freeMemory(address);
+		NativeAllocator.free(address);
 		if(MANAGED_ALLOC) {
 			final long[] prior = allocations.remove(address);
 			totalAllocated.addAndGet(((prior!=null && prior.length>0) ? 0-prior[0] : 0));
@@ -272,12 +410,26 @@ public class AllocationPointerOperations {
 	}
 	
 	/**
-	 * Returns the address of the slot at the passed dimension
+	 * Returns the address of the slot at the passed dimension. A packed AllocationPointer only has the first.
 	 * @param rootAddress The root address of the AllocationPointer
 	 * @param dim The dimension to get the address of
 	 * @return the address
+	 * @throws IllegalArgumentException if the AllocationPointer has no block for the passed dimension
 	 */
 	public static final long getAddressOfDim(final long rootAddress, final byte dim) {
+		if(dim!=ZERO_BYTE && (dim < 0 || dim >= getBlockCount(rootAddress))) {
+			throw new IllegalArgumentException("AllocationPointer has no block for dimension [" + dim + "]. Blocks: [" + getBlockCount(rootAddress) + "]");
+		}
+		return blockAddress(rootAddress, dim);
+	}
+	
+	/**
+	 * Returns the address of the block of the passed dimension without checking that the AllocationPointer has one
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @param dim The dimension to get the block address of
+	 * @return the address
+	 */
+	private static long blockAddress(final long rootAddress, final byte dim) {
 		return unsafe.getAddress(rootAddress + (dim * ADDRESS_SIZE));
 	}
 
@@ -292,29 +444,78 @@ public class AllocationPointerOperations {
 	}
 	
 	/**
-	 * Returns a long array with the dimension addresses
+	 * Returns a long array with the dimension block addresses
 	 * @param address The AllocationPointer root address
-	 * @return an array of addresses, one for each active dimension
+	 * @return an array of addresses, one for each active dimension, or just the one block of a packed AllocationPointer
 	 */
 	private static long[] getDimAddresses(final long address) {
-		final byte dim = getDimension(address);
-		long[] dimAddresses = new long[dim];
-		switch (dim) {
+		if(isConcurrent(address)) return getChunkBlockAddresses(getAddressOfDim(address, ZERO_BYTE));
+		final int blocks = getBlockCount(address);
+		long[] dimAddresses = new long[blocks];
+		switch (blocks) {
 			case 3:
-				dimAddresses[TWO_BYTE] = getAddressOfDim(address, TWO_BYTE);
+				dimAddresses[TWO_BYTE] = blockAddress(address, TWO_BYTE);
 				//$FALL-THROUGH$
 			case 2:
-				dimAddresses[ONE_BYTE] = getAddressOfDim(address, ONE_BYTE);
+				dimAddresses[ONE_BYTE] = blockAddress(address, ONE_BYTE);
 				//$FALL-THROUGH$
 			case 1:
 				dimAddresses[ZERO_BYTE] = getAddressOfDim(address, ZERO_BYTE);
 				break;
 			default:
-				loge("Invalid AP Dimension: [%s]", dim);
+				loge("Invalid AP Dimension: [%s]", blocks);
 		}
 		return dimAddresses;
 	}
 	
+	/**
+	 * Returns the stride of the referenced AllocationPointer, the number of values held by each slot of its first block
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @return the dimension if the AllocationPointer is packed, otherwise one
+	 */
+	static final int getStride(final long rootAddress) {
+		return unsafe.getByte(getAddressOfDim(rootAddress, ZERO_BYTE) + STRIDE_OFFSET);
+	}
+	
+	/**
+	 * Indicates if the referenced AllocationPointer keeps the address, size and overhead of each slot together in one block
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @return true if the AllocationPointer is packed, false if each dimension has its own block
+	 */
+	public static final boolean isPacked(final long rootAddress) {
+		return getStride(rootAddress) > 1;
+	}
+	
+	/**
+	 * Returns the number of native blocks holding the slots of the referenced AllocationPointer
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @return one if the AllocationPointer is packed, otherwise the dimension
+	 */
+	private static int getBlockCount(final long rootAddress) {
+		final long zeroDimAddress = getAddressOfDim(rootAddress, ZERO_BYTE);
+		return unsafe.getByte(zeroDimAddress + STRIDE_OFFSET) > 1 ? 1 : unsafe.getByte(zeroDimAddress + DIM_OFFSET);
+	}
+	
+	/**
+	 * Returns the address of the value of the passed dimension in the passed slot
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @param index The slot index
+	 * @param dim The dimension of the value
+	 * @return the address of the value
+	 */
+	private static long slotAddress(final long rootAddress, final int index, final byte dim) {
+		final long zeroDimAddress = getAddressOfDim(rootAddress, ZERO_BYTE);
+		final int stride = unsafe.getByte(zeroDimAddress + STRIDE_OFFSET);
+		final int firstChunk = unsafe.getInt(zeroDimAddress + CHUNK_OFFSET);
+		if(firstChunk!=0) {
+			final int chunk = chunkFor(index, firstChunk);
+			final long chunkAddress = unsafe.getAddress(zeroDimAddress + HEADER_SIZE + (chunk * ADDRESS_SIZE));
+			return chunkAddress + ((((index - chunkStart(chunk, firstChunk)) * stride) + dim) * ADDRESS_SIZE);
+		}
+		if(stride > 1) return zeroDimAddress + HEADER_SIZE + ((((long)index * stride) + dim) * ADDRESS_SIZE);
+		return (dim==ZERO_BYTE ? zeroDimAddress : blockAddress(rootAddress, dim)) + HEADER_SIZE + (((long)index) * ADDRESS_SIZE);
+	}
+	
 	
 	/**
 	 * Reassigns the address of a dim in the root space. Called after an extend.
@@ -332,13 +533,19 @@ public class AllocationPointerOperations {
 	 * @param actualAddress The actual dim address (not the root address)
 	 * @param refId The ref Id to write into the space
 	 * @param dim The dim to initialize
+	 * @param stride The number of values each slot of the space holds
 	 */
-	private static final void initAllocationPointer(final long actualAddress, final long refId, final byte dim) {
+	private static final void initAllocationPointer(final long actualAddress, final long refId, final byte dim, final byte stride) {
 		unsafe.putInt(actualAddress, ALLOC_SIZE);
 		unsafe.putInt(actualAddress + SIZE_OFFSET, 0);
 		unsafe.putLong(actualAddress + REFID_OFFSET, refId);
 		unsafe.putByte(actualAddress + DIM_OFFSET, dim);
-		unsafe.setMemory(actualAddress + HEADER_SIZE, (ALLOC_SIZE * ADDRESS_SIZE), ZERO_BYTE);		
+		unsafe.putAddress(actualAddress + INDEX_OFFSET, 0L);
+		unsafe.putInt(actualAddress + FREE_HEAD_OFFSET, 0);
+		unsafe.putInt(actualAddress + FREE_COUNT_OFFSET, 0);
+		unsafe.putByte(actualAddress + STRIDE_OFFSET, stride);
+		unsafe.putInt(actualAddress + CHUNK_OFFSET, 0);
+		unsafe.setMemory(actualAddress + HEADER_SIZE, (ALLOC_SIZE * ADDRESS_SIZE * stride), ZERO_BYTE);		
 	}
 	
 	/**
@@ -399,9 +606,10 @@ public class AllocationPointerOperations {
 	 * @param rootAddress The root address of the AllocationPointer
 	 * @param addressToFind The address to find the index for
 	 * @return the index of the passed address, or -1 if the address was not found
-	 * TODO: implement hashing function here to speed up finding an address
 	 */
 	public static final int findIndexForAddress(final long rootAddress, final long addressToFind) {		
+		final long indexAddress = getIndexAddress(rootAddress);
+		if(indexAddress!=0L) return indexFind(rootAddress, indexAddress, addressToFind);
 		final int sz = getSize(rootAddress);
 		if(sz==0) return -1;
 		long indexedValue = -1;
@@ -414,31 +622,116 @@ public class AllocationPointerOperations {
 	
 	
 	/**
-	 * Assigns the passed address to the next available slot in the referenced AllocationPointer
+	 * Assigns the passed address to the next available slot in the referenced AllocationPointer,
+	 * reusing the most recently cleared slot if there is one
 	 * @param rootAddress The root address of the AllocationPointer
 	 * @param newAddress The address to assign to the next slot
 	 * @param size The size of the memory block that the newAddress points to
 	 * @param alignmentOverhead the cache-line memory alignment overhead of the memory block that the newAddress points to
+	 * @return the index of the slot the address was assigned to
 	 */
-	public static final void assignSlot(final long rootAddress, final long newAddress, final long size, final long alignmentOverhead) {		
+	public static final int assignSlot(final long rootAddress, final long newAddress, final long size, final long alignmentOverhead) {		
 		final byte dim = getDimension(rootAddress);
-		if(isFull(rootAddress)) {			
-			extend(rootAddress);
+		if(isConcurrent(rootAddress)) {
+			int index = popConcurrentFreeSlot(rootAddress);
+			if(index==-1) index = reserveSlots(rootAddress, 1);
+			putConcurrent(rootAddress, index, dim, newAddress, size, alignmentOverhead);
+			return index;
 		}
-		if(findIndexForAddress(rootAddress, newAddress)!=-1) return;
-		final int nextIndex = incrementSize(rootAddress);		
-		final long offset = HEADER_SIZE + (nextIndex * ADDRESS_SIZE);
-		put(rootAddress, ZERO_BYTE, offset, newAddress);
-		if(dim>1) {
-			put(rootAddress, ONE_BYTE, offset, size);
-			if(dim>2) {
-				put(rootAddress, TWO_BYTE, offset, alignmentOverhead);
+		final int existingIndex = findIndexForAddress(rootAddress, newAddress);
+		if(existingIndex!=-1) return existingIndex;
+		int nextIndex = popFreeSlot(rootAddress);
+		if(nextIndex==-1) {
+			if(isFull(rootAddress)) {			
+				extend(rootAddress);
 			}
+			nextIndex = incrementSize(rootAddress);
 		}
+		put(rootAddress, nextIndex, dim, newAddress, size, alignmentOverhead);
+		indexPut(rootAddress, newAddress, nextIndex);
+		return nextIndex;
 	}
 	
-	private static final void put(final long address, final byte dim, final long offset, final long value) {
-		unsafe.putAddress(getAddressOfDim(address, dim) + offset, value);
+	/**
+	 * Assigns the passed addresses to the next available slots in the referenced AllocationPointer, 
+	 * filling cleared slots first and extending it at most once for the remainder.
+	 * Unlike {@link #assignSlot(long, long, long, long)}, the addresses are not checked for duplicates, so they should
+	 * be freshly allocated blocks. The alignment overhead of each is recorded as zero.
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @param newAddresses The addresses to assign
+	 * @param sizes The sizes of the memory blocks that the new addresses point to
+	 */
+	public static final void assignSlots(final long rootAddress, final long[] newAddresses, final long[] sizes) {
+		final int count = newAddresses.length;
+		if(count==0) return;
+		final byte dim = getDimension(rootAddress);
+		if(isConcurrent(rootAddress)) {
+			for(int i = 0; i < count; i++) {
+				final int index = popConcurrentFreeSlot(rootAddress);
+				if(index==-1) {
+					// no more free slots, so reserve a run for the remainder
+					final int firstIndex = reserveSlots(rootAddress, count - i);
+					for(int j = i; j < count; j++) {
+						putConcurrent(rootAddress, firstIndex + j - i, dim, newAddresses[j], sizes[j], 0L);
+					}
+					return;
+				}
+				putConcurrent(rootAddress, index, dim, newAddresses[i], sizes[i], 0L);
+			}
+			return;
+		}
+		final int firstIndex = getSize(rootAddress);
+		final int reused = Math.min(count, getFreeSlotCount(rootAddress));
+		final int appended = count - reused;
+		ensureCapacity(rootAddress, firstIndex + appended);
+		final boolean indexed = getIndexAddress(rootAddress)!=0L;
+		final int[] slots = indexed ? new int[count] : null;
+		for(int i = 0; i < count; i++) {
+			final int slot = i < reused ? popFreeSlot(rootAddress) : firstIndex + i - reused;
+			if(indexed) slots[i] = slot;
+			put(rootAddress, slot, dim, newAddresses[i], sizes[i], 0L);
+		}
+		if(appended > 0) {
+			setSize(rootAddress, firstIndex + appended);
+		}
+		if(!indexed) {
+			if(INDEX_THRESHOLD > 0 && firstIndex + appended > INDEX_THRESHOLD) buildIndex(rootAddress);
+		} else {
+			for(int i = 0; i < count; i++) {
+				indexPut(rootAddress, newAddresses[i], slots[i]);
+			}
+		}
+	}
+	
+	/**
+	 * Writes the values of a slot
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @param index The slot index
+	 * @param dim The dimension of the AllocationPointer
+	 * @param address The address to write
+	 * @param size The size to write if the dimension is more than one
+	 * @param alignmentOverhead The alignment overhead to write if the dimension is three
+	 */
+	private static final void put(final long rootAddress, final int index, final byte dim, final long address, final long size, final long alignmentOverhead) {
+		if(getStride(rootAddress) > 1) {
+			// packed, the values are adjacent
+			final long slotAddress = slotAddress(rootAddress, index, ZERO_BYTE);
+			unsafe.putAddress(slotAddress, address);
+			if(dim>1) {
+				unsafe.putAddress(slotAddress + ADDRESS_SIZE, size);
+				if(dim>2) {
+					unsafe.putAddress(slotAddress + ADDRESS_SIZE + ADDRESS_SIZE, alignmentOverhead);
+				}
+			}
+			return;
+		}
+		unsafe.putAddress(slotAddress(rootAddress, index, ZERO_BYTE), address);
+		if(dim>1) {
+			unsafe.putAddress(slotAddress(rootAddress, index, ONE_BYTE), size);
+			if(dim>2) {
+				unsafe.putAddress(slotAddress(rootAddress, index, TWO_BYTE), alignmentOverhead);
+			}
+		}
 	}
 	
 	/**
@@ -455,15 +748,15 @@ public class AllocationPointerOperations {
 	 */
 	public static final void reassignSlot(final long address, final long newAddress, final long size, final long alignmentOverhead, final int index) {
 		if(index >= getSize(address)) throw new IllegalArgumentException("Invalid index [" + index + "]. Size is [" + getSize(address) + "]");
-		final long offset = HEADER_SIZE + (index * ADDRESS_SIZE);
+		if(isFreeSlot(slotAddress(address, index, ZERO_BYTE))) throw new IllegalArgumentException("Invalid index [" + index + "]. The slot has been cleared");
 		final byte dim = getDimension(address);
-		put(address, ZERO_BYTE, offset, newAddress);
-		if(dim>1) {
-			put(address, ONE_BYTE, offset, size);
-			if(dim>2) {
-				put(address, TWO_BYTE, offset, alignmentOverhead);
-			}
+		if(isConcurrent(address)) {
+			putConcurrent(address, index, dim, newAddress, size, alignmentOverhead);
+			return;
 		}
+		indexRemove(address, getAddress(address, index));
+		put(address, index, dim, newAddress, size, alignmentOverhead);
+		indexPut(address, newAddress, index);
 	}
 	
 
@@ -502,7 +795,7 @@ public class AllocationPointerOperations {
 	 * @return the number of populated slots
 	 */
 	public static final int getSize(final long address) {
-		return unsafe.getInt(getAddressOfDim(address, ZERO_BYTE) + SIZE_OFFSET);
+		return unsafe.getIntVolatile(null, getAddressOfDim(address, ZERO_BYTE) + SIZE_OFFSET);
 	}
 	
 	/**
@@ -549,12 +842,12 @@ public class AllocationPointerOperations {
 	
 	/**
 	 * Determines if the memory block resident at the passed memory address is full.
-	 * i.e. if the size equals the capacity.
+	 * i.e. if the size equals the capacity and there are no cleared slots to reuse.
 	 * @param address the memory address of the AllocationPointer
 	 * @return true if full, false otherwise
 	 */
 	public static final boolean isFull(final long address) {
-		return getSize(address) == getCapacity(address);
+		return getSize(address) == getCapacity(address) && getFreeSlotCount(address)==0;
 	}
 	
 	/**
@@ -568,7 +861,9 @@ public class AllocationPointerOperations {
 		if(index < 0) throw new IllegalArgumentException("Invalid index: [" + index + "]");
 		final int size = getSize(address);
 		if(index > (size-1)) throw new IllegalArgumentException("Invalid index: [" + index + "]");
-		return unsafe.getAddress(getAddressOfDim(address, dim) + HEADER_SIZE + (index * ADDRESS_SIZE));
+		final long value = unsafe.getAddress(slotAddress(address, index, dim));
+		// cleared slots hold a free slot list link in the address dimension
+		return (dim==ZERO_BYTE && (value & FREE_SLOT_TAG)!=0L) ? 0L : value;
 	}
 	
 	/**
@@ -651,14 +946,7 @@ public class AllocationPointerOperations {
 	 */
 	public static final long[] getTriplet(final long address, final int index) {		
 		final long[] triplet = new long[3];		
-		triplet[0] = getAddress(address, index);
-		final byte dim = getDimension(address); 
-		if(dim>1) {
-			triplet[1] = getAddress(address, index, ONE_BYTE);
-			if(dim>2) {
-				triplet[2] = getAddress(address, index, TWO_BYTE);
-			}
-		}
+		readSlot(address, index, getDimension(address), triplet);
 		return triplet;		
 	}
 	
@@ -677,6 +965,32 @@ public class AllocationPointerOperations {
 	public static final long[] getSizedTriplet(final long address, final int index) {
 		final byte dim = getDimension(address);
 		final long[] triplet = new long[dim];		
+		readSlot(address, index, dim, triplet);
+		return triplet;		
+	}
+	
+	/**
+	 * Reads the values of a slot into the passed array
+	 * @param address The root address of the AllocationPointer
+	 * @param index The slot index
+	 * @param dim The dimension of the AllocationPointer
+	 * @param triplet The array to read the address, size and overhead into
+	 */
+	private static void readSlot(final long address, final int index, final byte dim, final long[] triplet) {
+		if(getStride(address) > 1) {
+			if(index < 0 || index >= getSize(address)) throw new IllegalArgumentException("Invalid index: [" + index + "]");
+			// packed, the values are adjacent
+			final long slotAddress = slotAddress(address, index, ZERO_BYTE);
+			final long value = unsafe.getAddress(slotAddress);
+			triplet[0] = (value & FREE_SLOT_TAG)!=0L ? 0L : value;
+			if(dim>1) {
+				triplet[1] = unsafe.getAddress(slotAddress + ADDRESS_SIZE);
+				if(dim>2) {
+					triplet[2] = unsafe.getAddress(slotAddress + ADDRESS_SIZE + ADDRESS_SIZE);
+				}
+			}
+			return;
+		}
 		triplet[0] = getAddress(address, index);		 
 		if(dim>1) {
 			triplet[1] = getAddress(address, index, ONE_BYTE);
@@ -684,7 +998,6 @@ public class AllocationPointerOperations {
 				triplet[2] = getAddress(address, index, TWO_BYTE);
 			}
 		}
-		return triplet;		
 	}
 	
 	
@@ -696,15 +1009,135 @@ public class AllocationPointerOperations {
 	public static final void clearAddress(final long rootAddress, final int index) {
 		if(index==-1) return;
 		if(index >= getSize(rootAddress)) throw new IllegalArgumentException("Invalid index [" + index + "]. Size is [" + getSize(rootAddress) + "]");
-		final long offset = HEADER_SIZE + (index * ADDRESS_SIZE);
+		final long slotAddress = slotAddress(rootAddress, index, ZERO_BYTE);
+		if(isFreeSlot(slotAddress)) return;
 		final byte dim = getDimension(rootAddress);
-		put(rootAddress, ZERO_BYTE, offset, 0L);
-		if(dim>1) {
-			put(rootAddress, ONE_BYTE, offset, 0L);
-			if(dim>2) {
-				put(rootAddress, TWO_BYTE, offset, 0L);
+		if(isConcurrent(rootAddress)) {
+			// the clear is claimed with a CAS on the address, so a slot cleared by two threads is only recycled once
+			final long value = readVolatile(slotAddress);
+			if(value==0L || (value & FREE_SLOT_TAG)!=0L || !casSlot(slotAddress, value, 0L)) return;
+			if(dim>1) {
+				unsafe.putAddress(slotAddress + ADDRESS_SIZE, 0L);
+				if(dim>2) {
+					unsafe.putAddress(slotAddress + ADDRESS_SIZE + ADDRESS_SIZE, 0L);
+				}
 			}
+			pushConcurrentFreeSlot(getAddressOfDim(rootAddress, ZERO_BYTE), slotAddress, index);
+			return;
 		}
+		indexRemove(rootAddress, getAddress(rootAddress, index));
+		put(rootAddress, index, dim, 0L, 0L, 0L);
+		pushFreeSlot(getAddressOfDim(rootAddress, ZERO_BYTE), slotAddress, index);
+	}
+	
+	// =====================================================================================================
+	// Free Slot List
+	// =====================================================================================================
+	// Cleared slots are chained into a LIFO list through the address dimension itself. A cleared slot holds 
+	// the index plus one of the next free slot (zero ends the list) shifted left by one, with the low bit set.
+	// Tracked addresses are always at least 8 byte aligned, so the tag cannot collide with a live address.
+	
+	/** The tag bit marking an address slot as a free slot list link */
+	private static final long FREE_SLOT_TAG = 1L;
+	
+	/**
+	 * Returns the number of cleared slots available for reuse in the referenced AllocationPointer
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @return the number of free slots
+	 */
+	public static final int getFreeSlotCount(final long rootAddress) {
+		final long zeroDimAddress = getAddressOfDim(rootAddress, ZERO_BYTE);
+		if(unsafe.getInt(zeroDimAddress + CHUNK_OFFSET)!=0) return unsafe.getIntVolatile(null, zeroDimAddress + CONCURRENT_FREE_COUNT_OFFSET);
+		return unsafe.getInt(zeroDimAddress + FREE_COUNT_OFFSET);
+	}
+	
+	/**
+	 * Indicates if the passed address slot is in the free slot list
+	 * @param slotAddress The address of the address value of the slot
+	 * @return true if the slot is free, false if it holds an address
+	 */
+	private static boolean isFreeSlot(final long slotAddress) {
+		return (unsafe.getAddress(slotAddress) & FREE_SLOT_TAG)!=0L;
+	}
+	
+	/**
+	 * Pushes a cleared slot onto the free slot list
+	 * @param zeroDimAddress The address of the first dimension
+	 * @param slotAddress The address of the address value of the slot
+	 * @param index The index of the slot
+	 */
+	private static void pushFreeSlot(final long zeroDimAddress, final long slotAddress, final int index) {
+		final int head = unsafe.getInt(zeroDimAddress + FREE_HEAD_OFFSET);
+		unsafe.putAddress(slotAddress, (((long)head) << 1) | FREE_SLOT_TAG);
+		unsafe.putInt(zeroDimAddress + FREE_HEAD_OFFSET, index + 1);
+		unsafe.putInt(zeroDimAddress + FREE_COUNT_OFFSET, unsafe.getInt(zeroDimAddress + FREE_COUNT_OFFSET) + 1);
+	}
+	
+	/**
+	 * Pops the most recently cleared slot off the free slot list, leaving it zeroed
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @return the index of the slot or -1 if there are no free slots
+	 */
+	private static int popFreeSlot(final long rootAddress) {
+		final long zeroDimAddress = getAddressOfDim(rootAddress, ZERO_BYTE);
+		final int head = unsafe.getInt(zeroDimAddress + FREE_HEAD_OFFSET);
+		if(head==0) return -1;
+		final long slotAddress = slotAddress(rootAddress, head - 1, ZERO_BYTE);
+		unsafe.putInt(zeroDimAddress + FREE_HEAD_OFFSET, (int)(unsafe.getAddress(slotAddress) >>> 1));
+		unsafe.putInt(zeroDimAddress + FREE_COUNT_OFFSET, unsafe.getInt(zeroDimAddress + FREE_COUNT_OFFSET) - 1);
+		unsafe.putAddress(slotAddress, 0L);
+		return head - 1;
+	}
+	
+	/**
+	 * Squeezes the cleared slots out of the referenced AllocationPointer, moving the live slots down in order,
+	 * and shrinks the capacity to fit them, rounded up to a multiple of {@link #ALLOC_SIZE}.
+	 * Slot indexes previously handed out are not valid after a compaction that reclaimed any slots.
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @return the number of slots reclaimed
+	 */
+	public static final int compact(final long rootAddress) {
+		if(isConcurrent(rootAddress)) throw new IllegalStateException("A concurrent AllocationPointer cannot be compacted");
+		final byte dim = getDimension(rootAddress);
+		final int size = getSize(rootAddress);
+		final int stride = getStride(rootAddress);
+		final long[] dimAddresses = getDimAddresses(rootAddress);
+		int live = 0;
+		for(int i = 0; i < size; i++) {
+			final long value = unsafe.getAddress(slotAddress(rootAddress, i, ZERO_BYTE));
+			if(value==0L || (value & FREE_SLOT_TAG)!=0L) continue;
+			if(live!=i) {
+				for(byte d = 0; d < dim; d++) {
+					unsafe.putAddress(slotAddress(rootAddress, live, d), unsafe.getAddress(slotAddress(rootAddress, i, d)));
+				}
+			}
+			live++;
+		}
+		final int reclaimed = size - live;
+		for(byte b = 0; b < dimAddresses.length; b++) {
+			unsafe.setMemory(slotAddress(rootAddress, live, b), ((long)(size - live)) * ADDRESS_SIZE * stride, ZERO_BYTE);
+		}
+		setSize(rootAddress, live);
+		unsafe.putInt(dimAddresses[ZERO_BYTE] + FREE_HEAD_OFFSET, 0);
+		unsafe.putInt(dimAddresses[ZERO_BYTE] + FREE_COUNT_OFFSET, 0);
+		final int newCap = Math.max(ALLOC_SIZE, ((live + ALLOC_SIZE - 1) / ALLOC_SIZE) * ALLOC_SIZE);
+		if(newCap < getCapacity(rootAddress)) {
+			for(byte b = 0; b < dimAddresses.length; b++) {
+				final long newAddress = _reallocateMemory(dimAddresses[b], HEADER_SIZE + (((long)newCap) * ADDRESS_SIZE * stride));
+				unsafe.putInt(newAddress, newCap);
+				setAddressOfDim(rootAddress, b, newAddress);
+			}
+		}
+		final long indexAddress = getIndexAddress(rootAddress);
+		if(indexAddress!=0L && reclaimed > 0) {
+			if(live > INDEX_THRESHOLD) {
+				buildIndex(rootAddress);
+			} else {
+				unsafe.putAddress(getAddressOfDim(rootAddress, ZERO_BYTE) + INDEX_OFFSET, 0L);
+				_freeMemory(indexAddress);
+			}
+		}
+		return reclaimed;
 	}
 	
 	
@@ -763,7 +1196,7 @@ public class AllocationPointerOperations {
 	 * @return a string describing the status of the AllocationPointer
 	 */
 	public static final String print(final long rootAddress) {
-		StringBuilder b = new StringBuilder(String.format("AllocationPointer >> [size: %s, capacity: %s, byteSize: %s, attached: %s]", getSize(rootAddress), getCapacity(rootAddress), getEndOffset(rootAddress), isAttached(rootAddress)));
+		StringBuilder b = new StringBuilder(String.format("AllocationPointer >> [size: %s, capacity: %s, free: %s, byteSize: %s, packed: %s, attached: %s]", getSize(rootAddress), getCapacity(rootAddress), getFreeSlotCount(rootAddress), getEndOffset(rootAddress), isPacked(rootAddress), isAttached(rootAddress)));
 		return b.toString();
 	}
 	
@@ -800,6 +1233,19 @@ public class AllocationPointerOperations {
 	 * @return The [possibly empty] array of addresses just deallocated
 	 */
 	public static final long[][] free(final long rootAddress, final boolean includePostMortem) {
+		return free(rootAddress, includePostMortem, false);
+	}
+	
+	/**
+	 * Frees all memory allocated within the referenced AllocationPointerOperations
+	 * @param rootAddress of this AllocationPointer
+	 * @param includePostMortem If true, the returned array will have all the formerly allocated addresses,
+	 * otherwise will be zero length.
+	 * @param recycle true to return the AllocationPointer's own memory blocks to the structure pool for reuse by a new AllocationPointer
+	 * if they are eligible, false to always free them. Only pass true when nothing can reference the AllocationPointer any more. 
+	 * @return The [possibly empty] array of addresses just deallocated
+	 */
+	public static final long[][] free(final long rootAddress, final boolean includePostMortem, final boolean recycle) {
 //		log("Starting full AP Free for root address [%s]", address);
 		final byte dim = getDimension(rootAddress);				
 		final int size = getSize(rootAddress);
@@ -823,6 +1269,9 @@ public class AllocationPointerOperations {
 				}
 			}
 		}
+		if(recycle && recycle(rootAddress)) return deadAddresses;
+		final long indexAddress = getIndexAddress(rootAddress);
+		if(indexAddress!=0L) _freeMemory(indexAddress);
 		for(final long dimAddress : getDimAddresses(rootAddress)) {
 			_freeMemory(dimAddress);
 		}
@@ -830,6 +1279,195 @@ public class AllocationPointerOperations {
 		return deadAddresses;
 	}
 	
+	// =====================================================================================================
+	// Structure Pool
+	// =====================================================================================================
+	// Released AllocationPointers that never grew past their initial capacity are reset to the state of a 
+	// new AllocationPointer and kept in a bounded pool per layout, so short lived owners can be created 
+	// without allocating any native memory. Grown, indexed and concurrent AllocationPointers are freed.
+	
+	/**
+	 * <p>Title: StructurePool</p>
+	 * <p>Description: A bounded stack of the root addresses of reset AllocationPointer structures</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.unsafe.AllocationPointerOperations.StructurePool</code></p>
+	 */
+	private static final class StructurePool {
+		/** The pooled root addresses */
+		private final long[] roots;
+		/** The number of pooled root addresses */
+		private int count = 0;
+		
+		/**
+		 * Creates a new StructurePool
+		 * @param capacity The maximum number of pooled structures
+		 */
+		StructurePool(final int capacity) {
+			roots = new long[capacity];
+		}
+		
+		/**
+		 * Adds a reset structure to the pool
+		 * @param rootAddress The root address of the structure
+		 * @return true if the structure was pooled, false if the pool is full
+		 */
+		synchronized boolean push(final long rootAddress) {
+			if(count==roots.length) return false;
+			roots[count++] = rootAddress;
+			return true;
+		}
+		
+		/**
+		 * Takes a structure from the pool
+		 * @return the root address of the structure, or zero if the pool is empty
+		 */
+		synchronized long pop() {
+			if(count==0) return 0L;
+			final long rootAddress = roots[--count];
+			roots[count] = 0L;
+			return rootAddress;
+		}
+		
+		/**
+		 * Returns the number of pooled structures
+		 * @return the number of pooled structures
+		 */
+		synchronized int size() {
+			return count;
+		}
+		
+		/**
+		 * Frees all the pooled structures
+		 */
+		void drain() {
+			long rootAddress;
+			while((rootAddress = pop())!=0L) {
+				freeStructure(rootAddress);
+			}
+		}
+	}
+	
+	/**
+	 * Returns the index of the pool for the passed dimension and layout
+	 * @param dim The AllocationPointer dimension
+	 * @param packed true for the packed layout
+	 * @return the pool index
+	 */
+	private static int poolIndex(final byte dim, final boolean packed) {
+		return ((dim - 1) << 1) | (packed ? 1 : 0);
+	}
+	
+	/**
+	 * Resets a released AllocationPointer and adds it to the structure pool if it still has its initial capacity
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @return true if the AllocationPointer was pooled, false if it should be freed
+	 */
+	private static boolean recycle(final long rootAddress) {
+		if(POOL_SIZE < 1 || getCapacity(rootAddress)!=ALLOC_SIZE || getIndexAddress(rootAddress)!=0L || isConcurrent(rootAddress)) return false;
+		final byte dim = getDimension(rootAddress);
+		final boolean packed = isPacked(rootAddress);
+		if(packed) {
+			initAllocationPointer(getAddressOfDim(rootAddress, ZERO_BYTE), 0L, dim, dim);
+		} else {
+			initAllocationPointer(getAddressOfDim(rootAddress, ZERO_BYTE), 0L, dim, ONE_BYTE);
+			for(byte b = 1; b < dim; b++) {
+				initAllocationPointer(blockAddress(rootAddress, b), 0L, ZERO_BYTE, ONE_BYTE);
+			}
+		}
+		return pools[poolIndex(dim, packed)].push(rootAddress);
+	}
+	
+	/**
+	 * Frees the memory blocks of an empty AllocationPointer
+	 * @param rootAddress The root address of the AllocationPointer
+	 */
+	private static void freeStructure(final long rootAddress) {
+		for(final long dimAddress : getDimAddresses(rootAddress)) {
+			_freeMemory(dimAddress);
+		}
+		_freeMemory(rootAddress);
+	}
+	
+	/**
+	 * Returns the number of released AllocationPointer structures waiting in the pools to be reused
+	 * @return the number of pooled structures
+	 */
+	public static final int getPooledCount() {
+		int total = 0;
+		for(final StructurePool pool: pools) {
+			total += pool.size();
+		}
+		return total;
+	}
+	
+	/**
+	 * Frees all the pooled AllocationPointer structures. Called when the reference manager shuts down.
+	 */
+	public static final void drainPool() {
+		for(final StructurePool pool: pools) {
+			pool.drain();
+		}
+	}
+	
+	/**
+	 * Frees the memory blocks of the referenced AllocationPointer after passing each of its occupied slots to the visitor,
+	 * without copying the slots into arrays. The visitor is expected to free or otherwise dispose of the visited addresses.
+	 * @param rootAddress of this AllocationPointer
+	 * @param visitor The visitor each occupied slot is passed to. Returning false from the visitor does not stop the release.
+	 * @param recycle true to return the AllocationPointer's own memory blocks to the structure pool for reuse by a new AllocationPointer
+	 * if they are eligible, false to always free them. Only pass true when nothing can reference the AllocationPointer any more. 
+	 * @return the number of occupied slots visited
+	 */
+	public static final int release(final long rootAddress, final SlotVisitor visitor, final boolean recycle) {
+		final int visited = forEachSlot(rootAddress, visitor, false);
+		if(recycle && recycle(rootAddress)) return visited;
+		final long indexAddress = getIndexAddress(rootAddress);
+		if(indexAddress!=0L) _freeMemory(indexAddress);
+		freeStructure(rootAddress);
+		return visited;
+	}
+	
+	/**
+	 * Passes each occupied slot of the referenced AllocationPointer to the visitor, in index order, without allocating
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @param visitor The visitor each occupied slot is passed to
+	 * @return the number of occupied slots visited
+	 */
+	public static final int forEachSlot(final long rootAddress, final SlotVisitor visitor) {
+		return forEachSlot(rootAddress, visitor, true);
+	}
+	
+	/**
+	 * Passes each occupied slot of the referenced AllocationPointer to the visitor, in index order, without allocating
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @param visitor The visitor each occupied slot is passed to
+	 * @param stoppable true to stop visiting when the visitor returns false, false to visit every slot
+	 * @return the number of occupied slots visited
+	 */
+	private static int forEachSlot(final long rootAddress, final SlotVisitor visitor, final boolean stoppable) {
+		if(visitor==null) throw new IllegalArgumentException("The passed visitor was null");
+		final byte dim = getDimension(rootAddress);
+		final boolean packed = getStride(rootAddress) > 1;
+		final int size = getSize(rootAddress);
+		int visited = 0;
+		for(int i = 0; i < size; i++) {
+			final long slotAddress = slotAddress(rootAddress, i, ZERO_BYTE);
+			final long address = unsafe.getAddress(slotAddress);
+			if(address==0L || (address & FREE_SLOT_TAG)!=0L) continue;
+			long allocationSize = 0L, alignmentOverhead = 0L;
+			if(dim>1) {
+				allocationSize = unsafe.getAddress(packed ? slotAddress + ADDRESS_SIZE : slotAddress(rootAddress, i, ONE_BYTE));
+				if(dim>2) {
+					alignmentOverhead = unsafe.getAddress(packed ? slotAddress + ADDRESS_SIZE + ADDRESS_SIZE : slotAddress(rootAddress, i, TWO_BYTE));
+				}
+			}
+			visited++;
+			if(!visitor.visitSlot(i, address, allocationSize, alignmentOverhead) && stoppable) break;
+		}
+		return visited;
+	}
+	
 	/**
 	 * Dumps the values of the AllocationPointer
 	 * @param rootAddress The root address of the AllocationPointer
@@ -853,20 +1491,21 @@ public class AllocationPointerOperations {
 	 * @return the index of the next open slot from the first address
 	 */
 	public static final int incrementSize(final long address) {
-		final byte dim = getDimension(address);
 		final int nextSlot  = getSize(address);
-		incrementSize(address, ZERO_BYTE, nextSlot + 1);
-		if(dim>1) {
-			incrementSize(address, ONE_BYTE, nextSlot + 1);
-			if(dim>2) {
-				incrementSize(address, TWO_BYTE, nextSlot + 1);
-			}
-		}		
+		setSize(address, nextSlot + 1);
 		return nextSlot;
 	}
 	
-	private static final void incrementSize(final long address, final byte dim, final int newSize) {
-		unsafe.putInt(getAddressOfDim(address, dim) + SIZE_OFFSET, newSize);
+	/**
+	 * Sets the size of the AllocationPointer in the header of each of its blocks
+	 * @param address The address of the AllocationPointer memory blocks to set the size for
+	 * @param newSize The new size
+	 */
+	private static final void setSize(final long address, final int newSize) {
+		final int blocks = getBlockCount(address);
+		for(byte b = 0; b < blocks; b++) {
+			unsafe.putInt(blockAddress(address, b) + SIZE_OFFSET, newSize);
+		}
 	}
 	
 	/**
@@ -877,7 +1516,7 @@ public class AllocationPointerOperations {
 	public static final long getEndAddress(final long address) {
 		final int size = getCapacity(address);
 		final long za = getAddressOfDim(address, ZERO_BYTE);
-		return za + HEADER_SIZE + (size * ADDRESS_SIZE);
+		return za + HEADER_SIZE + (((long)size) * ADDRESS_SIZE * getStride(address));
 	}
 	
 	/**
@@ -899,43 +1538,446 @@ public class AllocationPointerOperations {
 	 * @return the total byte size of the AllocationPointer
 	 */
 	public static final long getDeepByteSize(long address) {
-		final byte dim = getDimension(address);
-		final int cap = getCapacity(address);
+		if(isConcurrent(address)) {
+			final long headerAddress = getAddressOfDim(address, ZERO_BYTE);
+			return CONCURRENT_HEADER_SIZE									// the header, chunk directory and free slot stack
+					+ (((long)getCapacity(address)) * ADDRESS_SIZE * unsafe.getByte(headerAddress + STRIDE_OFFSET)) // the chunks
+					+ ADDRESS_SIZE;										// the root address
+		}
+		final int blocks = getBlockCount(address);
+		final long indexAddress = getIndexAddress(address);
 		return 
 				(
-						(HEADER_SIZE + (ADDRESS_SIZE * cap))	  // the size of one dim
-						 * dim									  // multiplied by the number of dims
-						 + (ADDRESS_SIZE * dim)                   // plus the dim addresses
+						getEndOffset(address)					  // the size of one dim, or of all of them when packed
+						 * blocks								  // multiplied by the number of dim blocks
+						 + (ADDRESS_SIZE * blocks)                // plus the dim block addresses
+						 + (indexAddress==0L ? 0 : INDEX_HEADER_SIZE + (unsafe.getInt(indexAddress) << 2)) // plus the address index
 				);
 				
 	}
 	
 	
 	/**
-	 * Extends the capacity of the referenced memory block
+	 * Extends the capacity of the referenced memory block, doubling it or adding {@link #ALLOC_SIZE} slots, whichever is more,
+	 * so that a run of assignments costs an amortized constant number of reallocations
 	 * @param address The address of the allocation pointer memory block
 	 */
 	public static final void extend(final long address) {
-		final byte dim = getDimension(address);
+		if(isConcurrent(address)) {
+			ensureCapacity(address, getCapacity(address) + 1);
+			return;
+		}
+		extend(address, Math.max(ALLOC_SIZE, getCapacity(address)));
+	}
+	
+	/**
+	 * Extends the capacity of the referenced memory block, if necessary, so that it has at least the passed number of slots.
+	 * The capacity is grown in one step, by a multiple of {@link #ALLOC_SIZE}, and at least doubled as in {@link #extend(long)}.
+	 * @param address The address of the allocation pointer memory block
+	 * @param capacity The minimum number of slots required
+	 */
+	public static final void ensureCapacity(final long address, final int capacity) {
+		if(isConcurrent(address)) {
+			if(capacity > 0) ensureChunks(getAddressOfDim(address, ZERO_BYTE), capacity - 1);
+			return;
+		}
+		final int currentCap = getCapacity(address);
+		if(capacity <= currentCap) return;
+		final int required = ((capacity - currentCap + ALLOC_SIZE - 1) / ALLOC_SIZE) * ALLOC_SIZE;
+		extend(address, Math.max(required, currentCap));
+	}
+	
+	/**
+	 * Extends the capacity of the referenced memory block by the passed number of slots
+	 * @param address The address of the allocation pointer memory block
+	 * @param slots The number of slots to add
+	 */
+	private static void extend(final long address, final int slots) {
+		final int blocks = getBlockCount(address);
+		final int stride = getStride(address);
 		final long endOffset = getEndOffset(address);
 		final int currentCap = getCapacity(address);
-		
-		extend(address, getAddressOfDim(address, ZERO_BYTE), endOffset, currentCap, ZERO_BYTE);
+		for(byte b = 0; b < blocks; b++) {
+			extend(address, blockAddress(address, b), endOffset, currentCap, b, ((long)slots) * ADDRESS_SIZE * stride, slots);
+		}
+	}
+	
+	private static void extend(final long rootAddress, final long actualAddress, final long endOffset, final int currentCap, final byte dim, final long bytes, final int slots) {
+		final long newAddress = _reallocateMemory(actualAddress, endOffset + bytes);
+		unsafe.setMemory(newAddress + endOffset, bytes, ZERO_BYTE);
+		unsafe.putInt(newAddress, currentCap + slots);
+		setAddressOfDim(rootAddress, dim, newAddress);
+	}
+	
+	
+	// =====================================================================================================
+	// Concurrent AllocationPointer
+	// =====================================================================================================
+	// Slots are reserved by a CAS on the size in the header and the chunk holding a slot is installed before
+	// the size covering it is published, so a reader that sees the size can always reach the slot. A slot's
+	// size and overhead are written before its address, which is published with a volatile write.
+	
+	/**
+	 * Indicates if the referenced AllocationPointer supports concurrent slot assignment
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @return true if the AllocationPointer is concurrent, false otherwise
+	 */
+	public static final boolean isConcurrent(final long rootAddress) {
+		return unsafe.getInt(getAddressOfDim(rootAddress, ZERO_BYTE) + CHUNK_OFFSET)!=0;
+	}
+	
+	/**
+	 * Returns the chunk holding the passed slot index
+	 * @param index The slot index
+	 * @param firstChunk The number of slots in the first chunk
+	 * @return the chunk number
+	 */
+	private static int chunkFor(final int index, final int firstChunk) {
+		return 31 - Integer.numberOfLeadingZeros((index / firstChunk) + 1);
+	}
+	
+	/**
+	 * Returns the index of the first slot in the passed chunk, in long arithmetic since the later chunks of the directory start past the int range
+	 * @param chunk The chunk number
+	 * @param firstChunk The number of slots in the first chunk
+	 * @return the index of the first slot
+	 */
+	private static long chunkStart(final int chunk, final int firstChunk) {
+		return firstChunk * ((1L << chunk) - 1L);
+	}
+	
+	/**
+	 * Installs the chunk holding the passed slot index and all the chunks before it, if they are not already installed
+	 * @param headerAddress The address of the header and chunk directory
+	 * @param index The slot index
+	 */
+	private static void ensureChunks(final long headerAddress, final int index) {
+		final int last = chunkFor(index, unsafe.getInt(headerAddress + CHUNK_OFFSET));
+		for(int chunk = 0; chunk <= last; chunk++) {
+			ensureChunk(headerAddress, chunk);
+		}
+	}
+	
+	/**
+	 * Installs a chunk if it is not already installed. If another thread installs it first, the allocated chunk is freed.
+	 * @param headerAddress The address of the header and chunk directory
+	 * @param chunk The chunk number
+	 */
+	private static void ensureChunk(final long headerAddress, final int chunk) {
+		if(chunk >= CHUNK_DIRECTORY_SIZE) throw new IllegalStateException("Concurrent AllocationPointer chunk directory exhausted");
+		final long entryAddress = headerAddress + HEADER_SIZE + (chunk * ADDRESS_SIZE);
+		if(unsafe.getAddress(entryAddress)!=0L) return;
+		final long slots = ((long)unsafe.getInt(headerAddress + CHUNK_OFFSET)) << chunk;
+		final long bytes = slots * ADDRESS_SIZE * unsafe.getByte(headerAddress + STRIDE_OFFSET);
+		final long chunkAddress = _allocateMemory(bytes);
+		unsafe.setMemory(chunkAddress, bytes, ZERO_BYTE);
+		final boolean installed = ADDRESS_SIZE==8 ? 
+				unsafe.compareAndSwapLong(null, entryAddress, 0L, chunkAddress) : 
+				unsafe.compareAndSwapInt(null, entryAddress, 0, (int)chunkAddress);
+		if(installed) {
+			// slot indexes are ints, so the capacity saturates once the chunks cover the whole int range
+			int cap;
+			do {
+				cap = unsafe.getIntVolatile(null, headerAddress + CAP_OFFSET);
+			} while(!unsafe.compareAndSwapInt(null, headerAddress + CAP_OFFSET, cap, (int)Math.min(Integer.MAX_VALUE, cap + slots)));
+		} else {
+			_freeMemory(chunkAddress);
+		}
+	}
+	
+	/**
+	 * Reserves a run of slots, installing any chunks they need before the reservation is published
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @param count The number of slots to reserve
+	 * @return the index of the first reserved slot
+	 */
+	private static int reserveSlots(final long rootAddress, final int count) {
+		final long headerAddress = getAddressOfDim(rootAddress, ZERO_BYTE);
+		while(true) {
+			final int size = unsafe.getIntVolatile(null, headerAddress + SIZE_OFFSET);
+			if(size > Integer.MAX_VALUE - count) throw new IllegalStateException("Concurrent AllocationPointer is full");
+			ensureChunks(headerAddress, size + count - 1);
+			if(unsafe.compareAndSwapInt(null, headerAddress + SIZE_OFFSET, size, size + count)) return size;
+		}
+	}
+	
+	/**
+	 * Writes the values of a concurrent AllocationPointer slot, publishing the address last
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @param index The slot index
+	 * @param dim The dimension of the AllocationPointer
+	 * @param address The address to write
+	 * @param size The size to write if the dimension is more than one
+	 * @param alignmentOverhead The alignment overhead to write if the dimension is three
+	 */
+	private static void putConcurrent(final long rootAddress, final int index, final byte dim, final long address, final long size, final long alignmentOverhead) {
+		final long slotAddress = slotAddress(rootAddress, index, ZERO_BYTE);
 		if(dim>1) {
-			extend(address, getAddressOfDim(address, ONE_BYTE), endOffset, currentCap, ONE_BYTE);
+			unsafe.putAddress(slotAddress + ADDRESS_SIZE, size);
 			if(dim>2) {
-				extend(address, getAddressOfDim(address, TWO_BYTE), endOffset, currentCap, TWO_BYTE);
+				unsafe.putAddress(slotAddress + ADDRESS_SIZE + ADDRESS_SIZE, alignmentOverhead);
 			}
-		}		
+		}
+		publish(slotAddress, address);
 	}
 	
-	private static void extend(final long rootAddress, final long actualAddress, final long endOffset, final int currentCap, final byte dim) {
-		final long newAddress = _reallocateMemory(actualAddress, endOffset + (ALLOC_SIZE * ADDRESS_SIZE));
-		unsafe.setMemory(newAddress + endOffset, (ALLOC_SIZE * ADDRESS_SIZE), ZERO_BYTE);
-		unsafe.putInt(newAddress, currentCap + ALLOC_SIZE);
-		setAddressOfDim(rootAddress, dim, newAddress);
+	/**
+	 * Reads an address value with volatile semantics
+	 * @param slotAddress The address to read from
+	 * @return the value
+	 */
+	private static long readVolatile(final long slotAddress) {
+		return ADDRESS_SIZE==8 ? unsafe.getLongVolatile(null, slotAddress) : (unsafe.getIntVolatile(null, slotAddress) & 0xFFFFFFFFL);
+	}
+	
+	/**
+	 * Compares and swaps an address value
+	 * @param slotAddress The address of the value
+	 * @param expect The expected value
+	 * @param update The new value
+	 * @return true if the value was swapped
+	 */
+	private static boolean casSlot(final long slotAddress, final long expect, final long update) {
+		return ADDRESS_SIZE==8 ? 
+				unsafe.compareAndSwapLong(null, slotAddress, expect, update) : 
+				unsafe.compareAndSwapInt(null, slotAddress, (int)expect, (int)update);
 	}
 	
+	/**
+	 * Pushes a cleared slot of a concurrent AllocationPointer onto its free slot stack.
+	 * The slot links to the slot below it the same way as in the free slot list of other AllocationPointers,
+	 * and the head is swapped with a new version stamp, so a pop that read a link before the slot was popped 
+	 * and pushed again by other threads cannot succeed with the stale link.
+	 * @param headerAddress The address of the header and chunk directory
+	 * @param slotAddress The address of the address value of the slot
+	 * @param index The index of the slot
+	 */
+	private static void pushConcurrentFreeSlot(final long headerAddress, final long slotAddress, final int index) {
+		final long headAddress = headerAddress + CONCURRENT_FREE_OFFSET;
+		while(true) {
+			final long head = unsafe.getLongVolatile(null, headAddress);
+			publish(slotAddress, (((long)(int)head) << 1) | FREE_SLOT_TAG);
+			if(unsafe.compareAndSwapLong(null, headAddress, head, (((head >>> 32) + 1) << 32) | (index + 1))) break;
+		}
+		final long countAddress = headerAddress + CONCURRENT_FREE_COUNT_OFFSET;
+		int count;
+		do {
+			count = unsafe.getIntVolatile(null, countAddress);
+		} while(!unsafe.compareAndSwapInt(null, countAddress, count, count + 1));
+	}
+	
+	/**
+	 * Pops the most recently cleared slot off the free slot stack of a concurrent AllocationPointer.
+	 * The slot keeps its free link until the caller publishes a new address in it.
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @return the index of the slot or -1 if there are no free slots
+	 */
+	private static int popConcurrentFreeSlot(final long rootAddress) {
+		final long headerAddress = getAddressOfDim(rootAddress, ZERO_BYTE);
+		final long headAddress = headerAddress + CONCURRENT_FREE_OFFSET;
+		while(true) {
+			final long head = unsafe.getLongVolatile(null, headAddress);
+			final int top = (int)head;
+			if(top==0) return -1;
+			final long link = readVolatile(slotAddress(rootAddress, top - 1, ZERO_BYTE));
+			// a link read from a slot that was popped meanwhile is stale, but the version stamp has moved on so the CAS fails
+			final long next = (link & FREE_SLOT_TAG)!=0L ? (link >>> 1) & 0xFFFFFFFFL : 0L;
+			if(unsafe.compareAndSwapLong(null, headAddress, head, (((head >>> 32) + 1) << 32) | next)) {
+				final long countAddress = headerAddress + CONCURRENT_FREE_COUNT_OFFSET;
+				int count;
+				do {
+					count = unsafe.getIntVolatile(null, countAddress);
+				} while(!unsafe.compareAndSwapInt(null, countAddress, count, count - 1));
+				return top - 1;
+			}
+		}
+	}
+	
+	/**
+	 * Writes an address value with volatile semantics
+	 * @param slotAddress The address to write to
+	 * @param value The value to write
+	 */
+	private static void publish(final long slotAddress, final long value) {
+		if(ADDRESS_SIZE==8) {
+			unsafe.putLongVolatile(null, slotAddress, value);
+		} else {
+			unsafe.putIntVolatile(null, slotAddress, (int)value);
+		}
+	}
+	
+	/**
+	 * Returns the addresses of the header and installed chunks of a concurrent AllocationPointer
+	 * @param headerAddress The address of the header and chunk directory
+	 * @return the block addresses, header first
+	 */
+	private static long[] getChunkBlockAddresses(final long headerAddress) {
+		int chunks = 0;
+		while(chunks < CHUNK_DIRECTORY_SIZE && unsafe.getAddress(headerAddress + HEADER_SIZE + (chunks * ADDRESS_SIZE))!=0L) chunks++;
+		final long[] blocks = new long[chunks + 1];
+		blocks[0] = headerAddress;
+		for(int i = 0; i < chunks; i++) {
+			blocks[i + 1] = unsafe.getAddress(headerAddress + HEADER_SIZE + (i * ADDRESS_SIZE));
+		}
+		return blocks;
+	}
+	
+	// =====================================================================================================
+	// Address Index
+	// =====================================================================================================
+	// The index is an open addressing (linear probing) hash table of int entries, each being the slot
+	// index of an address plus one, so the key is read back from the first dimension and never duplicated.
+	// It is built once the AllocationPointer grows past INDEX_THRESHOLD slots and then kept in step
+	// with every slot assignment, reassignment and clear.
+	
+	/**
+	 * Returns the address of the address index of the referenced AllocationPointer
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @return the address of the index or zero if the AllocationPointer is not indexed
+	 */
+	static final long getIndexAddress(final long rootAddress) {
+		return unsafe.getAddress(getAddressOfDim(rootAddress, ZERO_BYTE) + INDEX_OFFSET);
+	}
+	
+	/**
+	 * Indicates if the referenced AllocationPointer has a hashed address index
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @return true if the AllocationPointer is indexed, false otherwise
+	 */
+	public static final boolean isIndexed(final long rootAddress) {
+		return getIndexAddress(rootAddress)!=0L;
+	}
+	
+	/**
+	 * Computes the hash table position of an address
+	 * @param address The address to hash
+	 * @param mask The index capacity less one
+	 * @return the starting probe position
+	 */
+	private static int indexHash(final long address, final int mask) {
+		final long h = address * 0x9E3779B97F4A7C15L;
+		return (int)(h >>> 32) & mask;
+	}
+	
+	/**
+	 * Finds the slot index of an address using the address index
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @param indexAddress The address of the index
+	 * @param addressToFind The address to find
+	 * @return the slot index or -1 if the address was not found
+	 */
+	private static int indexFind(final long rootAddress, final long indexAddress, final long addressToFind) {
+		if(addressToFind==0L) return -1;
+		final int mask = unsafe.getInt(indexAddress) - 1;
+		int pos = indexHash(addressToFind, mask);
+		while(true) {
+			final int entry = unsafe.getInt(indexAddress + INDEX_HEADER_SIZE + (pos << 2));
+			if(entry==INDEX_EMPTY) return -1;
+			if(entry!=INDEX_DELETED && getAddress(rootAddress, entry-1)==addressToFind) return entry-1;
+			pos = (pos + 1) & mask;
+		}
+	}
+	
+	/**
+	 * Adds an address to the address index, building the index if the AllocationPointer has grown past the threshold.
+	 * The address must already have been written to its slot.
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @param address The address to add
+	 * @param slot The slot index of the address
+	 */
+	private static void indexPut(final long rootAddress, final long address, final int slot) {
+		if(address==0L) return;
+		final long indexAddress = getIndexAddress(rootAddress);
+		if(indexAddress==0L) {
+			if(INDEX_THRESHOLD > 0 && getSize(rootAddress) > INDEX_THRESHOLD && !isConcurrent(rootAddress)) buildIndex(rootAddress);
+			return;
+		}
+		final int capacity = unsafe.getInt(indexAddress);
+		final int used = unsafe.getInt(indexAddress + 4);
+		if((used + 1) << 1 > capacity) {
+			// rebuilding from the slots picks up the new address and drops the removed entries
+			buildIndex(rootAddress);
+			return;
+		}
+		final int mask = capacity - 1;
+		int pos = indexHash(address, mask);
+		while(true) {
+			final long entryAddress = indexAddress + INDEX_HEADER_SIZE + (pos << 2);
+			final int entry = unsafe.getInt(entryAddress);
+			if(entry==INDEX_EMPTY) {
+				unsafe.putInt(entryAddress, slot + 1);
+				unsafe.putInt(indexAddress + 4, used + 1);
+				unsafe.putInt(indexAddress + 8, unsafe.getInt(indexAddress + 8) + 1);
+				return;
+			}
+			if(entry!=INDEX_DELETED && entry-1!=slot && getAddress(rootAddress, entry-1)==address) {
+				// same address in another slot, point at the latest
+				unsafe.putInt(entryAddress, slot + 1);
+				return;
+			}
+			if(entry-1==slot) return;
+			pos = (pos + 1) & mask;
+		}
+	}
+	
+	/**
+	 * Removes an address from the address index. The address must still be in its slot.
+	 * @param rootAddress The root address of the AllocationPointer
+	 * @param address The address to remove
+	 */
+	private static void indexRemove(final long rootAddress, final long address) {
+		if(address==0L) return;
+		final long indexAddress = getIndexAddress(rootAddress);
+		if(indexAddress==0L) return;
+		final int mask = unsafe.getInt(indexAddress) - 1;
+		int pos = indexHash(address, mask);
+		while(true) {
+			final long entryAddress = indexAddress + INDEX_HEADER_SIZE + (pos << 2);
+			final int entry = unsafe.getInt(entryAddress);
+			if(entry==INDEX_EMPTY) return;
+			if(entry!=INDEX_DELETED && getAddress(rootAddress, entry-1)==address) {
+				unsafe.putInt(entryAddress, INDEX_DELETED);
+				unsafe.putInt(indexAddress + 8, unsafe.getInt(indexAddress + 8) - 1);
+				return;
+			}
+			pos = (pos + 1) & mask;
+		}
+	}
+	
+	/**
+	 * Builds, or rebuilds, the address index from the slots of the referenced AllocationPointer,
+	 * sized for a load factor of no more than a quarter
+	 * @param rootAddress The root address of the AllocationPointer
+	 */
+	private static void buildIndex(final long rootAddress) {
+		final int size = getSize(rootAddress);
+		int live = 0;
+		for(int i = 0; i < size; i++) {
+			if(getAddress(rootAddress, i)!=0L) live++;
+		}
+		int capacity = INDEX_MIN_CAPACITY;
+		while(capacity < live << 2) capacity <<= 1;
+		final long byteSize = INDEX_HEADER_SIZE + (((long)capacity) << 2);
+		final long indexAddress = _allocateMemory(byteSize);
+		unsafe.setMemory(indexAddress, byteSize, ZERO_BYTE);
+		unsafe.putInt(indexAddress, capacity);
+		final int mask = capacity - 1;
+		for(int i = 0; i < size; i++) {
+			final long address = getAddress(rootAddress, i);
+			if(address==0L) continue;
+			int pos = indexHash(address, mask);
+			while(unsafe.getInt(indexAddress + INDEX_HEADER_SIZE + (pos << 2))!=INDEX_EMPTY) {
+				pos = (pos + 1) & mask;
+			}
+			unsafe.putInt(indexAddress + INDEX_HEADER_SIZE + (pos << 2), i + 1);
+		}
+		unsafe.putInt(indexAddress + 4, live);
+		unsafe.putInt(indexAddress + 8, live);
+		final long dimAddress = getAddressOfDim(rootAddress, ZERO_BYTE);
+		final long priorIndex = unsafe.getAddress(dimAddress + INDEX_OFFSET);
+		unsafe.putAddress(dimAddress + INDEX_OFFSET, indexAddress);
+		if(priorIndex!=0L) _freeMemory(priorIndex);
+	}
 	
 	/**
 	 * Returns the managed addresses
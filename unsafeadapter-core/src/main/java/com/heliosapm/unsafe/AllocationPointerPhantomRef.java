@@ -28,6 +28,12 @@ import java.lang.ref.PhantomReference;
 import java.lang.ref.ReferenceQueue;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import jsr166e.LongAdder;
+
+import com.heliosapm.unsafe.Callbacks.SlotVisitor;
 
 /**
  * <p>Title: AllocationPointerPhantomRef</p>
@@ -39,6 +45,18 @@ import java.util.Comparator;
 class AllocationPointerPhantomRef extends PhantomReference<AllocationPointer> implements AllocationTracker {
 	/** The address that the referenced AllocationPointer pointed to */
 	private long address;
+	/** The UnsafeAdapter provided reference id */
+	private final long refId;
+	/** Indicates if the referenced AllocationPointer has been released */
+	private boolean released = false;
+	/** The reference to the parent AllocationPointer, or null if the AllocationPointer is not a child */
+	private AllocationPointerPhantomRef parent = null;
+	/** The references to the child AllocationPointers, created when the first child is attached */
+	private Set<AllocationPointerPhantomRef> children = null;
+	/** The byte total of the allocation tree the AllocationPointer belongs to, or null if it does not belong to one */
+	private volatile LongAdder tree = null;
+	/** The allocation tag the memory allocated in the AllocationPointer is accounted under */
+	private volatile int tag = AllocationTag.UNTAGGED;
 
 	
 	/** 
@@ -67,6 +85,7 @@ class AllocationPointerPhantomRef extends PhantomReference<AllocationPointer> im
 	AllocationPointerPhantomRef(AllocationPointer referent, long address, ReferenceQueue<? super AllocationPointer> refQueue) {
 		super(referent, refQueue);
 		this.address = address;		
+		refId = Math.abs(AllocationPointerOperations.getReferenceId(address));
 		referent.setAttached();
 	}
 	
@@ -85,7 +104,33 @@ class AllocationPointerPhantomRef extends PhantomReference<AllocationPointer> im
 	public void setAttached() {
 		if(address!=0) AllocationPointerOperations.setAttached(address);
 	}
+
+	/**
+	 * Returns the allocation tag the memory allocated in the referenced AllocationPointer is accounted under
+	 * @return the allocation tag
+	 */
+	public int getTag() {
+		return tag;
+	}
+	
+	/**
+	 * Sets the allocation tag the memory allocated in the referenced AllocationPointer is accounted under
+	 * @param tag the allocation tag
+	 */
+	void setTag(final int tag) {
+		this.tag = tag;
+	}
 	
+	/**
+	 * Returns the dimension of the referenced AllocationPointer
+	 * @return the dimension of the referenced AllocationPointer, or zero if it has been cleared
+	 * @see AllocationPointer#getDimension()
+	 */
+	public byte getDimension() {
+		if(address==0) return 0;
+		return AllocationPointerOperations.getDimension(address);
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * @see java.lang.Object#toString()
@@ -100,7 +145,74 @@ class AllocationPointerPhantomRef extends PhantomReference<AllocationPointer> im
 	 * @return the UnsafeAdapter provided reference id
 	 */
 	public long getReferenceId() {
-		return AllocationPointerOperations.getReferenceId(address);
+		return refId;
+	}
+	
+	/**
+	 * Marks the referenced AllocationPointer as released so that it is only cleared once, 
+	 * whether by the cleaner thread, a cascading release of its parent or a deterministic release
+	 * @return true if the AllocationPointer was marked released, false if it had already been released
+	 */
+	synchronized boolean markReleased() {
+		if(released) return false;
+		released = true;
+		return true;
+	}
+	
+	/**
+	 * Attaches a child AllocationPointer's reference to this reference
+	 * @param child The child reference
+	 * @param childTree The byte total of the allocation tree both AllocationPointers belong to
+	 */
+	synchronized void addChild(final AllocationPointerPhantomRef child, final LongAdder childTree) {
+		if(released) throw new IllegalStateException("The parent AllocationPointer [" + refId + "] has been released");
+		if(children==null) children = new LinkedHashSet<AllocationPointerPhantomRef>();
+		children.add(child);
+		child.parent = this;
+		child.tree = childTree;
+	}
+	
+	/**
+	 * Detaches a child AllocationPointer's reference from this reference
+	 * @param child The child reference
+	 */
+	synchronized void removeChild(final AllocationPointerPhantomRef child) {
+		if(children!=null) children.remove(child);
+	}
+	
+	/**
+	 * Detaches and returns the references to all the child AllocationPointers
+	 * @return the child references, which may be empty
+	 */
+	synchronized AllocationPointerPhantomRef[] drainChildren() {
+		if(children==null || children.isEmpty()) return EMPTY_REF_ARR;
+		final AllocationPointerPhantomRef[] refs = children.toArray(new AllocationPointerPhantomRef[children.size()]);
+		children.clear();
+		return refs;
+	}
+	
+	/**
+	 * Returns the reference to the parent AllocationPointer
+	 * @return the parent reference, or null if the AllocationPointer is not a child
+	 */
+	synchronized AllocationPointerPhantomRef getParent() {
+		return parent;
+	}
+	
+	/**
+	 * Returns the byte total of the allocation tree the AllocationPointer belongs to
+	 * @return the tree byte total, or null if the AllocationPointer does not belong to a tree
+	 */
+	LongAdder getTree() {
+		return tree;
+	}
+	
+	/**
+	 * Sets the byte total of the allocation tree rooted at the AllocationPointer
+	 * @param tree the tree byte total
+	 */
+	void setTree(final LongAdder tree) {
+		this.tree = tree;
 	}
 	
 	/**
@@ -130,6 +242,25 @@ class AllocationPointerPhantomRef extends PhantomReference<AllocationPointer> im
 		super.clear();
 	}
 	
+	/**
+	 * Clears the referenced AllocationPointer and frees its own memory blocks, passing each of its occupied slots 
+	 * to the visitor in place rather than copying them into the cleared addresses.
+	 * @param visitor The visitor that frees and accounts for the addresses of the occupied slots
+	 * @param recycle true to return the AllocationPointer's own memory blocks to the structure pool for reuse, 
+	 * which is only safe when the AllocationPointer can no longer be referenced
+	 */
+	void clear(final SlotVisitor visitor, final boolean recycle) {
+		if(address > 0) {
+			AllocationPointerOperations.release(address, visitor, recycle);
+			address = 0;
+		}
+		clearedAddresses = AllocationPointerOperations.EMPTY_DLONG_ARR;
+		super.clear();
+	}
+	
+	/** An empty reference array */
+	static final AllocationPointerPhantomRef[] EMPTY_REF_ARR = {};
+	
 	/** A long arr arr sorter */
 	public static final ClearedComparable CSORT = new ClearedComparable(); 
 	
@@ -175,6 +306,15 @@ class AllocationPointerPhantomRef extends PhantomReference<AllocationPointer> im
 		AllocationPointerOperations.assignSlot(address, newAddress, allocationSize, alignmentOverhead);		
 	}
 	
+	/**
+	 * Adds freshly allocated addresses in one step
+	 * @param newAddresses The addresses to add
+	 * @param allocationSizes The allocation sizes of the addresses
+	 */
+	public void addAll(final long[] newAddresses, final long[] allocationSizes) {
+		AllocationPointerOperations.assignSlots(address, newAddresses, allocationSizes);
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 * @see com.heliosapm.unsafe.AllocationTracker#getAllocationSize(long)
@@ -27,17 +27,24 @@ package com.heliosapm.unsafe;
 import java.lang.ref.Reference;
 import java.lang.ref.ReferenceQueue;
 import java.lang.reflect.Field;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicLong;
 
+import jsr166e.ForkJoinPool;
 import jsr166e.LongAdder;
 
 import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
 
 import sun.misc.Unsafe;
 
+import com.heliosapm.unsafe.Callbacks.SlotVisitor;
 import com.heliosapm.unsafe.ReflectionHelper.ReferenceQueueLengthReader;
 
 /**
@@ -48,7 +55,7 @@ import com.heliosapm.unsafe.ReflectionHelper.ReferenceQueueLengthReader;
  * <p><code>com.heliosapm.unsafe.AllocationReferenceManager</code></p>
  */
 
-public class AllocationReferenceManager implements Runnable {
+public class AllocationReferenceManager {
 	
     /** The unsafe instance */    
 	static final Unsafe unsafe;
@@ -64,9 +71,11 @@ public class AllocationReferenceManager implements Runnable {
 	}
 	
 	/** Indicates if memory allocation tracking is enabled */
-	private final boolean memTracking;
-	/** Indicates if cache-line memory alignment is enabled */
-	private final boolean memAlignment;
+	private volatile boolean memTracking;
+	/** Indicates if cache-line memory alignment overhead tracking is enabled, which only takes effect while memory allocation tracking is enabled */
+	private volatile boolean memAlignment;
+	/** Indicates if unmanaged allocations have ever been tracked, in which case frees must look them up even while tracking is disabled */
+	private volatile boolean rawTracked;
 	
 	// =========================================================
 	//  Reference Tracking
@@ -78,10 +87,12 @@ public class AllocationReferenceManager implements Runnable {
     /** Serial number factory for memory allocation references */
 	protected final AtomicLong refSerial = new AtomicLong(0L);
 
-	/** A map of memory allocation sizes and overhead keyed by the address for unmanaged memory allocations */ 
-	final NonBlockingHashMapLong<long[]> trackedRaw;
+	/** An off-heap table of memory allocation sizes and overhead keyed by the address for unmanaged memory allocations */ 
+	final OffHeapAddressTable trackedRaw;
 	/** A map of runnables registered for AllocationPointers and fired when the AP is cleared keyed by the reference id */ 
 	final NonBlockingHashMapLong<RunnableSequence> onRefClearRunnables = new NonBlockingHashMapLong<RunnableSequence>(256);
+	/** A map of the byte totals of AllocationPointer trees keyed by the reference id of the root AP */ 
+	final NonBlockingHashMapLong<LongAdder> treeTotals = new NonBlockingHashMapLong<LongAdder>(64);
 	
 	
 	// =========================================================
@@ -93,21 +104,53 @@ public class AllocationReferenceManager implements Runnable {
 	final LongAdder totalAllocationCount;
 	/** The total native memory allocation overhead for alignment */
 	final LongAdder totalAlignmentOverhead;
+	/** The budget enforced on the tracked native memory, or null if there is none */
+	final MemoryBudget budget;
+	/** The sampler estimating the allocated memory when memory allocation tracking is disabled, or null if sampling is disabled */
+	final AllocationSampler sampler;
+	/** The per thread accounting of the tracked memory, or null if per thread accounting is disabled */
+	final ThreadAllocationTracker threadTracker;
+	/** The histograms of allocation sizes, reallocation growth and allocation lifetimes, or null if histograms are disabled */
+	final AllocationHistograms histograms;
+	/** The per tag accounting of the tracked memory indexed by tag, untagged memory being counted in the totals only */
+	final AllocationTag[] tags = new AllocationTag[AllocationTag.MAX_TAGS];
+	/** The shift of the tag packed into the high byte of the alignment overhead of tracked unmanaged allocations */
+	private static final int TAG_SHIFT = 56;
+	/** The mask of the alignment overhead of tracked unmanaged allocations, below the packed tag */
+	private static final long OVERHEAD_MASK = (1L << TAG_SHIFT) - 1;
 	
 	// =========================================================
 	//  Auto Deallocation
 	// =========================================================			
-	/** The reference queue where collected allocations go */
-	final ReferenceQueue<Object> refQueue = new ReferenceQueue<Object>();
-	/** The queue length reader for the reference queue */
-	final ReferenceQueueLengthReader<?> refQueueLengthReader = ReflectionHelper.newReferenceQueueLengthReader(refQueue);
-	/** The reference cleaner thread */
-	final Thread cleanerThread;
+	/** The striped reference queues where collected allocations go, one per cleaner thread */
+	final ReferenceQueue<Object>[] refQueues;
+	/** The queue length readers for the reference queues */
+	final ReferenceQueueLengthReader<?>[] refQueueLengthReaders;
+	/** The reference cleaner threads, one per reference queue */
+	final Thread[] cleanerThreads;
+	/** The maximum number of collected references a cleaner thread clears in one batch */
+	final int cleanerBatchSize;
 	/** Serial number factory for cleaner threads */
 	private static final AtomicLong cleanerSerial = new AtomicLong(0L);
 	/** The total number of cleared references */
 	final LongAdder refsCleared = new LongAdder();
 	
+	// =========================================================
+	//  On Clear Runnables
+	// =========================================================
+	/** The executor on clear runnables are handed off to, or null to run them on the cleaner thread */
+	private volatile Executor onClearExecutor = null;
+	/** The on clear executor created by the reference manager itself, which it shuts down when it is replaced */
+	private ForkJoinPool defaultOnClearExecutor = null;
+	/** The number of on clear runnable dispatches waiting for, or running in, the executor */
+	final AtomicLong onClearPending = new AtomicLong(0L);
+	/** The number of completed on clear runnable dispatches */
+	final LongAdder onClearCompleted = new LongAdder();
+	/** The total elapsed time in ns. of completed on clear runnable dispatches */
+	final LongAdder onClearElapsed = new LongAdder();
+	/** The total time in ns. completed on clear runnable dispatches waited in the executor before running */
+	final LongAdder onClearWait = new LongAdder();
+	
 	/**
 	 * <b>TEST HOOK ONLY !</b>
 	 * Don't use this unless you know what you're doing.
@@ -115,11 +158,41 @@ public class AllocationReferenceManager implements Runnable {
 	@SuppressWarnings("unused")
 	private final void reset() {
 		refsCleared.reset();
-		if(totalMemoryAllocated!=null) totalMemoryAllocated.reset();
-		if(totalAllocationCount!=null) totalAllocationCount.reset();
-		if(totalAlignmentOverhead!=null) totalAlignmentOverhead.reset();
-		if(trackedRaw!=null) trackedRaw.clear();
+		onClearCompleted.reset();
+		onClearElapsed.reset();
+		onClearWait.reset();
+		totalMemoryAllocated.reset();
+		totalAllocationCount.reset();
+		totalAlignmentOverhead.reset();
+		trackedRaw.clear();
 		if(trackedRefs!=null) trackedRefs.clear();
+		treeTotals.clear();
+		if(budget!=null) budget.reset();
+		if(sampler!=null) sampler.reset();
+		if(threadTracker!=null) threadTracker.reset();
+		if(histograms!=null) histograms.clear();
+		for(int i = 1; i < tags.length; i++) {
+			tags[i].reset();
+		}
+	}
+	
+	/**
+	 * Releases the threads and timers the reference manager started on demand and frees the pooled AllocationPointer structures,
+	 * when it is being discarded
+	 */
+	final void shutdown() {
+		if(budget!=null) budget.close();
+		setOnClearExecutor(null);
+		AllocationPointerOperations.drainPool();
+	}
+	
+	/**
+	 * Creates a pool to run callbacks in, off the cleaner threads and the callers' threads.
+	 * The common pool is not used since it has no workers on a single processor host.
+	 * @return a new pool with one worker per available processor
+	 */
+	static ForkJoinPool newCallbackPool() {
+		return new ForkJoinPool(Runtime.getRuntime().availableProcessors());
 	}
 	
 	
@@ -129,26 +202,96 @@ public class AllocationReferenceManager implements Runnable {
 	 * @param memAlignment true if cache-line memory alignment is enabled, false otherwise 
 	 */
 	public AllocationReferenceManager(final boolean memTracking, final boolean memAlignment) {
+		this(memTracking, memAlignment, 0L, 0L);
+	}
+	
+	/**
+	 * Creates a new AllocationReferenceManager with a native memory budget.
+	 * The budget can only be enforced when memory allocation tracking is enabled, since the size of freed memory is not known otherwise.
+	 * @param memTracking true if memory allocation tracking is enabled, false otherwise
+	 * @param memAlignment true if cache-line memory alignment is enabled, false otherwise 
+	 * @param budgetLimit The native memory budget in bytes, or zero for no budget
+	 * @param budgetTimeout The longest time in ms. an allocation will wait for budgeted memory to be released
+	 */
+	public AllocationReferenceManager(final boolean memTracking, final boolean memAlignment, final long budgetLimit, final long budgetTimeout) {
+		this(memTracking, memAlignment, budgetLimit, budgetTimeout, 1, 1, 0L, false, false);
+	}
+	
+	/**
+	 * Creates a new AllocationReferenceManager with a native memory budget and striped cleaner threads.
+	 * Each cleaner thread drains its own reference queue and AllocationPointers are assigned to a queue by their reference id,
+	 * so collected AllocationPointers are cleared in parallel without the cleaners contending on one queue.
+	 * Whenever a cleaner thread wakes up, it drains up to a batch of the references already enqueued before it updates the counters.
+	 * @param memTracking true if memory allocation tracking is enabled, false otherwise
+	 * @param memAlignment true if cache-line memory alignment is enabled, false otherwise 
+	 * @param budgetLimit The native memory budget in bytes, or zero for no budget
+	 * @param budgetTimeout The longest time in ms. an allocation will wait for budgeted memory to be released
+	 * @param cleanerCount The number of cleaner threads, or less than one for one per available processor
+	 * @param cleanerBatchSize The maximum number of collected references a cleaner thread clears in one batch, 
+	 * applying the counter updates and running the on clear runnables once for the whole batch
+	 * @param sampleInterval The mean number of bytes allocated between the allocations sampled to estimate the allocated memory
+	 * when memory allocation tracking is disabled, or zero to disable sampling. Ignored when tracking is enabled.
+	 * @param threadAccounting true to account the tracked memory allocated and freed by each thread
+	 * @param histograms true to record the histograms of allocation sizes, reallocation growth and allocation lifetimes
+	 */
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	public AllocationReferenceManager(final boolean memTracking, final boolean memAlignment, final long budgetLimit, final long budgetTimeout, final int cleanerCount, final int cleanerBatchSize, final long sampleInterval, final boolean threadAccounting, final boolean histograms) {
 		this.memTracking = memTracking;
+		this.cleanerBatchSize = cleanerBatchSize < 1 ? 1 : cleanerBatchSize;
 		this.memAlignment = memAlignment;
-		if(this.memTracking) {
-			totalMemoryAllocated = new LongAdder();
-			totalAllocationCount = new LongAdder();
-			totalAlignmentOverhead = new LongAdder();		
-			trackedRaw = new NonBlockingHashMapLong<long[]>(1024, true);
-		} else {
-			totalMemoryAllocated = null;
-			totalAllocationCount = null;
-			totalAlignmentOverhead = null;
-			trackedRaw = null;
-		}		
+		this.rawTracked = memTracking;
+		// the counters are always created since tracking can be enabled at runtime
+		totalMemoryAllocated = new LongAdder();
+		totalAllocationCount = new LongAdder();
+		totalAlignmentOverhead = new LongAdder();		
+		trackedRaw = new OffHeapAddressTable(1024, true);
+		budget = memTracking && budgetLimit > 0 ? new MemoryBudget(this, budgetLimit, budgetTimeout) : null;
+		sampler = !memTracking && sampleInterval > 0 ? new AllocationSampler(sampleInterval) : null;		
+		threadTracker = threadAccounting ? new ThreadAllocationTracker() : null;
+		this.histograms = histograms ? new AllocationHistograms() : null;
+		for(int i = 1; i < tags.length; i++) {
+			tags[i] = new AllocationTag(i);
+		}
 		// =========================================================
-		// Start the cleaner thread
+		// Start the cleaner threads
 		// =========================================================
-		cleanerThread = new Thread(this, "UnsafeMemoryAllocationCleaner#" + cleanerSerial.incrementAndGet());
-		cleanerThread.setDaemon(true);
-		cleanerThread.setPriority(Thread.MAX_PRIORITY);
-		cleanerThread.start();		
+		final int stripes = cleanerCount < 1 ? Runtime.getRuntime().availableProcessors() : cleanerCount;
+		refQueues = new ReferenceQueue[stripes];
+		refQueueLengthReaders = new ReferenceQueueLengthReader[stripes];
+		cleanerThreads = new Thread[stripes];
+		for(int i = 0; i < stripes; i++) {
+			refQueues[i] = new ReferenceQueue<Object>();
+			refQueueLengthReaders[i] = ReflectionHelper.newReferenceQueueLengthReader(refQueues[i]);
+			cleanerThreads[i] = new Thread(new Cleaner(refQueues[i]), "UnsafeMemoryAllocationCleaner#" + cleanerSerial.incrementAndGet());
+			cleanerThreads[i].setDaemon(true);
+			cleanerThreads[i].setPriority(Thread.MAX_PRIORITY);
+		}
+		for(Thread t: cleanerThreads) {
+			t.start();
+		}
+	}
+	
+	/**
+	 * Returns the reference queue an AllocationPointer with the passed reference id is registered with
+	 * @param refId The reference id of the AllocationPointer
+	 * @return the reference queue of the stripe the reference id hashes to
+	 */
+	final ReferenceQueue<Object> refQueue(final long refId) {
+		if(refQueues.length==1) return refQueues[0];
+		return refQueues[(int)(Math.abs(refId) % refQueues.length)];
+	}
+	
+	/**
+	 * Returns the phantom reference of the passed AllocationPointer, registering it with its reference queue stripe
+	 * if it has not been registered yet
+	 * @param ap The AllocationPointer to get the reference for
+	 * @return the AllocationPointer's phantom reference
+	 */
+	private AllocationPointerPhantomRef referenceOf(final AllocationPointer ap) {
+		// a released AllocationPointer's structure may already be freed, so it cannot be read for the reference id
+		final AllocationPointerPhantomRef ref = ap.getRegisteredReference();
+		if(ref!=null) return ref;
+		return ap.getReference(refQueue(ap.getReferenceId()));
 	}
 	
 	// =====================================================================================================
@@ -221,9 +364,76 @@ public class AllocationReferenceManager implements Runnable {
 	 * @return a new AllocationPointer
 	 */
 	public final AllocationPointer newAllocationPointer(final Runnable onClearRunnable) {
+		return newAllocationPointer(onClearRunnable, false);
+	}
+	
+	/**
+	 * Returns a new concurrent {@link AllocationPointer} that is ref queue registered 
+	 * and configured according to mem tracking and mem alignment settings. 
+	 * @return a new AllocationPointer that can be shared by several allocating threads
+	 */
+	public final AllocationPointer newConcurrentAllocationPointer() {
+		return newAllocationPointer(null, true);
+	}
+	
+	/**
+	 * Returns a new concurrent {@link AllocationPointer} that is ref queue registered 
+	 * and configured according to mem tracking and mem alignment settings. 
+	 * @param onClearRunnable An optional on clear runnable
+	 * @return a new AllocationPointer that can be shared by several allocating threads
+	 */
+	public final AllocationPointer newConcurrentAllocationPointer(final Runnable onClearRunnable) {
+		return newAllocationPointer(onClearRunnable, true);
+	}
+	
+	/**
+	 * Returns a new child {@link AllocationPointer} that is ref queue registered 
+	 * and configured according to mem tracking and mem alignment settings.
+	 * The child is released along with its parent, and keeps its parent from being collected while the child is reachable.
+	 * @param parent The parent AllocationPointer, which must have been created by this manager
+	 * @param onClearRunnable An optional on clear runnable
+	 * @return a new child AllocationPointer
+	 */
+	public final AllocationPointer newChildAllocationPointer(final AllocationPointer parent, final Runnable onClearRunnable) {
+		if(parent==null) throw new IllegalArgumentException("The passed parent AllocationPointer was null");
+		final AllocationPointerPhantomRef parentRef = referenceOf(parent);
+		if(trackedRefs.get(parentRef.getReferenceId())!=parentRef) throw new IllegalArgumentException("The parent AllocationPointer [" + parentRef.getReferenceId() + "] is not registered");
+		final AllocationPointer ap = newAllocationPointer(onClearRunnable, false);
+		final AllocationPointerPhantomRef ref = referenceOf(ap);
+		try {
+			LongAdder tree;
+			synchronized(parentRef) {
+				tree = parent.getTree();
+				if(tree==null) {
+					// the parent becomes the root of a new tree
+					tree = new LongAdder();
+					tree.add(parent.getTotalAllocationSize());
+					parent.setTree(tree);
+					parentRef.setTree(tree);
+					treeTotals.put(parentRef.getReferenceId(), tree);
+				}
+				parentRef.addChild(ref, tree);
+			}
+			ap.setParent(parent, tree);
+			ap.setTag(parent.getTag());
+		} catch (RuntimeException ex) {
+			release(ap, false, false);
+			throw ex;
+		}
+		return ap;
+	}
+	
+	/**
+	 * Returns a new {@link AllocationPointer} that is ref queue registered 
+	 * and configured according to mem tracking and mem alignment settings. 
+	 * @param onClearRunnable An optional on clear runnable
+	 * @param concurrent true for an AllocationPointer that can be shared by several allocating threads
+	 * @return a new AllocationPointer
+	 */
+	private AllocationPointer newAllocationPointer(final Runnable onClearRunnable, final boolean concurrent) {
 		final long refId = refSerial.incrementAndGet();
-		final AllocationPointer ap = new AllocationPointer(memTracking, memAlignment, refId);
-		AllocationPointerPhantomRef ref = ap.getReference(refQueue);
+		final AllocationPointer ap = new AllocationPointer(memTracking, isMemAlignment(), refId, concurrent);
+		AllocationPointerPhantomRef ref = referenceOf(ap);
 		trackedRefs.put(refId, ref);
 		if(onClearRunnable!=null) {
 			onRefClearRunnables.put(refId, new RunnableSequence().registerRunnable(onClearRunnable));
@@ -234,113 +444,469 @@ public class AllocationReferenceManager implements Runnable {
 
 
 	/**
-	 * {@inheritDoc}
-	 * @see java.lang.Runnable#run()
+	 * <p>Title: Cleaner</p>
+	 * <p>Description: Drains one of the striped reference queues, clearing the collected AllocationPointers registered with it</p> 
 	 */
-	@Override
-	public void run() {
-		log("Starting Unsafe Cleaner Thread [%s]", Thread.currentThread().getName());
-		UnsafeAdapter.registerCleanerThread(Thread.currentThread());
-		boolean terminating = false;
-		while(true) {
-			try {
-				Reference<?> ref = refQueue.remove(3000);
-				if(ref==null) {
-					//System.gc();
-					continue;
-				}
-				log("Dequeued Reference [%s]", ref);
-				if(ref instanceof AllocationPointerPhantomRef) {					
-					AllocationPointerPhantomRef appr = (AllocationPointerPhantomRef)ref;
-					final long refId = appr.getReferenceId();
-					trackedRefs.remove(refId);	
-					appr.clear();
-//					log("Dequeued Appr [%s]", ref);
-					long[][] cleared = appr.getClearedAddresses();
-//					log("Cleared Appr [%s]", Arrays.deepToString(cleared));
-					if(cleared!=null && cleared.length>0) {
-						long[] totals = decrement(cleared);
-						cleared = null;
-						decrement(totals[0], totals[1]);
+	private class Cleaner implements Runnable {
+		/** The reference queue this cleaner drains */
+		private final ReferenceQueue<Object> queue;
+		/** The accumulator of the batch being cleared */
+		private final SlotFreer freer = new SlotFreer();
+		
+		/**
+		 * Creates a new Cleaner
+		 * @param queue The reference queue this cleaner drains
+		 */
+		Cleaner(final ReferenceQueue<Object> queue) {
+			this.queue = queue;
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			log("Starting Unsafe Cleaner Thread [%s]", Thread.currentThread().getName());
+			UnsafeAdapter.registerCleanerThread(Thread.currentThread());
+			boolean terminating = false;
+			while(true) {
+				try {
+					Reference<?> ref = queue.remove(3000);
+					if(ref==null) {
+						//System.gc();
+						continue;
 					}
-					final RunnableSequence rs = onRefClearRunnables.remove(refId);
-					if(rs != null) rs.run();  // FIXME:  hand this off to a pool ?
-//					ref.clear();
-					refsCleared.increment();
-				}
-				if(terminating) {
+					try {
+						int drained = 0;
+						while(ref!=null) {
+							if(ref instanceof AllocationPointerPhantomRef) {					
+								releaseTree((AllocationPointerPhantomRef)ref, true, true, freer);
+							}
+							if(++drained==cleanerBatchSize) break;
+							ref = queue.poll();
+						}
+					} finally {
+						completeRelease(freer);
+					}
+					if(terminating) {
+						if(getRefQueuePending()<1 && getPendingRefs()<1 ) break;
+					}
+				} catch (InterruptedException e) {
 					if(getRefQueuePending()<1 && getPendingRefs()<1 ) break;
+					terminating=true;
+					Thread.currentThread().setName("[Terminating]" + Thread.currentThread().getName());
+				} catch (Exception e) {
+					loge("Unexpected exception [%s] in cleaner loop. Will Continue.", e);
 				}
-			} catch (InterruptedException e) {
-				if(getRefQueuePending()<1 && getPendingRefs()<1 ) break;
-				terminating=true;
-				Thread.currentThread().setName("[Terminating]" + Thread.currentThread().getName());
-			} catch (Exception e) {
-				loge("Unexpected exception [%s] in cleaner loop. Will Continue.", e);
+			}		
+			log("Unsafe Cleaner Thread [%s] Terminated", Thread.currentThread().getName());
+			UnsafeAdapter.removeCleanerThread(Thread.currentThread());
+		}
+	}
+	
+	
+	/**
+	 * Frees all the memory allocated within a phantom referenced AllocationPointer and its descendants, 
+	 * including the AllocationPointers themselves, and stops tracking their references. 
+	 * The counters are updated once for the whole subtree. References already released by a cascade are ignored.
+	 * @param appr The phantom reference to clear
+	 * @param runOnClear true to run the on clear runnables registered for the released references, false to discard them
+	 * @param recycle true to pool the released AllocationPointer structures for reuse, which is only safe when none of the 
+	 * AllocationPointers can be referenced any more
+	 */
+	private void clearReference(final AllocationPointerPhantomRef appr, final boolean runOnClear, final boolean recycle) {
+		final SlotFreer freer = new SlotFreer();
+		if(releaseTree(appr, runOnClear, recycle, freer)) completeRelease(freer);
+	}
+	
+	/**
+	 * Frees all the memory allocated within a phantom referenced AllocationPointer and its descendants, 
+	 * including the AllocationPointers themselves, and stops tracking their references. 
+	 * The freed totals and the on clear runnables are accumulated in the passed freer, 
+	 * to be applied by {@link #completeRelease(SlotFreer)} once for any number of released trees.
+	 * @param appr The phantom reference to clear
+	 * @param runOnClear true to collect the on clear runnables registered for the released references, false to discard them
+	 * @param recycle true to pool the released AllocationPointer structures for reuse
+	 * @param freer The accumulator of the released memory and runnables 
+	 * @return true if the reference was released, false if it had already been released
+	 */
+	private boolean releaseTree(final AllocationPointerPhantomRef appr, final boolean runOnClear, final boolean recycle, final SlotFreer freer) {
+		if(!appr.markReleased()) return false;
+		final AllocationPointerPhantomRef parent = appr.getParent();
+		if(parent!=null) parent.removeChild(appr);
+		treeTotals.remove(appr.getReferenceId());
+		final long priorSize = freer.size;
+		final ArrayDeque<AllocationPointerPhantomRef> descendants = freer.descendants;
+		AllocationPointerPhantomRef ref = appr;
+		while(ref!=null) {
+			final long refId = ref.getReferenceId();
+			trackedRefs.remove(refId);	
+			freer.tracked = ref.getDimension() > 1;
+			final int tag = ref.getTag();
+			final long refSize = freer.size, refCount = freer.count;
+			ref.clear(freer, recycle);
+			if(tag!=AllocationTag.UNTAGGED) tags[tag].add(refSize - freer.size, refCount - freer.count);
+			final RunnableSequence rs = onRefClearRunnables.remove(refId);
+			if(rs != null && runOnClear) {
+				if(freer.onClear==null) freer.onClear = new RunnableSequence();
+				freer.onClear.registerRunnable(rs);
 			}
-		}		
-		log("Unsafe Cleaner Thread [%s] Terminated", Thread.currentThread().getName());
-		UnsafeAdapter.removeCleanerThread(Thread.currentThread());
+			freer.refs++;
+			for(final AllocationPointerPhantomRef child: ref.drainChildren()) {
+				if(child.markReleased()) {
+					descendants.add(child);
+				}
+			}
+			ref = descendants.poll();
+		}
+		// a subtree released ahead of its root no longer counts towards the tree
+		if(parent!=null) {
+			final LongAdder tree = appr.getTree();
+			if(tree!=null) tree.add(priorSize - freer.size);
+		}
+		return true;
+	}
+	
+	/**
+	 * Applies the totals accumulated in the passed freer to the counters, runs the collected on clear runnables
+	 * and resets the freer for the next batch. The runnables are run last so they observe the released memory as freed. 
+	 * @param freer The accumulator of the released memory and runnables
+	 */
+	private void completeRelease(final SlotFreer freer) {
+		if(freer.refs!=0L) refsCleared.add(freer.refs);
+		if(freer.count!=0L || freer.size!=0L || freer.alignmentOverhead!=0L) applyDelta(0-freer.size, 0-freer.count, 0-freer.alignmentOverhead);
+		final RunnableSequence onClear = freer.onClear;
+		freer.reset();
+		if(onClear != null) dispatchOnClear(onClear);
+	}
+	
+	/**
+	 * Runs the passed on clear runnables in the on clear executor if one is set, or on the calling thread if not, 
+	 * or if the executor rejects them
+	 * @param onClear The on clear runnables to run
+	 */
+	private void dispatchOnClear(final RunnableSequence onClear) {
+		final OnClearTask task = new OnClearTask(onClear);
+		onClearPending.incrementAndGet();
+		final Executor executor = onClearExecutor;
+		if(executor!=null) {
+			try {
+				executor.execute(task);
+				return;
+			} catch (RejectedExecutionException rex) {
+				/* run it here instead */
+			}
+		}
+		task.run();
+	}
+	
+	/**
+	 * <p>Title: OnClearTask</p>
+	 * <p>Description: Runs a sequence of on clear runnables and records the time it waited and took to run</p> 
+	 */
+	private class OnClearTask implements Runnable {
+		/** The on clear runnables to run */
+		private final RunnableSequence onClear;
+		/** The nano time the task was created */
+		private final long created = System.nanoTime();
+		
+		/**
+		 * Creates a new OnClearTask
+		 * @param onClear The on clear runnables to run
+		 */
+		OnClearTask(final RunnableSequence onClear) {
+			this.onClear = onClear;
+		}
 		
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.Runnable#run()
+		 */
+		@Override
+		public void run() {
+			final long start = System.nanoTime();
+			try {
+				onClear.run();
+			} finally {
+				onClearWait.add(start - created);
+				onClearElapsed.add(System.nanoTime() - start);
+				onClearCompleted.increment();
+				onClearPending.decrementAndGet();
+			}
+		}
 	}
 	
+	/**
+	 * Sets the executor on clear runnables are handed off to, so a slow runnable cannot hold up the cleaner threads
+	 * @param executor The executor to run on clear runnables in, or null to run them on the cleaner threads
+	 */
+	public final void setOnClearExecutor(final Executor executor) {
+		setOnClearExecutor(executor, null);
+	}
 	
 	/**
-	 * Increments the memory and overhead counters if enabled in each case
+	 * Hands on clear runnables off to a pool created by the reference manager, which is shut down when it is replaced
+	 */
+	final void enableDefaultOnClearExecutor() {
+		final ForkJoinPool pool = newCallbackPool();
+		setOnClearExecutor(pool, pool);
+	}
+	
+	/**
+	 * Sets the on clear executor, shutting down the replaced one if the reference manager created it
+	 * @param executor The executor to run on clear runnables in, or null to run them on the cleaner threads
+	 * @param owned The executor if the reference manager created it, null otherwise
+	 */
+	private synchronized void setOnClearExecutor(final Executor executor, final ForkJoinPool owned) {
+		final ForkJoinPool replaced = defaultOnClearExecutor;
+		onClearExecutor = executor;
+		defaultOnClearExecutor = owned;
+		// already dispatched runnables still run
+		if(replaced!=null && replaced!=executor) replaced.shutdown();
+	}
+	
+	/**
+	 * Returns the executor on clear runnables are handed off to
+	 * @return the executor or null if on clear runnables are run on the cleaner threads
+	 */
+	public final Executor getOnClearExecutor() {
+		return onClearExecutor;
+	}
+	
+	/**
+	 * Returns the number of on clear runnable dispatches waiting for, or running in, the on clear executor
+	 * @return the on clear queue depth
+	 */
+	public final long getOnClearQueueDepth() {
+		return onClearPending.get();
+	}
+	
+	/**
+	 * Returns the number of completed on clear runnable dispatches
+	 * @return the number of completed on clear runnable dispatches
+	 */
+	public final long getOnClearCompletedCount() {
+		return onClearCompleted.longValue();
+	}
+	
+	/**
+	 * Returns the average elapsed time in ns. of completed on clear runnable dispatches
+	 * @return the average on clear runnable latency in ns.
+	 */
+	public final long getOnClearAverageLatency() {
+		final long completed = onClearCompleted.longValue();
+		return completed==0L ? 0L : onClearElapsed.longValue() / completed;
+	}
+	
+	/**
+	 * Returns the average time in ns. completed on clear runnable dispatches waited in the executor before running
+	 * @return the average on clear runnable wait in ns.
+	 */
+	public final long getOnClearAverageWait() {
+		final long completed = onClearCompleted.longValue();
+		return completed==0L ? 0L : onClearWait.longValue() / completed;
+	}
+	
+	/**
+	 * Deterministically releases a registered AllocationPointer, freeing all its memory on the calling thread 
+	 * instead of waiting for it to be collected and cleared by the cleaner thread. 
+	 * The AllocationPointer must not be used afterwards.
+	 * @param ap The AllocationPointer to release
+	 * @param runOnClear true to run the on clear runnables registered for the AllocationPointer, false to discard them
+	 * @param recycle true to pool the released AllocationPointer structure for reuse, which is only safe when the caller 
+	 * guarantees the AllocationPointer and its descendants will never be referenced again
+	 */
+	final void release(final AllocationPointer ap, final boolean runOnClear, final boolean recycle) {
+		clearReference(referenceOf(ap), runOnClear, recycle);
+	}
+	
+	/**
+	 * Returns the AllocationPointer dimension matching the current tracking settings
+	 * @return the current dimension
+	 * @see AllocationPointer#getDimension()
+	 */
+	final byte dimension() {
+		if(!memTracking) return 1;
+		return (byte)(memAlignment ? 3 : 2);
+	}
+	
+	/**
+	 * Increments the memory and overhead counters for an allocation recorded with the passed dimension.
+	 * An allocation is only counted if its size was recorded, so it is uncounted by the same amount when it is freed, 
+	 * whatever the tracking settings are by then.
 	 * @param size The memory allocation size
 	 * @param alignmentOverhead The cache-line memory alignment overhead
+	 * @param dim The dimension the allocation was recorded with
+	 * @param tag The allocation tag
 	 */
-	final void increment(final long size, final long alignmentOverhead) {
-		if(memTracking) {
+	final void increment(final long size, final long alignmentOverhead, final byte dim, final int tag) {
+		if(dim > 1) {
 			totalMemoryAllocated.add(size);
 			totalAllocationCount.increment();			
+			if(threadTracker!=null) threadTracker.allocated(size, 1L);
+			if(tag!=AllocationTag.UNTAGGED) tags[tag].add(size, 1L);
+			if(dim > 2) {
+				totalAlignmentOverhead.add(alignmentOverhead);
+			}
 		}
-		if(memAlignment) {
+	}
+	
+	/**
+	 * Applies an aggregate delta to the memory, count and overhead counters.
+	 * Callers only apply deltas for allocations whose sizes were recorded.
+	 * @param size The total memory allocation size delta
+	 * @param count The allocation count delta
+	 * @param alignmentOverhead The total cache-line memory alignment overhead delta
+	 */
+	final void applyDelta(final long size, final long count, final long alignmentOverhead) {
+		applyDelta(size, count, alignmentOverhead, AllocationTag.UNTAGGED);
+	}
+	
+	/**
+	 * Applies an aggregate delta to the memory, count and overhead counters and to the counters of the passed tag.
+	 * Callers only apply deltas for allocations whose sizes were recorded.
+	 * @param size The total memory allocation size delta
+	 * @param count The allocation count delta
+	 * @param alignmentOverhead The total cache-line memory alignment overhead delta
+	 * @param tag The allocation tag
+	 */
+	final void applyDelta(final long size, final long count, final long alignmentOverhead, final int tag) {
+		if(tag!=AllocationTag.UNTAGGED) tags[tag].add(size, count);
+		totalMemoryAllocated.add(size);
+		totalAllocationCount.add(count);
+		// positive deltas were reserved when the memory was allocated
+		if(budget!=null && size < 0) budget.release(0-size);
+		if(threadTracker!=null && (count!=0L || size!=0L)) {
+			if(count < 0 || size < 0) threadTracker.freed(0-size, 0-count);
+			else threadTracker.allocated(size, count);
+		}
+		if(alignmentOverhead!=0L) {
 			totalAlignmentOverhead.add(alignmentOverhead);
 		}
 	}
 	
 	/**
-	 * Decrements the memory and overhead counters if enabled in each case
+	 * Decrements the memory and overhead counters by the recorded size and overhead of a freed allocation
 	 * @param size The memory allocation size
 	 * @param alignmentOverhead The cache-line memory alignment overhead
+	 * @param tag The allocation tag
 	 */
-	final void decrement(final long size, final long alignmentOverhead) {
-		if(memTracking && size > 0) {
+	final void decrement(final long size, final long alignmentOverhead, final int tag) {
+		if(size > 0) {
+			if(tag!=AllocationTag.UNTAGGED) tags[tag].add(0-size, -1L);
 			totalMemoryAllocated.add(0-size);
 			totalAllocationCount.decrement();			
+			if(budget!=null) budget.release(size);
+			if(threadTracker!=null) threadTracker.freed(size, 1L);
 		}
-		if(memAlignment && alignmentOverhead > 0) {
+		if(alignmentOverhead > 0) {
 			totalAlignmentOverhead.add(0-alignmentOverhead);
 		}
 	}
 	
 	/**
-	 * Executes address freeing, total memory allocation and alignment overhead accounting for gc'ed AllocationPointers
-	 * @param cleared The cleared array from the AllocationPointer phantom reference
-	 * @return a long array with the total allocation and alignment overhead
-	 * FIXME: this can be optimized
+	 * <p>Title: SlotFreer</p>
+	 * <p>Description: Frees the addresses in the slots of released AllocationPointers and totals their sizes, 
+	 * memory allocation and alignment overhead without copying the slots into arrays. Accumulates the totals 
+	 * and on clear runnables of a batch of released references until they are applied.</p> 
 	 */
-	final long[] decrement(final long[][] cleared) {
-		final long[] totals = new long[2];
-		if(cleared!=null && cleared.length>0) {
-			for(long[] triplet: cleared) {
-				long address = triplet[0];
-				if(address>0) {
-					unsafe.freeMemory(address);
-					triplet[0] = 0;
-				}
-				if(memTracking) {
-					totals[0] += triplet[1];
-				}
-				if(memAlignment) {
-					totals[1] += triplet[2];
-				}				
+	private class SlotFreer implements SlotVisitor {
+		/** The total size of the freed allocations */
+		long size = 0L;
+		/** The number of freed addresses */
+		long count = 0L;
+		/** The total alignment overhead of the freed allocations */
+		long alignmentOverhead = 0L;
+		/** The number of released references */
+		long refs = 0L;
+		/** Indicates if the AllocationPointer being freed recorded the sizes of its allocations */
+		boolean tracked = false;
+		/** The on clear runnables of the released references, or null if there are none */
+		RunnableSequence onClear = null;
+		/** The work queue of descendants waiting to be released */
+		final ArrayDeque<AllocationPointerPhantomRef> descendants = new ArrayDeque<AllocationPointerPhantomRef>();
+		
+		/**
+		 * Resets the accumulated totals
+		 */
+		void reset() {
+			size = 0L;
+			count = 0L;
+			alignmentOverhead = 0L;
+			refs = 0L;
+			tracked = false;
+			onClear = null;
+			descendants.clear();
+		}
+		
+		/**
+		 * {@inheritDoc}
+		 * @see com.heliosapm.unsafe.Callbacks.SlotVisitor#visitSlot(int, long, long, long)
+		 */
+		@Override
+		public boolean visitSlot(final int index, final long address, final long allocationSize, final long overhead) {
+			NativeAllocator.free(address);
+			released(address);
+			if(tracked) {
+				count++;
+				size += allocationSize;
+				alignmentOverhead += overhead;
+			}
+			return true;
+		}
+	}
+	
+	/**
+	 * <p>Title: RawTotaller</p>
+	 * <p>Description: Totals the sizes and alignment overhead of untracked unmanaged allocations, 
+	 * uncounting tagged allocations from their tags as it goes</p> 
+	 */
+	private class RawTotaller implements SlotVisitor {
+		/** The total size of the untracked allocations */
+		long size = 0L;
+		/** The number of untracked allocations with a non zero size */
+		long count = 0L;
+		/** The total alignment overhead of the untracked allocations */
+		long alignmentOverhead = 0L;
+		
+		/**
+		 * {@inheritDoc}
+		 * @see com.heliosapm.unsafe.Callbacks.SlotVisitor#visitSlot(int, long, long, long)
+		 */
+		@Override
+		public boolean visitSlot(final int index, final long address, final long allocationSize, final long overhead) {
+			if(allocationSize > 0) {
+				size += allocationSize;
+				count++;
+				final int tag = (int)(overhead >>> TAG_SHIFT);
+				if(tag!=AllocationTag.UNTAGGED) tags[tag].add(0-allocationSize, -1L);
 			}
+			alignmentOverhead += overhead & OVERHEAD_MASK;
+			return true;
 		}
-		return totals;
 	}
 	
+	/** Decrements the counters by the size and alignment overhead of an untracked unmanaged allocation */
+	private final SlotVisitor rawDecrementer = new SlotVisitor() {
+		@Override
+		public boolean visitSlot(final int index, final long address, final long allocationSize, final long overhead) {
+			decrement(allocationSize, overhead & OVERHEAD_MASK, (int)(overhead >>> TAG_SHIFT));
+			return true;
+		}
+	};
+	
+	
+	/**
+	 * Notifies the sampler and the histograms that a block of native memory was freed. 
+	 * Called for every freed block, including blocks freed by their owner such as arena segments, 
+	 * whose counters are updated separately.
+	 * @param address The freed address
+	 */
+	final void released(final long address) {
+		if(sampler!=null) sampler.freed(address);
+		if(histograms!=null) histograms.freed(address);
+	}
 	
 	/**
 	 * Tracks a new memory allocation
@@ -350,18 +916,51 @@ public class AllocationReferenceManager implements Runnable {
 	 * @param memoryManager The optional memory manager
 	 */
 	final void allocateMemory(final long allocatedAddress, final long size, final long alignmentOverhead, final Object memoryManager) {
+		allocateMemory(allocatedAddress, size, alignmentOverhead, memoryManager, null);
+	}
+	
+	/**
+	 * Tracks a new memory allocation, optionally deferring the aggregate counter updates to a thread local allocation buffer
+	 * @param allocatedAddress The allocated address
+	 * @param size The size of the allocation
+	 * @param alignmentOverhead The cache-line memory alignment overhead
+	 * @param memoryManager The optional memory manager
+	 * @param buffer The thread local allocation buffer the block came from, or null to update the counters immediately
+	 */
+	final void allocateMemory(final long allocatedAddress, final long size, final long alignmentOverhead, final Object memoryManager, final ThreadLocalAllocator.Buffer buffer) {
+		allocateMemory(allocatedAddress, size, alignmentOverhead, memoryManager, buffer, AllocationTag.UNTAGGED);
+	}
+	
+	/**
+	 * Tracks a new memory allocation, optionally deferring the aggregate counter updates to a thread local allocation buffer
+	 * @param allocatedAddress The allocated address
+	 * @param size The size of the allocation
+	 * @param alignmentOverhead The cache-line memory alignment overhead
+	 * @param memoryManager The optional memory manager
+	 * @param buffer The thread local allocation buffer the block came from, or null to update the counters immediately
+	 * @param rawTag The allocation tag of an unmanaged allocation. Managed allocations are accounted under the tag of their AllocationPointer.
+	 */
+	final void allocateMemory(final long allocatedAddress, final long size, final long alignmentOverhead, final Object memoryManager, final ThreadLocalAllocator.Buffer buffer, final int rawTag) {
+		if(sampler!=null) sampler.allocated(allocatedAddress, size);
+		if(histograms!=null) histograms.allocated(allocatedAddress, size);
 		if(memoryManager!=null) {
 			final int mask = ifaceTracker.getMask(memoryManager);
 			if(mask==0)throw new IllegalArgumentException("The supplied memory manager of type [" + memoryManager.getClass().getName() + "] does not implement any known memory management interfaces");
+			byte dim = dimension();
+			int tag = AllocationTag.UNTAGGED;
 			if(InterfaceTracker.isAllocationPointer(mask)) {
-				((AllocationPointer)memoryManager).assignSlot(allocatedAddress, size, alignmentOverhead);				
+				final AllocationPointer ap = (AllocationPointer)memoryManager;
+				ap.assignSlot(allocatedAddress, size, alignmentOverhead);
+				dim = ap.getDimension();
+				tag = ap.getTag();
+				if(dim > 1) ap.adjustTree(size);
 			} else {
 				if(InterfaceTracker.isDeallocatable(mask)) {
 					Deallocatable dealloc = (Deallocatable)memoryManager;
 					final long refId;
 					final AllocationPointerPhantomRef apRef;
 					if(dealloc.getReferenceId()==0) {
-						apRef = newAllocationPointer().ingest(dealloc).getReference(refQueue);
+						apRef = referenceOf(newAllocationPointer().ingest(dealloc));
 						refId = apRef.getReferenceId();
 					} else {
 						refId = dealloc.getReferenceId();
@@ -369,14 +968,26 @@ public class AllocationReferenceManager implements Runnable {
 						if(apRef==null) throw new RuntimeException("Failed to find AllocationPointerPhantomRef for reference id [" + refId + "]");					
 					}
 					apRef.add(allocatedAddress, size, alignmentOverhead);
+					dim = apRef.getDimension();
+					tag = apRef.getTag();
 				}
 				if(InterfaceTracker.isAssignable(mask)) {
 					((AddressAssignable)memoryManager).setAllocated(allocatedAddress, size, alignmentOverhead);
 				}				
+				if(!InterfaceTracker.isDeallocatable(mask)) {
+					// an AddressAssignable does not keep the size, so the allocation is tracked as unmanaged to be uncounted when freed
+					incrementUnmanaged(allocatedAddress, size, alignmentOverhead, buffer, AllocationTag.UNTAGGED);
+					return;
+				}
+			}
+			// tagged allocations are counted immediately since the buffer only pends the totals
+			if(buffer!=null && tag==AllocationTag.UNTAGGED) {
+				if(dim > 1) buffer.pend(size, dim > 2 ? alignmentOverhead : 0L);
+			} else {
+				increment(size, alignmentOverhead, dim, tag);
 			}
-			increment(size, alignmentOverhead);		
 		} else {
-			incrementUnmanaged(allocatedAddress, size, alignmentOverhead);
+			incrementUnmanaged(allocatedAddress, size, alignmentOverhead, buffer, rawTag);
 		}
 		
 	}
@@ -390,45 +1001,60 @@ public class AllocationReferenceManager implements Runnable {
 	 * @param memoryManager The optional memory manager
 	 */
 	final void reallocateMemory(final long priorAddress, final long allocatedAddress, final long size, final long alignmentOverhead, final Object memoryManager) {
+		if(sampler!=null) sampler.reallocated(priorAddress, allocatedAddress, size);
+		if(histograms!=null) histograms.reallocated(priorAddress, allocatedAddress, size);
 		if(memoryManager!=null) {
 			final int mask = ifaceTracker.getMask(memoryManager);
 			if(mask==0)throw new IllegalArgumentException("The supplied memory manager of type [" + memoryManager.getClass().getName() + "] does not implement any known memory management interfaces");
+			byte dim = dimension();
+			int tag = AllocationTag.UNTAGGED;
 			if(InterfaceTracker.isAllocationPointer(mask)) {
 				final AllocationPointer ap = (AllocationPointer)memoryManager;
+				dim = ap.getDimension();
+				tag = ap.getTag();
 				// ===========================================================================
 				// handle decrements
 				// ===========================================================================
 				final int index = ap.findIndexForAddress(priorAddress);
 				if(index != -1) {
-					decrement(ap.getAllocationSize(index), ap.getAlignmentOverhead(index));
+					final long priorSize = ap.getAllocationSize(index);
+					decrement(priorSize, ap.getAlignmentOverhead(index), tag);
 					ap.reassignSlot(index, allocatedAddress, size, alignmentOverhead);
+					if(dim > 1) ap.adjustTree(size - priorSize);
 				} else {
 					// FIXME:  What the heck do we do now ?
 					ap.assignSlot(allocatedAddress, size, alignmentOverhead);
+					if(dim > 1) ap.adjustTree(size);
 				}
 			} else {
 				if(InterfaceTracker.isAssignable(mask)) {
 					((AddressAssignable)memoryManager).setAllocated(allocatedAddress, size, alignmentOverhead);
 					((AddressAssignable)memoryManager).removeAllocated(priorAddress);
 				}
+				if(!InterfaceTracker.isDeallocatable(mask)) {
+					incrementUnmanaged(priorAddress, allocatedAddress, size, alignmentOverhead);
+					return;
+				}
 				if(InterfaceTracker.isDeallocatable(mask)) {
 					Deallocatable dealloc = (Deallocatable)memoryManager;
 					final long refId;
 					final AllocationPointerPhantomRef apRef;
 					if(dealloc.getReferenceId()==0) {
-						apRef = newAllocationPointer().ingest(dealloc).getReference(refQueue);
+						apRef = referenceOf(newAllocationPointer().ingest(dealloc));
 						refId = apRef.getReferenceId();
 					} else {
 						refId = dealloc.getReferenceId();
 						apRef = trackedRefs.get(refId);
 						if(apRef==null) throw new RuntimeException("Failed to find AllocationPointerPhantomRef for reference id [" + refId + "]");					
 					}
-					decrement(apRef.getAllocationSize(priorAddress), apRef.getAlignmentOverhead(priorAddress));
+					tag = apRef.getTag();
+					decrement(apRef.getAllocationSize(priorAddress), apRef.getAlignmentOverhead(priorAddress), tag);
 					apRef.clearAddress(priorAddress);
 					apRef.add(allocatedAddress, size, alignmentOverhead);
+					dim = apRef.getDimension();
 				}						
 			}
-			increment(size, alignmentOverhead);
+			increment(size, alignmentOverhead, dim, tag);
 		} else {
 			incrementUnmanaged(priorAddress, allocatedAddress, size, alignmentOverhead);
 		}					
@@ -441,6 +1067,7 @@ public class AllocationReferenceManager implements Runnable {
 	 * @param memoryManager The optional memory manager
 	 */
 	final void freeMemory(final long freedAddress, final Object memoryManager) {
+		released(freedAddress);
 		if(memoryManager!=null) {
 			final int mask = ifaceTracker.getMask(memoryManager);
 			if(mask==0)throw new IllegalArgumentException("The supplied memory manager of type [" + memoryManager.getClass().getName() + "] does not implement any known memory management interfaces");
@@ -448,13 +1075,18 @@ public class AllocationReferenceManager implements Runnable {
 				final AllocationPointer ap = (AllocationPointer)memoryManager;
 				final int index = ap.findIndexForAddress(freedAddress);
 				if(index != -1) {
-					decrement(ap.getAllocationSize(index), ap.getAlignmentOverhead(index));
+					final long allocationSize = ap.getAllocationSize(index);
+					decrement(allocationSize, ap.getAlignmentOverhead(index), ap.getTag());
 					ap.clearAddress(index);
+					ap.adjustTree(0-allocationSize);
 				}
 			} else {
 				if(InterfaceTracker.isAssignable(mask)) {					
 					((AddressAssignable)memoryManager).removeAllocated(freedAddress);
 				}
+				if(!InterfaceTracker.isDeallocatable(mask)) {
+					decrementUnmanaged(freedAddress);
+				}
 				if(InterfaceTracker.isDeallocatable(mask)) {
 					Deallocatable dealloc = (Deallocatable)memoryManager;
 					final long refId;
@@ -463,7 +1095,7 @@ public class AllocationReferenceManager implements Runnable {
 						refId = dealloc.getReferenceId();
 						apRef = trackedRefs.get(refId);
 						if(apRef==null) throw new RuntimeException("Failed to find AllocationPointerPhantomRef for reference id [" + refId + "]");
-						decrement(apRef.getAllocationSize(freedAddress), apRef.getAlignmentOverhead(freedAddress));
+						decrement(apRef.getAllocationSize(freedAddress), apRef.getAlignmentOverhead(freedAddress), apRef.getTag());
 						apRef.clearAddress(freedAddress);
 					}
 				}
@@ -473,6 +1105,150 @@ public class AllocationReferenceManager implements Runnable {
 		}
 	}
 	
+	/**
+	 * Tracks a batch of new memory allocations, dispatching on the memory manager once and applying the counter updates as one delta
+	 * @param allocatedAddresses The allocated addresses
+	 * @param sizes The sizes of the allocations
+	 * @param totalSize The total size of the allocations
+	 * @param memoryManager The optional memory manager
+	 */
+	final void allocateMemory(final long[] allocatedAddresses, final long[] sizes, final long totalSize, final Object memoryManager) {
+		if(sampler!=null) {
+			for(int i = 0; i < allocatedAddresses.length; i++) {
+				sampler.allocated(allocatedAddresses[i], sizes[i]);
+			}
+		}
+		if(histograms!=null) {
+			for(int i = 0; i < allocatedAddresses.length; i++) {
+				histograms.allocated(allocatedAddresses[i], sizes[i]);
+			}
+		}
+		final int count = allocatedAddresses.length;
+		byte dim = dimension();
+		int tag = AllocationTag.UNTAGGED;
+		if(memoryManager!=null) {
+			final int mask = ifaceTracker.getMask(memoryManager);
+			if(mask==0)throw new IllegalArgumentException("The supplied memory manager of type [" + memoryManager.getClass().getName() + "] does not implement any known memory management interfaces");
+			if(InterfaceTracker.isAllocationPointer(mask)) {
+				final AllocationPointer ap = (AllocationPointer)memoryManager;
+				ap.assignSlots(allocatedAddresses, sizes);
+				dim = ap.getDimension();
+				tag = ap.getTag();
+				if(dim > 1) ap.adjustTree(totalSize);
+			} else {
+				if(InterfaceTracker.isDeallocatable(mask)) {
+					Deallocatable dealloc = (Deallocatable)memoryManager;
+					final AllocationPointerPhantomRef apRef;
+					if(dealloc.getReferenceId()==0) {
+						apRef = referenceOf(newAllocationPointer().ingest(dealloc));
+					} else {
+						apRef = trackedRefs.get(dealloc.getReferenceId());
+						if(apRef==null) throw new RuntimeException("Failed to find AllocationPointerPhantomRef for reference id [" + dealloc.getReferenceId() + "]");					
+					}
+					apRef.addAll(allocatedAddresses, sizes);
+					dim = apRef.getDimension();
+					tag = apRef.getTag();
+				}
+				if(InterfaceTracker.isAssignable(mask)) {
+					final AddressAssignable assignable = (AddressAssignable)memoryManager;
+					for(int i = 0; i < count; i++) {
+						assignable.setAllocated(allocatedAddresses[i], sizes[i], 0L);
+					}
+				}				
+				if(!InterfaceTracker.isDeallocatable(mask) && dim > 1) {
+					// an AddressAssignable does not keep the sizes, so the allocations are tracked as unmanaged to be uncounted when freed
+					rawTracked = true;
+					for(int i = 0; i < count; i++) {
+						trackedRaw.put(allocatedAddresses[i], sizes[i], 0L);
+					}
+				}
+			}
+		} else if(dim > 1) {
+			rawTracked = true;
+			for(int i = 0; i < count; i++) {
+				trackedRaw.put(allocatedAddresses[i], sizes[i], 0L);
+			}
+		}
+		if(dim > 1) applyDelta(totalSize, count, 0L, tag);
+	}
+	
+	/**
+	 * Untracks a batch of memory allocations, dispatching on the memory manager once and applying the counter updates as one delta
+	 * @param freedAddresses The addresses that were freed
+	 * @param memoryManager The optional memory manager
+	 */
+	final void freeMemory(final long[] freedAddresses, final Object memoryManager) {
+		if(sampler!=null || histograms!=null) {
+			for(final long freedAddress: freedAddresses) {
+				released(freedAddress);
+			}
+		}
+		long size = 0L, count = 0L, alignmentOverhead = 0L;
+		int tag = AllocationTag.UNTAGGED;
+		if(memoryManager!=null) {
+			final int mask = ifaceTracker.getMask(memoryManager);
+			if(mask==0)throw new IllegalArgumentException("The supplied memory manager of type [" + memoryManager.getClass().getName() + "] does not implement any known memory management interfaces");
+			if(InterfaceTracker.isAllocationPointer(mask)) {
+				final AllocationPointer ap = (AllocationPointer)memoryManager;
+				tag = ap.getTag();
+				for(final long freedAddress: freedAddresses) {
+					final int index = ap.findIndexForAddress(freedAddress);
+					if(index == -1) continue;
+					final long allocationSize = ap.getAllocationSize(index);
+					if(allocationSize > 0) {
+						size += allocationSize;
+						count++;
+					}
+					alignmentOverhead += ap.getAlignmentOverhead(index);
+					ap.clearAddress(index);
+				}
+				ap.adjustTree(0-size);
+			} else {
+				if(InterfaceTracker.isAssignable(mask)) {
+					final AddressAssignable assignable = (AddressAssignable)memoryManager;
+					for(final long freedAddress: freedAddresses) {
+						assignable.removeAllocated(freedAddress);
+					}
+				}
+				if(!InterfaceTracker.isDeallocatable(mask) && rawTracked) {
+					final RawTotaller totaller = new RawTotaller();
+					for(final long freedAddress: freedAddresses) {
+						trackedRaw.remove(freedAddress, totaller);
+					}
+					size = totaller.size;
+					count = totaller.count;
+					alignmentOverhead = totaller.alignmentOverhead;
+				}
+				if(InterfaceTracker.isDeallocatable(mask)) {
+					Deallocatable dealloc = (Deallocatable)memoryManager;
+					if(dealloc.getReferenceId()!=0) {
+						final AllocationPointerPhantomRef apRef = trackedRefs.get(dealloc.getReferenceId());
+						if(apRef==null) throw new RuntimeException("Failed to find AllocationPointerPhantomRef for reference id [" + dealloc.getReferenceId() + "]");
+						tag = apRef.getTag();
+						for(final long freedAddress: freedAddresses) {
+							final long allocationSize = apRef.getAllocationSize(freedAddress);
+							if(allocationSize > 0) {
+								size += allocationSize;
+								count++;
+							}
+							alignmentOverhead += apRef.getAlignmentOverhead(freedAddress);
+							apRef.clearAddress(freedAddress);
+						}
+					}
+				}
+			}
+		} else if(rawTracked) {
+			final RawTotaller totaller = new RawTotaller();
+			for(final long freedAddress: freedAddresses) {
+				trackedRaw.remove(freedAddress, totaller);
+			}
+			size = totaller.size;
+			count = totaller.count;
+			alignmentOverhead = totaller.alignmentOverhead;
+		}
+		if(count!=0L || alignmentOverhead!=0L) applyDelta(0-size, 0-count, 0-alignmentOverhead, tag);
+	}
+	
 	/**
 	 * Tracks the size and alignment overhead of an unmanaged allocation
 	 * @param allocatedAddress The allocated address
@@ -480,12 +1256,29 @@ public class AllocationReferenceManager implements Runnable {
 	 * @param alignmentOverhead The alignment overhead
 	 */
 	private final void incrementUnmanaged(final long allocatedAddress, final long size, final long alignmentOverhead) {
-		if(memTracking) {
-			totalAllocationCount.increment();
-			totalMemoryAllocated.add(size);
-			if(memAlignment) totalAlignmentOverhead.add(alignmentOverhead);
-			long[] prior = trackedRaw.put(allocatedAddress, memAlignment ? new long[]{size, alignmentOverhead} : new long[]{size});
-			if(prior!=null) {
+		incrementUnmanaged(allocatedAddress, size, alignmentOverhead, null, AllocationTag.UNTAGGED);
+	}
+	
+	/**
+	 * Tracks the size, alignment overhead and tag of an unmanaged allocation. 
+	 * The tag is packed into the high byte of the tracked alignment overhead.
+	 * @param allocatedAddress The allocated address
+	 * @param size The size of the allocation
+	 * @param alignmentOverhead The alignment overhead
+	 * @param buffer The thread local allocation buffer to defer the counter updates to, or null to update them immediately
+	 * @param tag The allocation tag
+	 */
+	private final void incrementUnmanaged(final long allocatedAddress, final long size, final long alignmentOverhead, final ThreadLocalAllocator.Buffer buffer, final int tag) {
+		final byte dim = dimension();
+		if(dim > 1) {
+			final long overhead = dim > 2 ? alignmentOverhead : 0L;
+			rawTracked = true;
+			if(buffer!=null && tag==AllocationTag.UNTAGGED) {
+				buffer.pend(size, overhead);
+			} else {
+				increment(size, overhead, dim, tag);
+			}
+			if(trackedRaw.put(allocatedAddress, size, overhead | (((long)tag) << TAG_SHIFT))) {
 				// =======  COLLISION !!!  What do we do with it ?
 			}
 		}
@@ -499,10 +1292,14 @@ public class AllocationReferenceManager implements Runnable {
 	 * @param alignmentOverhead The alignment overhead
 	 */
 	private final void incrementUnmanaged(final long priorAddress, final long allocatedAddress, final long size, final long alignmentOverhead) {
-		if(memTracking) {
+		int tag = AllocationTag.UNTAGGED;
+		if(rawTracked) {
+			// the re-allocation keeps the tag of the prior allocation
+			final long priorOverhead = trackedRaw.getOverhead(priorAddress);
+			if(priorOverhead > 0) tag = (int)(priorOverhead >>> TAG_SHIFT);
 			decrementUnmanaged(priorAddress);
-			incrementUnmanaged(allocatedAddress, size, alignmentOverhead);
 		}
+		incrementUnmanaged(allocatedAddress, size, alignmentOverhead, null, tag);
 	}
 	
 	/**
@@ -510,15 +1307,8 @@ public class AllocationReferenceManager implements Runnable {
 	 * @param priorAddress The freed address
 	 */
 	private final void decrementUnmanaged(final long priorAddress) {
-		if(memTracking) {			
-			long[] prior = trackedRaw.remove(priorAddress);
-			if(prior!=null) {
-				if(prior.length==1) {
-					decrement(prior[0], 0L);
-				} else if(prior.length==2) {
-					decrement(prior[0], prior[1]);
-				}
-			}
+		if(rawTracked) {			
+			trackedRaw.remove(priorAddress, rawDecrementer);
 		}
 	}
 	
@@ -537,7 +1327,29 @@ public class AllocationReferenceManager implements Runnable {
 	 * @return true if cache-line mem alignment, false otherwise
 	 */
 	public final boolean isMemAlignment() {
-		return memAlignment;
+		return memTracking && memAlignment;
+	}
+	
+	/**
+	 * Enables or disables memory allocation tracking at runtime.
+	 * Allocations made while tracking is disabled are not counted and are freed without touching the counters, 
+	 * while allocations counted before tracking was disabled are still uncounted when they are freed.
+	 * @param enabled true to enable memory allocation tracking, false to disable it
+	 * @throws IllegalStateException if tracking is being disabled while a memory budget is enforced, 
+	 * since the budget could no longer be released as memory is freed
+	 */
+	public final synchronized void setMemTracking(final boolean enabled) {
+		if(!enabled && budget!=null) throw new IllegalStateException("Memory allocation tracking cannot be disabled while a memory budget is enforced");
+		memTracking = enabled;
+	}
+	
+	/**
+	 * Enables or disables cache-line alignment overhead tracking at runtime.
+	 * Alignment overhead is only tracked while memory allocation tracking is also enabled.
+	 * @param enabled true to enable cache-line alignment overhead tracking, false to disable it
+	 */
+	public final void setMemAlignment(final boolean enabled) {
+		memAlignment = enabled;
 	}
 
 
@@ -577,6 +1389,22 @@ public class AllocationReferenceManager implements Runnable {
 	}
 
 	
+	/**
+	 * Returns the total bytes allocated in each AllocationPointer tree, keyed by the reference id of the tree's root
+	 * @return a map of tree byte totals, which is empty if mem tracking is disabled
+	 */
+	public final Map<String, Long> getAllocationTreeTotals() {
+		final Map<String, Long> map = new HashMap<String, Long>(treeTotals.size());
+		if(memTracking) {
+			for(final Iterator<Long> iter = treeTotals.keySet().iterator(); iter.hasNext();) {
+				final Long rootRefId = iter.next();
+				final LongAdder tree = treeTotals.get(rootRefId);
+				if(tree!=null) map.put(rootRefId.toString(), tree.longValue());
+			}
+		}
+		return map;
+	}
+	
 	/**
 	 * Returns the total number of cleared allocation references
 	 * @return the total number of cleared allocation references
@@ -591,16 +1419,99 @@ public class AllocationReferenceManager implements Runnable {
 	 * @return the total cache-line memory alignment overhead
 	 */
 	public final long getTotalAlignmentOverhead() {
-		return memAlignment ? totalAlignmentOverhead.longValue() : -1L;		
+		return isMemAlignment() ? totalAlignmentOverhead.longValue() : -1L;		
 	}
 
 
 	/**
-	 * Returns the length of the reference queue
-	 * @return the length of the reference queue
+	 * Returns the allocation sampler estimating the allocated memory when memory allocation tracking is disabled
+	 * @return the allocation sampler, or null if sampling is disabled
+	 */
+	public final AllocationSampler getSampler() {
+		return sampler;
+	}
+	
+	/**
+	 * Returns the per thread accounting of the tracked memory
+	 * @return the per thread allocation tracker, or null if per thread accounting is disabled
+	 */
+	public final ThreadAllocationTracker getThreadTracker() {
+		return threadTracker;
+	}
+	
+	/**
+	 * Returns the native memory budget
+	 * @return the native memory budget, or null if there is none
+	 */
+	public final MemoryBudget getBudget() {
+		return budget;
+	}
+	
+	/**
+	 * Reserves budgeted memory for an allocation that is about to be made, waiting for the cleaner to release memory if it does not fit.
+	 * A no op if there is no budget.
+	 * @param size The number of bytes to reserve
+	 * @throws OutOfMemoryError if the bytes could not be reserved within the budget timeout
+	 */
+	final void reserveMemory(final long size) {
+		if(budget!=null) budget.reserve(size);
+	}
+	
+	/**
+	 * Reserves budgeted memory for an allocation that is about to be made, without waiting
+	 * @param size The number of bytes to reserve
+	 * @return true if the bytes were reserved or there is no budget, false otherwise
+	 */
+	final boolean tryReserveMemory(final long size) {
+		return budget==null || budget.tryReserve(size);
+	}
+	
+	/**
+	 * Releases budgeted memory reserved for an allocation that was not made. A no op if there is no budget.
+	 * @param size The number of bytes to release
+	 */
+	final void unreserveMemory(final long size) {
+		if(budget!=null) budget.release(size);
+	}
+	
+	/**
+	 * Returns the total length of the reference queues, i.e. the number of collected AllocationPointers waiting to be cleared
+	 * @return the total length of the reference queues
 	 */
 	public final long getRefQueuePending() {
-		return refQueueLengthReader.getQueueLength();
+		long pending = 0L;
+		for(ReferenceQueueLengthReader<?> reader: refQueueLengthReaders) {
+			pending += reader.getQueueLength();
+		}
+		return pending;
+	}
+	
+	/**
+	 * Returns the length of each cleaner thread's reference queue
+	 * @return the reference queue lengths indexed by stripe
+	 */
+	public final long[] getRefQueuePendingByCleaner() {
+		final long[] pending = new long[refQueueLengthReaders.length];
+		for(int i = 0; i < pending.length; i++) {
+			pending[i] = refQueueLengthReaders[i].getQueueLength();
+		}
+		return pending;
+	}
+	
+	/**
+	 * Returns the number of cleaner threads
+	 * @return the number of cleaner threads
+	 */
+	public final int getCleanerCount() {
+		return cleanerThreads.length;
+	}
+	
+	/**
+	 * Returns the maximum number of collected references a cleaner thread clears in one batch
+	 * @return the cleaner batch size
+	 */
+	public final int getCleanerBatchSize() {
+		return cleanerBatchSize;
 	}
 	
 	/**
@@ -0,0 +1,243 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.unsafe;
+
+import jsr166e.DoubleAdder;
+
+import com.heliosapm.unsafe.Callbacks.SlotVisitor;
+
+/**
+ * <p>Title: AllocationSampler</p>
+ * <p>Description: Samples native memory allocations by bytes and extrapolates the live allocated memory from the samples,
+ * as a much cheaper alternative to tracking every allocation.</p>
+ * <p>Each thread counts down a random number of bytes, drawn from an exponential distribution with a mean of the sample interval,
+ * and the allocation that takes the count down to zero is sampled. An allocation of <code>s</code> bytes is therefore sampled 
+ * with a probability of <code>p = 1 - e<sup>-s/interval</sup></code>, so large allocations are almost always sampled 
+ * and small ones rarely. Each live sample stands for <code>1/p</code> allocations and <code>s/p</code> bytes, which makes the summed
+ * estimates unbiased. The variance of the byte estimate is the sum of <code>s<sup>2</sup>(1-p)/p<sup>2</sup></code> 
+ * over the live samples, from which a 95% confidence interval is reported.</p>
+ * <p>Sampled allocations are kept in an {@link OffHeapAddressTable} keyed by address, so frees of sampled allocations can be 
+ * recognised and the estimates reduced, and nothing is recorded for the allocations that are not sampled.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.unsafe.AllocationSampler</code></p>
+ */
+public class AllocationSampler {
+	/** The z score of a two sided 95% confidence interval */
+	public static final double Z_95 = 1.959964;
+	
+	/** The mean number of bytes allocated between samples */
+	private final long interval;
+	/** The live sampled allocations keyed by address */
+	private final OffHeapAddressTable samples = new OffHeapAddressTable(1024, false);
+	/** The estimated live allocated bytes */
+	private final DoubleAdder estimatedBytes = new DoubleAdder();
+	/** The estimated number of live allocations */
+	private final DoubleAdder estimatedCount = new DoubleAdder();
+	/** The variance of the estimated live allocated bytes */
+	private final DoubleAdder variance = new DoubleAdder();
+	/** The per thread sampling state */
+	private final ThreadLocal<Countdown> countdowns = new ThreadLocal<Countdown>() {
+		@Override
+		protected Countdown initialValue() {
+			return new Countdown();
+		}
+	};
+	/** Reduces the estimates by the weight of a freed sample */
+	private final SlotVisitor unsampler = new SlotVisitor() {
+		@Override
+		public boolean visitSlot(final int index, final long address, final long size, final long alignmentOverhead) {
+			adjust(size, -1d);
+			return true;
+		}
+	};
+	
+	/**
+	 * Creates a new AllocationSampler
+	 * @param interval The mean number of bytes allocated between samples
+	 */
+	public AllocationSampler(final long interval) {
+		if(interval < 1) throw new IllegalArgumentException("Invalid sample interval [" + interval + "]");
+		this.interval = interval;
+	}
+	
+	/**
+	 * Returns the probability an allocation of the passed size is sampled
+	 * @param size The allocation size in bytes
+	 * @return the sampling probability
+	 */
+	public double probability(final long size) {
+		return 1d - Math.exp(-((double)size / interval));
+	}
+	
+	/**
+	 * Adds or removes the weight of a sample to the estimates
+	 * @param size The size of the sampled allocation
+	 * @param sign 1 to add the sample, -1 to remove it
+	 */
+	private void adjust(final long size, final double sign) {
+		final double p = probability(size);
+		estimatedBytes.add(sign * size / p);
+		estimatedCount.add(sign / p);
+		variance.add(sign * ((double)size * size * (1d - p)) / (p * p));
+	}
+	
+	/**
+	 * Records a new allocation, which is sampled if it takes the calling thread's countdown to zero 
+	 * @param address The allocated address
+	 * @param size The allocation size in bytes
+	 * @return true if the allocation was sampled, false otherwise
+	 */
+	public boolean allocated(final long address, final long size) {
+		if(size < 1 || !countdowns.get().sample(size)) return false;
+		// drop any stale sample of an address that was freed without being reported
+		samples.remove(address, unsampler);
+		samples.put(address, size, 0L);
+		adjust(size, 1d);
+		return true;
+	}
+	
+	/**
+	 * Records a freed allocation, reducing the estimates if it was sampled
+	 * @param address The freed address
+	 */
+	public void freed(final long address) {
+		samples.remove(address, unsampler);
+	}
+	
+	/**
+	 * Records a re-allocation
+	 * @param priorAddress The address that was re-allocated
+	 * @param address The new address
+	 * @param size The new allocation size in bytes
+	 */
+	public void reallocated(final long priorAddress, final long address, final long size) {
+		freed(priorAddress);
+		allocated(address, size);
+	}
+	
+	/**
+	 * Returns the mean number of bytes allocated between samples
+	 * @return the sample interval in bytes
+	 */
+	public long getInterval() {
+		return interval;
+	}
+	
+	/**
+	 * Returns the number of live sampled allocations
+	 * @return the number of live sampled allocations
+	 */
+	public int getSampleCount() {
+		return samples.size();
+	}
+	
+	/**
+	 * Returns the estimated live allocated memory
+	 * @return the estimated live allocated memory in bytes
+	 */
+	public long getEstimatedBytes() {
+		return Math.max(0L, Math.round(estimatedBytes.sum()));
+	}
+	
+	/**
+	 * Returns the estimated number of live allocations
+	 * @return the estimated number of live allocations
+	 */
+	public long getEstimatedCount() {
+		return Math.max(0L, Math.round(estimatedCount.sum()));
+	}
+	
+	/**
+	 * Returns the half width of the 95% confidence interval of the estimated live allocated memory
+	 * @return the error bound in bytes
+	 */
+	public long getErrorBound() {
+		return Math.round(Z_95 * Math.sqrt(Math.max(0d, variance.sum())));
+	}
+	
+	/**
+	 * Returns the lower bound of the 95% confidence interval of the estimated live allocated memory
+	 * @return the lower bound in bytes
+	 */
+	public long getLowerBound() {
+		return Math.max(0L, getEstimatedBytes() - getErrorBound());
+	}
+	
+	/**
+	 * Returns the upper bound of the 95% confidence interval of the estimated live allocated memory
+	 * @return the upper bound in bytes
+	 */
+	public long getUpperBound() {
+		return getEstimatedBytes() + getErrorBound();
+	}
+	
+	/**
+	 * Drops all the samples and zeroes the estimates
+	 */
+	public void reset() {
+		samples.clear();
+		estimatedBytes.reset();
+		estimatedCount.reset();
+		variance.reset();
+	}
+	
+	/**
+	 * <p>Title: Countdown</p>
+	 * <p>Description: A thread's count of the bytes left to allocate before the next sample</p> 
+	 */
+	private class Countdown {
+		/** The xorshift random state */
+		private long seed = System.nanoTime() ^ Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+		/** The bytes left to allocate before the next sample */
+		private long remaining = next();
+		
+		/**
+		 * Counts down the passed size
+		 * @param size The allocation size in bytes
+		 * @return true if the allocation is sampled
+		 */
+		boolean sample(final long size) {
+			remaining -= size;
+			if(remaining > 0) return false;
+			remaining = next();
+			return true;
+		}
+		
+		/**
+		 * Draws the number of bytes to the next sample from an exponential distribution with a mean of the interval
+		 * @return the number of bytes to the next sample
+		 */
+		private long next() {
+			if(seed==0L) seed = 0x9E3779B97F4A7C15L;
+			seed ^= seed << 13;
+			seed ^= seed >>> 7;
+			seed ^= seed << 17;
+			// a uniform double in (0, 1]
+			final double u = ((seed >>> 11) + 1L) * 0x1.0p-53;
+			return (long)Math.ceil(-Math.log(u) * interval);
+		}
+	}
+}
@@ -0,0 +1,168 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.unsafe;
+
+import javax.management.ObjectName;
+
+import jsr166e.LongAdder;
+
+/**
+ * <p>Title: AllocationTag</p>
+ * <p>Description: The memory accounting of one allocation category, such as caches, network buffers or indexes.</p>
+ * <p>A tag is a small int from 1 to {@link #MAX_TAGS}-1 passed on unmanaged allocations or set on an {@link AllocationPointer},
+ * tag zero being untagged memory. Each tag counts the tracked memory allocated under it in {@link LongAdder}s, so tagging 
+ * adds no allocation or contention to the allocation path, and untagged allocations are not counted per tag at all. 
+ * A freed allocation is uncounted from the tag it was allocated under.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.unsafe.AllocationTag</code></p>
+ */
+public class AllocationTag implements AllocationTagMBean {
+	/** The number of allocation tags, including the untagged tag zero */
+	public static final int MAX_TAGS = 64;
+	/** The tag of untagged allocations */
+	public static final int UNTAGGED = 0;
+	/** The name of the untagged memory in the state breakdown */
+	public static final String UNTAGGED_NAME = "untagged";
+	
+	/** The tag number */
+	private final int tag;
+	/** The tag name */
+	private volatile String name;
+	/** Indicates if the tag has been explicitly named */
+	private volatile boolean named = false;
+	/** The total tracked memory allocated under this tag */
+	private final LongAdder allocatedMemory = new LongAdder();
+	/** The total number of tracked allocations under this tag */
+	private final LongAdder allocationCount = new LongAdder();
+	
+	/**
+	 * Validates an allocation tag
+	 * @param tag The tag to validate
+	 * @return the validated tag
+	 */
+	public static int checkTag(final int tag) {
+		if(tag < 0 || tag >= MAX_TAGS) throw new IllegalArgumentException("Invalid allocation tag [" + tag + "]. Tags must be from 0 to " + (MAX_TAGS-1));
+		return tag;
+	}
+	
+	/**
+	 * Creates a new AllocationTag
+	 * @param tag The tag number
+	 */
+	AllocationTag(final int tag) {
+		this.tag = tag;
+		this.name = "tag" + tag;
+	}
+	
+	/**
+	 * Adds an allocated or freed delta to the tag's counters
+	 * @param size The bytes allocated, or freed if negative
+	 * @param count The number of allocations, or frees if negative
+	 */
+	final void add(final long size, final long count) {
+		allocatedMemory.add(size);
+		allocationCount.add(count);
+	}
+	
+	/**
+	 * Indicates if any memory is allocated under this tag or it has been named
+	 * @return true if the tag is in use
+	 */
+	public boolean isInUse() {
+		return allocationCount.longValue()!=0L || allocatedMemory.longValue()!=0L || named;
+	}
+	
+	/**
+	 * Sets the tag name
+	 * @param name The tag name
+	 */
+	void setName(final String name) {
+		if(name==null || name.trim().isEmpty()) throw new IllegalArgumentException("The passed tag name was null or empty");
+		this.name = name.trim();
+		named = true;
+	}
+	
+	/**
+	 * Returns the JMX ObjectName of this tag's MBean
+	 * @return the ObjectName
+	 */
+	public ObjectName getObjectName() {
+		return JMXHelper.objectName(UnsafeAdapter.UNSAFE_MEM_OBJECT_NAME + ",tag=" + ObjectName.quote(name));
+	}
+	
+	/**
+	 * Resets the counters
+	 */
+	void reset() {
+		allocatedMemory.reset();
+		allocationCount.reset();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.AllocationTagMBean#getTag()
+	 */
+	@Override
+	public int getTag() {
+		return tag;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.AllocationTagMBean#getName()
+	 */
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.AllocationTagMBean#getTotalAllocatedMemory()
+	 */
+	@Override
+	public long getTotalAllocatedMemory() {
+		return allocatedMemory.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.AllocationTagMBean#getTotalAllocationCount()
+	 */
+	@Override
+	public long getTotalAllocationCount() {
+		return allocationCount.longValue();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return String.format("AllocationTag [%s:%s, allocated: %s bytes in %s]", tag, name, getTotalAllocatedMemory(), getTotalAllocationCount());
+	}
+}
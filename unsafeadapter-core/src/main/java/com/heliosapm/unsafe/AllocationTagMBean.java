@@ -0,0 +1,61 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.unsafe;
+
+/**
+ * <p>Title: AllocationTagMBean</p>
+ * <p>Description: JMX Management interface for the memory accounting of one {@link AllocationTag}.
+ * Implemented as a simple MBean so it can be used in legacy JMX implementations
+ * that do not support MXBeans.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.unsafe.AllocationTagMBean</code></p>
+ */
+public interface AllocationTagMBean {
+	
+	/**
+	 * Returns the tag number
+	 * @return the tag number
+	 */
+	public int getTag();
+	
+	/**
+	 * Returns the tag name
+	 * @return the tag name
+	 */
+	public String getName();
+	
+	/**
+	 * Returns the total tracked memory allocated under this tag in bytes
+	 * @return the total allocated memory in bytes
+	 */
+	public long getTotalAllocatedMemory();
+	
+	/**
+	 * Returns the total number of tracked allocations under this tag
+	 * @return the total number of allocations
+	 */
+	public long getTotalAllocationCount();
+}
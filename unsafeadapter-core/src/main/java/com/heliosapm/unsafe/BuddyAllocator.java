@@ -0,0 +1,464 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.unsafe;
+
+import gnu.trove.list.array.TLongArrayList;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import sun.misc.Unsafe;
+
+import com.heliosapm.unsafe.unmanaged.MemSpinLock;
+import com.heliosapm.unsafe.unmanaged.SpinLockedTLongLongHashMap;
+
+/**
+ * <p>Title: BuddyAllocator</p>
+ * <p>Description: A binary buddy allocator for power of two sized, naturally aligned native memory blocks.
+ * Requests of up to one region are rounded up to the next power of two (never less than {@link #MIN_BLOCK_SIZE})
+ * and carved out of large, region-size aligned native regions by splitting larger free blocks in halves.
+ * A freed block is coalesced with its buddy while the buddy is free, so allocation and release are both O(log n) in
+ * the number of block orders. Every block's address is a multiple of its size, and a block can be resized in place when
+ * it shrinks, or when it grows and the buddies it needs to absorb are free.</p>
+ * <p>Free blocks are kept in intrusive doubly linked per order free lists (the links live in the first two words of
+ * the free block). The order and state of each block is kept in an on-heap byte per minimum block of each region.</p>
+ * <p>Regions are reserved from the OS in batches of {@link #REGIONS_PER_RESERVATION} and are never returned, so the
+ * allocator is a process wide singleton: a block carved from a region can always be freed back,
+ * regardless of how the {@link UnsafeAdapter} is currently configured.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.unsafe.BuddyAllocator</code></p>
+ */
+@SuppressWarnings("restriction")
+public class BuddyAllocator {
+	// =========================================================
+	//  Singleton
+	// =========================================================
+	/** The singleton instance */
+	private static volatile BuddyAllocator instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	// =========================================================
+	//  Statics
+	// =========================================================
+    /** The unsafe instance */
+	private static final Unsafe unsafe = UnsafeAdapter.theUNSAFE;
+
+	/** The system prop defining the region size in bytes. Rounded up to the next power of two, and never less than 64 KB */
+	public static final String REGION_SIZE_PROP = "unsafe.allocations.buddy.region";
+	/** The default region size in bytes */
+	public static final int DEFAULT_REGION_SIZE = 4 * 1024 * 1024;
+	/** The smallest configurable region size in bytes */
+	public static final int MIN_REGION_SIZE = 64 * 1024;
+	/** The number of regions reserved from the OS in one native allocation */
+	public static final int REGIONS_PER_RESERVATION = 4;
+
+	/** The smallest block size handed out by the buddy allocator, which is the cache-line size */
+	public static final int MIN_BLOCK_SIZE = 64;
+	/** The shift of the smallest block size */
+	private static final int MIN_BLOCK_SHIFT = 6;
+
+	/** Block state flag marking a free block */
+	private static final int FREE = 0x80;
+
+	// =========================================================
+	//  Instance
+	// =========================================================
+	/** The region size in bytes, which is also the largest block size */
+	final long regionSize;
+	/** The shift to get from an address to its region number */
+	final int regionShift;
+	/** The order of a whole region block */
+	final int maxOrder;
+	/** The index into {@link #regions} of each region handed out, keyed by the region number */
+	final SpinLockedTLongLongHashMap regionIndex = new SpinLockedTLongLongHashMap(64, 0.5f);
+	/** The regions in the order they were assigned */
+	final List<Region> regions = new ArrayList<Region>();
+	/** The heads of the per order free lists, zero for an empty list */
+	final long[] freeHeads;
+	/** The spin lock guarding all allocation state */
+	final MemSpinLock buddyLock = new MemSpinLock();
+	/** The base addresses of the raw native reservations the regions are carved from */
+	final TLongArrayList reservations = new TLongArrayList();
+	/** The aligned region addresses that have been reserved but not yet assigned */
+	final TLongArrayList freeRegions = new TLongArrayList();
+	/** The total number of bytes reserved from the OS */
+	private volatile long reservedMemory = 0L;
+	/** The total number of bytes in allocated blocks */
+	private volatile long bytesInUse = 0L;
+	/** The number of allocated blocks */
+	private volatile long blocksInUse = 0L;
+
+	/**
+	 * <p>Title: Region</p>
+	 * <p>Description: A region-size aligned native region and the state of its blocks.</p>
+	 */
+	static final class Region {
+		/** The base address of the region */
+		final long base;
+		/**
+		 * The state of the block starting at each minimum block offset: zero if no block starts there,
+		 * otherwise the block's order plus one, with the {@link BuddyAllocator#FREE} flag set if the block is free.
+		 */
+		final byte[] blocks;
+
+		/**
+		 * Creates a new Region
+		 * @param base The base address of the region
+		 * @param minBlocks The number of minimum size blocks in the region
+		 */
+		Region(final long base, final int minBlocks) {
+			this.base = base;
+			this.blocks = new byte[minBlocks];
+		}
+	}
+
+	/**
+	 * Acquires the singleton BuddyAllocator and initializes it on first access.
+	 * @return the singleton BuddyAllocator
+	 */
+	public static BuddyAllocator getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new BuddyAllocator();
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Returns the singleton BuddyAllocator if it has been created, without creating it.
+	 * @return the singleton BuddyAllocator or null if buddy allocation was never enabled
+	 */
+	static BuddyAllocator getInstanceIfCreated() {
+		return instance;
+	}
+
+	/**
+	 * Creates a new BuddyAllocator
+	 */
+	private BuddyAllocator() {
+		long size = DEFAULT_REGION_SIZE;
+		try {
+			size = Long.parseLong(System.getProperty(REGION_SIZE_PROP, "" + DEFAULT_REGION_SIZE).trim());
+		} catch (Exception ex) {
+			size = DEFAULT_REGION_SIZE;
+		}
+		regionSize = Long.highestOneBit(Math.max(size, MIN_REGION_SIZE) - 1L) << 1;
+		regionShift = Long.numberOfTrailingZeros(regionSize);
+		maxOrder = regionShift - MIN_BLOCK_SHIFT;
+		freeHeads = new long[maxOrder + 1];
+	}
+
+	/**
+	 * Returns the order of the smallest block that fits the passed size
+	 * @param size The requested size in bytes
+	 * @return the block order, where order zero is {@link #MIN_BLOCK_SIZE}
+	 */
+	static int orderFor(final long size) {
+		if(size <= MIN_BLOCK_SIZE) return 0;
+		return (64 - Long.numberOfLeadingZeros(size-1)) - MIN_BLOCK_SHIFT;
+	}
+
+	/**
+	 * Returns the size of the block the buddy allocator would hand out for the passed size
+	 * @param size The requested size in bytes
+	 * @return the block size, or -1 if the size is larger than a region
+	 */
+	public long blockSizeFor(final long size) {
+		if(size > regionSize) return -1L;
+		return ((long)MIN_BLOCK_SIZE) << orderFor(size);
+	}
+
+	/**
+	 * Allocates a naturally aligned block of the next power of two size
+	 * @param size The requested size in bytes
+	 * @return the address of the allocated block, or zero if the size is out of the buddy allocator's range
+	 */
+	public long allocate(final long size) {
+		if(size < 1 || size > regionSize) return 0L;
+		final int order = orderFor(size);
+		buddyLock.xlock();
+		try {
+			int k = order;
+			while(k <= maxOrder && freeHeads[k]==0L) k++;
+			if(k > maxOrder) {
+				addRegion();
+				k = maxOrder;
+			}
+			final long address = freeHeads[k];
+			final Region region = regionOf(address);
+			unlink(region, address, k);
+			// split down to the requested order, freeing the upper halves
+			while(k > order) {
+				k--;
+				link(region, address + (((long)MIN_BLOCK_SIZE) << k), k);
+			}
+			setState(region, address, (byte)(order + 1));
+			bytesInUse += ((long)MIN_BLOCK_SIZE) << order;
+			blocksInUse++;
+			return address;
+		} finally {
+			buddyLock.xunlock();
+		}
+	}
+
+	/**
+	 * Frees a block, coalescing it with its free buddies
+	 * @param address The address of the block to free
+	 * @return true if the address was a buddy block and was freed, false if it was not allocated by this allocator
+	 */
+	public boolean free(final long address) {
+		final long index = regionIndex.get(address >>> regionShift);
+		if(index==SpinLockedTLongLongHashMap.NULL) return false;
+		buddyLock.xlock();
+		try {
+			final Region region = regions.get((int)index);
+			int order = getState(region, address) - 1;
+			if(order < 0 || isFree(region, address)) throw new IllegalArgumentException("Address [" + address + "] is not an allocated buddy block");
+			setState(region, address, (byte)0);
+			bytesInUse -= ((long)MIN_BLOCK_SIZE) << order;
+			blocksInUse--;
+			long block = address;
+			while(order < maxOrder) {
+				final long buddy = region.base + ((block - region.base) ^ (((long)MIN_BLOCK_SIZE) << order));
+				if(getState(region, buddy)!=(FREE | (order + 1))) break;
+				unlink(region, buddy, order);
+				block = Math.min(block, buddy);
+				order++;
+			}
+			link(region, block, order);
+			return true;
+		} finally {
+			buddyLock.xunlock();
+		}
+	}
+
+	/**
+	 * Attempts to resize a block in place. Shrinking always succeeds and frees the trailing halves.
+	 * Growing succeeds if the block is the lower half at each order it needs to grow through and each upper buddy is free.
+	 * @param address The address of the block to resize
+	 * @param size The requested new size in bytes
+	 * @return true if the block was resized in place, false if the caller needs to move it
+	 */
+	public boolean resize(final long address, final long size) {
+		if(size < 1 || size > regionSize) return false;
+		final long index = regionIndex.get(address >>> regionShift);
+		if(index==SpinLockedTLongLongHashMap.NULL) return false;
+		final int newOrder = orderFor(size);
+		buddyLock.xlock();
+		try {
+			final Region region = regions.get((int)index);
+			int order = getState(region, address) - 1;
+			if(order < 0 || isFree(region, address)) throw new IllegalArgumentException("Address [" + address + "] is not an allocated buddy block");
+			if(newOrder==order) return true;
+			final long oldSize = ((long)MIN_BLOCK_SIZE) << order;
+			if(newOrder < order) {
+				while(order > newOrder) {
+					order--;
+					link(region, address + (((long)MIN_BLOCK_SIZE) << order), order);
+				}
+			} else {
+				final long offset = address - region.base;
+				for(int k = order; k < newOrder; k++) {
+					final long half = ((long)MIN_BLOCK_SIZE) << k;
+					if((offset & half)!=0L) return false;
+					if(getState(region, address + half)!=(FREE | (k + 1))) return false;
+				}
+				for(int k = order; k < newOrder; k++) {
+					unlink(region, address + (((long)MIN_BLOCK_SIZE) << k), k);
+				}
+				order = newOrder;
+			}
+			setState(region, address, (byte)(order + 1));
+			bytesInUse += (((long)MIN_BLOCK_SIZE) << order) - oldSize;
+			return true;
+		} finally {
+			buddyLock.xunlock();
+		}
+	}
+
+	/**
+	 * Returns the block size of the buddy block at the passed address
+	 * @param address The address to test
+	 * @return the block size or -1 if the address is not an allocated block of this allocator
+	 */
+	public long getBlockSize(final long address) {
+		final long index = regionIndex.get(address >>> regionShift);
+		if(index==SpinLockedTLongLongHashMap.NULL) return -1L;
+		buddyLock.xlock();
+		try {
+			final Region region = regions.get((int)index);
+			final int state = getState(region, address);
+			if(state==0 || isFree(region, address)) return -1L;
+			return ((long)MIN_BLOCK_SIZE) << (state - 1);
+		} finally {
+			buddyLock.xunlock();
+		}
+	}
+
+	/**
+	 * Returns the region a block address belongs to. Must be called with the lock held.
+	 * @param address The block address
+	 * @return the region
+	 */
+	private Region regionOf(final long address) {
+		return regions.get((int)regionIndex.get(address >>> regionShift));
+	}
+
+	/**
+	 * Returns the raw state of the block starting at the passed address
+	 * @param region The region of the block
+	 * @param address The block address
+	 * @return the order plus one, possibly with the free flag, or zero if no block starts there
+	 */
+	private static int getState(final Region region, final long address) {
+		return region.blocks[(int)((address - region.base) >>> MIN_BLOCK_SHIFT)] & 0xFF;
+	}
+
+	/**
+	 * Indicates if the block starting at the passed address is free
+	 * @param region The region of the block
+	 * @param address The block address
+	 * @return true if the block is free
+	 */
+	private static boolean isFree(final Region region, final long address) {
+		return (region.blocks[(int)((address - region.base) >>> MIN_BLOCK_SHIFT)] & FREE)!=0;
+	}
+
+	/**
+	 * Sets the state of the block starting at the passed address
+	 * @param region The region of the block
+	 * @param address The block address
+	 * @param state The new state
+	 */
+	private static void setState(final Region region, final long address, final byte state) {
+		region.blocks[(int)((address - region.base) >>> MIN_BLOCK_SHIFT)] = state;
+	}
+
+	/**
+	 * Marks a block free and pushes it onto the free list of its order. Must be called with the lock held.
+	 * @param region The region of the block
+	 * @param address The block address
+	 * @param order The block order
+	 */
+	private void link(final Region region, final long address, final int order) {
+		final long head = freeHeads[order];
+		unsafe.putAddress(address, head);
+		unsafe.putAddress(address + UnsafeAdapter.ADDRESS_SIZE, 0L);
+		if(head!=0L) unsafe.putAddress(head + UnsafeAdapter.ADDRESS_SIZE, address);
+		freeHeads[order] = address;
+		setState(region, address, (byte)(FREE | (order + 1)));
+	}
+
+	/**
+	 * Removes a free block from the free list of its order and clears its state. Must be called with the lock held.
+	 * @param region The region of the block
+	 * @param address The block address
+	 * @param order The block order
+	 */
+	private void unlink(final Region region, final long address, final int order) {
+		final long next = unsafe.getAddress(address);
+		final long prev = unsafe.getAddress(address + UnsafeAdapter.ADDRESS_SIZE);
+		if(prev==0L) {
+			freeHeads[order] = next;
+		} else {
+			unsafe.putAddress(prev, next);
+		}
+		if(next!=0L) unsafe.putAddress(next + UnsafeAdapter.ADDRESS_SIZE, prev);
+		setState(region, address, (byte)0);
+	}
+
+	/**
+	 * Assigns a new region and adds it as one free block of the maximum order, reserving more regions from the OS if none are free.
+	 * Must be called with the lock held.
+	 */
+	private void addRegion() {
+		if(freeRegions.isEmpty()) {
+			final long reservationSize = regionSize * (REGIONS_PER_RESERVATION + 1);
+			final long base = unsafe.allocateMemory(reservationSize);
+			final long end = base + reservationSize;
+			reservations.add(base);
+			reservedMemory += reservationSize;
+			for(long r = (base + regionSize - 1) & -regionSize; r + regionSize <= end; r += regionSize) {
+				freeRegions.add(r);
+			}
+		}
+		final long base = freeRegions.removeAt(freeRegions.size()-1);
+		final Region region = new Region(base, (int)(regionSize >>> MIN_BLOCK_SHIFT));
+		regionIndex.put(base >>> regionShift, regions.size());
+		regions.add(region);
+		link(region, base, maxOrder);
+	}
+
+	/**
+	 * Returns the total number of bytes reserved from the OS for regions
+	 * @return the total number of reserved bytes
+	 */
+	public long getReservedMemory() {
+		return reservedMemory;
+	}
+
+	/**
+	 * Returns the total number of bytes in allocated blocks
+	 * @return the number of bytes in use
+	 */
+	public long getBytesInUse() {
+		return bytesInUse;
+	}
+
+	/**
+	 * Returns the number of allocated blocks
+	 * @return the number of blocks in use
+	 */
+	public long getBlocksInUse() {
+		return blocksInUse;
+	}
+
+	/**
+	 * Returns the number of regions assigned
+	 * @return the number of regions
+	 */
+	public int getRegionCount() {
+		buddyLock.xlock();
+		try {
+			return regions.size();
+		} finally {
+			buddyLock.xunlock();
+		}
+	}
+
+	/**
+	 * Returns the region size in bytes, which is also the largest block size
+	 * @return the region size
+	 */
+	public long getRegionSize() {
+		return regionSize;
+	}
+
+}
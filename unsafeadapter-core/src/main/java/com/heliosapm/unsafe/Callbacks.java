@@ -110,5 +110,24 @@ public class Callbacks {
 		     */
 		    boolean booleanCall();
 	}
+	
+	/**
+	 * <p>Title: SlotVisitor</p>
+	 * <p>Description: Visits the occupied slots of an {@link AllocationPointer} without materializing them into arrays</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.unsafe.Callbacks.SlotVisitor</code></p>
+	 */
+	public interface SlotVisitor {
+		/**
+		 * Visits an occupied slot
+		 * @param index The slot index
+		 * @param address The address in the slot
+		 * @param size The allocation size in the slot, or zero if mem tracking is not enabled
+		 * @param alignmentOverhead The alignment overhead in the slot, or zero if alignment tracking is not enabled
+		 * @return true to continue visiting, false to stop
+		 */
+		boolean visitSlot(int index, long address, long size, long alignmentOverhead);
+	}
 
 }
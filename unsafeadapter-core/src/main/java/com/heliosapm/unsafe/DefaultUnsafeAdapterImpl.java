@@ -35,11 +35,16 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
+import javax.management.openmbean.CompositeData;
+
+import jsr166e.CompletableFuture;
+
 import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
 
 import sun.misc.Unsafe;
 
 import com.heliosapm.unsafe.ReflectionHelper.ReferenceQueueLengthReader;
+import com.heliosapm.unsafe.ThreadAllocationTracker.ThreadStats;
 
 
 
@@ -86,14 +91,16 @@ public class DefaultUnsafeAdapterImpl implements DefaultUnsafeAdapterImplMBean {
 	//  Instance
 	// =========================================================	
 	
-	/** The configured native memory tracking enablement  */
-	public final boolean trackMem;
-	/** The configured native memory alignment enablement  */
-	public final boolean alignMem;
+	/** The address alignment boundary of aligned allocations in bytes */
+	public final long alignBoundary;
 	/** The unsafe memory management MBean */
 	final MemoryMBean unsafeMemoryStats = null;
 	/** The allocation ref manager */
 	final AllocationReferenceManager refMgr; 
+	/** The native allocator raw allocations are routed through */
+	final NativeAllocator nativeAllocator;
+	/** The thread local allocation buffers for tiny allocations, or null if disabled */
+	final ThreadLocalAllocator tlab;
 	
 	
 	 
@@ -125,17 +132,81 @@ public class DefaultUnsafeAdapterImpl implements DefaultUnsafeAdapterImplMBean {
 		// =========================================================
 		// Read the system props to get the configuration
 		// =========================================================        
-    	trackMem = System.getProperties().containsKey(UnsafeAdapter.TRACK_ALLOCS_PROP); // || isDebugAgentLoaded();   
-    	if(trackMem) {
-    		alignMem = System.getProperties().containsKey(UnsafeAdapter.ALIGN_ALLOCS_PROP);
-    	} else {
-    		alignMem = false;
+    	final boolean trackMem = System.getProperties().containsKey(UnsafeAdapter.TRACK_ALLOCS_PROP); // || isDebugAgentLoaded();   
+    	final boolean alignMem = trackMem && System.getProperties().containsKey(UnsafeAdapter.ALIGN_ALLOCS_PROP);
+    	alignBoundary = readAlignBoundary();
+    	nativeAllocator = new NativeAllocator(System.getProperties().containsKey(UnsafeAdapter.SLAB_ALLOCS_PROP), System.getProperties().containsKey(UnsafeAdapter.BUDDY_ALLOCS_PROP));
+    	refMgr = new AllocationReferenceManager(trackMem, alignMem, readMemoryBudget(trackMem), Long.getLong(UnsafeAdapter.BUDGET_TIMEOUT_PROP, UnsafeAdapter.DEFAULT_BUDGET_TIMEOUT), Integer.getInteger(UnsafeAdapter.CLEANER_THREADS_PROP, UnsafeAdapter.DEFAULT_CLEANER_THREADS), Integer.getInteger(UnsafeAdapter.CLEANER_BATCH_PROP, UnsafeAdapter.DEFAULT_CLEANER_BATCH), readSampleInterval(trackMem), System.getProperties().containsKey(UnsafeAdapter.THREAD_ALLOCS_PROP), System.getProperties().containsKey(UnsafeAdapter.HISTOGRAMS_PROP));
+    	tlab = System.getProperties().containsKey(UnsafeAdapter.TLAB_ALLOCS_PROP) ? new ThreadLocalAllocator(refMgr) : null;
+    	if(System.getProperties().containsKey(UnsafeAdapter.ASYNC_ONCLEAR_PROP)) {
+    		refMgr.enableDefaultOnClearExecutor();
     	}
-    	refMgr = new AllocationReferenceManager(trackMem, alignMem);
     	registerJmx();
 	}
 	
 	
+	/**
+	 * Reads the configured address alignment boundary of aligned allocations
+	 * @return the alignment boundary in bytes
+	 */
+	private long readAlignBoundary() {
+		final String value = System.getProperty(UnsafeAdapter.ALIGN_BOUNDARY_PROP, "" + UnsafeAdapter.DEFAULT_ALIGN_BOUNDARY).trim();
+		if("page".equalsIgnoreCase(value)) return UNSAFE.pageSize();
+		try {
+			return NativeAllocator.checkAlignment(Long.parseLong(value));
+		} catch (Exception ex) {
+			loge("Invalid alignment boundary [%s]. Using default [%s]", value, UnsafeAdapter.DEFAULT_ALIGN_BOUNDARY);
+			return UnsafeAdapter.DEFAULT_ALIGN_BOUNDARY;
+		}
+	}
+	
+	/**
+	 * Reads the configured native memory budget. The budget is a size in bytes, optionally suffixed with <b>k</b>, <b>m</b> or <b>g</b>,
+	 * or <b>direct</b> to use the JVM's maximum direct memory size.
+	 * @param trackMem true if memory allocation tracking is enabled at startup
+	 * @return the memory budget in bytes, or zero for no budget
+	 */
+	private long readMemoryBudget(final boolean trackMem) {
+		final String value = System.getProperty(UnsafeAdapter.BUDGET_PROP, "0").trim().toLowerCase();
+		if("direct".equals(value)) return UnsafeAdapter.MAX_DIRECT_MEMORY_SIZE;
+		try {
+			final long budget = parseBytes(value);
+			if(budget > 0 && !trackMem) loge("Memory budget [%s] ignored since allocation tracking is disabled", value);
+			return budget < 0 ? 0L : budget;
+		} catch (Exception ex) {
+			loge("Invalid memory budget [%s]. No budget will be enforced", value);
+			return 0L;
+		}
+	}
+	
+	/**
+	 * Reads the configured mean number of bytes allocated between sampled allocations, optionally suffixed with <b>k</b>, <b>m</b> or <b>g</b>
+	 * @param trackMem true if memory allocation tracking is enabled at startup
+	 * @return the sample interval in bytes, or zero for no sampling
+	 */
+	private long readSampleInterval(final boolean trackMem) {
+		final String value = System.getProperty(UnsafeAdapter.SAMPLE_ALLOCS_PROP, "0").trim().toLowerCase();
+		try {
+			final long interval = parseBytes(value);
+			if(interval > 0 && trackMem) loge("Allocation sampling [%s] ignored since allocation tracking is enabled", value);
+			return interval < 0 ? 0L : interval;
+		} catch (Exception ex) {
+			loge("Invalid sample interval [%s]. Allocations will not be sampled", value);
+			return 0L;
+		}
+	}
+	
+	/**
+	 * Parses a size in bytes, optionally suffixed with <b>k</b>, <b>m</b> or <b>g</b>
+	 * @param value The lower case value to parse
+	 * @return the size in bytes
+	 */
+	private static long parseBytes(final String value) {
+		final char unit = value.isEmpty() ? ' ' : value.charAt(value.length()-1);
+		final long multiplier = unit=='k' ? 1024L : unit=='m' ? 1024L * 1024L : unit=='g' ? 1024L * 1024L * 1024L : 1L;
+		return Long.parseLong(multiplier==1L ? value : value.substring(0, value.length()-1).trim()) * multiplier;
+	}
+	
 	/**
 	 * <b>TEST HOOK ONLY !</b>
 	 * Don't use this unless you know what you're doing.
@@ -146,8 +217,12 @@ public class DefaultUnsafeAdapterImpl implements DefaultUnsafeAdapterImplMBean {
 		try {
 			synchronized(lock) {
 				JMXHelper.unregisterMBean(UnsafeAdapter.UNSAFE_MEM_OBJECT_NAME);
+				for(int i = 1; i < refMgr.tags.length; i++) {
+					JMXHelper.unregisterMBean(refMgr.tags[i].getObjectName());
+				}
 				Field instanceField = ReflectionHelper.setFieldEditable(getClass(), "instance");
 				instanceField.set(null, null);
+				refMgr.shutdown();
 				//if(cleanerThread!=null) cleanerThread.interrupt();
 				// FIXME: delegate to Alloc Mgr
 			}
@@ -233,36 +308,211 @@ public class DefaultUnsafeAdapterImpl implements DefaultUnsafeAdapterImplMBean {
 		return _allocateMemory(size, 0L, memoryManager);
 	}	
 	
+	/**
+	 * Allocates a new block of native memory, of the given size in bytes, accounted under the passed allocation tag.
+	 * Dispose of this memory by calling #freeMemory , or resize it with #reallocateMemory, which keeps the tag.
+	 * @param size The size of the block of memory to allocate in bytes
+	 * @param tag The allocation tag (see {@link AllocationTag})
+	 * @return The address of the allocated memory block
+	 * @see sun.misc.Unsafe#allocateMemory(long)
+	 */
+	public long allocateMemory(long size, int tag) {
+		AllocationTag.checkTag(tag);
+		refMgr.reserveMemory(size);
+		return allocateReserved(size, 0L, null, tag);
+	}
+	
 	
 	/**
-	 * Allocates a new block of cache-line aligned native memory, of the given size in bytes rounded up to the nearest power of 2. 
+	 * Allocates a new block of native memory whose address is aligned to the configured alignment boundary
+	 * (see {@link UnsafeAdapter#ALIGN_BOUNDARY_PROP}), by default the cache-line size.
 	 * The contents of the memory are uninitialized; they will generally be garbage.
-	 * The resulting native pointer will never be zero, and will be aligned for all value types.  
-	 * Dispose of this memory by calling #freeMemory , or resize it with #reallocateMemory.
+	 * The resulting native pointer will never be zero.  
+	 * Dispose of this memory by calling #freeMemory , or resize it with #reallocateAlignedMemory.
 	 * @param size The size of the block of memory to allocate in bytes
 	 * @return The address of the allocated memory block
 	 * @see sun.misc.Unsafe#allocateMemory(long)
 	 */
 	public long allocateAlignedMemory(long size) {
-		return allocateAlignedMemory(size, null);
+		return allocateAlignedMemory(size, alignBoundary, null);
 	}
 	
 	/**
-	 * Allocates a new block of cache-line aligned native memory, of the given size in bytes rounded up to the nearest power of 2. 
+	 * Allocates a new block of native memory whose address is aligned to the configured alignment boundary
+	 * (see {@link UnsafeAdapter#ALIGN_BOUNDARY_PROP}), by default the cache-line size.
 	 * The contents of the memory are uninitialized; they will generally be garbage.
-	 * The resulting native pointer will never be zero, and will be aligned for all value types.  
-	 * Dispose of this memory by calling #freeMemory , or resize it with #reallocateMemory.
+	 * The resulting native pointer will never be zero.  
+	 * Dispose of this memory by calling #freeMemory , or resize it with #reallocateAlignedMemory.
 	 * @param size The size of the block of memory to allocate in bytes
 	 * @param memoryManager The optional memory block address manager being used by the caller
 	 * @return The address of the allocated memory block
 	 * @see sun.misc.Unsafe#allocateMemory(long)
 	 */
 	public long allocateAlignedMemory(long size, Object memoryManager) {
-		if(alignMem) {
-			long alignedSize = UnsafeAdapter.ADDRESS_SIZE==4 ? UnsafeAdapter.findNextPositivePowerOfTwo((int)size) : UnsafeAdapter.findNextPositivePowerOfTwo((int)size);
-			return _allocateMemory(alignedSize, alignedSize-size, memoryManager);
+		return allocateAlignedMemory(size, alignBoundary, memoryManager);
+	}
+	
+	/**
+	 * Allocates a new block of native memory whose address is aligned to the passed boundary.
+	 * The block is over-allocated by the boundary less the minimum native alignment, or when buddy allocation is enabled,
+	 * rounded up to the next power of two buddy block, and the excess is reported as the alignment overhead.
+	 * The contents of the memory are uninitialized; they will generally be garbage.
+	 * The resulting native pointer will never be zero.  
+	 * Dispose of this memory by calling #freeMemory , or resize it with #reallocateAlignedMemory.
+	 * @param size The size of the block of memory to allocate in bytes
+	 * @param alignment The alignment boundary in bytes, e.g. 64, 128 or {@link UnsafeAdapter#pageSize()}. Must be a power of two.
+	 * @param memoryManager The optional memory block address manager being used by the caller
+	 * @return The aligned address of the allocated memory block
+	 * @see sun.misc.Unsafe#allocateMemory(long)
+	 */
+	public long allocateAlignedMemory(final long size, final long alignment, final Object memoryManager) {
+		refMgr.reserveMemory(size);
+		long address = 0L;
+		try {
+			address = nativeAllocator.allocateAligned(size, alignment);
+			refMgr.allocateMemory(address, size, nativeAllocator.getAlignmentOverhead(size, alignment), memoryManager);
+			return address;
+		} catch (Throwable t) {
+			if(address!=0L) NativeAllocator.free(address);
+			refMgr.unreserveMemory(size);
+			UNSAFE.throwException(t);
+		}
+		throw new RuntimeException();
+	}
+	
+	/**
+	 * Allocates a batch of memory blocks. The memory manager is dispatched on once, an {@link AllocationPointer}
+	 * is extended at most once, and the memory budget and allocation counters are updated once for the whole batch.
+	 * If any allocation fails, the blocks already allocated are freed.
+	 * @param sizes The sizes of the blocks to allocate in bytes
+	 * @param memoryManager The optional memory block address manager being used by the caller
+	 * @return the addresses of the allocated blocks, in the order of the passed sizes
+	 */
+	public long[] allocateMemory(final long[] sizes, final Object memoryManager) {
+		final int count = sizes.length;
+		final long[] addresses = new long[count];
+		long totalSize = 0L;
+		for(int i = 0; i < count; i++) {
+			totalSize += sizes[i];
+		}
+		refMgr.reserveMemory(totalSize);
+		int allocated = 0;
+		try {
+			final ThreadLocalAllocator.Buffer buffer = tlab!=null ? tlab.buffer() : null;
+			for(; allocated < count; allocated++) {
+				final long size = sizes[allocated];
+				addresses[allocated] = (buffer!=null && ThreadLocalAllocator.accepts(size)) ? buffer.allocate(size) : nativeAllocator.allocate(size);
+			}
+			refMgr.allocateMemory(addresses, sizes, totalSize, memoryManager);
+			return addresses;
+		} catch (Throwable t) {
+			for(int i = 0; i < allocated; i++) {
+				NativeAllocator.free(addresses[i]);
+			}
+			refMgr.unreserveMemory(totalSize);
+			UNSAFE.throwException(t);
+		}
+		throw new RuntimeException();
+	}
+	
+	/**
+	 * Asynchronously allocates a chunk of memory. The allocation is made immediately if it fits in the configured
+	 * memory budget (see {@link UnsafeAdapter#BUDGET_PROP}) and no other asynchronous allocations are waiting,
+	 * otherwise it is queued behind them and made from the budget's {@link jsr166e.ForkJoinPool} once the cleaner
+	 * or a free releases enough memory. The calling thread never blocks.
+	 * @param size The number of bytes to allocate
+	 * @param memoryManager The optional memory block address manager being used by the caller
+	 * @return a future completed with the address of the allocated memory, or completed exceptionally
+	 * with an {@link OutOfMemoryError} if the memory could not be reserved within the budget timeout
+	 */
+	public CompletableFuture<Long> allocateAsync(final long size, final Object memoryManager) {
+		final CompletableFuture<Long> future = new CompletableFuture<Long>();
+		final MemoryBudget budget = refMgr.getBudget();
+		if(budget==null || budget.tryReserveInTurn(size)) {
+			try {
+				future.complete(allocateReserved(size, 0L, memoryManager));
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+			}
+		} else {
+			budget.reserveAsync(new AsyncAllocation(size, memoryManager, future));
+		}
+		return future;
+	}
+	
+	/**
+	 * <p>Title: AsyncAllocation</p>
+	 * <p>Description: An allocation waiting on the memory budget for {@link DefaultUnsafeAdapterImpl#allocateAsync(long, Object)}</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.unsafe.DefaultUnsafeAdapterImpl.AsyncAllocation</code></p>
+	 */
+	private class AsyncAllocation extends MemoryBudget.AsyncReservation {
+		/** The optional memory manager */
+		private final Object memoryManager;
+		/** The future to complete with the allocated address */
+		private final CompletableFuture<Long> future;
+		
+		/**
+		 * Creates a new AsyncAllocation
+		 * @param size The number of bytes to allocate
+		 * @param memoryManager The optional memory manager
+		 * @param future The future to complete with the allocated address
+		 */
+		AsyncAllocation(final long size, final Object memoryManager, final CompletableFuture<Long> future) {
+			super(size);
+			this.memoryManager = memoryManager;
+			this.future = future;
+		}
+
+		@Override
+		protected void reserved() {
+			if(future.isDone()) {
+				refMgr.unreserveMemory(size);
+				return;
+			}
+			final long address;
+			try {
+				address = allocateReserved(size, 0L, memoryManager);
+			} catch (Throwable t) {
+				future.completeExceptionally(t);
+				return;
+			}
+			// cancelled while allocating
+			if(!future.complete(address)) freeMemory(address, memoryManager);
+		}
+
+		@Override
+		protected void expired(final OutOfMemoryError error) {
+			future.completeExceptionally(error);
+		}
+
+		@Override
+		protected boolean isAbandoned() {
+			return future.isDone();
 		}
-		return _allocateMemory(size, 0L, memoryManager);		
+	}
+	
+	/**
+	 * Allocates a chunk of memory and returns its address, or returns zero without waiting if
+	 * the allocation does not fit in the configured memory budget (see {@link UnsafeAdapter#BUDGET_PROP}).
+	 * @param size The number of bytes to allocate
+	 * @return The address of the allocated memory, or zero if the budget is exhausted
+	 */
+	public long tryAllocateMemory(final long size) {
+		return tryAllocateMemory(size, null);
+	}
+	
+	/**
+	 * Allocates a chunk of memory and returns its address, or returns zero without waiting if
+	 * the allocation does not fit in the configured memory budget (see {@link UnsafeAdapter#BUDGET_PROP}).
+	 * @param size The number of bytes to allocate
+	 * @param memoryManager The optional memory block address manager being used by the caller
+	 * @return The address of the allocated memory, or zero if the budget is exhausted
+	 */
+	public long tryAllocateMemory(final long size, final Object memoryManager) {
+		if(!refMgr.tryReserveMemory(size)) return 0L;
+		return allocateReserved(size, 0L, memoryManager);
 	}
 	
     
@@ -277,16 +527,44 @@ public class DefaultUnsafeAdapterImpl implements DefaultUnsafeAdapterImplMBean {
 	 * @see sun.misc.Unsafe#allocateMemory(long)
 	 */			
 	long _allocateMemory(final long size, final long alignmentOverhead, Object memoryManager) {
-		final long address = UNSAFE.allocateMemory(size);
+		refMgr.reserveMemory(size);
+		return allocateReserved(size, alignmentOverhead, memoryManager);
+	}
+	
+	/**
+	 * Allocates a chunk of memory that has already been reserved in the memory budget and returns its address.
+	 * The reservation is released if the allocation fails.
+	 * @param size The number of bytes to allocate
+	 * @param alignmentOverhead The number of bytes allocated in excess of requested for alignment
+	 * @param memoryManager The optional memory block address manager being used by the caller
+	 * @return The address of the allocated memory
+	 */
+	private long allocateReserved(final long size, final long alignmentOverhead, Object memoryManager) {
+		return allocateReserved(size, alignmentOverhead, memoryManager, AllocationTag.UNTAGGED);
+	}
+	
+	/**
+	 * Allocates a chunk of memory that has already been reserved in the memory budget and returns its address.
+	 * The reservation is released if the allocation fails.
+	 * @param size The number of bytes to allocate
+	 * @param alignmentOverhead The number of bytes allocated in excess of requested for alignment
+	 * @param memoryManager The optional memory block address manager being used by the caller
+	 * @param tag The allocation tag of an unmanaged allocation
+	 * @return The address of the allocated memory
+	 */
+	private long allocateReserved(final long size, final long alignmentOverhead, Object memoryManager, final int tag) {
+		final ThreadLocalAllocator.Buffer buffer = (tlab!=null && ThreadLocalAllocator.accepts(size)) ? tlab.buffer() : null;
+		long address = 0L;
 		try {
-			refMgr.allocateMemory(address, size, alignmentOverhead, memoryManager);
+			address = buffer!=null ? buffer.allocate(size) : nativeAllocator.allocate(size);
+			refMgr.allocateMemory(address, size, alignmentOverhead, memoryManager, buffer, tag);
 			return address;
-		} catch (Exception ex) {
-			UNSAFE.freeMemory(address);
-			UNSAFE.throwException(ex);
+		} catch (Throwable t) {
+			if(address!=0L) NativeAllocator.free(address);
+			refMgr.unreserveMemory(size);
+			UNSAFE.throwException(t);
 		}
 		throw new RuntimeException();
-		
 	}
 	
 	
@@ -320,7 +598,7 @@ public class DefaultUnsafeAdapterImpl implements DefaultUnsafeAdapterImplMBean {
 	}	
 	
 	/**
-	 * Resizes a new block of aligned (if enabled) native memory, to the given size in bytes.
+	 * Resizes a new block of aligned native memory, to the given size in bytes.
 	 * <b>NOTE:</b>If the caller implements {@link Deallocatable} and expects the allocations
 	 * to be automatically cleared, the returned value should overwrite the index of 
 	 * the {@link Deallocatable}'s array where the previous address was.   
@@ -330,15 +608,11 @@ public class DefaultUnsafeAdapterImpl implements DefaultUnsafeAdapterImplMBean {
 	 * @see sun.misc.Unsafe#reallocateMemory(long, long)
 	 */
 	public long reallocateAlignedMemory(long address, long size) {
-		if(alignMem) {
-			long actual = UnsafeAdapter.findNextPositivePowerOfTwo(size);
-			return _reallocateMemory(address, actual, actual-size, null);
-		} 
-		return _reallocateMemory(address, size, 0, null);
+		return reallocateAlignedMemory(address, size, alignBoundary, null);
 	}
 	
 	/**
-	 * Resizes a new block of aligned (if enabled) native memory, to the given size in bytes.
+	 * Resizes a new block of aligned native memory, to the given size in bytes.
 	 * @param address The address of the existing allocation
 	 * @param size The size of the new allocation in bytes
 	 * @param memoryManager The object to handle memory management of the allocated memory block
@@ -346,13 +620,33 @@ public class DefaultUnsafeAdapterImpl implements DefaultUnsafeAdapterImplMBean {
 	 * @see sun.misc.Unsafe#reallocateMemory(long, long)
 	 */
 	public long reallocateAlignedMemory(long address, long size, Object memoryManager) {
-		if(alignMem) {
-			long actual = UnsafeAdapter.findNextPositivePowerOfTwo(size);
-			return _reallocateMemory(address, actual, actual-size, null);
-		} 
-		return _reallocateMemory(address, size, 0, memoryManager);
+		return reallocateAlignedMemory(address, size, alignBoundary, memoryManager);
 	}	
 	
+	/**
+	 * Resizes a block of native memory, to the given size in bytes, returning an address aligned to the passed boundary.
+	 * The existing block does not need to have been allocated aligned.
+	 * @param address The address of the existing allocation
+	 * @param size The size of the new allocation in bytes
+	 * @param alignment The alignment boundary in bytes, e.g. 64, 128 or {@link UnsafeAdapter#pageSize()}. Must be a power of two.
+	 * @param memoryManager The object to handle memory management of the allocated memory block
+	 * @return The aligned address of the new allocation
+	 * @see sun.misc.Unsafe#reallocateMemory(long, long)
+	 */
+	public long reallocateAlignedMemory(final long address, final long size, final long alignment, final Object memoryManager) {
+		refMgr.reserveMemory(size);
+		final long newAddress;
+		try {
+			newAddress = nativeAllocator.reallocateAligned(address, size, alignment);
+		} catch (Throwable t) {
+			refMgr.unreserveMemory(size);
+			UNSAFE.throwException(t);
+			throw new RuntimeException();
+		}
+		refMgr.reallocateMemory(address, newAddress, size, nativeAllocator.getAlignmentOverhead(size, alignment), memoryManager);
+		return newAddress;
+	}
+	
 	/**
 	 * Resizes a new block of native memory, to the given size in bytes.
 	 * <b>NOTE:</b>If the caller implements {@link Deallocatable} and expects the allocations
@@ -366,7 +660,15 @@ public class DefaultUnsafeAdapterImpl implements DefaultUnsafeAdapterImplMBean {
 	 * @see sun.misc.Unsafe#reallocateMemory(long, long)
 	 */
 	long _reallocateMemory(long address, long size, long alignmentOverhead, Object memoryManager) {
-		long newAddress = UNSAFE.reallocateMemory(address, size);
+		refMgr.reserveMemory(size);
+		final long newAddress;
+		try {
+			newAddress = nativeAllocator.reallocate(address, size);
+		} catch (Throwable t) {
+			refMgr.unreserveMemory(size);
+			UNSAFE.throwException(t);
+			throw new RuntimeException();
+		}
 		refMgr.reallocateMemory(address, newAddress, size, alignmentOverhead, memoryManager);
 		return newAddress;
 	}
@@ -401,10 +703,22 @@ public class DefaultUnsafeAdapterImpl implements DefaultUnsafeAdapterImplMBean {
 	 */
 	void freeMemory(final long address, final Object memoryManager) {
 		if(address<1) return;
-		UNSAFE.freeMemory(address);
+		NativeAllocator.free(address);
 		refMgr.freeMemory(address, memoryManager);
 	}
 	
+	/**
+	 * Frees a batch of memory blocks, dispatching on the memory manager once and updating the allocation counters once
+	 * @param addresses The addresses of the memory blocks to free. Addresses less than one are ignored.
+	 * @param memoryManager The optional memory block address manager the blocks were allocated with
+	 */
+	void freeMemory(final long[] addresses, final Object memoryManager) {
+		for(final long address: addresses) {
+			if(address>0) NativeAllocator.free(address);
+		}
+		refMgr.freeMemory(addresses, memoryManager);
+	}
+	
 	/**
 	 * Frees the memory allocated at the passed address
 	 * @param address The address of the memory to free
@@ -414,6 +728,13 @@ public class DefaultUnsafeAdapterImpl implements DefaultUnsafeAdapterImplMBean {
 		freeMemory(address, null);
 	}
 	
+	/**
+	 * Applies the calling thread's deferred thread local allocation buffer accounting to the memory totals
+	 */
+	void flushAllocationBuffer() {
+		if(tlab!=null) tlab.buffer().flush();
+	}
+	
 	//===========================================================================================================
 	//	Copy Memory Ops
 	//===========================================================================================================	
@@ -1036,7 +1357,16 @@ public class DefaultUnsafeAdapterImpl implements DefaultUnsafeAdapterImplMBean {
 	 */
 	@Override
 	public boolean isTrackingEnabled() {
-		return this.trackMem;
+		return refMgr.isMemTracking();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#setTrackingEnabled(boolean)
+	 */
+	@Override
+	public void setTrackingEnabled(final boolean enabled) {
+		refMgr.setMemTracking(enabled);
 	}
 	
 	/**
@@ -1072,10 +1402,145 @@ public class DefaultUnsafeAdapterImpl implements DefaultUnsafeAdapterImplMBean {
 	 */
 	@Override
 	public boolean isAlignmentEnabled() {
-		return this.alignMem;
+		return refMgr.isMemAlignment();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#setAlignmentEnabled(boolean)
+	 */
+	@Override
+	public void setAlignmentEnabled(final boolean enabled) {
+		refMgr.setMemAlignment(enabled);
 	}
 
 
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#isSlabAllocationEnabled()
+	 */
+	@Override
+	public boolean isSlabAllocationEnabled() {
+		return nativeAllocator.isSlabAllocation();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#isBuddyAllocationEnabled()
+	 */
+	@Override
+	public boolean isBuddyAllocationEnabled() {
+		return nativeAllocator.isBuddyAllocation();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getBuddyReservedMemory()
+	 */
+	@Override
+	public long getBuddyReservedMemory() {
+		final BuddyAllocator ba = BuddyAllocator.getInstanceIfCreated();
+		return ba==null ? 0L : ba.getReservedMemory();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getBuddyBytesInUse()
+	 */
+	@Override
+	public long getBuddyBytesInUse() {
+		final BuddyAllocator ba = BuddyAllocator.getInstanceIfCreated();
+		return ba==null ? 0L : ba.getBytesInUse();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getMemoryBudget()
+	 */
+	@Override
+	public long getMemoryBudget() {
+		final MemoryBudget budget = refMgr.getBudget();
+		return budget==null ? -1L : budget.getLimit();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getMemoryBudgetReserved()
+	 */
+	@Override
+	public long getMemoryBudgetReserved() {
+		final MemoryBudget budget = refMgr.getBudget();
+		return budget==null ? -1L : budget.getReserved();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getMemoryBudgetWaitCount()
+	 */
+	@Override
+	public long getMemoryBudgetWaitCount() {
+		final MemoryBudget budget = refMgr.getBudget();
+		return budget==null ? -1L : budget.getWaitCount();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getMemoryBudgetFailureCount()
+	 */
+	@Override
+	public long getMemoryBudgetFailureCount() {
+		final MemoryBudget budget = refMgr.getBudget();
+		return budget==null ? -1L : budget.getFailureCount();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getMemoryBudgetAsyncWaiters()
+	 */
+	@Override
+	public int getMemoryBudgetAsyncWaiters() {
+		final MemoryBudget budget = refMgr.getBudget();
+		return budget==null ? -1 : budget.getAsyncWaiterCount();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#isThreadLocalAllocationEnabled()
+	 */
+	@Override
+	public boolean isThreadLocalAllocationEnabled() {
+		return tlab!=null;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getThreadLocalChunkCount()
+	 */
+	@Override
+	public int getThreadLocalChunkCount() {
+		return ThreadLocalAllocator.getChunkCount();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getSlabReservedMemory()
+	 */
+	@Override
+	public long getSlabReservedMemory() {
+		final SlabAllocator sa = SlabAllocator.getInstanceIfCreated();
+		return sa==null ? 0L : sa.getReservedMemory();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getSlabBlocksInUse()
+	 */
+	@Override
+	public long getSlabBlocksInUse() {
+		final SlabAllocator sa = SlabAllocator.getInstanceIfCreated();
+		return sa==null ? 0L : sa.getBlocksInUse();
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * @see com.heliosapm.unsafe.MemoryMBean#getAddressSize()
@@ -1110,9 +1575,131 @@ public class DefaultUnsafeAdapterImpl implements DefaultUnsafeAdapterImplMBean {
 		map.put(PENDING_COUNT, (long)getPendingRefs());
 		map.put(CLEARED_COUNT, getTotalClearedAllocations());
 		map.put(RAW_COUNT, (long)getTotalRawAllocationCount());
-		
+		if(refMgr.isMemTracking()) {
+			long taggedMem = 0L, taggedCount = 0L;
+			for(int i = 1; i < refMgr.tags.length; i++) {
+				final AllocationTag tag = refMgr.tags[i];
+				if(!tag.isInUse()) continue;
+				final long mem = tag.getTotalAllocatedMemory(), count = tag.getTotalAllocationCount();
+				map.put(ALLOC_MEM + "." + tag.getName(), mem);
+				map.put(ALLOC_COUNT + "." + tag.getName(), count);
+				taggedMem += mem;
+				taggedCount += count;
+			}
+			if(taggedCount!=0L || taggedMem!=0L) {
+				map.put(ALLOC_MEM + "." + AllocationTag.UNTAGGED_NAME, getTotalAllocatedMemory() - taggedMem);
+				map.put(ALLOC_COUNT + "." + AllocationTag.UNTAGGED_NAME, getTotalAllocationCount() - taggedCount);
+			}
+		}
+		return map;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getTaggedMemory()
+	 */
+	@Override
+	public Map<String, Long> getTaggedMemory() {
+		return getTagAccounting(true);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getTaggedAllocationCount()
+	 */
+	@Override
+	public Map<String, Long> getTaggedAllocationCount() {
+		return getTagAccounting(false);
+	}
+	
+	/**
+	 * Returns the allocated memory or allocation count of each tag in use
+	 * @param memory true for the allocated memory, false for the allocation count
+	 * @return a map of the tag accounting keyed by tag name
+	 */
+	private Map<String, Long> getTagAccounting(final boolean memory) {
+		final Map<String, Long> map = new HashMap<String, Long>();
+		for(int i = 1; i < refMgr.tags.length; i++) {
+			final AllocationTag tag = refMgr.tags[i];
+			if(tag.isInUse()) map.put(tag.getName(), memory ? tag.getTotalAllocatedMemory() : tag.getTotalAllocationCount());
+		}
 		return map;
 	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#isHistogramsEnabled()
+	 */
+	@Override
+	public boolean isHistogramsEnabled() {
+		return refMgr.histograms!=null;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getAllocationSizeHistogram()
+	 */
+	@Override
+	public CompositeData getAllocationSizeHistogram() {
+		final AllocationHistograms histograms = refMgr.histograms;
+		return histograms==null ? null : histograms.getSizes().toCompositeData();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getReallocationGrowthHistogram()
+	 */
+	@Override
+	public CompositeData getReallocationGrowthHistogram() {
+		final AllocationHistograms histograms = refMgr.histograms;
+		return histograms==null ? null : histograms.getGrowth().toCompositeData();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getAllocationLifetimeHistogram()
+	 */
+	@Override
+	public CompositeData getAllocationLifetimeHistogram() {
+		final AllocationHistograms histograms = refMgr.histograms;
+		return histograms==null ? null : histograms.getLifetimes().toCompositeData();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#resetHistograms()
+	 */
+	@Override
+	public void resetHistograms() {
+		final AllocationHistograms histograms = refMgr.histograms;
+		if(histograms!=null) histograms.reset();
+	}
+	
+	/**
+	 * Names an allocation tag and registers its JMX MBean
+	 * @param tag The allocation tag, from 1 to {@link AllocationTag#MAX_TAGS}-1
+	 * @param name The tag name
+	 * @return the named allocation tag
+	 */
+	public AllocationTag registerAllocationTag(final int tag, final String name) {
+		final AllocationTag allocationTag = getAllocationTag(tag);
+		synchronized(allocationTag) {
+			JMXHelper.unregisterMBean(allocationTag.getObjectName());
+			allocationTag.setName(name);
+			JMXHelper.forceRegisterMBean(allocationTag, allocationTag.getObjectName());
+		}
+		return allocationTag;
+	}
+	
+	/**
+	 * Returns the accounting of an allocation tag
+	 * @param tag The allocation tag, from 1 to {@link AllocationTag#MAX_TAGS}-1
+	 * @return the allocation tag
+	 */
+	public AllocationTag getAllocationTag(final int tag) {
+		if(AllocationTag.checkTag(tag)==AllocationTag.UNTAGGED) throw new IllegalArgumentException("The untagged tag [0] has no accounting of its own");
+		return refMgr.tags[tag];
+	}
 
 	/**
 	 * {@inheritDoc}
@@ -1120,6 +1707,9 @@ public class DefaultUnsafeAdapterImpl implements DefaultUnsafeAdapterImplMBean {
 	 */
 	@Override
 	public long getTotalAllocatedMemory() {
+		final boolean trackMem = refMgr.isMemTracking();
+		if(refMgr.sampler!=null && !trackMem) return refMgr.sampler.getEstimatedBytes();
+		if(tlab!=null && trackMem) return refMgr.getTotalMemoryAllocated() + tlab.getPendingBytes();
 		return refMgr.getTotalMemoryAllocated();
 	}
 	
@@ -1138,6 +1728,7 @@ public class DefaultUnsafeAdapterImpl implements DefaultUnsafeAdapterImplMBean {
 	 */
 	@Override
 	public long getAlignedMemoryOverhead() {
+		if(tlab!=null && refMgr.isMemAlignment()) return refMgr.getTotalAlignmentOverhead() + tlab.getPendingOverhead();
 		return refMgr.getTotalAlignmentOverhead();
 	}
 
@@ -1147,8 +1738,8 @@ public class DefaultUnsafeAdapterImpl implements DefaultUnsafeAdapterImplMBean {
 	 */
 	@Override
 	public long getTotalAllocatedMemoryKb() {
-		if(trackMem) {
-			long mem = refMgr.getTotalMemoryAllocated();
+		if(refMgr.isMemTracking() || refMgr.sampler!=null) {
+			long mem = getTotalAllocatedMemory();
 			return mem < 1 ? 0L : roundMem(mem, 1024);
 		}
 		return -1L;
@@ -1160,8 +1751,8 @@ public class DefaultUnsafeAdapterImpl implements DefaultUnsafeAdapterImplMBean {
 	 */
 	@Override
 	public long getTotalAllocatedMemoryMb() {
-		if(trackMem) {
-			long mem = refMgr.getTotalMemoryAllocated();
+		if(refMgr.isMemTracking() || refMgr.sampler!=null) {
+			long mem = getTotalAllocatedMemory();
 			return mem < 1 ? 0L : roundMem(mem, 1024*1024);
 		}
 		return -1L;
@@ -1185,6 +1776,9 @@ public class DefaultUnsafeAdapterImpl implements DefaultUnsafeAdapterImplMBean {
 	 */
 	@Override
 	public long getTotalAllocationCount() {
+		final boolean trackMem = refMgr.isMemTracking();
+		if(refMgr.sampler!=null && !trackMem) return refMgr.sampler.getEstimatedCount();
+		if(tlab!=null && trackMem) return refMgr.getTotalAllocationCount() + tlab.getPendingCount();
 		return refMgr.getTotalAllocationCount();
 	}
 	
@@ -1197,6 +1791,15 @@ public class DefaultUnsafeAdapterImpl implements DefaultUnsafeAdapterImplMBean {
 		return refMgr.getTotalRawAllocationCount();
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getAllocationTreeTotals()
+	 */
+	@Override
+	public Map<String, Long> getAllocationTreeTotals() {
+		return refMgr.getAllocationTreeTotals();
+	}
+	
 	/**
 	 * {@inheritDoc}
 	 * @see com.heliosapm.unsafe.MemoryMBean#getPendingRefs()
@@ -1215,5 +1818,169 @@ public class DefaultUnsafeAdapterImpl implements DefaultUnsafeAdapterImplMBean {
 		return getRefQueuePending();
 	}
 	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getReferenceQueueSizes()
+	 */
+	@Override
+	public long[] getReferenceQueueSizes() {
+		return refMgr.getRefQueuePendingByCleaner();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getCleanerCount()
+	 */
+	@Override
+	public int getCleanerCount() {
+		return refMgr.getCleanerCount();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getCleanerBatchSize()
+	 */
+	@Override
+	public int getCleanerBatchSize() {
+		return refMgr.getCleanerBatchSize();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#isOnClearAsync()
+	 */
+	@Override
+	public boolean isOnClearAsync() {
+		return refMgr.getOnClearExecutor()!=null;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getOnClearQueueDepth()
+	 */
+	@Override
+	public long getOnClearQueueDepth() {
+		return refMgr.getOnClearQueueDepth();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getOnClearCompletedCount()
+	 */
+	@Override
+	public long getOnClearCompletedCount() {
+		return refMgr.getOnClearCompletedCount();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getOnClearAverageLatency()
+	 */
+	@Override
+	public long getOnClearAverageLatency() {
+		return refMgr.getOnClearAverageLatency();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getOnClearAverageWait()
+	 */
+	@Override
+	public long getOnClearAverageWait() {
+		return refMgr.getOnClearAverageWait();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#isSamplingEnabled()
+	 */
+	@Override
+	public boolean isSamplingEnabled() {
+		return refMgr.sampler!=null;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getSampleInterval()
+	 */
+	@Override
+	public long getSampleInterval() {
+		return refMgr.sampler==null ? -1L : refMgr.sampler.getInterval();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getSampledAllocationCount()
+	 */
+	@Override
+	public int getSampledAllocationCount() {
+		return refMgr.sampler==null ? -1 : refMgr.sampler.getSampleCount();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getTotalAllocatedMemoryLowerBound()
+	 */
+	@Override
+	public long getTotalAllocatedMemoryLowerBound() {
+		return refMgr.sampler==null ? getTotalAllocatedMemory() : refMgr.sampler.getLowerBound();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getTotalAllocatedMemoryUpperBound()
+	 */
+	@Override
+	public long getTotalAllocatedMemoryUpperBound() {
+		return refMgr.sampler==null ? getTotalAllocatedMemory() : refMgr.sampler.getUpperBound();
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#isThreadAccountingEnabled()
+	 */
+	@Override
+	public boolean isThreadAccountingEnabled() {
+		return refMgr.threadTracker!=null;
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getThreadAllocatedBytes()
+	 */
+	@Override
+	public Map<String, Long> getThreadAllocatedBytes() {
+		return getThreadAccounting(true);
+	}
+	
+	/**
+	 * {@inheritDoc}
+	 * @see com.heliosapm.unsafe.MemoryMBean#getThreadFreedBytes()
+	 */
+	@Override
+	public Map<String, Long> getThreadFreedBytes() {
+		return getThreadAccounting(false);
+	}
+	
+	/**
+	 * Returns the allocated or freed bytes of each live thread and the terminated threads total
+	 * @param allocated true for the allocated bytes, false for the freed bytes
+	 * @return a map of bytes keyed by thread
+	 */
+	private Map<String, Long> getThreadAccounting(final boolean allocated) {
+		final ThreadAllocationTracker tracker = refMgr.threadTracker;
+		if(tracker==null) return new HashMap<String, Long>(0);
+		final ThreadStats[] snapshot = tracker.snapshot();
+		final Map<String, Long> map = new HashMap<String, Long>(snapshot.length + 1);
+		for(ThreadStats stats: snapshot) {
+			map.put(stats.getKey(), allocated ? stats.getAllocatedBytes() : stats.getFreedBytes());
+		}
+		final ThreadStats terminated = tracker.getTerminatedStats();
+		if(terminated.getAllocationCount()!=0L || terminated.getFreeCount()!=0L) {
+			map.put(terminated.getKey(), allocated ? terminated.getAllocatedBytes() : terminated.getFreedBytes());
+		}
+		return map;
+	}
+	
     	
 }
@@ -0,0 +1,276 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.unsafe;
+
+import java.io.Closeable;
+
+/**
+ * <p>Title: MemoryArena</p>
+ * <p>Description: A bump-pointer allocator for native memory blocks that all die together, such as per-batch scratch buffers.
+ * Blocks are carved out of large native segments and are never individually tracked or freed. The segments are the only
+ * tracked allocations: they are registered in an internal {@link AllocationPointer}, so closing the arena frees
+ * everything in O(segments), and an arena that is dropped without being closed is released by the cleaner thread
+ * through the existing reference queue once it becomes phantom reachable.</p>
+ * <p>An arena is not thread safe. Addresses handed out by an arena must not be passed to {@link UnsafeAdapter#freeMemory(long)}
+ * or reallocated, and are invalid once the arena is closed or reset.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.unsafe.MemoryArena</code></p>
+ */
+public class MemoryArena implements Closeable {
+	/** The default segment size in bytes */
+	public static final long DEFAULT_SEGMENT_SIZE = 1024 * 1024;
+	/** The smallest segment size in bytes */
+	public static final long MIN_SEGMENT_SIZE = 4096;
+	/** The alignment of every block handed out by an arena */
+	public static final long BLOCK_ALIGNMENT = 8;
+
+	/** The adapter the segments are allocated from */
+	private final DefaultUnsafeAdapterImpl adapter;
+	/** The allocation pointer holding the segments */
+	private final AllocationPointer segments;
+	/** The standard segment size in bytes */
+	private final long segmentSize;
+	/** The next free address in the current segment */
+	private long cursor = 0L;
+	/** The end address of the current segment */
+	private long limit = 0L;
+	/** The index of the current segment in the segment allocation pointer */
+	private int currentSegment = -1;
+	/** The number of bytes handed out since the arena was created or last reset */
+	private long allocatedBytes = 0L;
+	/** The number of bytes held in segments */
+	private long reservedBytes = 0L;
+	/** Indicates if this arena has been closed */
+	private boolean closed = false;
+
+	/**
+	 * Creates a new MemoryArena
+	 * @param adapter The adapter the segments are allocated from
+	 * @param segmentSize The standard segment size in bytes
+	 * @param onClearRunnable An optional runnable to run when an unclosed arena is released by the cleaner
+	 */
+	MemoryArena(final DefaultUnsafeAdapterImpl adapter, final long segmentSize, final Runnable onClearRunnable) {
+		if(segmentSize < 1) throw new IllegalArgumentException("Invalid segment size [" + segmentSize + "]");
+		this.adapter = adapter;
+		this.segmentSize = align(Math.max(segmentSize, MIN_SEGMENT_SIZE));
+		segments = adapter.refMgr.newAllocationPointer(onClearRunnable);
+	}
+
+	/**
+	 * Rounds the passed size up to the next multiple of {@link #BLOCK_ALIGNMENT}
+	 * @param size The size to round
+	 * @return the rounded size
+	 */
+	private static long align(final long size) {
+		return (size + BLOCK_ALIGNMENT - 1) & -BLOCK_ALIGNMENT;
+	}
+
+	/**
+	 * Allocates a block of memory from this arena.
+	 * Requests larger than the segment size get a dedicated segment of their own.
+	 * @param size The size of the block in bytes
+	 * @return the 8 byte aligned address of the block
+	 */
+	public long allocate(final long size) {
+		if(closed) throw new IllegalStateException("The arena is closed");
+		if(size < 1) throw new IllegalArgumentException("Invalid allocation size [" + size + "]");
+		final long alignedSize = align(size);
+		if(alignedSize > limit - cursor) {
+			if(alignedSize > segmentSize) {
+				allocatedBytes += alignedSize;
+				return newSegment(alignedSize);
+			}
+			if(!nextSegment()) {
+				cursor = newSegment(segmentSize);
+				limit = cursor + segmentSize;
+				currentSegment = segments.getLastIndex();
+			}
+		}
+		final long address = cursor;
+		cursor += alignedSize;
+		allocatedBytes += alignedSize;
+		return address;
+	}
+
+	/**
+	 * Moves the bump pointer to the next standard size segment retained by a prior {@link #reset()}
+	 * @return true if a retained segment was found, false if a new one needs to be allocated
+	 */
+	private boolean nextSegment() {
+		final int size = segments.getSize();
+		for(int i = currentSegment + 1; i < size; i++) {
+			final long address = segments.getAddress(i);
+			if(address!=0L && segmentSizeAt(i)==segmentSize) {
+				currentSegment = i;
+				cursor = address;
+				limit = address + segmentSize;
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Returns the size of the segment at the passed index
+	 * @param index The segment slot index
+	 * @return the segment size
+	 */
+	private long segmentSizeAt(final int index) {
+		final long size = segments.getAllocationSize(index);
+		// sizes are only recorded when mem tracking is enabled, so anything unrecorded is a standard segment
+		return size==0L ? segmentSize : size;
+	}
+
+	/**
+	 * Allocates a new segment and registers it with the segment allocation pointer
+	 * @param size The segment size in bytes
+	 * @return the address of the segment
+	 */
+	private long newSegment(final long size) {
+		adapter.refMgr.reserveMemory(size);
+		long address = 0L;
+		try {
+			address = adapter.nativeAllocator.allocate(size);
+			adapter.refMgr.allocateMemory(address, size, 0L, segments);
+		} catch (RuntimeException ex) {
+			if(address!=0L) NativeAllocator.free(address);
+			adapter.refMgr.unreserveMemory(size);
+			throw ex;
+		}
+		reservedBytes += size;
+		return address;
+	}
+
+	/**
+	 * Rewinds the arena so that its memory can be reused. Standard size segments are retained,
+	 * dedicated segments for oversized blocks are freed. All previously handed out addresses become invalid.
+	 */
+	public void reset() {
+		if(closed) return;
+		final int size = segments.getSize();
+		long freedBytes = 0L, freedCount = 0L;
+		for(int i = 0; i < size; i++) {
+			final long address = segments.getAddress(i);
+			if(address==0L) continue;
+			final long segSize = segmentSizeAt(i);
+			if(segSize!=segmentSize) {
+				NativeAllocator.free(address);
+				adapter.refMgr.released(address);
+				freedBytes += segments.getAllocationSize(i);
+				freedCount++;
+				reservedBytes -= segSize;
+				segments.clearAddress(i);
+			}
+		}
+		// the segments are only counted if their sizes were recorded
+		if(freedCount > 0 && segments.getDimension() > 1) adapter.refMgr.applyDelta(0-freedBytes, 0-freedCount, 0L, segments.getTag());
+		currentSegment = -1;
+		cursor = 0L;
+		limit = 0L;
+		allocatedBytes = 0L;
+	}
+
+	/**
+	 * Frees all the segments of this arena in one pass. Idempotent.
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() {
+		if(closed) return;
+		closed = true;
+		final int size = segments.getSize();
+		long freedBytes = 0L, freedCount = 0L;
+		for(int i = 0; i < size; i++) {
+			final long address = segments.getAddress(i);
+			if(address==0L) continue;
+			NativeAllocator.free(address);
+			adapter.refMgr.released(address);
+			freedBytes += segments.getAllocationSize(i);
+			freedCount++;
+			segments.clearAddress(i);
+		}
+		if(segments.getDimension() > 1) adapter.refMgr.applyDelta(0-freedBytes, 0-freedCount, 0L, segments.getTag());
+		cursor = 0L;
+		limit = 0L;
+		allocatedBytes = 0L;
+		reservedBytes = 0L;
+	}
+
+	/**
+	 * Indicates if this arena has been closed
+	 * @return true if this arena has been closed, false otherwise
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Returns the number of segments currently held by this arena
+	 * @return the number of segments
+	 */
+	public int getSegmentCount() {
+		final int size = segments.getSize();
+		int count = 0;
+		for(int i = 0; i < size; i++) {
+			if(segments.getAddress(i)!=0L) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of bytes handed out since the arena was created or last reset
+	 * @return the number of allocated bytes
+	 */
+	public long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/**
+	 * Returns the number of bytes held in segments
+	 * @return the number of reserved bytes
+	 */
+	public long getReservedBytes() {
+		return reservedBytes;
+	}
+
+	/**
+	 * Returns the standard segment size in bytes
+	 * @return the segment size
+	 */
+	public long getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "MemoryArena [segments:" + getSegmentCount() + ", allocated:" + allocatedBytes + ", reserved:" + reservedBytes + ", closed:" + closed + "]";
+	}
+
+}
@@ -0,0 +1,468 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.unsafe;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jsr166e.ForkJoinPool;
+import jsr166e.LongAdder;
+
+/**
+ * <p>Title: MemoryBudget</p>
+ * <p>Description: Enforces an upper limit on the tracked native memory held by an {@link AllocationReferenceManager}.
+ * Allocating threads reserve the bytes they are about to allocate, and the reference manager releases them as tracked
+ * memory is freed, either explicitly or by the cleaner thread when an {@link AllocationPointer} is collected.</p>
+ * <p>When a reservation does not fit, the caller is held back much like {@link java.nio.ByteBuffer#allocateDirect(int)}
+ * is when the direct memory limit is reached: it waits for the cleaner to release memory, hinting a GC once if there are
+ * no collected references already waiting to be cleared, backing off exponentially between attempts, and fails with an
+ * {@link OutOfMemoryError} only when the configured timeout elapses. A timeout of zero (or less) never waits: a reservation
+ * that does not fit fails at once, whether it is blocking or asynchronous.</p>
+ * <p>Callers that must not block register an {@link AsyncReservation} instead. These are queued in arrival order and
+ * granted, head first, as memory is released, and are then run in a dedicated {@link ForkJoinPool} so no caller code
+ * ever runs on the cleaner thread. Blocking callers are not queued behind them. The pool and the timer expiring queued
+ * reservations are released by {@link #close()} when the budget is discarded.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.unsafe.MemoryBudget</code></p>
+ */
+
+public class MemoryBudget {
+	/** The longest single wait between reservation attempts in ms. */
+	public static final long MAX_WAIT = 256L;
+
+	/** The reference manager whose cleaner releases budgeted memory */
+	private final AllocationReferenceManager refMgr;
+	/** The budget limit in bytes */
+	private final long limit;
+	/** The longest time a caller will wait for a reservation in ms. */
+	private final long timeout;
+	/** The number of bytes currently reserved */
+	private final AtomicLong reserved = new AtomicLong(0L);
+	/** The number of threads currently waiting for memory to be released */
+	private final AtomicInteger waiters = new AtomicInteger(0);
+	/** The number of reservations that had to wait */
+	private final LongAdder waitCount = new LongAdder();
+	/** The number of reservations that were refused */
+	private final LongAdder failureCount = new LongAdder();
+	/** The asynchronous reservations waiting for memory to be released, in arrival order */
+	private final ConcurrentLinkedQueue<AsyncReservation> asyncWaiters = new ConcurrentLinkedQueue<AsyncReservation>();
+	/** Serializes the granting of asynchronous reservations so they are granted in order */
+	private final Object asyncLock = new Object();
+	/** The timer that expires asynchronous reservations, created on first use */
+	private volatile Timer asyncTimer = null;
+	/** The pool asynchronous reservation callbacks are run in, created on first use */
+	private volatile ForkJoinPool asyncPool = null;
+	/** Set once the budget has been closed */
+	private volatile boolean closed = false;
+	
+	/**
+	 * <p>Title: AsyncReservation</p>
+	 * <p>Description: A reservation request that is called back when its bytes have been reserved, or when it expires.
+	 * Both callbacks are run in the budget's {@link ForkJoinPool}.</p> 
+	 * <p>Company: Helios Development Group LLC</p>
+	 * @author Whitehead (nwhitehead AT heliosdev DOT org)
+	 * <p><code>com.heliosapm.unsafe.MemoryBudget.AsyncReservation</code></p>
+	 */
+	public abstract static class AsyncReservation {
+		/** The number of bytes to reserve */
+		protected final long size;
+		/** Set once the reservation has been granted or expired */
+		private final AtomicBoolean claimed = new AtomicBoolean(false);
+		/** The task that will expire the reservation */
+		private TimerTask expiry = null;
+		
+		/**
+		 * Creates a new AsyncReservation
+		 * @param size The number of bytes to reserve
+		 */
+		protected AsyncReservation(final long size) {
+			this.size = size;
+		}
+		
+		/**
+		 * Called when the bytes have been reserved. The implementation owns the reservation from here on.
+		 */
+		protected abstract void reserved();
+		
+		/**
+		 * Called when the bytes could not be reserved within the budget timeout, or when the budget is reset or closed
+		 * @param error The error describing the failure
+		 */
+		protected abstract void expired(OutOfMemoryError error);
+		
+		/**
+		 * Indicates if the caller has lost interest in the reservation, in which case it is discarded when it reaches the head of the queue
+		 * @return true if the reservation has been abandoned, false otherwise
+		 */
+		protected abstract boolean isAbandoned();
+	}
+
+	/**
+	 * Creates a new MemoryBudget
+	 * @param refMgr The reference manager whose cleaner releases budgeted memory
+	 * @param limit The budget limit in bytes
+	 * @param timeout The longest time a caller will wait for a reservation in ms. Zero or less fails reservations that do not fit at once.
+	 */
+	MemoryBudget(final AllocationReferenceManager refMgr, final long limit, final long timeout) {
+		if(limit < 1) throw new IllegalArgumentException("Invalid memory budget [" + limit + "]");
+		this.refMgr = refMgr;
+		this.limit = limit;
+		this.timeout = Math.max(0L, timeout);
+	}
+
+	/**
+	 * Reserves the passed number of bytes if they fit in the budget, without waiting
+	 * @param size The number of bytes to reserve
+	 * @return true if the bytes were reserved, false otherwise
+	 */
+	public boolean tryReserve(final long size) {
+		while(true) {
+			final long current = reserved.get();
+			final long next = current + size;
+			if(next > limit) return false;
+			if(reserved.compareAndSet(current, next)) return true;
+		}
+	}
+
+	/**
+	 * Reserves the passed number of bytes, waiting for the cleaner to release memory if they do not fit
+	 * @param size The number of bytes to reserve
+	 * @throws OutOfMemoryError if the bytes could not be reserved within the timeout
+	 */
+	public void reserve(final long size) {
+		if(tryReserve(size)) return;
+		if(size > limit) {
+			failureCount.increment();
+			throw new OutOfMemoryError("Allocation of [" + size + "] bytes exceeds the memory budget [" + limit + "]");
+		}
+		waitCount.increment();
+		final long deadline = System.currentTimeMillis() + timeout;
+		boolean gcHinted = false;
+		boolean interrupted = false;
+		long wait = 1L;
+		waiters.incrementAndGet();
+		try {
+			while(true) {
+				if(tryReserve(size)) return;
+				final long remaining = deadline - System.currentTimeMillis();
+				if(remaining <= 0L) break;
+				if(!gcHinted && refMgr.getRefQueuePending() < 1) {
+					// nothing is queued for the cleaner, so trigger reference processing
+					System.gc();
+					gcHinted = true;
+				}
+				try {
+					synchronized(this) {
+						wait(Math.min(wait, remaining));
+					}
+				} catch (InterruptedException iex) {
+					interrupted = true;
+				}
+				if(wait < MAX_WAIT) wait <<= 1;
+			}
+		} finally {
+			waiters.decrementAndGet();
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+		failureCount.increment();
+		throw exhausted(size);
+	}
+	
+	/**
+	 * Creates the error reported when a reservation could not be made within the timeout
+	 * @param size The number of bytes that could not be reserved
+	 * @return the error
+	 */
+	private OutOfMemoryError exhausted(final long size) {
+		return new OutOfMemoryError("Memory budget [" + limit + "] exhausted. Failed to reserve [" + size + "] bytes within [" + timeout + "] ms. Reserved: [" + reserved.get() + "]");
+	}
+
+	/**
+	 * Queues an asynchronous reservation that is granted, in arrival order, once its bytes fit in the budget.
+	 * With a zero timeout, the reservation is granted if it fits without overtaking any queued reservations, and expired otherwise.
+	 * If the budget has been closed, the reservation is expired on the calling thread.
+	 * @param reservation The reservation to queue
+	 */
+	public void reserveAsync(final AsyncReservation reservation) {
+		if(closed) {
+			if(reservation.claimed.compareAndSet(false, true)) {
+				failureCount.increment();
+				reservation.expired(new OutOfMemoryError("Memory budget [" + limit + "] is closed"));
+			}
+			return;
+		}
+		if(reservation.size > limit) {
+			expire(reservation, new OutOfMemoryError("Allocation of [" + reservation.size + "] bytes exceeds the memory budget [" + limit + "]"));
+			return;
+		}
+		if(timeout==0L) {
+			if(tryReserveInTurn(reservation.size)) {
+				grant(reservation);
+			} else {
+				waitCount.increment();
+				expire(reservation, exhausted(reservation.size));
+			}
+			return;
+		}
+		waitCount.increment();
+		asyncWaiters.add(reservation);
+		reservation.expiry = new TimerTask() {
+			@Override
+			public void run() {
+				if(asyncWaiters.remove(reservation)) {
+					expire(reservation, exhausted(reservation.size));
+				}
+			}
+		};
+		getAsyncTimer().schedule(reservation.expiry, timeout);
+		if(refMgr.getRefQueuePending() < 1) {
+			// nothing is queued for the cleaner, so trigger reference processing off the caller's thread
+			getAsyncPool().execute(new Runnable() {
+				public void run() {
+					System.gc();
+				}
+			});
+		}
+		// memory may have been released before the reservation was queued
+		grantAsync();
+	}
+	
+	/**
+	 * Indicates if a reservation of the passed size would be granted immediately without overtaking any queued asynchronous reservations
+	 * and if so, reserves it
+	 * @param size The number of bytes to reserve
+	 * @return true if the bytes were reserved, false otherwise
+	 */
+	public boolean tryReserveInTurn(final long size) {
+		return asyncWaiters.isEmpty() && tryReserve(size);
+	}
+	
+	/**
+	 * Grants queued asynchronous reservations in arrival order until the head of the queue does not fit in the budget
+	 */
+	private void grantAsync() {
+		synchronized(asyncLock) {
+			AsyncReservation reservation = null;
+			while((reservation = asyncWaiters.peek())!=null) {
+				if(reservation.isAbandoned()) {
+					if(asyncWaiters.remove(reservation) && reservation.expiry!=null) reservation.expiry.cancel();
+					continue;
+				}
+				if(!tryReserve(reservation.size)) break;
+				if(!asyncWaiters.remove(reservation)) {
+					// expired in the meantime
+					reserved.addAndGet(0-reservation.size);
+					continue;
+				}
+				if(reservation.expiry!=null) reservation.expiry.cancel();
+				grant(reservation);
+			}
+		}
+	}
+	
+	/**
+	 * Hands a reservation whose bytes have been reserved to its callback, or releases the bytes if it has already been expired
+	 * @param reservation The granted reservation
+	 */
+	private void grant(final AsyncReservation reservation) {
+		if(!reservation.claimed.compareAndSet(false, true)) {
+			reserved.addAndGet(0-reservation.size);
+			return;
+		}
+		getAsyncPool().execute(new Runnable() {
+			public void run() {
+				reservation.reserved();
+			}
+		});
+	}
+	
+	/**
+	 * Expires all the queued asynchronous reservations, cancelling their expiry tasks
+	 * @param reason The reason reported to the reservations' callbacks
+	 */
+	private void expireAll(final String reason) {
+		synchronized(asyncLock) {
+			AsyncReservation reservation = null;
+			while((reservation = asyncWaiters.poll())!=null) {
+				if(reservation.expiry!=null) reservation.expiry.cancel();
+				expire(reservation, new OutOfMemoryError("Memory budget [" + limit + "] " + reason + ". Failed to reserve [" + reservation.size + "] bytes"));
+			}
+		}
+	}
+	
+	/**
+	 * Expires an asynchronous reservation
+	 * @param reservation The reservation to expire
+	 * @param error The error describing the failure
+	 */
+	private void expire(final AsyncReservation reservation, final OutOfMemoryError error) {
+		if(!reservation.claimed.compareAndSet(false, true)) return;
+		failureCount.increment();
+		getAsyncPool().execute(new Runnable() {
+			public void run() {
+				reservation.expired(error);
+			}
+		});
+	}
+	
+	/**
+	 * Returns the timer that expires asynchronous reservations, creating it if necessary
+	 * @return the timer
+	 */
+	private Timer getAsyncTimer() {
+		if(asyncTimer==null) {
+			synchronized(asyncLock) {
+				if(asyncTimer==null) {
+					asyncTimer = new Timer("MemoryBudgetTimer", true);
+				}
+			}
+		}
+		return asyncTimer;
+	}
+
+	/**
+	 * Returns the pool asynchronous reservation callbacks are run in, creating it if necessary
+	 * @return the pool
+	 */
+	private ForkJoinPool getAsyncPool() {
+		if(asyncPool==null) {
+			synchronized(asyncLock) {
+				if(asyncPool==null) {
+					asyncPool = AllocationReferenceManager.newCallbackPool();
+				}
+			}
+		}
+		return asyncPool;
+	}
+
+	/**
+	 * Releases the passed number of bytes back to the budget, wakes any waiting callers
+	 * and grants any queued asynchronous reservations that now fit
+	 * @param size The number of bytes to release
+	 */
+	public void release(final long size) {
+		if(size < 1) return;
+		reserved.addAndGet(0-size);
+		if(waiters.get() > 0) {
+			synchronized(this) {
+				notifyAll();
+			}
+		}
+		if(!asyncWaiters.isEmpty()) grantAsync();
+	}
+
+	/**
+	 * Closes the budget when it is discarded, expiring any queued asynchronous reservations, 
+	 * then cancelling the expiry timer and shutting down the callback pool once the expiries have been run
+	 */
+	void close() {
+		final Timer timer;
+		final ForkJoinPool pool;
+		synchronized(asyncLock) {
+			if(closed) return;
+			expireAll("closed");
+			closed = true;
+			timer = asyncTimer;
+			pool = asyncPool;
+		}
+		if(timer!=null) timer.cancel();
+		// already submitted callbacks still run
+		if(pool!=null) pool.shutdown();
+	}
+
+	/**
+	 * <b>TEST HOOK ONLY !</b>
+	 * Clears the reservations along with the reference manager's counters.
+	 * Queued asynchronous reservations are expired.
+	 */
+	void reset() {
+		expireAll("reset");
+		reserved.set(0L);
+		waitCount.reset();
+		failureCount.reset();
+	}
+
+	/**
+	 * Returns the budget limit in bytes
+	 * @return the budget limit
+	 */
+	public long getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Returns the longest time a caller will wait for a reservation in ms.
+	 * @return the reservation timeout
+	 */
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Returns the number of bytes currently reserved
+	 * @return the reserved bytes
+	 */
+	public long getReserved() {
+		return reserved.get();
+	}
+
+	/**
+	 * Returns the number of reservations that had to wait for memory to be released
+	 * @return the number of waits
+	 */
+	public long getWaitCount() {
+		return waitCount.longValue();
+	}
+
+	/**
+	 * Returns the number of asynchronous reservations waiting for memory to be released
+	 * @return the number of queued asynchronous reservations
+	 */
+	public int getAsyncWaiterCount() {
+		return asyncWaiters.size();
+	}
+
+	/**
+	 * Returns the number of reservations that were refused
+	 * @return the number of failures
+	 */
+	public long getFailureCount() {
+		return failureCount.longValue();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "MemoryBudget [limit=" + limit + ", reserved=" + reserved.get() + ", timeout=" + timeout + "]";
+	}
+}
@@ -2,6 +2,8 @@ package com.heliosapm.unsafe;
 
 import java.util.Map;
 
+import javax.management.openmbean.CompositeData;
+
 /**
  * <p>Title: MemoryMBean</p>
  * <p>Description: JMX MBean interface for memory allocation trackers</p>
@@ -47,6 +49,13 @@ public interface MemoryMBean {
 	 */
 	public boolean isTrackingEnabled();
 	
+	/**
+	 * Enables or disables memory allocation tracking at runtime. 
+	 * Memory allocated while tracking is disabled is not counted, but is still freed correctly.
+	 * @param enabled true to enable memory allocation tracking, false to disable it
+	 */
+	public void setTrackingEnabled(boolean enabled);
+	
 	/**
 	 * Indicates if the JVM supports the five parameter memory copy operation
 	 * @return true if the JVM supports the five parameter memory copy operation, false otherwise
@@ -65,6 +74,91 @@ public interface MemoryMBean {
 	 */
 	public boolean isAlignmentEnabled();
 	
+	/**
+	 * Enables or disables cache-line memory alignment overhead tracking at runtime,
+	 * which only takes effect while memory allocation tracking is enabled
+	 * @param enabled true to enable cache-line memory alignment overhead tracking, false to disable it
+	 */
+	public void setAlignmentEnabled(boolean enabled);
+	
+	/**
+	 * Indicates if small allocations are served from the size-class slab allocator
+	 * @return true if slab allocation is enabled, false otherwise
+	 */
+	public boolean isSlabAllocationEnabled();
+	
+	/**
+	 * Returns the total native memory reserved for slabs in bytes
+	 * @return the total native memory reserved for slabs
+	 */
+	public long getSlabReservedMemory();
+	
+	/**
+	 * Returns the number of slab blocks currently handed out
+	 * @return the number of slab blocks in use
+	 */
+	public long getSlabBlocksInUse();
+	
+	/**
+	 * Indicates if aligned allocations are served from the buddy allocator
+	 * @return true if buddy allocation is enabled, false otherwise
+	 */
+	public boolean isBuddyAllocationEnabled();
+	
+	/**
+	 * Returns the total native memory reserved for buddy regions in bytes
+	 * @return the total native memory reserved for buddy regions
+	 */
+	public long getBuddyReservedMemory();
+	
+	/**
+	 * Returns the total size of the buddy blocks currently handed out in bytes
+	 * @return the number of buddy block bytes in use
+	 */
+	public long getBuddyBytesInUse();
+	
+	/**
+	 * Returns the native memory budget in bytes
+	 * @return the native memory budget or -1 if no budget is enforced
+	 */
+	public long getMemoryBudget();
+	
+	/**
+	 * Returns the number of bytes currently reserved against the native memory budget
+	 * @return the reserved bytes or -1 if no budget is enforced
+	 */
+	public long getMemoryBudgetReserved();
+	
+	/**
+	 * Returns the number of allocations that had to wait for budgeted memory to be released
+	 * @return the number of budget waits or -1 if no budget is enforced
+	 */
+	public long getMemoryBudgetWaitCount();
+	
+	/**
+	 * Returns the number of allocations refused because the native memory budget was exhausted
+	 * @return the number of budget failures or -1 if no budget is enforced
+	 */
+	public long getMemoryBudgetFailureCount();
+	
+	/**
+	 * Returns the number of asynchronous allocations waiting for budgeted memory to be released
+	 * @return the number of queued asynchronous allocations or -1 if no budget is enforced
+	 */
+	public int getMemoryBudgetAsyncWaiters();
+	
+	/**
+	 * Indicates if tiny allocations are served from thread local allocation buffers
+	 * @return true if thread local allocation is enabled, false otherwise
+	 */
+	public boolean isThreadLocalAllocationEnabled();
+	
+	/**
+	 * Returns the number of native chunks owned by the thread local allocation buffers
+	 * @return the number of thread local allocation buffer chunks
+	 */
+	public int getThreadLocalChunkCount();
+	
 	/**
 	 * Returns the size of an address in bytes for the current JVM
 	 * @return the size of an address
@@ -83,6 +177,12 @@ public interface MemoryMBean {
 	 */
 	public Map<String, Long> getState();
 	
+	/**
+	 * Returns the total bytes allocated in each tree of parent and child AllocationPointers, keyed by the reference id of the tree's root
+	 * @return a map of tree byte totals
+	 */
+	public Map<String, Long> getAllocationTreeTotals();
+	
 	/**
 	 * Returns the total off-heap allocated memory in bytes, not including the base line defined in {@link UnsafeAdapterOld#BASELINE_MEM}
 	 * @return the total off-heap allocated memory
@@ -138,6 +238,150 @@ public interface MemoryMBean {
 	 */
 	public long getReferenceQueueSize();
 	
+	/**
+	 * Returns the size of each cleaner thread's reference queue
+	 * @return the reference queue sizes, one per cleaner thread
+	 */
+	public long[] getReferenceQueueSizes();
+	
+	/**
+	 * Returns the number of cleaner threads clearing collected allocations
+	 * @return the number of cleaner threads
+	 */
+	public int getCleanerCount();
+	
+	/**
+	 * Returns the maximum number of collected allocations a cleaner thread clears in one batch
+	 * @return the cleaner batch size
+	 */
+	public int getCleanerBatchSize();
+	
+	/**
+	 * Indicates if on clear runnables are handed off to an executor rather than run on the cleaner threads
+	 * @return true if on clear runnables are run asynchronously, false otherwise
+	 */
+	public boolean isOnClearAsync();
+	
+	/**
+	 * Returns the number of on clear runnable dispatches waiting for, or running in, the on clear executor
+	 * @return the on clear queue depth
+	 */
+	public long getOnClearQueueDepth();
+	
+	/**
+	 * Returns the number of completed on clear runnable dispatches
+	 * @return the number of completed on clear runnable dispatches
+	 */
+	public long getOnClearCompletedCount();
+	
+	/**
+	 * Returns the average time in ns. on clear runnable dispatches took to run
+	 * @return the average on clear runnable latency in ns.
+	 */
+	public long getOnClearAverageLatency();
+	
+	/**
+	 * Returns the average time in ns. on clear runnable dispatches waited in the executor before running
+	 * @return the average on clear runnable wait in ns.
+	 */
+	public long getOnClearAverageWait();
+	
+	/**
+	 * Indicates if the allocated memory is estimated from sampled allocations, in which case the total allocated memory 
+	 * and allocation count are extrapolated from the samples
+	 * @return true if allocations are sampled, false otherwise
+	 */
+	public boolean isSamplingEnabled();
+	
+	/**
+	 * Returns the mean number of bytes allocated between sampled allocations
+	 * @return the sample interval in bytes, or -1 if sampling is disabled
+	 */
+	public long getSampleInterval();
+	
+	/**
+	 * Returns the number of live sampled allocations
+	 * @return the number of live sampled allocations, or -1 if sampling is disabled
+	 */
+	public int getSampledAllocationCount();
+	
+	/**
+	 * Returns the lower bound of the 95% confidence interval of the estimated total allocated memory. 
+	 * The same as the total allocated memory when allocations are not sampled.
+	 * @return the lower bound in bytes
+	 */
+	public long getTotalAllocatedMemoryLowerBound();
+	
+	/**
+	 * Returns the upper bound of the 95% confidence interval of the estimated total allocated memory. 
+	 * The same as the total allocated memory when allocations are not sampled.
+	 * @return the upper bound in bytes
+	 */
+	public long getTotalAllocatedMemoryUpperBound();
+	
+	/**
+	 * Indicates if the tracked memory allocated and freed by each thread is accounted
+	 * @return true if per thread accounting is enabled, false otherwise
+	 */
+	public boolean isThreadAccountingEnabled();
+	
+	/**
+	 * Returns the tracked bytes allocated by each live thread that has allocated or freed memory, keyed by the thread name and id,
+	 * with the total of the terminated threads keyed by <b>[terminated]</b>
+	 * @return a map of allocated bytes by thread, which is empty if per thread accounting is disabled
+	 */
+	public Map<String, Long> getThreadAllocatedBytes();
+	
+	/**
+	 * Returns the tracked bytes freed by each live thread that has allocated or freed memory, keyed by the thread name and id,
+	 * with the total of the terminated threads keyed by <b>[terminated]</b>
+	 * @return a map of freed bytes by thread, which is empty if per thread accounting is disabled
+	 */
+	public Map<String, Long> getThreadFreedBytes();
+	
+	/**
+	 * Returns the tracked memory allocated under each allocation tag in use, keyed by the tag name
+	 * @return a map of allocated bytes by tag, which excludes untagged memory
+	 */
+	public Map<String, Long> getTaggedMemory();
+	
+	/**
+	 * Returns the number of tracked allocations under each allocation tag in use, keyed by the tag name
+	 * @return a map of allocation counts by tag, which excludes untagged allocations
+	 */
+	public Map<String, Long> getTaggedAllocationCount();
+	
+	/**
+	 * Indicates if the histograms of allocation sizes, reallocation growth and allocation lifetimes are recorded
+	 * @return true if histograms are enabled, false otherwise
+	 */
+	public boolean isHistogramsEnabled();
+	
+	/**
+	 * Returns the histogram of allocation sizes in bytes, with the count, sum, mean, max, 50th, 90th, 99th and 99.9th percentiles
+	 * and the power of two bucket counts
+	 * @return the allocation size histogram, or null if histograms are disabled
+	 */
+	public CompositeData getAllocationSizeHistogram();
+	
+	/**
+	 * Returns the histogram of reallocation growth ratios, the new size as a percentage of the prior size, 
+	 * so 200 is a doubling and values under 100 are shrinks
+	 * @return the reallocation growth histogram, or null if histograms are disabled
+	 */
+	public CompositeData getReallocationGrowthHistogram();
+	
+	/**
+	 * Returns the histogram of allocation lifetimes in ns., from allocation to free, or to clear for collected AllocationPointers
+	 * @return the allocation lifetime histogram, or null if histograms are disabled
+	 */
+	public CompositeData getAllocationLifetimeHistogram();
+	
+	/**
+	 * Zeroes the histograms. Allocations that are live keep their allocation time.
+	 */
+	public void resetHistograms();
+	
 	/**
 	 * Returns the maximum amount of allocatable direct buffer memory in bytes.
 	 * @return the maximum amount of allocatable direct buffer memory
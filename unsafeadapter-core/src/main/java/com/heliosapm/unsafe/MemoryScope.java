@@ -0,0 +1,174 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.unsafe;
+
+import java.io.Closeable;
+
+/**
+ * <p>Title: MemoryScope</p>
+ * <p>Description: A scope for native memory blocks that should be freed as soon as a unit of work completes, such as request scoped buffers.
+ * Blocks allocated through a scope are registered in an internal {@link AllocationPointer} and can be individually reallocated or freed.
+ * Closing the scope frees every block still allocated on the calling thread, without waiting for a garbage collection.
+ * Only a scope that is dropped without being closed falls back to being released by the cleaner thread
+ * through the reference queue once it becomes phantom reachable.</p>
+ * <p>Intended for use in a try/finally block (or try-with-resources):<pre>
+ * final MemoryScope scope = UnsafeAdapter.newMemoryScope();
+ * try {
+ *    final long address = scope.allocateMemory(1024);
+ *    ...
+ * } finally {
+ *    scope.close();
+ * }
+ * </pre></p>
+ * <p>A scope is not thread safe. Addresses handed out by a scope must only be reallocated or freed through the scope,
+ * and are invalid once the scope is closed.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.unsafe.MemoryScope</code></p>
+ */
+public class MemoryScope implements Closeable {
+	/** The adapter the blocks are allocated from */
+	private final DefaultUnsafeAdapterImpl adapter;
+	/** The allocation pointer holding the blocks */
+	private final AllocationPointer allocations;
+	/** Indicates if this scope has been closed */
+	private boolean closed = false;
+
+	/**
+	 * Creates a new MemoryScope
+	 * @param adapter The adapter the blocks are allocated from
+	 * @param onClearRunnable An optional runnable to run when an unclosed scope is released by the cleaner
+	 */
+	MemoryScope(final DefaultUnsafeAdapterImpl adapter, final Runnable onClearRunnable) {
+		this.adapter = adapter;
+		allocations = adapter.refMgr.newAllocationPointer(onClearRunnable);
+	}
+
+	/**
+	 * Throws an {@link IllegalStateException} if this scope has been closed
+	 */
+	private void checkOpen() {
+		if(closed) throw new IllegalStateException("The scope is closed");
+	}
+
+	/**
+	 * Allocates a new block of native memory owned by this scope
+	 * @param size The size of the block of memory to allocate in bytes
+	 * @return The address of the allocated memory block
+	 */
+	public long allocateMemory(final long size) {
+		checkOpen();
+		return adapter.allocateMemory(size, allocations);
+	}
+
+	/**
+	 * Allocates a new block of cache-line aligned native memory owned by this scope
+	 * @param size The size of the block of memory to allocate in bytes
+	 * @return The aligned address of the allocated memory block
+	 */
+	public long allocateAlignedMemory(final long size) {
+		checkOpen();
+		return adapter.allocateAlignedMemory(size, allocations);
+	}
+
+	/**
+	 * Resizes a block of native memory owned by this scope
+	 * @param address The address of the block to resize
+	 * @param size The new size of the block in bytes
+	 * @return The address of the resized memory block
+	 */
+	public long reallocateMemory(final long address, final long size) {
+		checkOpen();
+		return adapter.reallocateMemory(address, size, allocations);
+	}
+
+	/**
+	 * Frees a block of native memory owned by this scope before the scope is closed
+	 * @param address The address of the block to free
+	 */
+	public void freeMemory(final long address) {
+		checkOpen();
+		adapter.freeMemory(new long[]{address}, allocations);
+	}
+
+	/**
+	 * Frees all the blocks still allocated in this scope, and the scope's own tracking structures, on the calling thread. 
+	 * The on clear runnable, if one was provided, is not run. Idempotent.
+	 * @see java.io.Closeable#close()
+	 */
+	@Override
+	public void close() {
+		if(closed) return;
+		closed = true;
+		adapter.refMgr.release(allocations, false, true);
+	}
+
+	/**
+	 * Indicates if this scope has been closed
+	 * @return true if this scope has been closed, false otherwise
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Returns the number of blocks currently allocated in this scope
+	 * @return the number of allocated blocks
+	 */
+	public int getAllocationCount() {
+		if(closed) return 0;
+		final int size = allocations.getSize();
+		int count = 0;
+		for(int i = 0; i < size; i++) {
+			if(allocations.getAddress(i)!=0L) count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the number of bytes currently allocated in this scope.
+	 * Sizes are only recorded when memory tracking is enabled, so this is zero otherwise.
+	 * @return the number of allocated bytes
+	 */
+	public long getAllocatedBytes() {
+		if(closed) return 0L;
+		final int size = allocations.getSize();
+		long bytes = 0L;
+		for(int i = 0; i < size; i++) {
+			bytes += allocations.getAllocationSize(i);
+		}
+		return bytes;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "MemoryScope [allocations:" + getAllocationCount() + ", allocated:" + getAllocatedBytes() + ", closed:" + closed + "]";
+	}
+
+}
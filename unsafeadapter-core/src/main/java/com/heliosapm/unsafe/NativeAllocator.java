@@ -0,0 +1,300 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.unsafe;
+
+import sun.misc.Unsafe;
+
+import com.heliosapm.unsafe.unmanaged.SpinLockedTLongLongHashMap;
+
+/**
+ * <p>Title: NativeAllocator</p>
+ * <p>Description: Routes the raw native memory allocate, reallocate and free calls made by the {@link DefaultUnsafeAdapterImpl}
+ * and the {@link AllocationReferenceManager} cleaner to the configured backing allocator: straight to {@link sun.misc.Unsafe},
+ * or through the {@link SlabAllocator} for small blocks when slab allocation is enabled, and through the {@link BuddyAllocator}
+ * for aligned blocks when buddy allocation is enabled.
+ * Blocks handed out by the {@link ThreadLocalAllocator} are allocated by the adapter directly, but freed and resized through here.
+ * No accounting is done here.</p>
+ * <p>Aligned blocks are over-allocated by the alignment less the {@link #MIN_ALIGNMENT} every native block already has,
+ * and the base address of each aligned block that does not coincide with its aligned address is kept in a process wide
+ * map so that the right address is freed or resized, whichever adapter instance or thread does it.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.unsafe.NativeAllocator</code></p>
+ */
+@SuppressWarnings("restriction")
+public class NativeAllocator {
+    /** The unsafe instance */
+	private static final Unsafe UNSAFE = UnsafeAdapter.theUNSAFE;
+
+	/** The alignment every native block is guaranteed to have */
+	public static final int MIN_ALIGNMENT = 8;
+
+	/** The base addresses of aligned blocks keyed by the aligned address, for those where the two differ */
+	private static final SpinLockedTLongLongHashMap alignedBases = new SpinLockedTLongLongHashMap(128, 0.5f);
+	/** The number of entries in {@link #alignedBases}, so frees can skip the lookup when there are none */
+	private static volatile int alignedBaseCount = 0;
+
+	/** The slab allocator for small blocks, or null if slab allocation is disabled */
+	final SlabAllocator slabs;
+	/** The buddy allocator for aligned blocks, or null if buddy allocation is disabled */
+	final BuddyAllocator buddies;
+
+	/**
+	 * Creates a new NativeAllocator
+	 * @param slabAllocation true to serve small blocks from the {@link SlabAllocator}, false to always go to malloc
+	 * @param buddyAllocation true to serve aligned blocks from the {@link BuddyAllocator}, false to over-allocate from malloc
+	 */
+	public NativeAllocator(final boolean slabAllocation, final boolean buddyAllocation) {
+		slabs = slabAllocation ? SlabAllocator.getInstance() : null;
+		buddies = buddyAllocation ? BuddyAllocator.getInstance() : null;
+	}
+
+	/**
+	 * Allocates a block of native memory
+	 * @param size The size of the block in bytes
+	 * @return the address of the block
+	 */
+	public long allocate(final long size) {
+		if(slabs!=null) {
+			final long address = slabs.allocate(size);
+			if(address!=0L) return address;
+		}
+		return UNSAFE.allocateMemory(size);
+	}
+
+	/**
+	 * Resizes a block of native memory. Slab blocks are resized in place when the new size falls in the same size class,
+	 * otherwise the content is copied to a new block and the slab block is freed.
+	 * @param address The address of the block to resize
+	 * @param size The new size in bytes
+	 * @return the address of the resized block
+	 */
+	public long reallocate(final long address, final long size) {
+		if(alignedBaseCount!=0) {
+			final long base = removeAlignedBase(address);
+			if(base!=SpinLockedTLongLongHashMap.NULL) {
+				// keep the leading pad so the content can be shifted down to the base
+				final long shift = address - base;
+				final long newBase = reallocate(base, size + shift);
+				UNSAFE.copyMemory(newBase + shift, newBase, size);
+				return newBase;
+			}
+		}
+		final long bufferBlockSize = ThreadLocalAllocator.getBlockSize(address);
+		if(bufferBlockSize!=-1L) {
+			if(size <= bufferBlockSize) return address;
+			final long newAddress = allocate(size);
+			UNSAFE.copyMemory(address, newAddress, bufferBlockSize);
+			ThreadLocalAllocator.free(address);
+			return newAddress;
+		}
+		final BuddyAllocator ba = BuddyAllocator.getInstanceIfCreated();
+		if(ba!=null) {
+			final long blockSize = ba.getBlockSize(address);
+			if(blockSize!=-1L) {
+				if(buddies!=null && ba.resize(address, size)) return address;
+				final long newAddress = allocate(size);
+				UNSAFE.copyMemory(address, newAddress, Math.min(blockSize, size));
+				ba.free(address);
+				return newAddress;
+			}
+		}
+		final SlabAllocator sa = SlabAllocator.getInstanceIfCreated();
+		if(sa!=null) {
+			final int blockSize = sa.getBlockSize(address);
+			if(blockSize!=-1) {
+				if(slabs!=null && SlabAllocator.fitsInPlace(blockSize, size)) return address;
+				final long newAddress = allocate(size);
+				UNSAFE.copyMemory(address, newAddress, Math.min(blockSize, size));
+				sa.free(address);
+				return newAddress;
+			}
+		}
+		return UNSAFE.reallocateMemory(address, size);
+	}
+
+	/**
+	 * Frees a block of native memory, returning it to the allocator it came from.
+	 * Slab, buddy and thread local buffer blocks are recognized even if those allocators have since been disabled.
+	 * @param address The address of the block to free
+	 */
+	public static void free(final long address) {
+		if(alignedBaseCount!=0) {
+			final long base = removeAlignedBase(address);
+			if(base!=SpinLockedTLongLongHashMap.NULL) {
+				free(base);
+				return;
+			}
+		}
+		if(ThreadLocalAllocator.free(address)) return;
+		final BuddyAllocator ba = BuddyAllocator.getInstanceIfCreated();
+		if(ba!=null && ba.free(address)) return;
+		final SlabAllocator sa = SlabAllocator.getInstanceIfCreated();
+		if(sa!=null && sa.free(address)) return;
+		UNSAFE.freeMemory(address);
+	}
+
+	/**
+	 * Returns the number of bytes an aligned block is over-allocated by
+	 * @param alignment The alignment in bytes
+	 * @return the alignment overhead in bytes
+	 */
+	public static long getAlignmentOverhead(final long alignment) {
+		return alignment > MIN_ALIGNMENT ? alignment - MIN_ALIGNMENT : 0L;
+	}
+
+	/**
+	 * Returns the number of bytes an aligned block of the passed size is over-allocated by.
+	 * Buddy blocks are over-allocated by the rounding up to the block size, other blocks by {@link #getAlignmentOverhead(long)}.
+	 * @param size The requested size in bytes
+	 * @param alignment The alignment in bytes
+	 * @return the alignment overhead in bytes
+	 */
+	public long getAlignmentOverhead(final long size, final long alignment) {
+		if(buddies!=null) {
+			final long blockSize = buddies.blockSizeFor(Math.max(size, alignment));
+			if(blockSize!=-1L) return blockSize - size;
+		}
+		return getAlignmentOverhead(alignment);
+	}
+
+	/**
+	 * Validates an alignment boundary
+	 * @param alignment The alignment in bytes
+	 * @return the alignment
+	 */
+	public static long checkAlignment(final long alignment) {
+		if(alignment < 1 || (alignment & (alignment-1))!=0) throw new IllegalArgumentException("Invalid alignment [" + alignment + "]. Must be a power of two");
+		return alignment;
+	}
+
+	/**
+	 * Allocates a block of native memory whose address is a multiple of the passed alignment.
+	 * When buddy allocation is enabled, blocks up to one buddy region are naturally aligned buddy blocks.
+	 * @param size The size of the block in bytes
+	 * @param alignment The alignment boundary in bytes, which must be a power of two
+	 * @return the aligned address of the block
+	 */
+	public long allocateAligned(final long size, final long alignment) {
+		checkAlignment(alignment);
+		if(buddies!=null) {
+			final long address = buddies.allocate(Math.max(size, alignment));
+			if(address!=0L) return address;
+		}
+		final long base = allocate(size + getAlignmentOverhead(alignment));
+		return align(base, alignment);
+	}
+
+	/**
+	 * Resizes a block of native memory, returning an address that is a multiple of the passed alignment.
+	 * The block does not need to have been allocated aligned. Buddy blocks are resized in place when possible.
+	 * @param address The address of the block to resize
+	 * @param size The new size in bytes
+	 * @param alignment The alignment boundary in bytes, which must be a power of two
+	 * @return the aligned address of the resized block
+	 */
+	public long reallocateAligned(final long address, final long size, final long alignment) {
+		checkAlignment(alignment);
+		final BuddyAllocator ba = BuddyAllocator.getInstanceIfCreated();
+		if(ba!=null) {
+			final long blockSize = ba.getBlockSize(address);
+			if(blockSize!=-1L) {
+				if(buddies!=null && ba.resize(address, Math.max(size, alignment))) return address;
+				final long newAddress = allocateAligned(size, alignment);
+				UNSAFE.copyMemory(address, newAddress, Math.min(blockSize, size));
+				ba.free(address);
+				return newAddress;
+			}
+		}
+		final long priorBase = alignedBaseCount!=0 ? removeAlignedBase(address) : SpinLockedTLongLongHashMap.NULL;
+		final long base = priorBase==SpinLockedTLongLongHashMap.NULL ? address : priorBase;
+		final long priorShift = address - base;
+		final long overhead = getAlignmentOverhead(alignment);
+		final long newBase = reallocate(base, size + Math.max(overhead, priorShift));
+		final long newAddress = align(newBase, alignment);
+		final long newShift = newAddress - newBase;
+		if(newShift!=priorShift) {
+			// the content sits at the old offset from the base, move it to the new one (copyMemory handles overlaps)
+			UNSAFE.copyMemory(newBase + priorShift, newAddress, size);
+		}
+		return newAddress;
+	}
+
+	/**
+	 * Rounds the passed base address up to the alignment, recording the base if the two differ
+	 * @param base The base address of the over-allocated block
+	 * @param alignment The alignment boundary in bytes
+	 * @return the aligned address
+	 */
+	private static long align(final long base, final long alignment) {
+		final long address = (base + alignment - 1) & -alignment;
+		if(address!=base) {
+			synchronized(alignedBases) {
+				alignedBases.put(address, base);
+				alignedBaseCount++;
+			}
+		}
+		return address;
+	}
+
+	/**
+	 * Removes and returns the recorded base address of an aligned block
+	 * @param address The aligned address
+	 * @return the base address or {@link SpinLockedTLongLongHashMap#NULL} if the address is not a shifted aligned block
+	 */
+	private static long removeAlignedBase(final long address) {
+		if(alignedBases.get(address)==SpinLockedTLongLongHashMap.NULL) return SpinLockedTLongLongHashMap.NULL;
+		synchronized(alignedBases) {
+			final long base = alignedBases.remove(address);
+			if(base!=SpinLockedTLongLongHashMap.NULL) alignedBaseCount--;
+			return base;
+		}
+	}
+
+	/**
+	 * Returns the number of aligned blocks whose base address differs from the aligned address
+	 * @return the number of shifted aligned blocks
+	 */
+	public static int getShiftedAlignedBlockCount() {
+		return alignedBaseCount;
+	}
+
+	/**
+	 * Indicates if slab allocation is enabled
+	 * @return true if slab allocation is enabled, false otherwise
+	 */
+	public boolean isSlabAllocation() {
+		return slabs!=null;
+	}
+
+	/**
+	 * Indicates if buddy allocation is enabled
+	 * @return true if buddy allocation is enabled, false otherwise
+	 */
+	public boolean isBuddyAllocation() {
+		return buddies!=null;
+	}
+
+}
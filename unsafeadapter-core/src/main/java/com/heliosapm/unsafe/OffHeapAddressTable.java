@@ -0,0 +1,401 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.unsafe;
+
+import sun.misc.Unsafe;
+
+import com.heliosapm.unsafe.Callbacks.SlotVisitor;
+
+/**
+ * <p>Title: OffHeapAddressTable</p>
+ * <p>Description: A concurrent open-addressing hash table, keyed by native memory address, holding the size and optionally 
+ * the alignment overhead of each allocation inline in native memory. Used to track unmanaged allocations so that
+ * tracking adds no objects to the heap however many allocations are live.</p>
+ * <p>The table is split into segments, selected by the high bits of the mixed address, each guarded by its own monitor and 
+ * grown independently. Segments use linear probing with backward shift deletion, so there are no tombstones and an address
+ * of zero marks an empty entry. A zero address (e.g. from a zero byte allocation) is kept in a dedicated entry of its segment.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.unsafe.OffHeapAddressTable</code></p>
+ */
+@SuppressWarnings("restriction")
+public class OffHeapAddressTable {
+    /** The unsafe instance */
+	private static final Unsafe UNSAFE = UnsafeAdapter.theUNSAFE;
+	
+	/** The number of bits of the mixed address used to select a segment */
+	public static final int SEGMENT_BITS = 4;
+	/** The number of segments */
+	public static final int SEGMENTS = 1 << SEGMENT_BITS;
+	/** The minimum number of entries in a segment */
+	public static final int MIN_SEGMENT_CAPACITY = 64;
+	/** The offset of the address in an entry */
+	private static final int ADDRESS_OFFSET = 0;
+	/** The offset of the allocation size in an entry */
+	private static final int SIZE_OFFSET = 8;
+	/** The offset of the alignment overhead in an entry */
+	private static final int OVERHEAD_OFFSET = 16;
+	
+	/** The segments */
+	private final Segment[] segments = new Segment[SEGMENTS];
+	/** Indicates if alignment overhead is stored */
+	private final boolean trackOverhead;
+	/** The number of bytes in an entry */
+	private final int entrySize;
+	
+	/**
+	 * Creates a new OffHeapAddressTable
+	 * @param initialCapacity The initial total capacity in entries
+	 * @param trackOverhead true to store the alignment overhead of each allocation, false to only store the size
+	 */
+	public OffHeapAddressTable(final int initialCapacity, final boolean trackOverhead) {
+		this.trackOverhead = trackOverhead;
+		entrySize = trackOverhead ? 24 : 16;
+		int segmentCapacity = MIN_SEGMENT_CAPACITY;
+		while(segmentCapacity * SEGMENTS < initialCapacity) segmentCapacity <<= 1;
+		for(int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(segmentCapacity);
+		}
+	}
+	
+	/**
+	 * Mixes the bits of an address, which are otherwise mostly zero in the low order bits because of alignment 
+	 * @param address The address to mix
+	 * @return the mixed address
+	 */
+	private static long mix(final long address) {
+		long h = address;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+	
+	/**
+	 * Returns the segment for the passed mixed address
+	 * @param hash The mixed address
+	 * @return the segment
+	 */
+	private Segment segmentFor(final long hash) {
+		return segments[(int)(hash >>> (64 - SEGMENT_BITS))];
+	}
+	
+	/**
+	 * Tracks the size and alignment overhead of an allocation, replacing any prior entry for the same address
+	 * @param address The allocated address
+	 * @param size The allocation size in bytes
+	 * @param alignmentOverhead The alignment overhead in bytes, ignored if overhead is not tracked
+	 * @return true if a prior entry for the address was replaced, false otherwise
+	 */
+	public boolean put(final long address, final long size, final long alignmentOverhead) {
+		final long hash = mix(address);
+		return segmentFor(hash).put(address, hash, size, alignmentOverhead);
+	}
+	
+	/**
+	 * Stops tracking an allocation, passing the removed size and alignment overhead to the passed visitor
+	 * @param address The freed address
+	 * @param visitor The visitor the removed entry is passed to, with an index of -1. Ignored if null.
+	 * @return true if an entry was removed, false if the address was not tracked
+	 */
+	public boolean remove(final long address, final SlotVisitor visitor) {
+		final long hash = mix(address);
+		return segmentFor(hash).remove(address, hash, visitor);
+	}
+	
+	/**
+	 * Returns the tracked size of the allocation at the passed address
+	 * @param address The address to get the size for
+	 * @return the allocation size in bytes or -1 if the address is not tracked
+	 */
+	public long getSize(final long address) {
+		final long hash = mix(address);
+		return segmentFor(hash).getSize(address, hash);
+	}
+	
+	/**
+	 * Returns the tracked alignment overhead of the allocation at the passed address
+	 * @param address The address to get the alignment overhead for
+	 * @return the alignment overhead in bytes, zero if overhead is not tracked, or -1 if the address is not tracked
+	 */
+	public long getOverhead(final long address) {
+		final long hash = mix(address);
+		return segmentFor(hash).getOverhead(address, hash);
+	}
+	
+	/**
+	 * Returns the number of tracked allocations
+	 * @return the number of tracked allocations
+	 */
+	public int size() {
+		int size = 0;
+		for(Segment segment: segments) {
+			size += segment.size();
+		}
+		return size;
+	}
+	
+	/**
+	 * Returns the native memory in bytes held by the table
+	 * @return the size of the table in bytes
+	 */
+	public long getTableBytes() {
+		long bytes = 0L;
+		for(Segment segment: segments) {
+			bytes += segment.capacity() * (long)entrySize;
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Removes all entries and shrinks the segments back to their initial capacity
+	 */
+	public void clear() {
+		for(Segment segment: segments) {
+			segment.clear();
+		}
+	}
+	
+	/**
+	 * <p>Title: Segment</p>
+	 * <p>Description: A monitor guarded, linear probing, off-heap table holding a slice of the address space</p> 
+	 */
+	private class Segment {
+		/** The initial number of entries */
+		private final int initialCapacity;
+		/** The address of the entries */
+		private long table;
+		/** The number of entries, always a power of two */
+		private int capacity;
+		/** The number of used entries */
+		private int size = 0;
+		/** Indicates if the zero address is tracked */
+		private boolean hasZero = false;
+		/** The size of the zero address allocation */
+		private long zeroSize = 0L;
+		/** The alignment overhead of the zero address allocation */
+		private long zeroOverhead = 0L;
+		
+		/**
+		 * Creates a new Segment
+		 * @param initialCapacity The initial number of entries, a power of two
+		 */
+		Segment(final int initialCapacity) {
+			this.initialCapacity = initialCapacity;
+			table = allocateTable(initialCapacity);
+			capacity = initialCapacity;
+		}
+		
+		/**
+		 * Allocates and zeroes a table
+		 * @param entries The number of entries in the table
+		 * @return the address of the table
+		 */
+		private long allocateTable(final int entries) {
+			final long bytes = entries * (long)entrySize;
+			final long address = UNSAFE.allocateMemory(bytes);
+			UNSAFE.setMemory(address, bytes, (byte)0);
+			return address;
+		}
+		
+		/**
+		 * Returns the address of the entry at the passed index
+		 * @param index The index of the entry
+		 * @return the entry address
+		 */
+		private long entry(final int index) {
+			return table + (index * (long)entrySize);
+		}
+		
+		/**
+		 * Finds the index of the entry for the passed address
+		 * @param address The address to find
+		 * @param hash The mixed address
+		 * @return the index of the entry, or -1 if it was not found
+		 */
+		private int find(final long address, final long hash) {
+			final int mask = capacity - 1;
+			int index = (int)hash & mask;
+			while(true) {
+				final long key = UNSAFE.getLong(entry(index) + ADDRESS_OFFSET);
+				if(key==address) return index;
+				if(key==0L) return -1;
+				index = (index + 1) & mask;
+			}
+		}
+		
+		/**
+		 * Tracks an allocation
+		 * @param address The allocated address
+		 * @param hash The mixed address
+		 * @param allocationSize The allocation size
+		 * @param alignmentOverhead The alignment overhead
+		 * @return true if a prior entry for the address was replaced
+		 */
+		synchronized boolean put(final long address, final long hash, final long allocationSize, final long alignmentOverhead) {
+			if(address==0L) {
+				final boolean replaced = hasZero;
+				hasZero = true;
+				zeroSize = allocationSize;
+				zeroOverhead = alignmentOverhead;
+				return replaced;
+			}
+			final int mask = capacity - 1;
+			int index = (int)hash & mask;
+			while(true) {
+				final long e = entry(index);
+				final long key = UNSAFE.getLong(e + ADDRESS_OFFSET);
+				if(key==0L || key==address) {
+					UNSAFE.putLong(e + SIZE_OFFSET, allocationSize);
+					if(trackOverhead) UNSAFE.putLong(e + OVERHEAD_OFFSET, alignmentOverhead);
+					if(key==address) return true;
+					UNSAFE.putLong(e + ADDRESS_OFFSET, address);
+					size++;
+					// keep the load factor under 3/4
+					if(size * 4 > capacity * 3) resize(capacity << 1);
+					return false;
+				}
+				index = (index + 1) & mask;
+			}
+		}
+		
+		/**
+		 * Stops tracking an allocation
+		 * @param address The freed address
+		 * @param hash The mixed address
+		 * @param visitor The visitor to pass the removed entry to
+		 * @return true if an entry was removed
+		 */
+		synchronized boolean remove(final long address, final long hash, final SlotVisitor visitor) {
+			if(address==0L) {
+				if(!hasZero) return false;
+				hasZero = false;
+				if(visitor!=null) visitor.visitSlot(-1, 0L, zeroSize, zeroOverhead);
+				return true;
+			}
+			int index = find(address, hash);
+			if(index==-1) return false;
+			long e = entry(index);
+			final long allocationSize = UNSAFE.getLong(e + SIZE_OFFSET);
+			final long alignmentOverhead = trackOverhead ? UNSAFE.getLong(e + OVERHEAD_OFFSET) : 0L;
+			// shift back any following entries that would no longer be reachable from their home index
+			final int mask = capacity - 1;
+			int next = index;
+			while(true) {
+				next = (next + 1) & mask;
+				final long ne = entry(next);
+				final long key = UNSAFE.getLong(ne + ADDRESS_OFFSET);
+				if(key==0L) break;
+				final int home = (int)mix(key) & mask;
+				final boolean stays = index <= next ? (index < home && home <= next) : (index < home || home <= next);
+				if(stays) continue;
+				UNSAFE.copyMemory(ne, e, entrySize);
+				index = next;
+				e = ne;
+			}
+			UNSAFE.putLong(e + ADDRESS_OFFSET, 0L);
+			size--;
+			if(visitor!=null) visitor.visitSlot(-1, address, allocationSize, alignmentOverhead);
+			return true;
+		}
+		
+		/**
+		 * Returns the tracked size of an allocation
+		 * @param address The allocated address
+		 * @param hash The mixed address
+		 * @return the size or -1 if the address is not tracked
+		 */
+		synchronized long getSize(final long address, final long hash) {
+			if(address==0L) return hasZero ? zeroSize : -1L;
+			final int index = find(address, hash);
+			return index==-1 ? -1L : UNSAFE.getLong(entry(index) + SIZE_OFFSET);
+		}
+		
+		/**
+		 * Returns the tracked alignment overhead of an address
+		 * @param address The address
+		 * @param hash The mixed hash of the address
+		 * @return the alignment overhead, zero if overhead is not tracked, or -1 if the address is not tracked
+		 */
+		synchronized long getOverhead(final long address, final long hash) {
+			if(address==0L) return hasZero ? zeroOverhead : -1L;
+			final int index = find(address, hash);
+			if(index==-1) return -1L;
+			return trackOverhead ? UNSAFE.getLong(entry(index) + OVERHEAD_OFFSET) : 0L;
+		}
+		
+		/**
+		 * Moves all the entries into a new table
+		 * @param newCapacity The number of entries in the new table
+		 */
+		private void resize(final int newCapacity) {
+			final long oldTable = table;
+			final int oldCapacity = capacity;
+			table = allocateTable(newCapacity);
+			capacity = newCapacity;
+			final int mask = newCapacity - 1;
+			for(int i = 0; i < oldCapacity; i++) {
+				final long oe = oldTable + (i * (long)entrySize);
+				final long key = UNSAFE.getLong(oe + ADDRESS_OFFSET);
+				if(key==0L) continue;
+				int index = (int)mix(key) & mask;
+				while(UNSAFE.getLong(entry(index) + ADDRESS_OFFSET)!=0L) {
+					index = (index + 1) & mask;
+				}
+				UNSAFE.copyMemory(oe, entry(index), entrySize);
+			}
+			UNSAFE.freeMemory(oldTable);
+		}
+		
+		/**
+		 * Returns the number of tracked allocations
+		 * @return the number of tracked allocations
+		 */
+		synchronized int size() {
+			return hasZero ? size + 1 : size;
+		}
+		
+		/**
+		 * Returns the number of entries
+		 * @return the number of entries
+		 */
+		synchronized int capacity() {
+			return capacity;
+		}
+		
+		/**
+		 * Removes all entries and shrinks back to the initial capacity
+		 */
+		synchronized void clear() {
+			UNSAFE.freeMemory(table);
+			table = allocateTable(initialCapacity);
+			capacity = initialCapacity;
+			size = 0;
+			hasZero = false;
+		}
+	}
+}
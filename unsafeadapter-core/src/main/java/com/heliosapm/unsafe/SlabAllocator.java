@@ -0,0 +1,321 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.unsafe;
+
+import gnu.trove.list.array.TLongArrayList;
+import sun.misc.Unsafe;
+
+import com.heliosapm.unsafe.unmanaged.MemSpinLock;
+import com.heliosapm.unsafe.unmanaged.SpinLockedTLongLongHashMap;
+
+/**
+ * <p>Title: SlabAllocator</p>
+ * <p>Description: A size-class slab allocator for small native memory blocks.
+ * Requests of {@link #MIN_BLOCK_SIZE} up to {@link #MAX_BLOCK_SIZE} bytes are rounded up to the next power of two
+ * and carved out of large, slab-size aligned native slabs. Freed blocks are pushed onto an intrusive per size-class
+ * free list (the next pointer lives in the first word of the freed block) and handed out again on the next allocation of that class.</p>
+ * <p>Slabs are reserved from the OS in batches of {@link #SLABS_PER_RESERVATION} and are never returned, so the
+ * allocator is a process wide singleton: a block carved from a slab can always be freed back,
+ * regardless of how the {@link UnsafeAdapter} is currently configured.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.unsafe.SlabAllocator</code></p>
+ */
+@SuppressWarnings("restriction")
+public class SlabAllocator {
+	// =========================================================
+	//  Singleton
+	// =========================================================
+	/** The singleton instance */
+	private static volatile SlabAllocator instance = null;
+	/** The singleton instance ctor lock */
+	private static final Object lock = new Object();
+
+	// =========================================================
+	//  Statics
+	// =========================================================
+    /** The unsafe instance */
+	private static final Unsafe unsafe = UnsafeAdapter.theUNSAFE;
+
+	/** The system prop defining the slab size in bytes. Rounded up to the next power of two, and never less than {@link #MAX_BLOCK_SIZE} */
+	public static final String SLAB_SIZE_PROP = "unsafe.allocations.slab.size";
+	/** The default slab size in bytes */
+	public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+	/** The number of slabs reserved from the OS in one native allocation */
+	public static final int SLABS_PER_RESERVATION = 8;
+
+	/** The smallest block size handed out by the slab allocator */
+	public static final int MIN_BLOCK_SIZE = 16;
+	/** The largest block size handed out by the slab allocator. Larger requests go to malloc. */
+	public static final int MAX_BLOCK_SIZE = 64 * 1024;
+	/** The shift of the smallest block size */
+	private static final int MIN_BLOCK_SHIFT = 4;
+	/** The number of size classes */
+	public static final int SIZE_CLASS_COUNT = 13;
+
+	// =========================================================
+	//  Instance
+	// =========================================================
+	/** The slab size in bytes */
+	final long slabSize;
+	/** The shift to get from an address to its slab number */
+	final int slabShift;
+	/** The size class index of each slab handed out, keyed by the slab number */
+	final SpinLockedTLongLongHashMap slabIndex = new SpinLockedTLongLongHashMap(128, 0.5f);
+	/** The size classes */
+	final SizeClass[] sizeClasses = new SizeClass[SIZE_CLASS_COUNT];
+	/** The spin lock guarding the slab reservations */
+	final MemSpinLock slabLock = new MemSpinLock();
+	/** The base addresses of the raw native reservations the slabs are carved from */
+	final TLongArrayList reservations = new TLongArrayList();
+	/** The aligned slab addresses that have been reserved but not yet assigned to a size class */
+	final TLongArrayList freeSlabs = new TLongArrayList();
+	/** The total number of bytes reserved from the OS */
+	private volatile long reservedMemory = 0L;
+	/** The number of slabs assigned to a size class */
+	private volatile int slabCount = 0;
+
+	/**
+	 * <p>Title: SizeClass</p>
+	 * <p>Description: The allocation state of one size class. All fields are guarded by the class's spin lock.</p>
+	 */
+	static final class SizeClass {
+		/** The block size of this class */
+		final int blockSize;
+		/** The spin lock guarding this size class */
+		final MemSpinLock lock = new MemSpinLock();
+		/** The address of the first free block, or zero if the free list is empty */
+		long freeHead = 0L;
+		/** The next never used address in the current slab */
+		long bumpAddress = 0L;
+		/** The end address of the current slab */
+		long bumpLimit = 0L;
+		/** The number of blocks of this class currently handed out */
+		long inUse = 0L;
+
+		/**
+		 * Creates a new SizeClass
+		 * @param blockSize The block size of this class
+		 */
+		SizeClass(final int blockSize) {
+			this.blockSize = blockSize;
+		}
+	}
+
+	/**
+	 * Acquires the singleton SlabAllocator and initializes it on first access.
+	 * @return the singleton SlabAllocator
+	 */
+	public static SlabAllocator getInstance() {
+		if(instance==null) {
+			synchronized(lock) {
+				if(instance==null) {
+					instance = new SlabAllocator();
+				}
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Returns the singleton SlabAllocator if it has been created, without creating it.
+	 * @return the singleton SlabAllocator or null if slab allocation was never enabled
+	 */
+	static SlabAllocator getInstanceIfCreated() {
+		return instance;
+	}
+
+	/**
+	 * Creates a new SlabAllocator
+	 */
+	private SlabAllocator() {
+		int size = DEFAULT_SLAB_SIZE;
+		try {
+			size = Integer.parseInt(System.getProperty(SLAB_SIZE_PROP, "" + DEFAULT_SLAB_SIZE).trim());
+		} catch (Exception ex) {
+			size = DEFAULT_SLAB_SIZE;
+		}
+		slabSize = Long.highestOneBit(Math.max(size, MAX_BLOCK_SIZE) - 1L) << 1;
+		slabShift = Long.numberOfTrailingZeros(slabSize);
+		for(int i = 0; i < SIZE_CLASS_COUNT; i++) {
+			sizeClasses[i] = new SizeClass(MIN_BLOCK_SIZE << i);
+		}
+	}
+
+	/**
+	 * Returns the size class index for the passed size
+	 * @param size The requested size in bytes, which must be no larger than {@link #MAX_BLOCK_SIZE}
+	 * @return the size class index
+	 */
+	static int sizeClassIndex(final long size) {
+		if(size <= MIN_BLOCK_SIZE) return 0;
+		return (64 - Long.numberOfLeadingZeros(size-1)) - MIN_BLOCK_SHIFT;
+	}
+
+	/**
+	 * Allocates a block from the size class that fits the requested size
+	 * @param size The requested size in bytes
+	 * @return the address of the allocated block, or zero if the size is out of the slab allocator's range
+	 */
+	public long allocate(final long size) {
+		if(size < 1 || size > MAX_BLOCK_SIZE) return 0L;
+		final int index = sizeClassIndex(size);
+		final SizeClass sc = sizeClasses[index];
+		sc.lock.xlock();
+		try {
+			long address = sc.freeHead;
+			if(address!=0L) {
+				sc.freeHead = unsafe.getAddress(address);
+			} else {
+				if(sc.bumpAddress==sc.bumpLimit) {
+					final long slab = acquireSlab(index);
+					sc.bumpAddress = slab;
+					sc.bumpLimit = slab + slabSize;
+				}
+				address = sc.bumpAddress;
+				sc.bumpAddress += sc.blockSize;
+			}
+			sc.inUse++;
+			return address;
+		} finally {
+			sc.lock.xunlock();
+		}
+	}
+
+	/**
+	 * Returns a block to the free list of its size class
+	 * @param address The address of the block to free
+	 * @return true if the address belonged to a slab and was freed, false if it was not allocated by this allocator
+	 */
+	public boolean free(final long address) {
+		final long index = slabIndex.get(address >>> slabShift);
+		if(index==SpinLockedTLongLongHashMap.NULL) return false;
+		final SizeClass sc = sizeClasses[(int)index];
+		sc.lock.xlock();
+		try {
+			unsafe.putAddress(address, sc.freeHead);
+			sc.freeHead = address;
+			sc.inUse--;
+		} finally {
+			sc.lock.xunlock();
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the block size of the slab block at the passed address
+	 * @param address The address to test
+	 * @return the block size or -1 if the address was not allocated by this allocator
+	 */
+	public int getBlockSize(final long address) {
+		final long index = slabIndex.get(address >>> slabShift);
+		if(index==SpinLockedTLongLongHashMap.NULL) return -1;
+		return sizeClasses[(int)index].blockSize;
+	}
+
+	/**
+	 * Indicates if a block of the passed block size can be reused in place for the passed new size,
+	 * i.e. the new size falls in the same size class.
+	 * @param blockSize The current block size
+	 * @param size The requested new size
+	 * @return true if the block can be resized in place
+	 */
+	static boolean fitsInPlace(final int blockSize, final long size) {
+		return size <= blockSize && (blockSize==MIN_BLOCK_SIZE || size > (blockSize >> 1));
+	}
+
+	/**
+	 * Assigns a free slab to the size class with the passed index, reserving more slabs from the OS if none are free.
+	 * @param classIndex The index of the size class the slab will be carved up for
+	 * @return the aligned address of the slab
+	 */
+	private long acquireSlab(final int classIndex) {
+		slabLock.xlock();
+		try {
+			if(freeSlabs.isEmpty()) {
+				reserveSlabs();
+			}
+			final long slab = freeSlabs.removeAt(freeSlabs.size()-1);
+			slabIndex.put(slab >>> slabShift, classIndex);
+			slabCount++;
+			return slab;
+		} finally {
+			slabLock.xunlock();
+		}
+	}
+
+	/**
+	 * Reserves a new batch of slabs from the OS. Over-allocates by one slab so that
+	 * {@link #SLABS_PER_RESERVATION} slab aligned slabs can be carved out of the reservation.
+	 * Must be called with the slab lock held.
+	 */
+	private void reserveSlabs() {
+		final long reservationSize = slabSize * (SLABS_PER_RESERVATION + 1);
+		final long base = unsafe.allocateMemory(reservationSize);
+		final long end = base + reservationSize;
+		reservations.add(base);
+		reservedMemory += reservationSize;
+		for(long slab = (base + slabSize - 1) & -slabSize; slab + slabSize <= end; slab += slabSize) {
+			freeSlabs.add(slab);
+		}
+	}
+
+	/**
+	 * Returns the total number of bytes reserved from the OS for slabs
+	 * @return the total number of reserved bytes
+	 */
+	public long getReservedMemory() {
+		return reservedMemory;
+	}
+
+	/**
+	 * Returns the number of slabs assigned to a size class
+	 * @return the number of slabs in use
+	 */
+	public int getSlabCount() {
+		return slabCount;
+	}
+
+	/**
+	 * Returns the number of blocks currently handed out across all size classes
+	 * @return the number of blocks in use
+	 */
+	public long getBlocksInUse() {
+		long total = 0L;
+		for(SizeClass sc: sizeClasses) {
+			total += sc.inUse;
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the slab size in bytes
+	 * @return the slab size
+	 */
+	public long getSlabSize() {
+		return slabSize;
+	}
+
+}
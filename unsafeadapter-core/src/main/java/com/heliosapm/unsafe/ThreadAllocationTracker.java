@@ -0,0 +1,337 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.unsafe;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * <p>Title: ThreadAllocationTracker</p>
+ * <p>Description: Accounts the native memory allocated and freed by each thread, the off-heap equivalent of the heap
+ * allocation accounting of <code>com.sun.management.ThreadMXBean.getThreadAllocatedBytes</code>.</p>
+ * <p>Each thread updates its own counters, which are only ever written by that thread with ordered (lazy) writes, 
+ * so there are no shared writes or fences on the allocation path. The counters are registered when a thread first 
+ * allocates so that snapshots can read them, and the totals of threads found to have terminated are folded into one
+ * terminated threads total when a snapshot is taken or another thread registers, so the registered counters
+ * stay bounded by the live threads even if no snapshots are taken.</p>
+ * <p>Freed memory is attributed to the thread that freed it, which for collected AllocationPointers is a cleaner thread, 
+ * so a thread's allocated bytes less its freed bytes is not necessarily the memory it still holds.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.unsafe.ThreadAllocationTracker</code></p>
+ */
+public class ThreadAllocationTracker {
+	/** The thread id reported for the totals of terminated threads */
+	public static final long TERMINATED_THREAD_ID = -1L;
+	/** The thread name reported for the totals of terminated threads */
+	public static final String TERMINATED_THREAD_NAME = "[terminated]";
+	
+	/** Ordered writer for the allocated bytes counter */
+	private static final AtomicLongFieldUpdater<ThreadCounter> ALLOCATED_BYTES = AtomicLongFieldUpdater.newUpdater(ThreadCounter.class, "allocatedBytes");
+	/** Ordered writer for the allocation count counter */
+	private static final AtomicLongFieldUpdater<ThreadCounter> ALLOCATION_COUNT = AtomicLongFieldUpdater.newUpdater(ThreadCounter.class, "allocationCount");
+	/** Ordered writer for the freed bytes counter */
+	private static final AtomicLongFieldUpdater<ThreadCounter> FREED_BYTES = AtomicLongFieldUpdater.newUpdater(ThreadCounter.class, "freedBytes");
+	/** Ordered writer for the free count counter */
+	private static final AtomicLongFieldUpdater<ThreadCounter> FREE_COUNT = AtomicLongFieldUpdater.newUpdater(ThreadCounter.class, "freeCount");
+	
+	/** The counters of the threads that have allocated or freed memory */
+	private final ConcurrentLinkedQueue<ThreadCounter> registered = new ConcurrentLinkedQueue<ThreadCounter>();
+	/** The per thread counters, replaced on reset so threads register new counters */
+	private volatile ThreadLocal<ThreadCounter> counters = newCounters();
+	/** The totals of terminated threads */
+	private final ThreadCounter terminated = new ThreadCounter(null);
+	
+	/**
+	 * Creates a new thread local that registers the counter it creates for each thread
+	 * @return the new thread local
+	 */
+	private ThreadLocal<ThreadCounter> newCounters() {
+		return new ThreadLocal<ThreadCounter>() {
+			@Override
+			protected ThreadCounter initialValue() {
+				final ThreadCounter counter = new ThreadCounter(Thread.currentThread());
+				for(ThreadCounter tc: registered) {
+					prune(tc);
+				}
+				registered.add(counter);
+				return counter;
+			}
+		};
+	}
+	
+	/**
+	 * Records memory allocated by the calling thread
+	 * @param bytes The number of bytes allocated
+	 * @param count The number of allocations
+	 */
+	public void allocated(final long bytes, final long count) {
+		counters.get().allocated(bytes, count);
+	}
+	
+	/**
+	 * Records memory freed by the calling thread
+	 * @param bytes The number of bytes freed
+	 * @param count The number of freed allocations
+	 */
+	public void freed(final long bytes, final long count) {
+		counters.get().freed(bytes, count);
+	}
+	
+	/**
+	 * Returns the accounting of the calling thread
+	 * @return the calling thread's accounting
+	 */
+	public ThreadStats getCurrentThreadStats() {
+		return counters.get().snapshot();
+	}
+	
+	/**
+	 * Returns a snapshot of the accounting of each live thread that has allocated or freed memory,
+	 * folding the counters of threads that have terminated since the last snapshot into the terminated threads total
+	 * @return an array of per thread accounting snapshots
+	 */
+	public ThreadStats[] snapshot() {
+		final List<ThreadStats> stats = new ArrayList<ThreadStats>(registered.size());
+		for(Iterator<ThreadCounter> iter = registered.iterator(); iter.hasNext();) {
+			final ThreadCounter counter = iter.next();
+			if(!prune(counter)) stats.add(counter.snapshot());
+		}
+		return stats.toArray(new ThreadStats[stats.size()]);
+	}
+	
+	/**
+	 * Unregisters the passed counter and folds it into the terminated threads total if its thread has terminated
+	 * @param counter The counter to test
+	 * @return true if the counter's thread has terminated, false if it is still alive
+	 */
+	private boolean prune(final ThreadCounter counter) {
+		final Thread thread = counter.thread.get();
+		if(thread!=null && thread.isAlive()) return false;
+		// only the caller that removes the counter retires it
+		if(registered.remove(counter)) retire(counter);
+		return true;
+	}
+	
+	/**
+	 * Returns the accounting totals of the threads that have terminated, as of the last snapshot or thread registration
+	 * @return the terminated threads accounting
+	 */
+	public ThreadStats getTerminatedStats() {
+		synchronized(terminated) {
+			return terminated.snapshot();
+		}
+	}
+	
+	/**
+	 * Adds the final counts of a terminated thread to the terminated threads total
+	 * @param counter The counter of the terminated thread
+	 */
+	private void retire(final ThreadCounter counter) {
+		synchronized(terminated) {
+			terminated.allocated(counter.allocatedBytes, counter.allocationCount);
+			terminated.freed(counter.freedBytes, counter.freeCount);
+		}
+	}
+	
+	/**
+	 * <b>TEST HOOK ONLY !</b>
+	 * Discards all the accounting. Threads start new counters on their next allocation or free.
+	 */
+	void reset() {
+		counters = newCounters();
+		registered.clear();
+		synchronized(terminated) {
+			ALLOCATED_BYTES.set(terminated, 0L);
+			ALLOCATION_COUNT.set(terminated, 0L);
+			FREED_BYTES.set(terminated, 0L);
+			FREE_COUNT.set(terminated, 0L);
+		}
+	}
+	
+	/**
+	 * <p>Title: ThreadCounter</p>
+	 * <p>Description: The counters of one thread, written only by that thread</p> 
+	 */
+	private static final class ThreadCounter {
+		/** The counted thread */
+		final WeakReference<Thread> thread;
+		/** The id of the counted thread */
+		final long threadId;
+		/** The total bytes allocated */
+		volatile long allocatedBytes = 0L;
+		/** The number of allocations */
+		volatile long allocationCount = 0L;
+		/** The total bytes freed */
+		volatile long freedBytes = 0L;
+		/** The number of frees */
+		volatile long freeCount = 0L;
+		
+		/**
+		 * Creates a new ThreadCounter
+		 * @param thread The counted thread, or null for the terminated threads total
+		 */
+		ThreadCounter(final Thread thread) {
+			this.thread = new WeakReference<Thread>(thread);
+			threadId = thread==null ? TERMINATED_THREAD_ID : thread.getId();
+		}
+		
+		/**
+		 * Adds to the allocated counters
+		 * @param bytes The number of bytes allocated
+		 * @param count The number of allocations
+		 */
+		void allocated(final long bytes, final long count) {
+			ALLOCATED_BYTES.lazySet(this, allocatedBytes + bytes);
+			ALLOCATION_COUNT.lazySet(this, allocationCount + count);
+		}
+		
+		/**
+		 * Adds to the freed counters
+		 * @param bytes The number of bytes freed
+		 * @param count The number of frees
+		 */
+		void freed(final long bytes, final long count) {
+			FREED_BYTES.lazySet(this, freedBytes + bytes);
+			FREE_COUNT.lazySet(this, freeCount + count);
+		}
+		
+		/**
+		 * Returns a snapshot of the counters
+		 * @return the counter snapshot
+		 */
+		ThreadStats snapshot() {
+			final Thread t = thread.get();
+			final String name = threadId==TERMINATED_THREAD_ID ? TERMINATED_THREAD_NAME : t==null ? "Thread#" + threadId : t.getName();
+			return new ThreadStats(threadId, name, allocatedBytes, allocationCount, freedBytes, freeCount);
+		}
+	}
+	
+	/**
+	 * <p>Title: ThreadStats</p>
+	 * <p>Description: An immutable snapshot of the native memory accounting of one thread</p> 
+	 */
+	public static final class ThreadStats {
+		/** The thread id */
+		private final long threadId;
+		/** The thread name */
+		private final String threadName;
+		/** The total bytes allocated */
+		private final long allocatedBytes;
+		/** The number of allocations */
+		private final long allocationCount;
+		/** The total bytes freed */
+		private final long freedBytes;
+		/** The number of frees */
+		private final long freeCount;
+		
+		/**
+		 * Creates a new ThreadStats
+		 * @param threadId The thread id
+		 * @param threadName The thread name
+		 * @param allocatedBytes The total bytes allocated
+		 * @param allocationCount The number of allocations
+		 * @param freedBytes The total bytes freed
+		 * @param freeCount The number of frees
+		 */
+		ThreadStats(final long threadId, final String threadName, final long allocatedBytes, final long allocationCount, final long freedBytes, final long freeCount) {
+			this.threadId = threadId;
+			this.threadName = threadName;
+			this.allocatedBytes = allocatedBytes;
+			this.allocationCount = allocationCount;
+			this.freedBytes = freedBytes;
+			this.freeCount = freeCount;
+		}
+
+		/**
+		 * Returns the thread id, or {@link ThreadAllocationTracker#TERMINATED_THREAD_ID} for the terminated threads total
+		 * @return the thread id
+		 */
+		public long getThreadId() {
+			return threadId;
+		}
+
+		/**
+		 * Returns the thread name
+		 * @return the thread name
+		 */
+		public String getThreadName() {
+			return threadName;
+		}
+
+		/**
+		 * Returns the total bytes allocated by the thread
+		 * @return the total bytes allocated
+		 */
+		public long getAllocatedBytes() {
+			return allocatedBytes;
+		}
+
+		/**
+		 * Returns the number of allocations made by the thread
+		 * @return the number of allocations
+		 */
+		public long getAllocationCount() {
+			return allocationCount;
+		}
+
+		/**
+		 * Returns the total bytes freed by the thread
+		 * @return the total bytes freed
+		 */
+		public long getFreedBytes() {
+			return freedBytes;
+		}
+
+		/**
+		 * Returns the number of allocations freed by the thread
+		 * @return the number of frees
+		 */
+		public long getFreeCount() {
+			return freeCount;
+		}
+		
+		/**
+		 * Returns the key identifying the thread in the JMX attribute maps
+		 * @return the thread name and id
+		 */
+		public String getKey() {
+			return threadId==TERMINATED_THREAD_ID ? threadName : threadName + "#" + threadId;
+		}
+
+		/**
+		 * {@inheritDoc}
+		 * @see java.lang.Object#toString()
+		 */
+		@Override
+		public String toString() {
+			return String.format("ThreadStats [%s, allocated: %s bytes in %s, freed: %s bytes in %s]", getKey(), allocatedBytes, allocationCount, freedBytes, freeCount);
+		}
+	}
+}
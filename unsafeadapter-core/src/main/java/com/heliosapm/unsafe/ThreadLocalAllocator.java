@@ -0,0 +1,405 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org.
+ *
+ */
+package com.heliosapm.unsafe;
+
+import gnu.trove.list.array.TLongArrayList;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import sun.misc.Unsafe;
+
+import com.heliosapm.unsafe.unmanaged.MemSpinLock;
+import com.heliosapm.unsafe.unmanaged.SpinLockedTLongLongHashMap;
+
+/**
+ * <p>Title: ThreadLocalAllocator</p>
+ * <p>Description: Thread local allocation buffers (TLABs) for tiny native memory allocations.
+ * Each thread owns a private {@link #CHUNK_SIZE} native chunk and bump-allocates blocks of up to {@link #MAX_BLOCK_SIZE} bytes
+ * from it, with no atomic operations on the allocation path. The allocation accounting for blocks handed out by a buffer is also kept
+ * in the buffer and applied to the {@link AllocationReferenceManager} counters when the chunk is exhausted, so the shared
+ * counters are touched once per chunk rather than once per allocation.</p>
+ * <p>Each chunk starts with a live block counter. Blocks freed by any thread decrement the counter, and when the owning thread retires
+ * an exhausted chunk it adds the number of blocks it handed out. Whichever update brings the counter back to zero releases the chunk
+ * to a shared pool, from which threads take chunks in batches. Surplus pooled chunks are returned to the {@link SlabAllocator} in batches.</p>
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>com.heliosapm.unsafe.ThreadLocalAllocator</code></p>
+ */
+@SuppressWarnings("restriction")
+public class ThreadLocalAllocator {
+	// =========================================================
+	//  Statics
+	// =========================================================
+    /** The unsafe instance */
+	private static final Unsafe unsafe = UnsafeAdapter.theUNSAFE;
+
+	/** The size of a thread local chunk in bytes. Chunks are 64 Kb slab blocks, so they are naturally aligned to their size */
+	public static final int CHUNK_SIZE = SlabAllocator.MAX_BLOCK_SIZE;
+	/** The largest allocation served from a thread local buffer */
+	public static final int MAX_BLOCK_SIZE = 512;
+	/** The number of chunks moved between the shared pool and a thread in one go */
+	public static final int CHUNK_BATCH = 4;
+	/** The maximum number of released chunks kept in the shared pool */
+	public static final int MAX_POOLED_CHUNKS = 8 * CHUNK_BATCH;
+	/** The size of the live block counter at the start of each chunk */
+	private static final int CHUNK_HEADER_SIZE = 8;
+	/** The size of the block size prefix in front of each block */
+	private static final int BLOCK_HEADER_SIZE = 8;
+	/** The shift to get from an address to its chunk number */
+	private static final int CHUNK_SHIFT = Integer.numberOfTrailingZeros(CHUNK_SIZE);
+	/** The mask to get from an address to its chunk address */
+	private static final long CHUNK_MASK = -((long)CHUNK_SIZE);
+
+	/** All the chunks currently owned by the thread local allocators, keyed by chunk number */
+	private static final SpinLockedTLongLongHashMap chunks = new SpinLockedTLongLongHashMap(128, 0.5f);
+	/** Released chunks available for reuse */
+	private static final TLongArrayList pooledChunks = new TLongArrayList();
+	/** The spin lock guarding the chunk pool */
+	private static final MemSpinLock poolLock = new MemSpinLock();
+	/** Indicates if any thread local allocator has ever handed out a chunk */
+	private static volatile boolean active = false;
+
+	// =========================================================
+	//  Instance
+	// =========================================================
+	/** The reference manager the deferred accounting is applied to */
+	final AllocationReferenceManager refMgr;
+	/** All the buffers created by this allocator, so pending accounting can be read and dead threads' buffers retired */
+	final ConcurrentLinkedQueue<Buffer> buffers = new ConcurrentLinkedQueue<Buffer>();
+	/** The calling thread's buffer */
+	private final ThreadLocal<Buffer> localBuffer = new ThreadLocal<Buffer>() {
+		@Override
+		protected Buffer initialValue() {
+			final Buffer buffer = new Buffer(Thread.currentThread());
+			buffers.add(buffer);
+			return buffer;
+		}
+	};
+
+	/**
+	 * Creates a new ThreadLocalAllocator
+	 * @param refMgr The reference manager the deferred accounting is applied to
+	 */
+	public ThreadLocalAllocator(final AllocationReferenceManager refMgr) {
+		this.refMgr = refMgr;
+	}
+
+	/**
+	 * Returns the calling thread's allocation buffer
+	 * @return the calling thread's allocation buffer
+	 */
+	public Buffer buffer() {
+		return localBuffer.get();
+	}
+
+	/**
+	 * Indicates if the passed size can be served from a thread local buffer
+	 * @param size The requested size in bytes
+	 * @return true if the size can be served from a thread local buffer
+	 */
+	public static boolean accepts(final long size) {
+		return size > 0 && size <= MAX_BLOCK_SIZE;
+	}
+
+	/**
+	 * <p>Title: Buffer</p>
+	 * <p>Description: A thread's allocation buffer. Only the allocation state is confined to the owning thread.
+	 * The pending accounting fields are read without synchronization by the stats getters, so they are only exact
+	 * once the owning thread is quiescent.</p>
+	 */
+	public final class Buffer {
+		/** The owning thread */
+		final WeakReference<Thread> owner;
+		/** The current chunk, or zero */
+		long chunk = 0L;
+		/** The next free address in the current chunk */
+		long cursor = 0L;
+		/** The end address of the current chunk */
+		long limit = 0L;
+		/** The number of blocks handed out from the current chunk */
+		long allocated = 0L;
+		/** Chunks taken from the pool and not yet used */
+		final TLongArrayList stash = new TLongArrayList(CHUNK_BATCH);
+		/** Allocated bytes not yet applied to the reference manager */
+		long pendingBytes = 0L;
+		/** Allocation count not yet applied to the reference manager */
+		long pendingCount = 0L;
+		/** Alignment overhead not yet applied to the reference manager */
+		long pendingOverhead = 0L;
+
+		/**
+		 * Creates a new Buffer
+		 * @param owner The owning thread
+		 */
+		Buffer(final Thread owner) {
+			this.owner = new WeakReference<Thread>(owner);
+		}
+
+		/**
+		 * Bump-allocates a block from the current chunk, retiring it and moving to the next one if it is exhausted
+		 * @param size The requested size, which must be accepted by {@link ThreadLocalAllocator#accepts(long)}
+		 * @return the address of the block
+		 */
+		public long allocate(final long size) {
+			final long blockSize = (size + 7) & ~7L;
+			final long need = blockSize + BLOCK_HEADER_SIZE;
+			if(cursor + need > limit) {
+				nextChunk();
+			}
+			final long block = cursor;
+			unsafe.putLong(block, blockSize);
+			cursor += need;
+			allocated++;
+			return block + BLOCK_HEADER_SIZE;
+		}
+
+		/**
+		 * Defers the accounting of an allocation until the current chunk is retired
+		 * @param size The allocation size
+		 * @param alignmentOverhead The alignment overhead
+		 */
+		void pend(final long size, final long alignmentOverhead) {
+			pendingBytes += size;
+			pendingCount++;
+			pendingOverhead += alignmentOverhead;
+		}
+
+		/**
+		 * Applies the pending accounting to the reference manager
+		 */
+		public void flush() {
+			if(pendingCount!=0L) {
+				refMgr.applyDelta(pendingBytes, pendingCount, pendingOverhead);
+				pendingBytes = 0L;
+				pendingCount = 0L;
+				pendingOverhead = 0L;
+			}
+		}
+
+		/**
+		 * Retires the current chunk, flushes the pending accounting, and starts bump allocating from the next chunk
+		 */
+		private void nextChunk() {
+			retire();
+			flush();
+			if(stash.isEmpty()) {
+				reapDeadBuffers();
+				takeChunks(stash);
+			}
+			chunk = stash.removeAt(stash.size()-1);
+			unsafe.putLongVolatile(null, chunk, 0L);
+			cursor = chunk + CHUNK_HEADER_SIZE;
+			limit = chunk + CHUNK_SIZE;
+			allocated = 0L;
+		}
+
+		/**
+		 * Hands the current chunk's block count over to the chunk's live counter
+		 */
+		private void retire() {
+			if(chunk!=0L) {
+				if(addLive(chunk, allocated)==0L) {
+					releaseChunk(chunk);
+				}
+				chunk = 0L;
+				cursor = 0L;
+				limit = 0L;
+				allocated = 0L;
+			}
+		}
+
+		/**
+		 * Retires the buffer of a terminated thread
+		 */
+		private void close() {
+			retire();
+			flush();
+			for(int i = 0; i < stash.size(); i++) {
+				releaseChunk(stash.get(i));
+			}
+			stash.clear();
+		}
+	}
+
+	/**
+	 * Retires and removes the buffers of terminated threads
+	 */
+	private void reapDeadBuffers() {
+		for(Iterator<Buffer> iter = buffers.iterator(); iter.hasNext();) {
+			final Buffer buffer = iter.next();
+			if(buffer.owner.get()==null && buffers.remove(buffer)) {
+				buffer.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the allocated bytes not yet applied to the reference manager across all buffers
+	 * @return the pending allocated bytes
+	 */
+	public long getPendingBytes() {
+		long total = 0L;
+		for(Buffer buffer: buffers) {
+			total += buffer.pendingBytes;
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the allocation count not yet applied to the reference manager across all buffers
+	 * @return the pending allocation count
+	 */
+	public long getPendingCount() {
+		long total = 0L;
+		for(Buffer buffer: buffers) {
+			total += buffer.pendingCount;
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the alignment overhead not yet applied to the reference manager across all buffers
+	 * @return the pending alignment overhead
+	 */
+	public long getPendingOverhead() {
+		long total = 0L;
+		for(Buffer buffer: buffers) {
+			total += buffer.pendingOverhead;
+		}
+		return total;
+	}
+
+	// =========================================================
+	//  Chunk management
+	// =========================================================
+
+	/**
+	 * Atomically adds to the live block counter of a chunk
+	 * @param chunk The chunk address
+	 * @param delta The value to add
+	 * @return the updated counter
+	 */
+	private static long addLive(final long chunk, final long delta) {
+		long current;
+		do {
+			current = unsafe.getLongVolatile(null, chunk);
+		} while(!unsafe.compareAndSwapLong(null, chunk, current, current + delta));
+		return current + delta;
+	}
+
+	/**
+	 * Moves a batch of chunks into the passed list, from the pool if possible, otherwise from the slab allocator
+	 * @param into The list to add the chunks to
+	 */
+	private static void takeChunks(final TLongArrayList into) {
+		poolLock.xlock();
+		try {
+			for(int i = 0; i < CHUNK_BATCH && !pooledChunks.isEmpty(); i++) {
+				into.add(pooledChunks.removeAt(pooledChunks.size()-1));
+			}
+		} finally {
+			poolLock.xunlock();
+		}
+		if(into.isEmpty()) {
+			final SlabAllocator slabs = SlabAllocator.getInstance();
+			for(int i = 0; i < CHUNK_BATCH; i++) {
+				final long chunk = slabs.allocate(CHUNK_SIZE);
+				chunks.put(chunk >>> CHUNK_SHIFT, chunk);
+				into.add(chunk);
+			}
+			active = true;
+		}
+	}
+
+	/**
+	 * Releases a chunk with no live blocks to the pool, returning a batch of chunks to the slab allocator if the pool is full
+	 * @param chunk The chunk address
+	 */
+	private static void releaseChunk(final long chunk) {
+		long[] surplus = null;
+		poolLock.xlock();
+		try {
+			pooledChunks.add(chunk);
+			if(pooledChunks.size() > MAX_POOLED_CHUNKS) {
+				surplus = new long[CHUNK_BATCH];
+				for(int i = 0; i < CHUNK_BATCH; i++) {
+					surplus[i] = pooledChunks.removeAt(pooledChunks.size()-1);
+				}
+			}
+		} finally {
+			poolLock.xunlock();
+		}
+		if(surplus!=null) {
+			final SlabAllocator slabs = SlabAllocator.getInstance();
+			for(long c: surplus) {
+				chunks.remove(c >>> CHUNK_SHIFT);
+				slabs.free(c);
+			}
+		}
+	}
+
+	/**
+	 * Indicates if the passed address is a block handed out by a thread local buffer
+	 * @param address The address to test
+	 * @return true if the address is a thread local buffer block
+	 */
+	static boolean isBufferBlock(final long address) {
+		return active && chunks.get(address >>> CHUNK_SHIFT)!=SpinLockedTLongLongHashMap.NULL;
+	}
+
+	/**
+	 * Returns the usable size of the thread local buffer block at the passed address
+	 * @param address The address of the block
+	 * @return the usable size or -1 if the address is not a thread local buffer block
+	 */
+	static long getBlockSize(final long address) {
+		if(!isBufferBlock(address)) return -1L;
+		return unsafe.getLong(address - BLOCK_HEADER_SIZE);
+	}
+
+	/**
+	 * Frees a thread local buffer block, releasing its chunk if this was the last live block of a retired chunk
+	 * @param address The address of the block
+	 * @return true if the address was a thread local buffer block and was freed, false otherwise
+	 */
+	static boolean free(final long address) {
+		if(!isBufferBlock(address)) return false;
+		final long chunk = address & CHUNK_MASK;
+		if(addLive(chunk, -1L)==0L) {
+			releaseChunk(chunk);
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the number of chunks currently owned by thread local allocators
+	 * @return the number of chunks
+	 */
+	public static int getChunkCount() {
+		return chunks.size();
+	}
+}
@@ -27,13 +27,18 @@ package com.heliosapm.unsafe;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
 import java.security.ProtectionDomain;
+import java.util.concurrent.Executor;
 
 import javax.management.ObjectName;
 
+import jsr166e.CompletableFuture;
+
 import org.cliffc.high_scale_lib.NonBlockingHashMapLong;
 
 import sun.misc.Unsafe;
 
+import com.heliosapm.unsafe.ThreadAllocationTracker.ThreadStats;
+
 /**
  * <p>Title: UnsafeAdapter</p>
  * <p>Description: A wrapper for {@link sun.misc.Unsafe} to provide enhanced functionality</p> 
@@ -52,6 +57,38 @@ public class UnsafeAdapter {
 	
 	/** The system prop indicating that allocations should be alligned */
 	public static final String ALIGN_ALLOCS_PROP = "unsafe.allocations.align";
+	/** The system prop specifying the address alignment boundary in bytes of aligned allocations. Must be a power of two. */
+	public static final String ALIGN_BOUNDARY_PROP = "unsafe.allocations.align.boundary";
+	/** The default address alignment boundary of aligned allocations, which is the common cache-line size */
+	public static final int DEFAULT_ALIGN_BOUNDARY = 64;
+	/** The system prop indicating that small allocations should be served from the size-class slab allocator */
+	public static final String SLAB_ALLOCS_PROP = "unsafe.allocations.slab";
+	/** The system prop indicating that aligned allocations should be served from the buddy allocator */
+	public static final String BUDDY_ALLOCS_PROP = "unsafe.allocations.buddy";
+	/** The system prop indicating that tiny allocations should be served from thread local allocation buffers */
+	public static final String TLAB_ALLOCS_PROP = "unsafe.allocations.tlab";
+	/** The system prop specifying the native memory budget in bytes (k, m and g suffixes are supported), or <b>direct</b> for the max direct memory size. Requires allocation tracking. */
+	public static final String BUDGET_PROP = "unsafe.allocations.budget";
+	/** The system prop specifying the longest time in ms. an allocation will wait for budgeted memory to be released. Zero (or less) fails allocations that do not fit at once. */
+	public static final String BUDGET_TIMEOUT_PROP = "unsafe.allocations.budget.timeout";
+	/** The default longest time in ms. an allocation will wait for budgeted memory to be released */
+	public static final long DEFAULT_BUDGET_TIMEOUT = 1000L;
+	/** The system prop specifying the number of cleaner threads clearing collected AllocationPointers, or zero for one per available processor */
+	public static final String CLEANER_THREADS_PROP = "unsafe.allocations.cleaners";
+	/** The default number of cleaner threads */
+	public static final int DEFAULT_CLEANER_THREADS = 1;
+	/** The system prop specifying the maximum number of collected AllocationPointers a cleaner thread clears in one batch */
+	public static final String CLEANER_BATCH_PROP = "unsafe.allocations.cleaners.batch";
+	/** The default cleaner batch size */
+	public static final int DEFAULT_CLEANER_BATCH = 64;
+	/** The system prop specifying the mean number of bytes (k, m and g suffixes are supported) allocated between the allocations sampled to estimate the allocated memory. Ignored when allocations are tracked. */
+	public static final String SAMPLE_ALLOCS_PROP = "unsafe.allocations.sample";
+	/** The system prop indicating that the tracked memory allocated and freed by each thread should be accounted */
+	public static final String THREAD_ALLOCS_PROP = "unsafe.allocations.perthread";
+	/** The system prop indicating that the histograms of allocation sizes, reallocation growth and allocation lifetimes should be recorded */
+	public static final String HISTOGRAMS_PROP = "unsafe.allocations.histograms";
+	/** The system prop indicating that on clear runnables should be run in a dedicated pool rather than on the cleaner threads */
+	public static final String ASYNC_ONCLEAR_PROP = "unsafe.allocations.onclear.async";
 	/** The system prop indicating if safe allocations should be on heap */
 	public static final String SAFE_ALLOCS_ONHEAP_PROP = "safe.allocations.onheap";	
 	
@@ -199,7 +236,17 @@ public class UnsafeAdapter {
 	 * @return true if allocated memory size tracking is enabled, false otherwise
 	 */
 	public static boolean isMemTrackingEnabled() {
-		return adapter.trackMem;
+		return adapter.refMgr.isMemTracking();
+	}
+	
+	/**
+	 * Enables or disables allocated memory size tracking at runtime. 
+	 * Memory allocated while tracking is disabled is not counted, but is still freed correctly.
+	 * @param enabled true to enable allocated memory size tracking, false to disable it
+	 * @throws IllegalStateException if tracking is being disabled while a memory budget is enforced
+	 */
+	public static void setMemTrackingEnabled(final boolean enabled) {
+		adapter.setTrackingEnabled(enabled);
 	}
 	
 	/**
@@ -207,7 +254,24 @@ public class UnsafeAdapter {
 	 * @return true if cache-line memory alignment overhead tracking is enabled, false otherwise
 	 */
 	public static boolean isAlignmentTrackingEnabled() {
-		return adapter.alignMem;
+		return adapter.refMgr.isMemAlignment();
+	}
+	
+	/**
+	 * Enables or disables cache-line memory alignment overhead tracking at runtime,
+	 * which only takes effect while allocated memory size tracking is enabled 
+	 * @param enabled true to enable cache-line memory alignment overhead tracking, false to disable it
+	 */
+	public static void setAlignmentTrackingEnabled(final boolean enabled) {
+		adapter.setAlignmentEnabled(enabled);
+	}
+	
+	/**
+	 * Returns the address alignment boundary in bytes of aligned allocations
+	 * @return the alignment boundary
+	 */
+	public static long getAlignmentBoundary() {
+		return adapter.alignBoundary;
 	}
 	
 	
@@ -234,6 +298,168 @@ public class UnsafeAdapter {
 		return adapter.refMgr.newAllocationPointer(onClearRunnable);
 	}
 	
+	/**
+	 * Returns a new concurrent {@link AllocationPointer} that is ref queue registered 
+	 * and configured according to mem tracking and mem alignment settings.
+	 * Several threads can allocate into, reallocate and free the addresses of a concurrent AllocationPointer at once.
+	 * Cleared slots are recycled, so the pointer only grows to the most addresses live at once, but it is never compacted.
+	 * @return a new concurrent AllocationPointer
+	 */
+	public static final AllocationPointer newConcurrentAllocationPointer() {
+		return adapter.refMgr.newConcurrentAllocationPointer();
+	}
+	
+	/**
+	 * Returns a new concurrent {@link AllocationPointer} that is ref queue registered 
+	 * and configured according to mem tracking and mem alignment settings. 
+	 * Several threads can allocate into, reallocate and free the addresses of a concurrent AllocationPointer at once.
+	 * Cleared slots are recycled, so the pointer only grows to the most addresses live at once, but it is never compacted.
+	 * @param onClearRunnable An optional on clear runnable
+	 * @return a new concurrent AllocationPointer
+	 */
+	public static final AllocationPointer newConcurrentAllocationPointer(final Runnable onClearRunnable) {
+		return adapter.refMgr.newConcurrentAllocationPointer(onClearRunnable);
+	}
+
+	/**
+	 * Returns a new child {@link AllocationPointer} that is ref queue registered 
+	 * and configured according to mem tracking and mem alignment settings.
+	 * Releasing or collecting the parent releases the child and all its own descendants in one pass.
+	 * @param parent The parent AllocationPointer
+	 * @return a new child AllocationPointer
+	 */
+	public static final AllocationPointer newChildAllocationPointer(final AllocationPointer parent) {
+		return adapter.refMgr.newChildAllocationPointer(parent, null);
+	}
+	
+	/**
+	 * Returns a new child {@link AllocationPointer} that is ref queue registered 
+	 * and configured according to mem tracking and mem alignment settings.
+	 * Releasing or collecting the parent releases the child and all its own descendants in one pass.
+	 * @param parent The parent AllocationPointer
+	 * @param onClearRunnable An optional on clear runnable
+	 * @return a new child AllocationPointer
+	 */
+	public static final AllocationPointer newChildAllocationPointer(final AllocationPointer parent, final Runnable onClearRunnable) {
+		return adapter.refMgr.newChildAllocationPointer(parent, onClearRunnable);
+	}
+	
+	/**
+	 * Releases an {@link AllocationPointer} and all its descendants now, freeing all their memory on the calling thread 
+	 * instead of waiting for them to be collected. The on clear runnables registered for them are run.
+	 * None of the released AllocationPointers may be used afterwards.
+	 * @param ap The AllocationPointer to release
+	 */
+	public static final void releaseAllocationPointer(final AllocationPointer ap) {
+		adapter.refMgr.release(ap, true, false);
+	}
+	
+	/**
+	 * Names an allocation tag and registers its JMX MBean under the memory allocation service's ObjectName with a <b>tag</b> key
+	 * @param tag The allocation tag, from 1 to {@link AllocationTag#MAX_TAGS}-1
+	 * @param name The tag name
+	 * @return the named allocation tag
+	 */
+	public static final AllocationTag registerAllocationTag(final int tag, final String name) {
+		return adapter.registerAllocationTag(tag, name);
+	}
+	
+	/**
+	 * Returns the accounting of an allocation tag
+	 * @param tag The allocation tag, from 1 to {@link AllocationTag#MAX_TAGS}-1
+	 * @return the allocation tag
+	 */
+	public static final AllocationTag getAllocationTag(final int tag) {
+		return adapter.getAllocationTag(tag);
+	}
+	
+	/**
+	 * Returns a snapshot of the tracked native memory allocated and freed by each live thread that has allocated or freed any
+	 * @return an array of per thread accounting snapshots, which is empty if per thread accounting is disabled
+	 */
+	public static final ThreadStats[] getThreadAllocationStats() {
+		final ThreadAllocationTracker tracker = adapter.refMgr.getThreadTracker();
+		return tracker==null ? new ThreadStats[0] : tracker.snapshot();
+	}
+	
+	/**
+	 * Returns the tracked native memory allocated and freed by the calling thread
+	 * @return the calling thread's accounting, or null if per thread accounting is disabled
+	 */
+	public static final ThreadStats getCurrentThreadAllocationStats() {
+		final ThreadAllocationTracker tracker = adapter.refMgr.getThreadTracker();
+		return tracker==null ? null : tracker.getCurrentThreadStats();
+	}
+	
+	/**
+	 * Returns the histograms of allocation sizes, reallocation growth ratios and allocation lifetimes
+	 * @return the allocation histograms, or null if histograms are disabled (see {@link #HISTOGRAMS_PROP})
+	 */
+	public static final AllocationHistograms getAllocationHistograms() {
+		return adapter.refMgr.histograms;
+	}
+	
+	/**
+	 * Sets the executor the runnables registered to run when AllocationPointers are cleared are handed off to,
+	 * so slow runnables cannot hold up the release of collected native memory
+	 * @param executor The executor to run on clear runnables in, or null to run them on the cleaner threads
+	 */
+	public static final void setOnClearExecutor(final Executor executor) {
+		adapter.refMgr.setOnClearExecutor(executor);
+	}
+	
+	/**
+	 * Returns the executor the runnables registered to run when AllocationPointers are cleared are handed off to
+	 * @return the executor, or null if on clear runnables are run on the cleaner threads
+	 */
+	public static final Executor getOnClearExecutor() {
+		return adapter.refMgr.getOnClearExecutor();
+	}
+
+	/**
+	 * Returns a new {@link MemoryArena} with the default segment size
+	 * @return a new MemoryArena
+	 */
+	public static final MemoryArena newMemoryArena() {
+		return new MemoryArena(adapter, MemoryArena.DEFAULT_SEGMENT_SIZE, null);
+	}
+
+	/**
+	 * Returns a new {@link MemoryArena}
+	 * @param segmentSize The size in bytes of the native segments the arena bump-allocates from
+	 * @return a new MemoryArena
+	 */
+	public static final MemoryArena newMemoryArena(final long segmentSize) {
+		return new MemoryArena(adapter, segmentSize, null);
+	}
+
+	/**
+	 * Returns a new {@link MemoryArena}
+	 * @param segmentSize The size in bytes of the native segments the arena bump-allocates from
+	 * @param onClearRunnable An optional runnable to run when the arena is released by the cleaner without having been closed
+	 * @return a new MemoryArena
+	 */
+	public static final MemoryArena newMemoryArena(final long segmentSize, final Runnable onClearRunnable) {
+		return new MemoryArena(adapter, segmentSize, onClearRunnable);
+	}
+
+	/**
+	 * Returns a new {@link MemoryScope} whose allocations are freed when it is closed
+	 * @return a new MemoryScope
+	 */
+	public static final MemoryScope newMemoryScope() {
+		return new MemoryScope(adapter, null);
+	}
+
+	/**
+	 * Returns a new {@link MemoryScope} whose allocations are freed when it is closed
+	 * @param onClearRunnable An optional runnable to run when the scope is released by the cleaner without having been closed
+	 * @return a new MemoryScope
+	 */
+	public static final MemoryScope newMemoryScope(final Runnable onClearRunnable) {
+		return new MemoryScope(adapter, onClearRunnable);
+	}
+	
 	/**
 	 * Registers an AllocationPointer on clear runnable.
 	 * Throws a runime exception if the ref id does not belong to a registered AP.
@@ -800,6 +1026,31 @@ public class UnsafeAdapter {
 		adapter.freeMemory(address);
 	}
 	
+	/**
+	 * Frees a batch of memory blocks, updating the allocation counters once
+	 * @param addresses The addresses of the memory blocks to free
+	 */
+	public static void freeMemory(long[] addresses) {
+		adapter.freeMemory(addresses, null);
+	}
+	
+	/**
+	 * Frees a batch of memory blocks, dispatching on the memory manager and updating the allocation counters once
+	 * @param addresses The addresses of the memory blocks to free
+	 * @param memoryManager The object the memory blocks were allocated with
+	 */
+	public static void freeMemory(long[] addresses, Object memoryManager) {
+		adapter.freeMemory(addresses, memoryManager);
+	}
+	
+	/**
+	 * Applies the calling thread's deferred thread local allocation buffer accounting to the memory totals.
+	 * This otherwise happens each time the thread exhausts a buffer chunk. No op if thread local allocation is disabled.
+	 */
+	public static void flushAllocationBuffer() {
+		adapter.flushAllocationBuffer();
+	}
+	
 
 	/**
 	 * Allocates a new block of native memory, of the given size in bytes. 
@@ -825,12 +1076,90 @@ public class UnsafeAdapter {
 		return adapter.allocateMemory(size, memoryManager);
 	}	
 	
+	/**
+	 * Allocates a batch of memory blocks, updating the allocation counters once
+	 * @param sizes The sizes of the blocks to allocate in bytes
+	 * @return the addresses of the allocated blocks, in the order of the passed sizes
+	 */
+	public static long[] allocateMemory(long[] sizes) {
+		return adapter.allocateMemory(sizes, null);
+	}
+	
+	/**
+	 * Allocates a new block of native memory, of the given size in bytes, accounted under the passed allocation tag
+	 * @param size The size of the block of memory to allocate in bytes
+	 * @param tag The allocation tag, from 0 (untagged) to {@link AllocationTag#MAX_TAGS}-1
+	 * @return The address of the allocated memory block
+	 * @see sun.misc.Unsafe#allocateMemory(long)
+	 */
+	public static long allocateMemory(long size, int tag) {
+		return adapter.allocateMemory(size, tag);
+	}
 	
 	/**
-	 * Allocates a new block of cache-line aligned native memory, of the given size in bytes rounded up to the nearest power of 2. 
+	 * Allocates a batch of memory blocks. The memory manager is dispatched on once,
+	 * an {@link AllocationPointer} is extended at most once and the allocation counters are updated once.
+	 * @param sizes The sizes of the blocks to allocate in bytes
+	 * @param memoryManager The object to handle memory management of the allocated memory blocks
+	 * @return the addresses of the allocated blocks, in the order of the passed sizes
+	 */
+	public static long[] allocateMemory(long[] sizes, Object memoryManager) {
+		return adapter.allocateMemory(sizes, memoryManager);
+	}
+	
+	/**
+	 * Asynchronously allocates a chunk of memory without ever blocking the calling thread.
+	 * When the allocation does not fit in the memory budget (see {@link #BUDGET_PROP}), it is queued in arrival order
+	 * and made as the cleaner releases memory. The future is failed with an {@link OutOfMemoryError} if the memory is not released
+	 * within the budget timeout (see {@link #BUDGET_TIMEOUT_PROP}), at once if the timeout is zero (or less), or if the budget is reset or discarded.
+	 * @param size The number of bytes to allocate
+	 * @return a future completed with the address of the allocated memory
+	 */
+	public static CompletableFuture<Long> allocateAsync(long size) {
+		return adapter.allocateAsync(size, null);
+	}
+	
+	/**
+	 * Asynchronously allocates a chunk of memory without ever blocking the calling thread.
+	 * When the allocation does not fit in the memory budget (see {@link #BUDGET_PROP}), it is queued in arrival order
+	 * and made as the cleaner releases memory. The future is failed with an {@link OutOfMemoryError} if the memory is not released
+	 * within the budget timeout (see {@link #BUDGET_TIMEOUT_PROP}), at once if the timeout is zero (or less), or if the budget is reset or discarded.
+	 * @param size The number of bytes to allocate
+	 * @param memoryManager The object to handle memory management of the allocated memory block
+	 * @return a future completed with the address of the allocated memory
+	 */
+	public static CompletableFuture<Long> allocateAsync(long size, Object memoryManager) {
+		return adapter.allocateAsync(size, memoryManager);
+	}
+	
+	/**
+	 * Allocates a chunk of memory and returns its address, or returns zero without waiting
+	 * if the allocation does not fit in the memory budget (see {@link #BUDGET_PROP}).
+	 * @param size The number of bytes to allocate
+	 * @return The address of the allocated memory, or zero if the budget is exhausted
+	 */
+	public static long tryAllocateMemory(long size) {
+		return adapter.tryAllocateMemory(size);
+	}
+	
+	/**
+	 * Allocates a chunk of memory and returns its address, or returns zero without waiting
+	 * if the allocation does not fit in the memory budget (see {@link #BUDGET_PROP}).
+	 * @param size The number of bytes to allocate
+	 * @param memoryManager The object to handle memory management of the allocated memory block
+	 * @return The address of the allocated memory, or zero if the budget is exhausted
+	 */
+	public static long tryAllocateMemory(long size, Object memoryManager) {
+		return adapter.tryAllocateMemory(size, memoryManager);
+	}
+	
+	
+	/**
+	 * Allocates a new block of native memory whose address is aligned to the configured alignment boundary
+	 * (see {@link #ALIGN_BOUNDARY_PROP}), by default the cache-line size.
 	 * The contents of the memory are uninitialized; they will generally be garbage.
-	 * The resulting native pointer will never be zero, and will be aligned for all value types.  
-	 * Dispose of this memory by calling #freeMemory , or resize it with #reallocateMemory.
+	 * The resulting native pointer will never be zero.  
+	 * Dispose of this memory by calling #freeMemory , or resize it with #reallocateAlignedMemory.
 	 * @param size The size of the block of memory to allocate in bytes
 	 * @return The address of the allocated memory block
 	 * @see sun.misc.Unsafe#allocateMemory(long)
@@ -840,10 +1169,11 @@ public class UnsafeAdapter {
 	}
 	
 	/**
-	 * Allocates a new block of cache-line aligned native memory, of the given size in bytes rounded up to the nearest power of 2. 
+	 * Allocates a new block of native memory whose address is aligned to the configured alignment boundary
+	 * (see {@link #ALIGN_BOUNDARY_PROP}), by default the cache-line size.
 	 * The contents of the memory are uninitialized; they will generally be garbage.
-	 * The resulting native pointer will never be zero, and will be aligned for all value types.  
-	 * Dispose of this memory by calling #freeMemory , or resize it with #reallocateMemory.
+	 * The resulting native pointer will never be zero.  
+	 * Dispose of this memory by calling #freeMemory , or resize it with #reallocateAlignedMemory.
 	 * @param size The size of the block of memory to allocate in bytes
 	 * @param memoryManager The object to handle memory management of the allocated memory block
 	 * @return The address of the allocated memory block
@@ -853,6 +1183,21 @@ public class UnsafeAdapter {
 		return adapter.allocateAlignedMemory(size, memoryManager);
 	}
 	
+	/**
+	 * Allocates a new block of native memory whose address is aligned to the passed boundary.
+	 * The block is over-allocated by the boundary less the minimum native alignment, which is reported as the alignment overhead.
+	 * The contents of the memory are uninitialized; they will generally be garbage.
+	 * Dispose of this memory by calling #freeMemory , or resize it with #reallocateAlignedMemory.
+	 * @param size The size of the block of memory to allocate in bytes
+	 * @param alignment The alignment boundary in bytes, e.g. 64, 128 or {@link #pageSize()}. Must be a power of two.
+	 * @param memoryManager The object to handle memory management of the allocated memory block
+	 * @return The aligned address of the allocated memory block
+	 * @see sun.misc.Unsafe#allocateMemory(long)
+	 */
+	public static long allocateAlignedMemory(long size, long alignment, Object memoryManager) {
+		return adapter.allocateAlignedMemory(size, alignment, memoryManager);
+	}
+	
 	/**
 	 * Resizes a new block of native memory, to the given size in bytes. 
 	 * <b>NOTE:</b>If the caller implements {@link Deallocatable} and expects the allocations
@@ -879,12 +1224,12 @@ public class UnsafeAdapter {
 	 * @see sun.misc.Unsafe#reallocateMemory(long, long)
 	 */
 	public static long reallocateMemory(long address, long size, Object memoryManager) {
-		return adapter.reallocateMemory(address, size);
+		return adapter.reallocateMemory(address, size, memoryManager);
 	}
 	
 	
 	/**
-	 * Resizes a new block of aligned (if enabled) native memory, to the given size in bytes.
+	 * Resizes a new block of aligned native memory, to the given size in bytes.
 	 * <b>NOTE:</b>If the caller implements {@link Deallocatable} and expects the allocations
 	 * to be automatically cleared, the returned value should overwrite the index of 
 	 * the {@link Deallocatable}'s array where the previous address was.   
@@ -898,7 +1243,7 @@ public class UnsafeAdapter {
 	}
 	
 	/**
-	 * Resizes a new block of aligned (if enabled) native memory, to the given size in bytes.
+	 * Resizes a new block of aligned native memory, to the given size in bytes.
 	 * @param address The address of the existing allocation
 	 * @param size The size of the new allocation in bytes
 	 * @param memoryManager The object to handle memory management of the allocated memory block
@@ -909,6 +1254,19 @@ public class UnsafeAdapter {
 		return adapter.reallocateAlignedMemory(address, size, memoryManager);
 	}
 	
+	/**
+	 * Resizes a block of native memory, to the given size in bytes, returning an address aligned to the passed boundary.
+	 * @param address The address of the existing allocation
+	 * @param size The size of the new allocation in bytes
+	 * @param alignment The alignment boundary in bytes, e.g. 64, 128 or {@link #pageSize()}. Must be a power of two.
+	 * @param memoryManager The object to handle memory management of the allocated memory block
+	 * @return The aligned address of the new allocation
+	 * @see sun.misc.Unsafe#reallocateMemory(long, long)
+	 */
+	public static long reallocateAlignedMemory(long address, long size, long alignment, Object memoryManager) {
+		return adapter.reallocateAlignedMemory(address, size, alignment, memoryManager);
+	}
+	
 	
 	//===========================================================================================================
 	//	Copy Memory Ops
@@ -2262,7 +2620,15 @@ public class UnsafeAdapter {
 		b.append("\n\tAdapter Type: ").append(adapter==null ? "None" : adapter.getClass().getName());		
 		b.append("\n\tAllocation Model: ").append(isSafeAdapter() ? "SAFE" : "UNSAFE");
 		b.append("\n\tAllocation Tracking: ").append(adapter==null ? "Unknown" : adapter.isTrackingEnabled() ? "Enabled" : "Disabled");
+		b.append("\n\tAllocation Sampling: ").append(adapter==null ? "Unknown" : adapter.isSamplingEnabled() ? "Every " + adapter.getSampleInterval() + " bytes" : "Disabled");
+		b.append("\n\tThread Accounting: ").append(adapter==null ? "Unknown" : adapter.isThreadAccountingEnabled() ? "Enabled" : "Disabled");
+		b.append("\n\tAllocation Histograms: ").append(adapter==null ? "Unknown" : adapter.isHistogramsEnabled() ? "Enabled" : "Disabled");
 		b.append("\n\tCache-Line Alignment: ").append(adapter==null ? "Unknown" : adapter.isAlignmentEnabled() ? "Enabled" : "Disabled");
+		b.append("\n\tAlignment Boundary: ").append(adapter==null ? "Unknown" : adapter.alignBoundary);
+		b.append("\n\tSlab Allocation: ").append(adapter==null ? "Unknown" : adapter.isSlabAllocationEnabled() ? "Enabled" : "Disabled");
+		b.append("\n\tBuddy Allocation: ").append(adapter==null ? "Unknown" : adapter.isBuddyAllocationEnabled() ? "Enabled" : "Disabled");
+		b.append("\n\tMemory Budget: ").append(adapter==null ? "Unknown" : adapter.getMemoryBudget()==-1L ? "None" : adapter.getMemoryBudget());
+		b.append("\n\tThread Local Allocation: ").append(adapter==null ? "Unknown" : adapter.isThreadLocalAllocationEnabled() ? "Enabled" : "Disabled");
 		b.append("\n\tCPU Model: ").append(ADDRESS_SIZE==4 ? "32" : "64");
 		b.append("\n\tJVM 5 Copy: ").append(adapter==null ? "Unknown" : adapter.isFiveCopy() ? "Yes" : "No");
 		b.append("\n\tJVM 4 Set: ").append(adapter==null ? "Unknown" : adapter.isFourSet() ? "Yes" : "No");
@@ -0,0 +1,121 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.unsafe.NativeAllocator;
+import com.heliosapm.unsafe.UnsafeAdapter;
+
+/**
+ * <p>Title: AlignedAllocationsTest</p>
+ * <p>Description: Tests for address aligned allocations. Mem tracking and alignment tracking are turned on to validate the reported overhead.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.AlignedAllocationsTest</code></p>
+ */
+@UnsafeAdapterConfiguration(memTracking=true, memAlignment=true)
+public class AlignedAllocationsTest extends BaseTest {
+
+	/**
+	 * Tests that aligned allocations return addresses on the requested boundary and report the real overhead
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testAlignedAddresses() throws Exception {
+		final long[] alignments = {64, 128, UnsafeAdapter.pageSize()};
+		final int loops = 100;
+		for(long alignment: alignments) {
+			final long[] addresses = new long[loops];
+			long total = 0L;
+			for(int i = 0; i < loops; i++) {
+				final long size = nextPosInt(1000) + 1;
+				addresses[i] = UnsafeAdapter.allocateAlignedMemory(size, alignment, null);
+				Assert.assertEquals("Address was not aligned to [" + alignment + "]", 0, addresses[i] & (alignment-1));
+				UnsafeAdapter.setMemory(addresses[i], size, (byte)1);
+				total += size;
+			}
+			validateAllocated("testAlignedAddresses(" + alignment + ")", total, -1, loops);
+			Assert.assertEquals("Alignment overhead was unexpected", loops * NativeAllocator.getAlignmentOverhead(alignment), UnsafeAdapter.getMemoryMBean().getAlignedMemoryOverhead());
+			for(int i = 0; i < loops; i++) {
+				UnsafeAdapter.freeMemory(addresses[i]);
+			}
+			validateDeallocated("testAlignedAddresses(" + alignment + ")", 0, -1);
+			Assert.assertEquals("Alignment overhead was not released", 0, UnsafeAdapter.getMemoryMBean().getAlignedMemoryOverhead());
+		}
+		Assert.assertEquals("Shifted aligned blocks were not released", 0, NativeAllocator.getShiftedAlignedBlockCount());
+	}
+	
+	/**
+	 * Tests that the default aligned allocation uses the configured boundary
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testDefaultBoundary() throws Exception {
+		Assert.assertEquals("Default boundary was not the cache-line size", UnsafeAdapter.DEFAULT_ALIGN_BOUNDARY, UnsafeAdapter.getAlignmentBoundary());
+		final long address = UnsafeAdapter.allocateAlignedMemory(UnsafeAdapter.LONG_SIZE);
+		Assert.assertEquals("Address was not cache-line aligned", 0, address & (UnsafeAdapter.DEFAULT_ALIGN_BOUNDARY-1));
+		UnsafeAdapter.freeMemory(address);
+		validateDeallocated("testDefaultBoundary", 0, -1);
+	}
+	
+	/**
+	 * Tests that aligned reallocations keep the alignment and the content, including blocks that were not allocated aligned
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testAlignedReallocation() throws Exception {
+		final long alignment = 128;
+		long address = UnsafeAdapter.allocateAlignedMemory(64, alignment, null);
+		for(int i = 0; i < 8; i++) UnsafeAdapter.putLong(address + (i * 8), i);
+		for(int size = 128; size <= 64 * 1024; size *= 2) {
+			address = UnsafeAdapter.reallocateAlignedMemory(address, size, alignment, null);
+			Assert.assertEquals("Reallocated address was not aligned", 0, address & (alignment-1));
+			for(int i = 0; i < 8; i++) Assert.assertEquals("Content was not preserved", i, UnsafeAdapter.getLong(address + (i * 8)));
+		}
+		// back to an unaligned reallocation
+		address = UnsafeAdapter.reallocateMemory(address, 1024 * 1024);
+		for(int i = 0; i < 8; i++) Assert.assertEquals("Content was not preserved", i, UnsafeAdapter.getLong(address + (i * 8)));
+		// and an unaligned block reallocated aligned
+		address = UnsafeAdapter.reallocateAlignedMemory(address, 4096, UnsafeAdapter.pageSize(), null);
+		Assert.assertEquals("Reallocated address was not page aligned", 0, address & (UnsafeAdapter.pageSize()-1));
+		for(int i = 0; i < 8; i++) Assert.assertEquals("Content was not preserved", i, UnsafeAdapter.getLong(address + (i * 8)));
+		validateAllocated("testAlignedReallocation", 4096, -1, 1);
+		UnsafeAdapter.freeMemory(address);
+		validateDeallocated("testAlignedReallocation", 0, -1);
+		Assert.assertEquals("Shifted aligned blocks were not released", 0, NativeAllocator.getShiftedAlignedBlockCount());
+	}
+	
+	/**
+	 * Tests that an invalid alignment is rejected
+	 * @throws Exception thrown on any error
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testInvalidAlignment() throws Exception {
+		UnsafeAdapter.allocateAlignedMemory(64, 48, null);
+	}
+
+}
@@ -0,0 +1,177 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe;
+
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.unsafe.AllocationHistogram;
+import com.heliosapm.unsafe.AllocationHistograms;
+import com.heliosapm.unsafe.AllocationPointer;
+import com.heliosapm.unsafe.JMXHelper;
+import com.heliosapm.unsafe.MemoryMBean;
+import com.heliosapm.unsafe.UnsafeAdapter;
+
+/**
+ * <p>Title: AllocationHistogramsTest</p>
+ * <p>Description: Tests for the histograms of allocation sizes, reallocation growth and allocation lifetimes</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.AllocationHistogramsTest</code></p>
+ */
+@UnsafeAdapterConfiguration(histograms=true)
+public class AllocationHistogramsTest extends BaseTest {
+
+	/**
+	 * Tests the bucketing and percentiles of a histogram
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testHistogramPercentiles() throws Exception {
+		Assert.assertEquals("Unexpected bucket", 0, AllocationHistogram.bucketOf(0));
+		Assert.assertEquals("Unexpected bucket", 1, AllocationHistogram.bucketOf(1));
+		Assert.assertEquals("Unexpected bucket", 7, AllocationHistogram.bucketOf(64));
+		Assert.assertEquals("Unexpected bucket", 7, AllocationHistogram.bucketOf(127));
+		Assert.assertEquals("Unexpected bucket", 63, AllocationHistogram.bucketOf(Long.MAX_VALUE));
+		final AllocationHistogram histogram = new AllocationHistogram("Test", "bytes");
+		for(int i = 0; i < 90; i++) {
+			histogram.record(100);
+		}
+		for(int i = 0; i < 10; i++) {
+			histogram.record(5000);
+		}
+		Assert.assertEquals("Unexpected count", 100, histogram.getCount());
+		Assert.assertEquals("Unexpected sum", 90 * 100 + 10 * 5000, histogram.getSum());
+		Assert.assertEquals("Unexpected max", 5000, histogram.getMax());
+		Assert.assertEquals("Unexpected p50", 127, histogram.getPercentile(50d));
+		Assert.assertEquals("Unexpected p90", 127, histogram.getPercentile(90d));
+		// the top bucket's upper bound is capped at the max
+		Assert.assertEquals("Unexpected p99", 5000, histogram.getPercentile(99d));
+		final CompositeData data = histogram.toCompositeData();
+		Assert.assertEquals("Unexpected composite count", 100L, data.get("count"));
+		Assert.assertEquals("Unexpected composite p50", 127L, data.get("p50"));
+		Assert.assertEquals("Unexpected composite p999", 5000L, data.get("p999"));
+		Assert.assertEquals("Unexpected composite bucket", 90L, ((long[])data.get("buckets"))[7]);
+		histogram.reset();
+		Assert.assertEquals("Unexpected count after reset", 0, histogram.getCount());
+		Assert.assertEquals("Unexpected p50 after reset", 0, histogram.getPercentile(50d));
+	}
+	
+	/**
+	 * Tests that allocation sizes, reallocation growth and the lifetimes of freed allocations are recorded 
+	 * and exposed through JMX
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testUnmanagedHistograms() throws Exception {
+		final AllocationHistograms histograms = UnsafeAdapter.getAllocationHistograms();
+		Assert.assertNotNull("Histograms not enabled", histograms);
+		histograms.reset();
+		final long a = UnsafeAdapter.allocateMemory(100);
+		final long b = UnsafeAdapter.allocateMemory(1000);
+		Assert.assertEquals("Unexpected size count", 2, histograms.getSizes().getCount());
+		Assert.assertEquals("Unexpected size max", 1000, histograms.getSizes().getMax());
+		final long c = UnsafeAdapter.reallocateMemory(a, 200);
+		Assert.assertEquals("Unexpected growth count", 1, histograms.getGrowth().getCount());
+		Assert.assertEquals("Unexpected growth", 200, histograms.getGrowth().getMax());
+		sleep(5);
+		UnsafeAdapter.freeMemory(b);
+		UnsafeAdapter.freeMemory(c);
+		Assert.assertEquals("Unexpected lifetime count", 2, histograms.getLifetimes().getCount());
+		Assert.assertTrue("Lifetime too short", histograms.getLifetimes().getMax() >= 5000000L);
+		final ObjectName on = UnsafeAdapter.UNSAFE_MEM_OBJECT_NAME;
+		final CompositeData sizes = (CompositeData)JMXHelper.getDefaultMBeanServer().getAttribute(on, "AllocationSizeHistogram");
+		Assert.assertEquals("Unexpected JMX size count", 2L, sizes.get("count"));
+		Assert.assertEquals("Unexpected JMX size p50", 127L, sizes.get("p50"));
+		final MemoryMBean mbean = UnsafeAdapter.getMemoryMBean();
+		Assert.assertEquals("Unexpected JMX lifetime count", 2L, mbean.getAllocationLifetimeHistogram().get("count"));
+		Assert.assertEquals("Unexpected JMX growth count", 1L, mbean.getReallocationGrowthHistogram().get("count"));
+		mbean.resetHistograms();
+		Assert.assertEquals("Unexpected JMX size count after reset", 0L, mbean.getAllocationSizeHistogram().get("count"));
+	}
+	
+	/**
+	 * Tests that the lifetimes of the allocations of a released AllocationPointer are recorded
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testClearedLifetimes() throws Exception {
+		final AllocationHistograms histograms = UnsafeAdapter.getAllocationHistograms();
+		histograms.reset();
+		final AllocationPointer ap = UnsafeAdapter.newAllocationPointer();
+		for(int i = 0; i < 5; i++) {
+			UnsafeAdapter.allocateMemory(64, ap);
+		}
+		Assert.assertEquals("Unexpected size count", 5, histograms.getSizes().getCount());
+		UnsafeAdapter.releaseAllocationPointer(ap);
+		Assert.assertEquals("Unexpected lifetime count", 5, histograms.getLifetimes().getCount());
+	}
+	
+	/**
+	 * Tests that re-allocating a zero byte allocation records no growth ratio but still moves its lifetime entry
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testZeroSizeReallocation() throws Exception {
+		final AllocationHistograms histograms = UnsafeAdapter.getAllocationHistograms();
+		histograms.reset();
+		final int live = histograms.getLiveCount();
+		final long a = 0x1000L, b = 0x2000L;
+		histograms.allocated(a, 0);
+		Assert.assertEquals("Unexpected live count", live + 1, histograms.getLiveCount());
+		histograms.reallocated(a, b, 64);
+		Assert.assertEquals("Growth recorded for zero size", 0, histograms.getGrowth().getCount());
+		Assert.assertEquals("Prior entry not removed", live + 1, histograms.getLiveCount());
+		histograms.freed(a);
+		Assert.assertEquals("Prior address lifetime recorded", 0, histograms.getLifetimes().getCount());
+		histograms.freed(b);
+		Assert.assertEquals("Unexpected lifetime count", 1, histograms.getLifetimes().getCount());
+		Assert.assertEquals("Unexpected live count", live, histograms.getLiveCount());
+	}
+	
+	/**
+	 * Tests that the growth ratio of a very large reallocation does not overflow
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testLargeReallocationGrowth() throws Exception {
+		final AllocationHistograms histograms = UnsafeAdapter.getAllocationHistograms();
+		histograms.reset();
+		final int live = histograms.getLiveCount();
+		histograms.allocated(0x1000L, 1000);
+		histograms.reallocated(0x1000L, 0x2000L, Long.MAX_VALUE / 10);
+		Assert.assertEquals("Unexpected growth", 92233720368547758L, histograms.getGrowth().getMax());
+		histograms.reset();
+		histograms.reallocated(0x2000L, 0x3000L, 1);
+		histograms.reallocated(0x3000L, 0x4000L, Long.MAX_VALUE);
+		Assert.assertEquals("Growth did not saturate", Long.MAX_VALUE, histograms.getGrowth().getMax());
+		histograms.freed(0x4000L);
+		Assert.assertEquals("Unexpected live count", live, histograms.getLiveCount());
+	}
+
+}
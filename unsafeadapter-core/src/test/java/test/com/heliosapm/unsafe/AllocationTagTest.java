@@ -0,0 +1,128 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe;
+
+import java.util.Map;
+
+import javax.management.ObjectName;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.unsafe.AllocationPointer;
+import com.heliosapm.unsafe.AllocationTag;
+import com.heliosapm.unsafe.JMXHelper;
+import com.heliosapm.unsafe.MemoryMBean;
+import com.heliosapm.unsafe.UnsafeAdapter;
+
+/**
+ * <p>Title: AllocationTagTest</p>
+ * <p>Description: Tests for the per tag accounting of tagged allocations</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.AllocationTagTest</code></p>
+ */
+@UnsafeAdapterConfiguration(memTracking=true)
+public class AllocationTagTest extends BaseTest {
+
+	/**
+	 * Tests that tagged unmanaged allocations are accounted under their tag through a reallocation and free
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testTaggedUnmanagedAllocations() throws Exception {
+		final AllocationTag tag = UnsafeAdapter.registerAllocationTag(3, "caches");
+		final long untagged = UnsafeAdapter.allocateMemory(100);
+		final long a = UnsafeAdapter.allocateMemory(200, 3);
+		final long b = UnsafeAdapter.allocateMemory(300, 3);
+		Assert.assertEquals("Unexpected tagged memory", 500, tag.getTotalAllocatedMemory());
+		Assert.assertEquals("Unexpected tagged count", 2, tag.getTotalAllocationCount());
+		final long c = UnsafeAdapter.reallocateMemory(a, 400);
+		Assert.assertEquals("Unexpected tagged memory after realloc", 700, tag.getTotalAllocatedMemory());
+		Assert.assertEquals("Unexpected tagged count after realloc", 2, tag.getTotalAllocationCount());
+		final MemoryMBean mbean = UnsafeAdapter.getMemoryMBean();
+		Assert.assertEquals("Unexpected JMX tagged memory", 700, mbean.getTaggedMemory().get("caches").longValue());
+		Assert.assertEquals("Unexpected JMX tagged count", 2, mbean.getTaggedAllocationCount().get("caches").longValue());
+		final Map<String, Long> state = mbean.getState();
+		Assert.assertEquals("Unexpected state tagged memory", 700, state.get(MemoryMBean.ALLOC_MEM + ".caches").longValue());
+		Assert.assertEquals("Unexpected state untagged memory", 
+				mbean.getTotalAllocatedMemory() - 700, state.get(MemoryMBean.ALLOC_MEM + "." + AllocationTag.UNTAGGED_NAME).longValue());
+		final ObjectName on = tag.getObjectName();
+		Assert.assertEquals("Unexpected MBean tagged memory", 700L, JMXHelper.getDefaultMBeanServer().getAttribute(on, "TotalAllocatedMemory"));
+		UnsafeAdapter.freeMemory(b);
+		UnsafeAdapter.freeMemory(c);
+		UnsafeAdapter.freeMemory(untagged);
+		Assert.assertEquals("Unexpected tagged memory after free", 0, tag.getTotalAllocatedMemory());
+		Assert.assertEquals("Unexpected tagged count after free", 0, tag.getTotalAllocationCount());
+	}
+	
+	/**
+	 * Tests that an AllocationPointer's allocations are accounted under its tag, 
+	 * that its children inherit the tag, and that releasing the tree uncounts them
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testTaggedAllocationPointers() throws Exception {
+		final AllocationTag tag = UnsafeAdapter.registerAllocationTag(7, "indexes");
+		final AllocationPointer ap = UnsafeAdapter.newAllocationPointer().setTag(7);
+		final AllocationPointer child = UnsafeAdapter.newChildAllocationPointer(ap);
+		Assert.assertEquals("Child did not inherit tag", 7, child.getTag());
+		final long address = UnsafeAdapter.allocateMemory(128, ap);
+		UnsafeAdapter.allocateMemory(256, child);
+		UnsafeAdapter.allocateMemory(new long[]{32, 32}, child);
+		Assert.assertEquals("Unexpected tagged memory", 448, tag.getTotalAllocatedMemory());
+		Assert.assertEquals("Unexpected tagged count", 4, tag.getTotalAllocationCount());
+		UnsafeAdapter.freeMemory(new long[]{address}, ap);
+		Assert.assertEquals("Unexpected tagged memory after free", 320, tag.getTotalAllocatedMemory());
+		Assert.assertEquals("Unexpected tagged count after free", 3, tag.getTotalAllocationCount());
+		UnsafeAdapter.releaseAllocationPointer(ap);
+		Assert.assertEquals("Unexpected tagged memory after release", 0, tag.getTotalAllocatedMemory());
+		Assert.assertEquals("Unexpected tagged count after release", 0, tag.getTotalAllocationCount());
+	}
+	
+	/**
+	 * Tests that an AllocationPointer cannot be retagged once it has allocations and that invalid tags are rejected
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testInvalidTagging() throws Exception {
+		final AllocationPointer ap = UnsafeAdapter.newAllocationPointer();
+		UnsafeAdapter.allocateMemory(64, ap);
+		try {
+			ap.setTag(2);
+			Assert.fail("Retagged an AllocationPointer with allocations");
+		} catch (IllegalStateException expected) {
+			/* expected */
+		}
+		try {
+			UnsafeAdapter.allocateMemory(64, AllocationTag.MAX_TAGS);
+			Assert.fail("Allocated with an invalid tag");
+		} catch (IllegalArgumentException expected) {
+			/* expected */
+		}
+		UnsafeAdapter.releaseAllocationPointer(ap);
+	}
+
+}
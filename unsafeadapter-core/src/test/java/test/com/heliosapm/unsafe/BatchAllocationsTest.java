@@ -0,0 +1,120 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.unsafe.AllocationPointer;
+import com.heliosapm.unsafe.AllocationPointerOperations;
+import com.heliosapm.unsafe.UnsafeAdapter;
+
+/**
+ * <p>Title: BatchAllocationsTest</p>
+ * <p>Description: Tests for batch allocation and batch free, unmanaged and through an {@link AllocationPointer}.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.BatchAllocationsTest</code></p>
+ */
+@UnsafeAdapterConfiguration(memTracking=true)
+public class BatchAllocationsTest extends BaseTest {
+	/** The number of blocks in each batch */
+	static final int BATCH_SIZE = 500;
+
+	/**
+	 * Returns an array of random block sizes
+	 * @return the block sizes
+	 */
+	private static long[] randomSizes() {
+		final long[] sizes = new long[BATCH_SIZE];
+		for(int i = 0; i < BATCH_SIZE; i++) {
+			sizes[i] = nextPosInt(1024) + 8;
+		}
+		return sizes;
+	}
+
+	/**
+	 * Returns the total of the passed sizes
+	 * @param sizes The sizes to total
+	 * @return the total
+	 */
+	private static long total(final long[] sizes) {
+		long total = 0L;
+		for(long size: sizes) total += size;
+		return total;
+	}
+
+	/**
+	 * Tests an unmanaged batch allocation and free
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testUnmanagedBatch() throws Exception {
+		final long[] sizes = randomSizes();
+		final long[] addresses = UnsafeAdapter.allocateMemory(sizes);
+		Assert.assertEquals("Unexpected address count", BATCH_SIZE, addresses.length);
+		for(int i = 0; i < BATCH_SIZE; i++) {
+			UnsafeAdapter.putLong(addresses[i], i);
+		}
+		for(int i = 0; i < BATCH_SIZE; i++) {
+			Assert.assertEquals("Block value was overwritten", i, UnsafeAdapter.getLong(addresses[i]));
+		}
+		validateAllocated("testUnmanagedBatch", total(sizes), -1, BATCH_SIZE);
+		Assert.assertEquals("Unexpected raw allocation count", BATCH_SIZE, UnsafeAdapter.getMemoryMBean().getTotalRawAllocationCount());
+		UnsafeAdapter.freeMemory(addresses);
+		validateDeallocated("testUnmanagedBatch", 0, -1);
+		Assert.assertEquals("Allocation count was not zero", 0, UnsafeAdapter.getMemoryMBean().getTotalAllocationCount());
+	}
+
+	/**
+	 * Tests that a batch allocation fills an AllocationPointer in one extend and that a partial batch free clears the right slots
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testAllocationPointerBatch() throws Exception {
+		final AllocationPointer ap = UnsafeAdapter.newAllocationPointer();
+		final long[] sizes = randomSizes();
+		final long[] addresses = UnsafeAdapter.allocateMemory(sizes, ap);
+		Assert.assertEquals("Unexpected AP size", BATCH_SIZE, ap.getSize());
+		Assert.assertTrue("AP was over extended: " + ap.getCapacity(), ap.getCapacity() < BATCH_SIZE + AllocationPointerOperations.ALLOC_SIZE);
+		for(int i = 0; i < BATCH_SIZE; i++) {
+			Assert.assertEquals("Unexpected slot address", addresses[i], ap.getAddress(i));
+			Assert.assertEquals("Unexpected slot size", sizes[i], ap.getAllocationSize(i));
+		}
+		validateAllocated("testAllocationPointerBatch", total(sizes), -1, BATCH_SIZE);
+		final long[] firstHalf = Arrays.copyOfRange(addresses, 0, BATCH_SIZE / 2);
+		final long[] secondHalf = Arrays.copyOfRange(addresses, BATCH_SIZE / 2, BATCH_SIZE);
+		UnsafeAdapter.freeMemory(firstHalf, ap);
+		for(int i = 0; i < BATCH_SIZE / 2; i++) {
+			Assert.assertEquals("Freed slot was not cleared", 0L, ap.getAddress(i));
+		}
+		validateAllocated("testAllocationPointerBatch", total(Arrays.copyOfRange(sizes, BATCH_SIZE / 2, BATCH_SIZE)), -1, BATCH_SIZE - BATCH_SIZE / 2);
+		UnsafeAdapter.freeMemory(secondHalf, ap);
+		validateDeallocated("testAllocationPointerBatch", 0, -1);
+		Assert.assertEquals("Allocation count was not zero", 0, UnsafeAdapter.getMemoryMBean().getTotalAllocationCount());
+	}
+}
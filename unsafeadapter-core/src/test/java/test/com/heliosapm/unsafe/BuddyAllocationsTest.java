@@ -0,0 +1,123 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.unsafe.BuddyAllocator;
+import com.heliosapm.unsafe.NativeAllocator;
+import com.heliosapm.unsafe.UnsafeAdapter;
+
+/**
+ * <p>Title: BuddyAllocationsTest</p>
+ * <p>Description: Tests for aligned allocations served from the {@link BuddyAllocator}.
+ * Mem tracking and alignment tracking are turned on to validate the reported overhead.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.BuddyAllocationsTest</code></p>
+ */
+@UnsafeAdapterConfiguration(memTracking=true, memAlignment=true, buddyAllocation=true)
+public class BuddyAllocationsTest extends BaseTest {
+
+	/**
+	 * Tests that buddy blocks are naturally aligned to their power of two size and that the rounding is reported as overhead
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testNaturalAlignment() throws Exception {
+		Assert.assertTrue("Buddy allocation was not enabled", UnsafeAdapter.getMemoryMBean().isBuddyAllocationEnabled());
+		final long baseline = UnsafeAdapter.getMemoryMBean().getBuddyBytesInUse();
+		final int loops = 200;
+		final long[] addresses = new long[loops];
+		long total = 0L, overhead = 0L;
+		for(int i = 0; i < loops; i++) {
+			final long size = nextPosInt(100000) + 1;
+			final long blockSize = Math.max(BuddyAllocator.MIN_BLOCK_SIZE, Long.highestOneBit(size - 1) << 1);
+			addresses[i] = UnsafeAdapter.allocateAlignedMemory(size, 64, null);
+			Assert.assertEquals("Block was not naturally aligned", 0, addresses[i] & (blockSize-1));
+			UnsafeAdapter.setMemory(addresses[i], size, (byte)1);
+			total += size;
+			overhead += blockSize - size;
+		}
+		validateAllocated("testNaturalAlignment", total, -1, loops);
+		Assert.assertEquals("Alignment overhead was unexpected", overhead, UnsafeAdapter.getMemoryMBean().getAlignedMemoryOverhead());
+		Assert.assertEquals("Buddy bytes in use was unexpected", baseline + total + overhead, UnsafeAdapter.getMemoryMBean().getBuddyBytesInUse());
+		for(int i = 0; i < loops; i++) {
+			UnsafeAdapter.freeMemory(addresses[i]);
+		}
+		validateDeallocated("testNaturalAlignment", 0, -1);
+		Assert.assertEquals("Buddy bytes in use was not released", baseline, UnsafeAdapter.getMemoryMBean().getBuddyBytesInUse());
+	}
+	
+	/**
+	 * Tests that freed buddies are coalesced back into a whole region
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCoalescing() throws Exception {
+		final long regionSize = BuddyAllocator.getInstance().getRegionSize();
+		final long region = UnsafeAdapter.allocateAlignedMemory(regionSize, 64, null);
+		UnsafeAdapter.freeMemory(region);
+		final long reserved = UnsafeAdapter.getMemoryMBean().getBuddyReservedMemory();
+		final long[] quarters = new long[4];
+		for(int i = 0; i < 4; i++) {
+			quarters[i] = UnsafeAdapter.allocateAlignedMemory(regionSize / 4, 64, null);
+		}
+		for(int i = 0; i < 4; i++) {
+			UnsafeAdapter.freeMemory(quarters[i]);
+		}
+		final long again = UnsafeAdapter.allocateAlignedMemory(regionSize, 64, null);
+		Assert.assertEquals("Freed quarters were not coalesced", region, again);
+		Assert.assertEquals("Memory was reserved when free buddies were available", reserved, UnsafeAdapter.getMemoryMBean().getBuddyReservedMemory());
+		UnsafeAdapter.freeMemory(again);
+		validateDeallocated("testCoalescing", 0, -1);
+	}
+	
+	/**
+	 * Tests that buddy blocks shrink in place and grow back in place while their buddies are free
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testInPlaceReallocation() throws Exception {
+		final long address = UnsafeAdapter.allocateAlignedMemory(8192, 64, null);
+		for(int i = 0; i < 128; i++) UnsafeAdapter.putLong(address + (i * 8), i);
+		Assert.assertEquals("Shrinking reallocation was not in place", address, UnsafeAdapter.reallocateAlignedMemory(address, 1024, 64, null));
+		Assert.assertEquals("Growing reallocation was not in place", address, UnsafeAdapter.reallocateAlignedMemory(address, 8192, 64, null));
+		Assert.assertEquals("Unaligned growing reallocation was not in place", address, UnsafeAdapter.reallocateMemory(address, 6000));
+		for(int i = 0; i < 128; i++) Assert.assertEquals("Content was not preserved", i, UnsafeAdapter.getLong(address + (i * 8)));
+		final long blocker = UnsafeAdapter.allocateAlignedMemory(8192, 64, null);
+		final long moved = UnsafeAdapter.reallocateAlignedMemory(address, BuddyAllocator.getInstance().getRegionSize() * 2, 64, null);
+		Assert.assertEquals("Oversized reallocation was not aligned", 0, moved & 63);
+		for(int i = 0; i < 128; i++) Assert.assertEquals("Content was not preserved", i, UnsafeAdapter.getLong(moved + (i * 8)));
+		Assert.assertEquals("Oversized reallocation overhead was unexpected", 
+				NativeAllocator.getAlignmentOverhead(64) + (8192 - 8192), 
+				UnsafeAdapter.getMemoryMBean().getAlignedMemoryOverhead());
+		UnsafeAdapter.freeMemory(moved);
+		UnsafeAdapter.freeMemory(blocker);
+		validateDeallocated("testInPlaceReallocation", 0, -1);
+	}
+
+}
@@ -0,0 +1,89 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.unsafe.AllocationPointer;
+import com.heliosapm.unsafe.UnsafeAdapter;
+
+/**
+ * <p>Title: CleanerBatchTest</p>
+ * <p>Description: Tests for clearing collected allocations in batches, with the counters updated once per batch</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.CleanerBatchTest</code></p>
+ */
+@UnsafeAdapterConfiguration(memTracking=true, cleanerBatchSize=16)
+public class CleanerBatchTest extends BaseTest {
+
+	/**
+	 * Tests that collected AllocationPointers, including trees whose members are enqueued in the same batch,
+	 * are all released exactly once when cleared in batches
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testBatchedRelease() throws Exception {
+		Assert.assertEquals("Unexpected batch size", 16, UnsafeAdapter.getMemoryMBean().getCleanerBatchSize());
+		final int pointers = 100;
+		final int children = 5;
+		final CountDownLatch latch = new CountDownLatch(pointers + children + 1);
+		final Runnable r = new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		};
+		final int pendingRefs = UnsafeAdapter.getMemoryMBean().getPendingRefs();
+		final long cleared = UnsafeAdapter.getMemoryMBean().getTotalClearedAllocations();
+		AllocationPointer[] aps = new AllocationPointer[pointers];
+		for(int i = 0; i < pointers; i++) {
+			aps[i] = UnsafeAdapter.newAllocationPointer(r);
+			UnsafeAdapter.allocateMemory(64, aps[i]);
+		}
+		AllocationPointer root = UnsafeAdapter.newAllocationPointer(r);
+		UnsafeAdapter.allocateMemory(128, root);
+		for(int i = 0; i < children; i++) {
+			UnsafeAdapter.allocateMemory(32, UnsafeAdapter.newChildAllocationPointer(root, r));
+		}
+		validateAllocated("testBatchedRelease", (pointers * 64) + 128 + (children * 32), -1, pointers + children + 1);
+		aps = null;
+		root = null;
+		if(!latch.await(100, TimeUnit.MILLISECONDS)) {
+			log("PHANTOMS still here. Call GC.");
+			System.gc();
+		}
+		final boolean collected = latch.await(5000, TimeUnit.MILLISECONDS);
+		Assert.assertTrue("AllocationPointers Not Collected: " + latch.getCount(), collected);
+		Assert.assertEquals("Refs were not all dropped", pendingRefs, UnsafeAdapter.getMemoryMBean().getPendingRefs());
+		Assert.assertEquals("Unexpected cleared count", cleared + pointers + children + 1, UnsafeAdapter.getMemoryMBean().getTotalClearedAllocations());
+		Assert.assertEquals("Allocated memory was not released", 0, UnsafeAdapter.getMemoryMBean().getTotalAllocatedMemory());
+		Assert.assertEquals("Allocation count was not zero", 0, UnsafeAdapter.getMemoryMBean().getTotalAllocationCount());
+	}
+
+}
@@ -0,0 +1,140 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.unsafe.MemoryArena;
+import com.heliosapm.unsafe.UnsafeAdapter;
+
+/**
+ * <p>Title: MemoryArenaTest</p>
+ * <p>Description: Tests for {@link MemoryArena} bump allocation and bulk release. Mem tracking is turned on to validate
+ * that only the segments are tracked and that they are all released.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.MemoryArenaTest</code></p>
+ */
+@UnsafeAdapterConfiguration(memTracking=true)
+public class MemoryArenaTest extends BaseTest {
+	/** The segment size used in these tests */
+	static final long SEGMENT_SIZE = 64 * 1024;
+
+	/**
+	 * Tests that arena blocks are bump allocated and only the segments are tracked, and that close frees them all
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testBumpAllocationAndClose() throws Exception {
+		final MemoryArena arena = UnsafeAdapter.newMemoryArena(SEGMENT_SIZE);
+		final int blocks = 10000;
+		final long[] addresses = new long[blocks];
+		int segmentSwitches = 0;
+		for(int i = 0; i < blocks; i++) {
+			addresses[i] = arena.allocate(20);
+			Assert.assertEquals("Block was not 8 byte aligned", 0, addresses[i] & 7);
+			// 20 bytes rounds to 24
+			if(i > 0 && addresses[i-1] + 24 != addresses[i]) segmentSwitches++;
+			UnsafeAdapter.putLong(addresses[i], i);
+		}
+		final int segments = arena.getSegmentCount();
+		Assert.assertEquals("Blocks were not bumped from the prior block", segments - 1, segmentSwitches);
+		Assert.assertEquals("Unexpected segment count", (blocks * 24L) / (SEGMENT_SIZE - SEGMENT_SIZE % 24) + 1, segments);
+		Assert.assertEquals("Unexpected allocated bytes", blocks * 24L, arena.getAllocatedBytes());
+		validateAllocated("testBumpAllocationAndClose", segments * SEGMENT_SIZE, -1, segments);
+		for(int i = 0; i < blocks; i++) {
+			Assert.assertEquals("Block value was overwritten", i, UnsafeAdapter.getLong(addresses[i]));
+		}
+		arena.close();
+		arena.close();
+		Assert.assertTrue("Arena was not closed", arena.isClosed());
+		Assert.assertEquals("Arena still held segments", 0, arena.getSegmentCount());
+		validateDeallocated("testBumpAllocationAndClose", 0, -1);
+		Assert.assertEquals("Allocation count was not zero", 0, UnsafeAdapter.getMemoryMBean().getTotalAllocationCount());
+		try {
+			arena.allocate(8);
+			Assert.fail("Allocation from a closed arena did not fail");
+		} catch (IllegalStateException iex) {
+			/* expected */
+		}
+	}
+
+	/**
+	 * Tests that oversized blocks get a dedicated segment, and that reset frees those and reuses the standard segments
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testOversizedAllocationAndReset() throws Exception {
+		final MemoryArena arena = UnsafeAdapter.newMemoryArena(SEGMENT_SIZE);
+		try {
+			final long first = arena.allocate(64);
+			arena.allocate(SEGMENT_SIZE * 2);
+			final long third = arena.allocate(64);
+			Assert.assertEquals("Oversized block displaced the current segment", first + 64, third);
+			Assert.assertEquals("Unexpected segment count", 2, arena.getSegmentCount());
+			validateAllocated("testOversizedAllocationAndReset", SEGMENT_SIZE * 3, -1, 2);
+			arena.reset();
+			Assert.assertEquals("Oversized segment was not freed on reset", 1, arena.getSegmentCount());
+			Assert.assertEquals("Allocated bytes were not reset", 0, arena.getAllocatedBytes());
+			Assert.assertEquals("Standard segment was not reused after reset", first, arena.allocate(64));
+			validateAllocated("testOversizedAllocationAndReset", SEGMENT_SIZE, -1, 1);
+		} finally {
+			arena.close();
+		}
+		validateDeallocated("testOversizedAllocationAndReset", 0, -1);
+	}
+
+	/**
+	 * Tests that an arena that is dropped without being closed is released by the cleaner
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testUnclosedArenaRelease() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final Runnable r = new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		};
+		MemoryArena arena = UnsafeAdapter.newMemoryArena(SEGMENT_SIZE, r);
+		for(int i = 0; i < 100; i++) {
+			arena.allocate(SEGMENT_SIZE / 2);
+		}
+		validateAllocated("testUnclosedArenaRelease", 50 * SEGMENT_SIZE, -1, 50);
+		arena = null;
+		if(!latch.await(100, TimeUnit.MILLISECONDS)) {
+			log("PHANTOM still here. Call GC.");
+			System.gc();
+		}
+		final boolean collected = latch.await(5000, TimeUnit.MILLISECONDS);
+		Assert.assertTrue("MemoryArena Not Collected", collected);
+		Assert.assertEquals("Allocated memory was not released", 0, UnsafeAdapter.getMemoryMBean().getTotalAllocatedMemory());
+	}
+
+}
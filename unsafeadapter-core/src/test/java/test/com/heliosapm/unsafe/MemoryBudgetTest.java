@@ -0,0 +1,301 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import jsr166e.CompletableFuture;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.unsafe.AddressAssignable;
+import com.heliosapm.unsafe.AllocationPointer;
+import com.heliosapm.unsafe.MemoryMBean;
+import com.heliosapm.unsafe.ReflectionHelper;
+import com.heliosapm.unsafe.UnsafeAdapter;
+
+/**
+ * <p>Title: MemoryBudgetTest</p>
+ * <p>Description: Tests for the enforced native memory budget, non-blocking and asynchronous allocation and backpressure on the cleaner.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.MemoryBudgetTest</code></p>
+ */
+@UnsafeAdapterConfiguration(memTracking=true, memoryBudget=MemoryBudgetTest.BUDGET)
+public class MemoryBudgetTest extends BaseTest {
+	/** The memory budget used in these tests */
+	static final int BUDGET = 1024 * 1024;
+
+	/**
+	 * Tests that non-blocking allocations are refused when over budget and that frees and reallocations release the budget
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testTryAllocate() throws Exception {
+		final MemoryMBean mbean = UnsafeAdapter.getMemoryMBean();
+		Assert.assertEquals("Unexpected memory budget", BUDGET, mbean.getMemoryBudget());
+		final long first = UnsafeAdapter.allocateMemory(BUDGET / 2);
+		Assert.assertEquals("Over budget allocation was not refused", 0L, UnsafeAdapter.tryAllocateMemory(BUDGET / 2 + 1));
+		final long second = UnsafeAdapter.tryAllocateMemory(BUDGET / 4);
+		Assert.assertTrue("Allocation within budget was refused", second!=0L);
+		Assert.assertEquals("Unexpected reserved bytes", BUDGET / 2 + BUDGET / 4, mbean.getMemoryBudgetReserved());
+		final long third = UnsafeAdapter.reallocateMemory(second, BUDGET / 8);
+		Assert.assertEquals("Reallocation did not release the prior size", BUDGET / 2 + BUDGET / 8, mbean.getMemoryBudgetReserved());
+		UnsafeAdapter.freeMemory(first);
+		UnsafeAdapter.freeMemory(third);
+		Assert.assertEquals("Frees did not release the budget", 0L, mbean.getMemoryBudgetReserved());
+		validateDeallocated("testTryAllocate", 0, -1);
+	}
+
+	/**
+	 * Tests that an allocation that does not fit waits for the cleaner to free a collected allocation pointer
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testBackpressure() throws Exception {
+		final MemoryMBean mbean = UnsafeAdapter.getMemoryMBean();
+		final long priorWaits = mbean.getMemoryBudgetWaitCount();
+		allocateAndDrop(BUDGET - 1024);
+		final long address = UnsafeAdapter.allocateMemory(BUDGET / 2);
+		Assert.assertEquals("Allocation did not wait for the budget", priorWaits + 1, mbean.getMemoryBudgetWaitCount());
+		Assert.assertEquals("Unexpected reserved bytes", BUDGET / 2, mbean.getMemoryBudgetReserved());
+		UnsafeAdapter.freeMemory(address);
+		validateDeallocated("testBackpressure", 0, -1);
+	}
+
+	/**
+	 * Tests that an allocation fails once the budget timeout elapses if no memory is released
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testBudgetExhausted() throws Exception {
+		final MemoryMBean mbean = UnsafeAdapter.getMemoryMBean();
+		final long priorFailures = mbean.getMemoryBudgetFailureCount();
+		final long address = UnsafeAdapter.allocateMemory(BUDGET);
+		try {
+			final long start = System.currentTimeMillis();
+			try {
+				UnsafeAdapter.allocateMemory(8);
+				Assert.fail("Over budget allocation did not fail");
+			} catch (OutOfMemoryError oom) {
+				final long elapsed = System.currentTimeMillis() - start;
+				Assert.assertTrue("Allocation failed before the timeout elapsed: " + elapsed, elapsed >= UnsafeAdapter.DEFAULT_BUDGET_TIMEOUT);
+			}
+			try {
+				UnsafeAdapter.allocateMemory(BUDGET * 2L);
+				Assert.fail("Allocation larger than the budget did not fail");
+			} catch (OutOfMemoryError oom) {
+				/* expected */
+			}
+			Assert.assertEquals("Unexpected failure count", priorFailures + 2, mbean.getMemoryBudgetFailureCount());
+			Assert.assertEquals("Failed allocations were left reserved", BUDGET, mbean.getMemoryBudgetReserved());
+		} finally {
+			UnsafeAdapter.freeMemory(address);
+		}
+		validateDeallocated("testBudgetExhausted", 0, -1);
+	}
+
+	/**
+	 * Tests that asynchronous allocations that do not fit are queued and completed in arrival order as memory is released
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testAsyncAllocation() throws Exception {
+		final MemoryMBean mbean = UnsafeAdapter.getMemoryMBean();
+		final CompletableFuture<Long> immediate = UnsafeAdapter.allocateAsync(BUDGET / 2);
+		Assert.assertTrue("Allocation within budget was not completed immediately", immediate.isDone());
+		final long first = immediate.get();
+		final long second = UnsafeAdapter.allocateMemory(BUDGET / 2);
+		final CompletableFuture<Long> large = UnsafeAdapter.allocateAsync(BUDGET * 3 / 4);
+		final CompletableFuture<Long> small = UnsafeAdapter.allocateAsync(BUDGET / 8);
+		Assert.assertFalse("Over budget allocation was completed", large.isDone());
+		Assert.assertEquals("Unexpected async waiter count", 2, mbean.getMemoryBudgetAsyncWaiters());
+		UnsafeAdapter.freeMemory(first);
+		sleep(100);
+		Assert.assertFalse("Allocation overtook the head of the queue", small.isDone());
+		UnsafeAdapter.freeMemory(second);
+		final long largeAddress = large.get(1000, TimeUnit.MILLISECONDS);
+		final long smallAddress = small.get(1000, TimeUnit.MILLISECONDS);
+		Assert.assertEquals("Unexpected async waiter count", 0, mbean.getMemoryBudgetAsyncWaiters());
+		Assert.assertEquals("Unexpected reserved bytes", BUDGET * 3 / 4 + BUDGET / 8, mbean.getMemoryBudgetReserved());
+		UnsafeAdapter.freeMemory(largeAddress);
+		UnsafeAdapter.freeMemory(smallAddress);
+		validateDeallocated("testAsyncAllocation", 0, -1);
+	}
+
+	/**
+	 * Tests that a queued asynchronous allocation is failed when the budget timeout elapses and that a cancelled one is discarded
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testAsyncExpiry() throws Exception {
+		final MemoryMBean mbean = UnsafeAdapter.getMemoryMBean();
+		final long address = UnsafeAdapter.allocateMemory(BUDGET);
+		final CompletableFuture<Long> expiring = UnsafeAdapter.allocateAsync(8);
+		try {
+			expiring.get(UnsafeAdapter.DEFAULT_BUDGET_TIMEOUT * 3, TimeUnit.MILLISECONDS);
+			Assert.fail("Over budget allocation did not fail");
+		} catch (ExecutionException eex) {
+			Assert.assertTrue("Unexpected failure: " + eex.getCause(), eex.getCause() instanceof OutOfMemoryError);
+		}
+		final CompletableFuture<Long> cancelled = UnsafeAdapter.allocateAsync(8);
+		cancelled.cancel(true);
+		UnsafeAdapter.freeMemory(address);
+		Assert.assertEquals("Cancelled allocation was not discarded", 0, mbean.getMemoryBudgetAsyncWaiters());
+		Assert.assertEquals("Cancelled allocation was left reserved", 0L, mbean.getMemoryBudgetReserved());
+		validateDeallocated("testAsyncExpiry", 0, -1);
+	}
+
+	/**
+	 * Asserts that the passed future is failed with an {@link OutOfMemoryError} well before the budget timeout elapses
+	 * @param future The future of the failed asynchronous allocation
+	 * @throws Exception thrown on any error
+	 */
+	static void assertFailedEarly(final CompletableFuture<Long> future) throws Exception {
+		try {
+			future.get(UnsafeAdapter.DEFAULT_BUDGET_TIMEOUT / 2, TimeUnit.MILLISECONDS);
+			Assert.fail("Over budget allocation did not fail");
+		} catch (ExecutionException eex) {
+			Assert.assertTrue("Unexpected failure: " + eex.getCause(), eex.getCause() instanceof OutOfMemoryError);
+		}
+	}
+	
+	/**
+	 * Tests that queued asynchronous allocations are failed when the budget is reset, instead of being dropped
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testAsyncReset() throws Exception {
+		final MemoryMBean mbean = UnsafeAdapter.getMemoryMBean();
+		final long address = UnsafeAdapter.allocateMemory(BUDGET);
+		try {
+			final CompletableFuture<Long> pending = UnsafeAdapter.allocateAsync(8);
+			Assert.assertFalse("Over budget allocation was completed", pending.isDone());
+			ReflectionHelper.invoke(UnsafeAdapter.class, "resetRefMgr");
+			assertFailedEarly(pending);
+			Assert.assertEquals("Unexpected async waiter count", 0, mbean.getMemoryBudgetAsyncWaiters());
+		} finally {
+			UnsafeAdapter.freeMemory(address);
+		}
+	}
+	
+	/**
+	 * Tests that queued asynchronous allocations are failed when the adapter, and with it the budget, is replaced
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testAsyncClose() throws Exception {
+		final long address = UnsafeAdapter.allocateMemory(BUDGET);
+		try {
+			final CompletableFuture<Long> pending = UnsafeAdapter.allocateAsync(8);
+			Assert.assertFalse("Over budget allocation was completed", pending.isDone());
+			ReflectionHelper.invoke(UnsafeAdapter.class, "reset");
+			assertFailedEarly(pending);
+		} finally {
+			UnsafeAdapter.freeMemory(address);
+		}
+		Assert.assertEquals("Unexpected memory budget", BUDGET, UnsafeAdapter.getMemoryMBean().getMemoryBudget());
+	}
+	
+	/**
+	 * Tests that a zero budget timeout fails blocking and asynchronous allocations that do not fit at once
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testZeroTimeout() throws Exception {
+		System.setProperty(UnsafeAdapter.BUDGET_TIMEOUT_PROP, "0");
+		ReflectionHelper.invoke(UnsafeAdapter.class, "reset");
+		try {
+			final MemoryMBean mbean = UnsafeAdapter.getMemoryMBean();
+			final long address = UnsafeAdapter.allocateMemory(BUDGET);
+			try {
+				try {
+					UnsafeAdapter.allocateMemory(8);
+					Assert.fail("Over budget allocation did not fail");
+				} catch (OutOfMemoryError oom) {
+					/* expected */
+				}
+				final CompletableFuture<Long> async = UnsafeAdapter.allocateAsync(8);
+				assertFailedEarly(async);
+				Assert.assertEquals("Failed allocation was queued", 0, mbean.getMemoryBudgetAsyncWaiters());
+				Assert.assertEquals("Unexpected failure count", 2, mbean.getMemoryBudgetFailureCount());
+			} finally {
+				UnsafeAdapter.freeMemory(address);
+			}
+			final CompletableFuture<Long> fits = UnsafeAdapter.allocateAsync(8);
+			UnsafeAdapter.freeMemory(fits.get(1000, TimeUnit.MILLISECONDS));
+			Assert.assertEquals("Unexpected reserved bytes", 0L, mbean.getMemoryBudgetReserved());
+		} finally {
+			System.clearProperty(UnsafeAdapter.BUDGET_TIMEOUT_PROP);
+			ReflectionHelper.invoke(UnsafeAdapter.class, "reset");
+		}
+	}
+	
+	/**
+	 * Tests that allocations through a memory manager that is only an {@link AddressAssignable} release the budget when freed,
+	 * so repeated allocate and free cycles never exhaust it
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testAddressAssignableReleasesBudget() throws Exception {
+		final MemoryMBean mbean = UnsafeAdapter.getMemoryMBean();
+		final Set<Long> assigned = new HashSet<Long>();
+		final AddressAssignable assignable = new AddressAssignable() {
+			@Override
+			public void setAllocated(final long address, final long size, final long alignmentOverhead) {
+				assigned.add(address);
+			}
+			@Override
+			public void removeAllocated(final long address) {
+				assigned.remove(address);
+			}
+		};
+		for(int i = 0; i < 8; i++) {
+			final long address = UnsafeAdapter.allocateMemory(BUDGET / 2, assignable);
+			final long reallocated = UnsafeAdapter.reallocateMemory(address, BUDGET / 4, assignable);
+			Assert.assertEquals("Reallocation did not release the prior size", BUDGET / 4, mbean.getMemoryBudgetReserved());
+			final long[] batch = UnsafeAdapter.allocateMemory(new long[]{BUDGET / 4, BUDGET / 4}, assignable);
+			Assert.assertEquals("Unexpected reserved bytes", BUDGET / 4 * 3, mbean.getMemoryBudgetReserved());
+			UnsafeAdapter.freeMemory(new long[]{reallocated, batch[0], batch[1]}, assignable);
+			Assert.assertEquals("Frees did not release the budget", 0L, mbean.getMemoryBudgetReserved());
+		}
+		Assert.assertTrue("Addresses left assigned", assigned.isEmpty());
+		validateDeallocated("testAddressAssignableReleasesBudget", 0, -1);
+	}
+
+	/**
+	 * Allocates memory into an allocation pointer that is unreachable when this method returns
+	 * @param size The number of bytes to allocate
+	 */
+	private static void allocateAndDrop(final long size) {
+		final AllocationPointer ap = UnsafeAdapter.newAllocationPointer();
+		UnsafeAdapter.allocateMemory(size, ap);
+		Assert.assertEquals("Unexpected reserved bytes", size, UnsafeAdapter.getMemoryMBean().getMemoryBudgetReserved());
+	}
+}
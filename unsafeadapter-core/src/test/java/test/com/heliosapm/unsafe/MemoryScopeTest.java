@@ -0,0 +1,121 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.unsafe.MemoryScope;
+import com.heliosapm.unsafe.UnsafeAdapter;
+
+/**
+ * <p>Title: MemoryScopeTest</p>
+ * <p>Description: Tests for {@link MemoryScope} deterministic release. Mem tracking is turned on to validate
+ * that everything allocated in a scope is released when it is closed.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.MemoryScopeTest</code></p>
+ */
+@UnsafeAdapterConfiguration(memTracking=true)
+public class MemoryScopeTest extends BaseTest {
+
+	/**
+	 * Tests that closing a scope frees its blocks and drops its reference without waiting for the cleaner
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCloseReleases() throws Exception {
+		final int pendingRefs = UnsafeAdapter.getMemoryMBean().getPendingRefs();
+		final MemoryScope scope = UnsafeAdapter.newMemoryScope();
+		Assert.assertEquals("Scope reference was not registered", pendingRefs + 1, UnsafeAdapter.getMemoryMBean().getPendingRefs());
+		final int blocks = 100;
+		final long[] addresses = new long[blocks];
+		final long[] sizes = new long[blocks];
+		long expectedBytes = 0;
+		try {
+			for(int i = 0; i < blocks; i++) {
+				sizes[i] = nextPosInt(64) + 8;
+				addresses[i] = scope.allocateMemory(sizes[i]);
+				UnsafeAdapter.putLong(addresses[i], i);
+				expectedBytes += sizes[i];
+			}
+			Assert.assertEquals("Unexpected allocation count", blocks, scope.getAllocationCount());
+			Assert.assertEquals("Unexpected allocated bytes", expectedBytes, scope.getAllocatedBytes());
+			addresses[2] = scope.reallocateMemory(addresses[2], 1024);
+			Assert.assertEquals("Reallocated block was not copied", 2, UnsafeAdapter.getLong(addresses[2]));
+			expectedBytes += 1024 - sizes[2];
+			scope.freeMemory(addresses[1]);
+			expectedBytes -= sizes[1];
+			Assert.assertEquals("Freed block still counted", blocks - 1, scope.getAllocationCount());
+			Assert.assertEquals("Unexpected allocated bytes after realloc and free", expectedBytes, scope.getAllocatedBytes());
+			validateAllocated("testCloseReleases", expectedBytes, -1, blocks - 1);
+		} finally {
+			scope.close();
+		}
+		scope.close();
+		Assert.assertTrue("Scope was not closed", scope.isClosed());
+		Assert.assertEquals("Scope still held blocks", 0, scope.getAllocationCount());
+		Assert.assertEquals("Scope reference was not dropped on close", pendingRefs, UnsafeAdapter.getMemoryMBean().getPendingRefs());
+		Assert.assertEquals("Allocated memory was not released on close", 0, UnsafeAdapter.getMemoryMBean().getTotalAllocatedMemory());
+		Assert.assertEquals("Allocation count was not zero", 0, UnsafeAdapter.getMemoryMBean().getTotalAllocationCount());
+		try {
+			scope.allocateMemory(8);
+			Assert.fail("Allocation from a closed scope did not fail");
+		} catch (IllegalStateException iex) {
+			/* expected */
+		}
+	}
+
+	/**
+	 * Tests that a scope that is dropped without being closed is released by the cleaner
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testUnclosedScopeRelease() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final Runnable r = new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		};
+		MemoryScope scope = UnsafeAdapter.newMemoryScope(r);
+		for(int i = 0; i < 10; i++) {
+			scope.allocateMemory(128);
+		}
+		validateAllocated("testUnclosedScopeRelease", 10 * 128, -1, 10);
+		scope = null;
+		if(!latch.await(100, TimeUnit.MILLISECONDS)) {
+			log("PHANTOM still here. Call GC.");
+			System.gc();
+		}
+		final boolean collected = latch.await(5000, TimeUnit.MILLISECONDS);
+		Assert.assertTrue("MemoryScope Not Collected", collected);
+		Assert.assertEquals("Allocated memory was not released", 0, UnsafeAdapter.getMemoryMBean().getTotalAllocatedMemory());
+	}
+
+}
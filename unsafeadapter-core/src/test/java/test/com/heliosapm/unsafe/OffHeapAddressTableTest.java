@@ -0,0 +1,114 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.unsafe.Callbacks.SlotVisitor;
+import com.heliosapm.unsafe.OffHeapAddressTable;
+
+/**
+ * <p>Title: OffHeapAddressTableTest</p>
+ * <p>Description: Tests for the {@link OffHeapAddressTable} used to track unmanaged allocations</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.OffHeapAddressTableTest</code></p>
+ */
+public class OffHeapAddressTableTest extends BaseTest {
+
+	/**
+	 * Tests random puts and removes of aligned addresses against a heap map, growing the segments well past their initial capacity
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testRandomPutRemove() throws Exception {
+		final OffHeapAddressTable table = new OffHeapAddressTable(16, true);
+		final long initialBytes = table.getTableBytes();
+		final Map<Long, long[]> expected = new HashMap<Long, long[]>();
+		final List<Long> keys = new ArrayList<Long>();
+		final long[] removed = new long[3];
+		final SlotVisitor visitor = new SlotVisitor() {
+			public boolean visitSlot(final int index, final long address, final long size, final long alignmentOverhead) {
+				removed[0] = address;
+				removed[1] = size;
+				removed[2] = alignmentOverhead;
+				return true;
+			}
+		};
+		for(int i = 0; i < 20000; i++) {
+			if(keys.isEmpty() || RANDOM.nextInt(3) != 0) {
+				// 16 byte aligned addresses, like the ones malloc hands out
+				final long address = (nextPosInt(1 << 20) + 1) * 16L;
+				final long size = nextPosInt(4096);
+				final long overhead = nextPosInt(64);
+				final boolean replaced = table.put(address, size, overhead);
+				Assert.assertEquals("Unexpected replace of [" + address + "]", expected.containsKey(address), replaced);
+				if(!replaced) keys.add(address);
+				expected.put(address, new long[]{size, overhead});
+			} else {
+				final long address = keys.remove(RANDOM.nextInt(keys.size()));
+				final long[] values = expected.remove(address);
+				Assert.assertTrue("Tracked address [" + address + "] not removed", table.remove(address, visitor));
+				Assert.assertEquals("Unexpected removed address", address, removed[0]);
+				Assert.assertEquals("Unexpected removed size", values[0], removed[1]);
+				Assert.assertEquals("Unexpected removed overhead", values[1], removed[2]);
+				Assert.assertFalse("Removed address [" + address + "] removed twice", table.remove(address, visitor));
+			}
+			Assert.assertEquals("Unexpected size", expected.size(), table.size());
+		}
+		for(Map.Entry<Long, long[]> entry: expected.entrySet()) {
+			Assert.assertEquals("Unexpected size for [" + entry.getKey() + "]", entry.getValue()[0], table.getSize(entry.getKey()));
+		}
+		Assert.assertTrue("Table did not grow", table.getTableBytes() > initialBytes);
+		table.clear();
+		Assert.assertEquals("Table not cleared", 0, table.size());
+		Assert.assertEquals("Table not shrunk", initialBytes, table.getTableBytes());
+	}
+
+	/**
+	 * Tests that the zero address is tracked like any other
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testZeroAddress() throws Exception {
+		final OffHeapAddressTable table = new OffHeapAddressTable(16, false);
+		Assert.assertEquals("Zero address tracked", -1, table.getSize(0L));
+		Assert.assertFalse("Zero address replaced", table.put(0L, 0L, 0L));
+		table.put(64L, 8L, 0L);
+		Assert.assertEquals("Unexpected size", 2, table.size());
+		Assert.assertEquals("Unexpected zero address size", 0, table.getSize(0L));
+		Assert.assertTrue("Zero address not removed", table.remove(0L, null));
+		Assert.assertFalse("Zero address removed twice", table.remove(0L, null));
+		Assert.assertEquals("Unexpected size", 1, table.size());
+		Assert.assertEquals("Unexpected size", 8, table.getSize(64L));
+	}
+
+}
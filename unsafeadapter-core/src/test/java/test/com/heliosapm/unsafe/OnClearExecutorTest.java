@@ -0,0 +1,137 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import jsr166e.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.unsafe.AllocationPointer;
+import com.heliosapm.unsafe.ReflectionHelper;
+import com.heliosapm.unsafe.UnsafeAdapter;
+
+/**
+ * <p>Title: OnClearExecutorTest</p>
+ * <p>Description: Tests for handing on clear runnables off to an executor so they cannot hold up the cleaner</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.OnClearExecutorTest</code></p>
+ */
+@UnsafeAdapterConfiguration(memTracking=true)
+public class OnClearExecutorTest extends BaseTest {
+
+	/**
+	 * Tests that a blocked on clear runnable does not stop the cleaner releasing other collected allocations,
+	 * and that the dispatch is reported in the queue depth and latency metrics
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testSlowRunnableHandOff() throws Exception {
+		final ForkJoinPool pool = new ForkJoinPool(1);
+		UnsafeAdapter.setOnClearExecutor(pool);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch gate = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(1);
+		try {
+			Assert.assertTrue("On clear executor not reported", UnsafeAdapter.getMemoryMBean().isOnClearAsync());
+			final long completed = UnsafeAdapter.getMemoryMBean().getOnClearCompletedCount();
+			AllocationPointer slow = UnsafeAdapter.newAllocationPointer(new Runnable() {
+				public void run() {
+					started.countDown();
+					try { gate.await(10000, TimeUnit.MILLISECONDS); } catch (InterruptedException iex) {/* No Op */}
+					finished.countDown();
+				}
+			});
+			UnsafeAdapter.allocateMemory(256, slow);
+			slow = null;
+			System.gc();
+			Assert.assertTrue("Slow runnable was not started", started.await(5000, TimeUnit.MILLISECONDS));
+			Assert.assertEquals("Unexpected on clear queue depth", 1, UnsafeAdapter.getMemoryMBean().getOnClearQueueDepth());
+			// the cleaner must keep releasing memory while the slow runnable is blocked
+			final int pendingRefs = UnsafeAdapter.getMemoryMBean().getPendingRefs();
+			AllocationPointer other = UnsafeAdapter.newAllocationPointer();
+			UnsafeAdapter.allocateMemory(512, other);
+			other = null;
+			final long timeout = System.currentTimeMillis() + 5000;
+			while(UnsafeAdapter.getMemoryMBean().getPendingRefs() > pendingRefs && System.currentTimeMillis() < timeout) {
+				System.gc();
+				Thread.sleep(50);
+			}
+			Assert.assertEquals("Cleaner was held up by the on clear runnable", pendingRefs, UnsafeAdapter.getMemoryMBean().getPendingRefs());
+			Assert.assertEquals("Allocated memory was not released", 0, UnsafeAdapter.getMemoryMBean().getTotalAllocatedMemory());
+			Assert.assertEquals("Slow runnable finished early", 1, finished.getCount());
+			gate.countDown();
+			Assert.assertTrue("Slow runnable did not finish", finished.await(5000, TimeUnit.MILLISECONDS));
+			final long depthTimeout = System.currentTimeMillis() + 5000;
+			while(UnsafeAdapter.getMemoryMBean().getOnClearQueueDepth() > 0 && System.currentTimeMillis() < depthTimeout) {
+				Thread.sleep(10);
+			}
+			Assert.assertEquals("On clear queue was not drained", 0, UnsafeAdapter.getMemoryMBean().getOnClearQueueDepth());
+			Assert.assertEquals("Unexpected completed count", completed + 1, UnsafeAdapter.getMemoryMBean().getOnClearCompletedCount());
+			Assert.assertTrue("No latency recorded", UnsafeAdapter.getMemoryMBean().getOnClearAverageLatency() > 0);
+		} finally {
+			gate.countDown();
+			UnsafeAdapter.setOnClearExecutor(null);
+			Assert.assertFalse("Caller's executor was shut down", pool.isShutdown());
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Tests that the on clear pool created for {@link UnsafeAdapter#ASYNC_ONCLEAR_PROP} is shut down 
+	 * when it is replaced and when the adapter is reset
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testDefaultExecutorShutdown() throws Exception {
+		System.setProperty(UnsafeAdapter.ASYNC_ONCLEAR_PROP, "true");
+		try {
+			ReflectionHelper.invoke(UnsafeAdapter.class, "reset");
+			Executor executor = UnsafeAdapter.getOnClearExecutor();
+			Assert.assertTrue("Unexpected default executor: " + executor, executor instanceof ForkJoinPool);
+			final ForkJoinPool replaced = (ForkJoinPool)executor;
+			final ForkJoinPool pool = new ForkJoinPool(1);
+			UnsafeAdapter.setOnClearExecutor(pool);
+			Assert.assertTrue("Replaced default executor was not shut down", replaced.isShutdown());
+			UnsafeAdapter.setOnClearExecutor(null);
+			Assert.assertFalse("Caller's executor was shut down", pool.isShutdown());
+			pool.shutdown();
+			ReflectionHelper.invoke(UnsafeAdapter.class, "reset");
+			executor = UnsafeAdapter.getOnClearExecutor();
+			Assert.assertTrue("Unexpected default executor: " + executor, executor instanceof ForkJoinPool);
+			ReflectionHelper.invoke(UnsafeAdapter.class, "reset");
+			Assert.assertTrue("Default executor was not shut down on reset", ((ForkJoinPool)executor).isShutdown());
+		} finally {
+			System.clearProperty(UnsafeAdapter.ASYNC_ONCLEAR_PROP);
+			ReflectionHelper.invoke(UnsafeAdapter.class, "reset");
+		}
+	}
+
+}
@@ -0,0 +1,134 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.unsafe.AllocationPointer;
+import com.heliosapm.unsafe.MemoryArena;
+import com.heliosapm.unsafe.MemoryMBean;
+import com.heliosapm.unsafe.UnsafeAdapter;
+
+/**
+ * <p>Title: SampledAllocationsTest</p>
+ * <p>Description: Tests for estimating the allocated memory from sampled allocations with memory tracking disabled</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.SampledAllocationsTest</code></p>
+ */
+@UnsafeAdapterConfiguration(memTracking=false, sampleInterval=4096)
+public class SampledAllocationsTest extends BaseTest {
+
+	/**
+	 * Tests that the estimate of many small allocations is close to the actual allocated memory, 
+	 * that only a fraction of them are sampled, and that the estimate returns to zero once they are freed
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testSmallAllocationEstimate() throws Exception {
+		final MemoryMBean mbean = UnsafeAdapter.getMemoryMBean();
+		Assert.assertTrue("Sampling not enabled", mbean.isSamplingEnabled());
+		Assert.assertFalse("Tracking enabled", mbean.isTrackingEnabled());
+		Assert.assertEquals("Unexpected sample interval", 4096, mbean.getSampleInterval());
+		final int blocks = 20000;
+		final long[] addresses = new long[blocks];
+		long actual = 0;
+		try {
+			for(int i = 0; i < blocks; i++) {
+				final long size = nextPosInt(1024) + 16;
+				addresses[i] = UnsafeAdapter.allocateMemory(size);
+				actual += size;
+			}
+			final long estimate = mbean.getTotalAllocatedMemory();
+			final long lower = mbean.getTotalAllocatedMemoryLowerBound();
+			final long upper = mbean.getTotalAllocatedMemoryUpperBound();
+			log("Actual: %s, Estimate: %s, 95%% Bounds: [%s - %s], Samples: %s", actual, estimate, lower, upper, mbean.getSampledAllocationCount());
+			Assert.assertTrue("Bounds do not contain the estimate", lower <= estimate && estimate <= upper);
+			// twice the 95% half width is well beyond 4 standard deviations
+			final long halfWidth = upper - estimate;
+			Assert.assertTrue("Estimate [" + estimate + "] too far from actual [" + actual + "]", Math.abs(estimate - actual) <= 2 * halfWidth);
+			Assert.assertTrue("Too many samples", mbean.getSampledAllocationCount() < blocks / 2);
+			Assert.assertTrue("Too few samples", mbean.getSampledAllocationCount() > 0);
+			final long count = mbean.getTotalAllocationCount();
+			Assert.assertTrue("Estimated count [" + count + "] implausible", count > blocks / 2 && count < blocks * 2);
+		} finally {
+			for(long address: addresses) {
+				if(address!=0) UnsafeAdapter.freeMemory(address);
+			}
+		}
+		Assert.assertEquals("Samples not removed", 0, mbean.getSampledAllocationCount());
+		Assert.assertEquals("Estimate not zero", 0, mbean.getTotalAllocatedMemory());
+		Assert.assertEquals("Estimated count not zero", 0, mbean.getTotalAllocationCount());
+	}
+
+	/**
+	 * Tests that allocations much larger than the sample interval are all sampled, and so are estimated almost exactly, 
+	 * including when they are re-allocated and freed by releasing their AllocationPointer
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testLargeAllocationEstimate() throws Exception {
+		final MemoryMBean mbean = UnsafeAdapter.getMemoryMBean();
+		final AllocationPointer ap = UnsafeAdapter.newAllocationPointer();
+		final int blocks = 10;
+		final long size = 1024 * 1024;
+		long last = 0;
+		for(int i = 0; i < blocks; i++) {
+			last = UnsafeAdapter.allocateMemory(size, ap);
+		}
+		Assert.assertEquals("Large allocations not all sampled", blocks, mbean.getSampledAllocationCount());
+		Assert.assertEquals("Unexpected estimate", blocks * size, mbean.getTotalAllocatedMemory(), blocks);
+		UnsafeAdapter.reallocateMemory(last, size * 2, ap);
+		Assert.assertEquals("Unexpected estimate after realloc", (blocks + 1) * size, mbean.getTotalAllocatedMemory(), blocks);
+		Assert.assertEquals("Unexpected samples after realloc", blocks, mbean.getSampledAllocationCount());
+		UnsafeAdapter.releaseAllocationPointer(ap);
+		Assert.assertEquals("Samples not removed on release", 0, mbean.getSampledAllocationCount());
+		Assert.assertEquals("Estimate not zero", 0, mbean.getTotalAllocatedMemory());
+	}
+	/**
+	 * Tests that the samples of arena segments are kept while a reset retains the segments and removed when the arena frees them on close
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testArenaSegmentEstimate() throws Exception {
+		final MemoryMBean mbean = UnsafeAdapter.getMemoryMBean();
+		final long segmentSize = 1024 * 1024;
+		final MemoryArena arena = UnsafeAdapter.newMemoryArena(segmentSize);
+		for(int i = 0; i < 3; i++) {
+			arena.allocate(segmentSize);
+		}
+		Assert.assertEquals("Large segments not all sampled", 3, mbean.getSampledAllocationCount());
+		Assert.assertEquals("Unexpected estimate", segmentSize * 3, mbean.getTotalAllocatedMemory(), 3);
+		arena.reset();
+		Assert.assertEquals("Retained segment samples removed on reset", 3, mbean.getSampledAllocationCount());
+		arena.close();
+		Assert.assertEquals("Segment samples not removed on close", 0, mbean.getSampledAllocationCount());
+		Assert.assertEquals("Estimate not zero", 0, mbean.getTotalAllocatedMemory());
+		Assert.assertEquals("Lower bound not zero", 0, mbean.getTotalAllocatedMemoryLowerBound());
+		Assert.assertEquals("Upper bound not zero", 0, mbean.getTotalAllocatedMemoryUpperBound());
+	}
+
+}
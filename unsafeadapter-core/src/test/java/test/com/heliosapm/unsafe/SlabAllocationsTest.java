@@ -0,0 +1,100 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.unsafe.SlabAllocator;
+import com.heliosapm.unsafe.UnsafeAdapter;
+
+/**
+ * <p>Title: SlabAllocationsTest</p>
+ * <p>Description: The same tests executed in {@link BasicAllocationsTest} but with mem-tracking and slab allocation enabled,
+ * plus slab specific block reuse and reallocation tests.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.SlabAllocationsTest</code></p>
+ */
+@UnsafeAdapterConfiguration(memTracking=true, slabAllocation=true)
+public class SlabAllocationsTest extends BasicAllocationsTest {
+
+	/**
+	 * Tests that small allocations are served from slabs and that freed blocks are recycled
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testSlabBlockReuse() throws Exception {
+		Assert.assertTrue("Slab allocation was not enabled", UnsafeAdapter.getMemoryMBean().isSlabAllocationEnabled());
+		final long inUse = UnsafeAdapter.getMemoryMBean().getSlabBlocksInUse();
+		final long address = UnsafeAdapter.allocateMemory(24);
+		Assert.assertEquals("Slab blocks in use was unexpected", inUse + 1, UnsafeAdapter.getMemoryMBean().getSlabBlocksInUse());
+		Assert.assertEquals("Slab block was not 32 byte aligned", 0, address & 31);
+		validateAllocated("testSlabBlockReuse", 24, -1);
+		UnsafeAdapter.freeMemory(address);
+		validateDeallocated("testSlabBlockReuse", 0, -1);
+		Assert.assertEquals("Slab blocks in use was unexpected", inUse, UnsafeAdapter.getMemoryMBean().getSlabBlocksInUse());
+		final long reused = UnsafeAdapter.allocateMemory(30);
+		Assert.assertEquals("Freed slab block was not reused", address, reused);
+		UnsafeAdapter.freeMemory(reused);
+	}
+	
+	/**
+	 * Tests that allocations larger than the largest size class bypass the slabs
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testLargeAllocationBypassesSlabs() throws Exception {
+		final long inUse = UnsafeAdapter.getMemoryMBean().getSlabBlocksInUse();
+		final long address = UnsafeAdapter.allocateMemory(SlabAllocator.MAX_BLOCK_SIZE + 1);
+		Assert.assertEquals("Slab blocks in use was unexpected", inUse, UnsafeAdapter.getMemoryMBean().getSlabBlocksInUse());
+		Assert.assertEquals("Large allocation was served from a slab", -1, SlabAllocator.getInstance().getBlockSize(address));
+		UnsafeAdapter.freeMemory(address);
+		validateDeallocated("testLargeAllocationBypassesSlabs", 0, -1);
+	}
+	
+	/**
+	 * Tests in place reallocation within a size class and copying reallocation across size classes
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testSlabReallocation() throws Exception {
+		long address = UnsafeAdapter.allocateMemory(40);
+		final long value = nextPosLong();
+		UnsafeAdapter.putLong(address, value);
+		UnsafeAdapter.putLong(address + 32, value + 1);
+		long newAddress = UnsafeAdapter.reallocateMemory(address, 64);
+		Assert.assertEquals("Same class reallocation was not in place", address, newAddress);
+		validateAllocated("testSlabReallocation", 64, -1);
+		newAddress = UnsafeAdapter.reallocateMemory(address, 1000);
+		Assert.assertEquals("Reallocated block was unexpected size class", 1024, SlabAllocator.getInstance().getBlockSize(newAddress));
+		Assert.assertEquals("Reallocated value was not copied", value, UnsafeAdapter.getLong(newAddress));
+		Assert.assertEquals("Reallocated value was not copied", value + 1, UnsafeAdapter.getLong(newAddress + 32));
+		validateAllocated("testSlabReallocation", 1000, -1);
+		UnsafeAdapter.freeMemory(newAddress);
+		validateDeallocated("testSlabReallocation", 0, -1);
+	}
+	
+}
@@ -0,0 +1,97 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.unsafe.AllocationPointer;
+import com.heliosapm.unsafe.UnsafeAdapter;
+
+/**
+ * <p>Title: StripedCleanerTest</p>
+ * <p>Description: Tests for clearing collected allocations with several cleaner threads, each draining its own reference queue</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.StripedCleanerTest</code></p>
+ */
+@UnsafeAdapterConfiguration(memTracking=true, cleanerThreads=4)
+public class StripedCleanerTest extends BaseTest {
+
+	/**
+	 * Tests that the configured number of cleaners is started, with one reference queue each
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCleanerCount() throws Exception {
+		Assert.assertEquals("Unexpected cleaner count", 4, UnsafeAdapter.getMemoryMBean().getCleanerCount());
+		final long[] queueSizes = UnsafeAdapter.getMemoryMBean().getReferenceQueueSizes();
+		Assert.assertEquals("Unexpected number of reference queues", 4, queueSizes.length);
+		long total = 0;
+		for(long size: queueSizes) {
+			total += size;
+		}
+		Assert.assertEquals("Queue sizes do not add up to the pending total", UnsafeAdapter.getMemoryMBean().getReferenceQueueSize(), total);
+	}
+
+	/**
+	 * Tests that AllocationPointers spread across the reference queues are all cleared when collected
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testStripedRelease() throws Exception {
+		final int pointers = 200;
+		final CountDownLatch latch = new CountDownLatch(pointers);
+		final Runnable r = new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		};
+		final int pendingRefs = UnsafeAdapter.getMemoryMBean().getPendingRefs();
+		AllocationPointer[] aps = new AllocationPointer[pointers];
+		for(int i = 0; i < pointers; i++) {
+			aps[i] = UnsafeAdapter.newAllocationPointer(r);
+			UnsafeAdapter.allocateMemory(32, aps[i]);
+			UnsafeAdapter.allocateMemory(96, aps[i]);
+		}
+		validateAllocated("testStripedRelease", pointers * 128, -1, pointers * 2);
+		Assert.assertEquals("Unexpected pending refs", pendingRefs + pointers, UnsafeAdapter.getMemoryMBean().getPendingRefs());
+		aps = null;
+		if(!latch.await(100, TimeUnit.MILLISECONDS)) {
+			log("PHANTOMS still here. Call GC.");
+			System.gc();
+		}
+		final boolean collected = latch.await(5000, TimeUnit.MILLISECONDS);
+		Assert.assertTrue("AllocationPointers Not Collected: " + latch.getCount(), collected);
+		Assert.assertEquals("Refs were not all dropped", pendingRefs, UnsafeAdapter.getMemoryMBean().getPendingRefs());
+		Assert.assertEquals("Allocated memory was not released", 0, UnsafeAdapter.getMemoryMBean().getTotalAllocatedMemory());
+		Assert.assertEquals("Allocation count was not zero", 0, UnsafeAdapter.getMemoryMBean().getTotalAllocationCount());
+		Assert.assertEquals("Reference queues were not drained", 0, UnsafeAdapter.getMemoryMBean().getReferenceQueueSize());
+	}
+
+}
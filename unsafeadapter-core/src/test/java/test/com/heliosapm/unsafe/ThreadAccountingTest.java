@@ -0,0 +1,215 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.unsafe.MemoryMBean;
+import com.heliosapm.unsafe.ThreadAllocationTracker;
+import com.heliosapm.unsafe.ThreadAllocationTracker.ThreadStats;
+import com.heliosapm.unsafe.UnsafeAdapter;
+
+/**
+ * <p>Title: ThreadAccountingTest</p>
+ * <p>Description: Tests for the per thread accounting of the allocated and freed native memory</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.ThreadAccountingTest</code></p>
+ */
+@UnsafeAdapterConfiguration(memTracking=true, threadAccounting=true)
+public class ThreadAccountingTest extends BaseTest {
+
+	/**
+	 * Finds the accounting of the thread with the passed id in the passed snapshot
+	 * @param snapshot The per thread accounting snapshot
+	 * @param threadId The thread id
+	 * @return the thread's accounting or null if it is not in the snapshot
+	 */
+	static ThreadStats find(final ThreadStats[] snapshot, final long threadId) {
+		for(ThreadStats stats: snapshot) {
+			if(stats.getThreadId()==threadId) return stats;
+		}
+		return null;
+	}
+	
+	/**
+	 * Returns the terminated threads total in the passed JMX per thread accounting map
+	 * @param map The per thread accounting map
+	 * @return the terminated threads total, or zero if there is none
+	 */
+	static long terminated(final Map<String, Long> map) {
+		final Long total = map.get(ThreadAllocationTracker.TERMINATED_THREAD_NAME);
+		return total==null ? 0L : total.longValue();
+	}
+	
+	/**
+	 * Tests that the memory allocated and freed by each thread is attributed to that thread, 
+	 * and that the accounting of terminated threads is folded into the terminated threads total
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testPerThreadAccounting() throws Exception {
+		final MemoryMBean mbean = UnsafeAdapter.getMemoryMBean();
+		Assert.assertTrue("Thread accounting not enabled", mbean.isThreadAccountingEnabled());
+		final long terminatedAllocated = terminated(mbean.getThreadAllocatedBytes());
+		final long terminatedFreed = terminated(mbean.getThreadFreedBytes());
+		final int threads = 3;
+		final int blocks = 10;
+		final long[][] addresses = new long[threads][blocks];
+		final CountDownLatch allocated = new CountDownLatch(threads);
+		final CountDownLatch done = new CountDownLatch(1);
+		final Thread[] workers = new Thread[threads];
+		for(int t = 0; t < threads; t++) {
+			final long[] mine = addresses[t];
+			final long size = (t+1) * 100;
+			workers[t] = new Thread("ThreadAccountingWorker#" + t) {
+				@Override
+				public void run() {
+					for(int i = 0; i < blocks; i++) {
+						mine[i] = UnsafeAdapter.allocateMemory(size);
+					}
+					for(int i = 0; i < 4; i++) {
+						UnsafeAdapter.freeMemory(mine[i]);
+						mine[i] = 0;
+					}
+					allocated.countDown();
+					try { done.await(); } catch (InterruptedException iex) { /* exit */ }
+				}
+			};
+			workers[t].setDaemon(true);
+			workers[t].start();
+		}
+		allocated.await();
+		final ThreadStats[] snapshot = UnsafeAdapter.getThreadAllocationStats();
+		final Map<String, Long> allocatedBytes = mbean.getThreadAllocatedBytes();
+		final Map<String, Long> freedBytes = mbean.getThreadFreedBytes();
+		for(int t = 0; t < threads; t++) {
+			final long size = (t+1) * 100;
+			final ThreadStats stats = find(snapshot, workers[t].getId());
+			Assert.assertNotNull("No accounting for worker #" + t, stats);
+			log("%s", stats);
+			Assert.assertEquals("Unexpected allocated bytes", size * blocks, stats.getAllocatedBytes());
+			Assert.assertEquals("Unexpected allocation count", blocks, stats.getAllocationCount());
+			Assert.assertEquals("Unexpected freed bytes", size * 4, stats.getFreedBytes());
+			Assert.assertEquals("Unexpected free count", 4, stats.getFreeCount());
+			Assert.assertEquals("Unexpected JMX allocated bytes", size * blocks, allocatedBytes.get(stats.getKey()).longValue());
+			Assert.assertEquals("Unexpected JMX freed bytes", size * 4, freedBytes.get(stats.getKey()).longValue());
+		}
+		// the workers terminate and are folded into the terminated total
+		done.countDown();
+		for(Thread worker: workers) {
+			worker.join();
+		}
+		final ThreadStats[] after = UnsafeAdapter.getThreadAllocationStats();
+		long expectedAllocated = 0, expectedFreed = 0;
+		for(int t = 0; t < threads; t++) {
+			Assert.assertNull("Terminated worker still reported", find(after, workers[t].getId()));
+			expectedAllocated += (t+1) * 100 * blocks;
+			expectedFreed += (t+1) * 100 * 4;
+		}
+		Assert.assertEquals("Unexpected terminated allocated bytes", terminatedAllocated + expectedAllocated, terminated(mbean.getThreadAllocatedBytes()));
+		Assert.assertEquals("Unexpected terminated freed bytes", terminatedFreed + expectedFreed, terminated(mbean.getThreadFreedBytes()));
+		// frees are attributed to the freeing thread
+		final ThreadStats mineBefore = UnsafeAdapter.getCurrentThreadAllocationStats();
+		for(int t = 0; t < threads; t++) {
+			for(long address: addresses[t]) {
+				if(address!=0) UnsafeAdapter.freeMemory(address);
+			}
+		}
+		final ThreadStats mine = UnsafeAdapter.getCurrentThreadAllocationStats();
+		Assert.assertEquals("Unexpected freed bytes", mineBefore.getFreedBytes() + (expectedAllocated - expectedFreed), mine.getFreedBytes());
+		Assert.assertEquals("Unexpected free count", mineBefore.getFreeCount() + (threads * (blocks - 4)), mine.getFreeCount());
+		Assert.assertEquals("Unexpected allocated bytes", mineBefore.getAllocatedBytes(), mine.getAllocatedBytes());
+	}
+	
+	/**
+	 * Tests that the per thread accounting of a batch allocation and free is applied once for the whole batch
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testBatchAccounting() throws Exception {
+		final ThreadStats before = UnsafeAdapter.getCurrentThreadAllocationStats();
+		final long[] sizes = new long[] {64, 128, 256, 512};
+		final long[] addresses = UnsafeAdapter.allocateMemory(sizes);
+		ThreadStats stats = UnsafeAdapter.getCurrentThreadAllocationStats();
+		Assert.assertEquals("Unexpected allocated bytes", before.getAllocatedBytes() + 960, stats.getAllocatedBytes());
+		Assert.assertEquals("Unexpected allocation count", before.getAllocationCount() + 4, stats.getAllocationCount());
+		UnsafeAdapter.freeMemory(addresses);
+		stats = UnsafeAdapter.getCurrentThreadAllocationStats();
+		Assert.assertEquals("Unexpected freed bytes", before.getFreedBytes() + 960, stats.getFreedBytes());
+		Assert.assertEquals("Unexpected free count", before.getFreeCount() + 4, stats.getFreeCount());
+	}
+	
+	/**
+	 * Tests that the counters of terminated threads are folded into the terminated threads total 
+	 * when a new thread registers, without waiting for a snapshot
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testPruneOnRegistration() throws Exception {
+		final ThreadAllocationTracker tracker = new ThreadAllocationTracker();
+		final int threads = 5;
+		final CountDownLatch registered = new CountDownLatch(threads);
+		final CountDownLatch done = new CountDownLatch(1);
+		final Thread[] workers = new Thread[threads];
+		for(int t = 0; t < threads; t++) {
+			workers[t] = new Thread("ThreadAccountingWorker#" + t) {
+				@Override
+				public void run() {
+					tracker.allocated(100, 1);
+					tracker.freed(40, 1);
+					registered.countDown();
+					try { done.await(); } catch (InterruptedException iex) { /* exit */ }
+				}
+			};
+			workers[t].setDaemon(true);
+			workers[t].start();
+		}
+		registered.await();
+		done.countDown();
+		for(Thread worker: workers) {
+			worker.join();
+		}
+		Assert.assertEquals("Terminated threads pruned before registration", 0L, tracker.getTerminatedStats().getAllocatedBytes());
+		// the calling thread registers and sweeps the terminated workers
+		tracker.allocated(10, 1);
+		ThreadStats terminated = tracker.getTerminatedStats();
+		Assert.assertEquals("Unexpected terminated allocated bytes", threads * 100L, terminated.getAllocatedBytes());
+		Assert.assertEquals("Unexpected terminated allocation count", threads, terminated.getAllocationCount());
+		Assert.assertEquals("Unexpected terminated freed bytes", threads * 40L, terminated.getFreedBytes());
+		Assert.assertEquals("Unexpected terminated free count", threads, terminated.getFreeCount());
+		final ThreadStats[] snapshot = tracker.snapshot();
+		Assert.assertEquals("Unexpected live threads", 1, snapshot.length);
+		Assert.assertEquals("Unexpected live thread", Thread.currentThread().getId(), snapshot[0].getThreadId());
+		// the snapshot finds nothing more to retire
+		terminated = tracker.getTerminatedStats();
+		Assert.assertEquals("Terminated threads retired twice", threads * 100L, terminated.getAllocatedBytes());
+	}
+
+}
@@ -0,0 +1,123 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.unsafe.ThreadLocalAllocator;
+import com.heliosapm.unsafe.UnsafeAdapter;
+
+/**
+ * <p>Title: ThreadLocalAllocationsTest</p>
+ * <p>Description: The same tests executed in {@link BasicAllocationsTest} but with mem-tracking and thread local allocation buffers enabled,
+ * plus buffer specific bump allocation and deferred accounting tests.</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.ThreadLocalAllocationsTest</code></p>
+ */
+@UnsafeAdapterConfiguration(memTracking=true, threadLocalAllocation=true)
+public class ThreadLocalAllocationsTest extends BasicAllocationsTest {
+
+	/**
+	 * Tests that consecutive tiny allocations are bump allocated from the same chunk
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testBumpAllocation() throws Exception {
+		Assert.assertTrue("Thread local allocation was not enabled", UnsafeAdapter.getMemoryMBean().isThreadLocalAllocationEnabled());
+		final long first = UnsafeAdapter.allocateMemory(20);
+		final long second = UnsafeAdapter.allocateMemory(8);
+		if((first / ThreadLocalAllocator.CHUNK_SIZE)==(second / ThreadLocalAllocator.CHUNK_SIZE)) {
+			// 20 bytes rounds to 24, plus the 8 byte block header
+			Assert.assertEquals("Second block was not bumped from the first", first + 32, second);
+		}
+		validateAllocated("testBumpAllocation", 28, -1, 2);
+		UnsafeAdapter.freeMemory(first);
+		UnsafeAdapter.freeMemory(second);
+		validateDeallocated("testBumpAllocation", 0, -1);
+	}
+	
+	/**
+	 * Tests reallocation of a buffer block, in place when shrinking and copied out when growing
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testBufferBlockReallocation() throws Exception {
+		final long address = UnsafeAdapter.allocateMemory(64);
+		final long value = nextPosLong();
+		UnsafeAdapter.putLong(address + 56, value);
+		Assert.assertEquals("Shrinking reallocation was not in place", address, UnsafeAdapter.reallocateMemory(address, 32));
+		final long grown = UnsafeAdapter.reallocateMemory(address, ThreadLocalAllocator.MAX_BLOCK_SIZE * 4);
+		Assert.assertEquals("Reallocated value was not copied", value, UnsafeAdapter.getLong(grown + 56));
+		validateAllocated("testBufferBlockReallocation", ThreadLocalAllocator.MAX_BLOCK_SIZE * 4, -1);
+		UnsafeAdapter.freeMemory(grown);
+		validateDeallocated("testBufferBlockReallocation", 0, -1);
+	}
+	
+	/**
+	 * Tests that the memory totals are correct after many threads allocate and free through their own buffers
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testConcurrentBufferAccounting() throws Exception {
+		final int threads = 4;
+		final int loops = 5000;
+		final long[][] addresses = new long[threads][loops];
+		final CountDownLatch latch = new CountDownLatch(threads);
+		for(int t = 0; t < threads; t++) {
+			final long[] mine = addresses[t];
+			Thread thread = new Thread("TLABTestThread#" + t) {
+				@Override
+				public void run() {
+					try {
+						for(int i = 0; i < loops; i++) {
+							mine[i] = UnsafeAdapter.allocateMemory(16);
+							UnsafeAdapter.putLong(mine[i], i);
+						}
+					} finally {
+						latch.countDown();
+					}
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+		Assert.assertTrue("Allocating threads timed out", latch.await(30, TimeUnit.SECONDS));
+		validateAllocated("testConcurrentBufferAccounting", threads * loops * 16L, -1, threads * loops);
+		for(int t = 0; t < threads; t++) {
+			for(int i = 0; i < loops; i++) {
+				Assert.assertEquals("Block value was overwritten", i, UnsafeAdapter.getLong(addresses[t][i]));
+				UnsafeAdapter.freeMemory(addresses[t][i]);
+			}
+		}
+		validateDeallocated("testConcurrentBufferAccounting", 0, -1);
+		Assert.assertEquals("Allocation count was not zero", 0, UnsafeAdapter.getMemoryMBean().getTotalAllocationCount());
+	}
+	
+}
@@ -0,0 +1,135 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.heliosapm.unsafe.AllocationPointer;
+import com.heliosapm.unsafe.MemoryMBean;
+import com.heliosapm.unsafe.UnsafeAdapter;
+
+/**
+ * <p>Title: TrackingToggleTest</p>
+ * <p>Description: Tests for enabling and disabling memory allocation and alignment overhead tracking at runtime</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.TrackingToggleTest</code></p>
+ */
+@UnsafeAdapterConfiguration(memTracking=true, memAlignment=true)
+public class TrackingToggleTest extends BaseTest {
+
+	/**
+	 * Tests that unmanaged allocations made while tracking is disabled are freed without disturbing the counters,
+	 * and that allocations tracked before tracking was disabled are uncounted when freed while it is disabled
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testToggleUnmanagedAllocations() throws Exception {
+		final MemoryMBean mbean = UnsafeAdapter.getMemoryMBean();
+		try {
+			final long tracked = UnsafeAdapter.allocateMemory(100);
+			validateAllocated("testToggleUnmanagedAllocations", 100, -1, 1);
+			mbean.setTrackingEnabled(false);
+			Assert.assertFalse("Tracking still enabled", UnsafeAdapter.isMemTrackingEnabled());
+			Assert.assertFalse("Alignment still enabled", UnsafeAdapter.isAlignmentTrackingEnabled());
+			Assert.assertEquals("Untracked memory reported", -1, mbean.getTotalAllocatedMemory());
+			final long untracked = UnsafeAdapter.allocateMemory(200);
+			final long reallocated = UnsafeAdapter.reallocateMemory(untracked, 400);
+			UnsafeAdapter.freeMemory(tracked);
+			mbean.setTrackingEnabled(true);
+			Assert.assertTrue("Alignment not restored", UnsafeAdapter.isAlignmentTrackingEnabled());
+			Assert.assertEquals("Allocated memory was not released", 0, mbean.getTotalAllocatedMemory());
+			Assert.assertEquals("Allocation count was not zero", 0, mbean.getTotalAllocationCount());
+			Assert.assertEquals("Untracked allocation was tracked", 0, mbean.getTotalRawAllocationCount());
+			UnsafeAdapter.freeMemory(reallocated);
+			Assert.assertEquals("Freeing untracked memory changed the count", 0, mbean.getTotalAllocationCount());
+			final long address = UnsafeAdapter.allocateMemory(50);
+			validateAllocated("testToggleUnmanagedAllocations", 50, -1, 1);
+			UnsafeAdapter.freeMemory(address);
+			validateAllocated("testToggleUnmanagedAllocations", 0, -1, 0);
+		} finally {
+			mbean.setTrackingEnabled(true);
+		}
+	}
+	
+	/**
+	 * Tests that memory allocated into AllocationPointers is counted according to how the AllocationPointer was created,
+	 * so that it is uncounted by the same amount when released, whatever the tracking setting is by then
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testToggleManagedAllocations() throws Exception {
+		final MemoryMBean mbean = UnsafeAdapter.getMemoryMBean();
+		try {
+			final AllocationPointer tracked = UnsafeAdapter.newAllocationPointer();
+			UnsafeAdapter.allocateMemory(64, tracked);
+			mbean.setTrackingEnabled(false);
+			final AllocationPointer untracked = UnsafeAdapter.newAllocationPointer();
+			Assert.assertEquals("Unexpected untracked dimension", 1, untracked.getDimension());
+			UnsafeAdapter.allocateMemory(128, untracked);
+			UnsafeAdapter.allocateMemory(32, tracked);
+			mbean.setTrackingEnabled(true);
+			validateAllocated("testToggleManagedAllocations", 96, -1, 2);
+			UnsafeAdapter.allocateMemory(256, untracked);
+			validateAllocated("testToggleManagedAllocations", 96, -1, 2);
+			UnsafeAdapter.releaseAllocationPointer(untracked);
+			validateAllocated("testToggleManagedAllocations", 96, -1, 2);
+			mbean.setTrackingEnabled(false);
+			UnsafeAdapter.releaseAllocationPointer(tracked);
+			mbean.setTrackingEnabled(true);
+			validateAllocated("testToggleManagedAllocations", 0, -1, 0);
+		} finally {
+			mbean.setTrackingEnabled(true);
+		}
+	}
+	
+	/**
+	 * Tests that alignment overhead is only counted while alignment tracking is enabled
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testToggleAlignment() throws Exception {
+		final MemoryMBean mbean = UnsafeAdapter.getMemoryMBean();
+		try {
+			final long aligned = UnsafeAdapter.allocateAlignedMemory(100);
+			final long overhead = mbean.getAlignedMemoryOverhead();
+			Assert.assertTrue("No alignment overhead", overhead > 0);
+			mbean.setAlignmentEnabled(false);
+			Assert.assertEquals("Alignment overhead reported", -1, mbean.getAlignedMemoryOverhead());
+			final long unaligned = UnsafeAdapter.allocateAlignedMemory(100);
+			mbean.setAlignmentEnabled(true);
+			Assert.assertEquals("Untracked alignment overhead was counted", overhead, mbean.getAlignedMemoryOverhead());
+			validateAllocated("testToggleAlignment", 200, -1, 2);
+			UnsafeAdapter.freeMemory(unaligned);
+			UnsafeAdapter.freeMemory(aligned);
+			Assert.assertEquals("Alignment overhead was not released", 0, mbean.getAlignedMemoryOverhead());
+			validateAllocated("testToggleAlignment", 0, -1, 0);
+		} finally {
+			mbean.setAlignmentEnabled(true);
+		}
+	}
+
+}
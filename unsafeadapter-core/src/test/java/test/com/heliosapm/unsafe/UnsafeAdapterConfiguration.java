@@ -31,6 +31,7 @@ import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
 
 import com.heliosapm.unsafe.AllocationPointerOperations;
+import com.heliosapm.unsafe.UnsafeAdapter;
 
 /**
  * <p>Title: UnsafeAdapterConfiguration</p>
@@ -56,6 +57,46 @@ public @interface UnsafeAdapterConfiguration {
 	 */
 	public boolean memAlignment() default false;
 	
+	/**
+	 * true to serve small allocations from the size-class slab allocator, false otherwise
+	 */
+	public boolean slabAllocation() default false;
+	
+	/**
+	 * true to serve tiny allocations from thread local allocation buffers, false otherwise
+	 */
+	public boolean threadLocalAllocation() default false;
+	
+	/**
+	 * true to serve aligned allocations from the buddy allocator, false otherwise
+	 */
+	public boolean buddyAllocation() default false;
+	
+	/**
+	 * The native memory budget in bytes, or zero for no budget. Only enforced when {@link #memTracking()} is true.
+	 */
+	public int memoryBudget() default 0;
+	/**
+	 * The mean number of bytes allocated between sampled allocations, or zero to disable sampling. Only applied when {@link #memTracking()} is false.
+	 */
+	public int sampleInterval() default 0;
+	/**
+	 * The number of cleaner threads clearing collected AllocationPointers
+	 */
+	public int cleanerThreads() default UnsafeAdapter.DEFAULT_CLEANER_THREADS;
+	/**
+	 * The maximum number of collected AllocationPointers a cleaner thread clears in one batch
+	 */
+	public int cleanerBatchSize() default UnsafeAdapter.DEFAULT_CLEANER_BATCH;
+	/**
+	 * true to account the tracked memory allocated and freed by each thread, false otherwise
+	 */
+	public boolean threadAccounting() default false;
+	/**
+	 * true to record the histograms of allocation sizes, reallocation growth and allocation lifetimes, false otherwise
+	 */
+	public boolean histograms() default false;
+	
 	/**
 	 * true if safe memory allocation should be off-heap, false otherwise.
 	 * Only applicable if {@link #unsafe()} is false.
@@ -72,4 +113,9 @@ public @interface UnsafeAdapterConfiguration {
 	 * The initial and extend allocation size for the AllocationPonter
 	 */
 	public int apAllocSize() default AllocationPointerOperations.DEFAULT_ALLOC_SIZE_PROP;
+	
+	/**
+	 * true to create AllocationPointers with the packed single block layout
+	 */
+	public boolean apPacked() default AllocationPointerOperations.DEFAULT_PACKED_LAYOUT;
 }
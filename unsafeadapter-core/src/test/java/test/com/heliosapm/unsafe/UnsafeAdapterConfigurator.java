@@ -39,7 +39,7 @@ import com.heliosapm.unsafe.UnsafeAdapter;
 public class UnsafeAdapterConfigurator {
 	
 	/** The number of properties to compare */
-	public static final int PROP_SIZE = 6;
+	public static final int PROP_SIZE = 15;
 	
 	/** The default unsafe adapter configuration */
 	public static final UnsafeAdapterConfiguration DEFAULT_CONFIG;
@@ -106,6 +106,43 @@ public class UnsafeAdapterConfigurator {
 		} else {
 			System.clearProperty(UnsafeAdapter.ALIGN_ALLOCS_PROP);			
 		}
+		if(uac.slabAllocation()) {
+			System.setProperty(UnsafeAdapter.SLAB_ALLOCS_PROP, "true");
+		} else {
+			System.clearProperty(UnsafeAdapter.SLAB_ALLOCS_PROP);			
+		}
+		if(uac.threadLocalAllocation()) {
+			System.setProperty(UnsafeAdapter.TLAB_ALLOCS_PROP, "true");
+		} else {
+			System.clearProperty(UnsafeAdapter.TLAB_ALLOCS_PROP);			
+		}
+		if(uac.buddyAllocation()) {
+			System.setProperty(UnsafeAdapter.BUDDY_ALLOCS_PROP, "true");
+		} else {
+			System.clearProperty(UnsafeAdapter.BUDDY_ALLOCS_PROP);			
+		}
+		if(uac.memoryBudget() > 0) {
+			System.setProperty(UnsafeAdapter.BUDGET_PROP, "" + uac.memoryBudget());
+		} else {
+			System.clearProperty(UnsafeAdapter.BUDGET_PROP);			
+		}
+		if(uac.sampleInterval() > 0) {
+			System.setProperty(UnsafeAdapter.SAMPLE_ALLOCS_PROP, "" + uac.sampleInterval());
+		} else {
+			System.clearProperty(UnsafeAdapter.SAMPLE_ALLOCS_PROP);			
+		}
+		if(uac.threadAccounting()) {
+			System.setProperty(UnsafeAdapter.THREAD_ALLOCS_PROP, "true");
+		} else {
+			System.clearProperty(UnsafeAdapter.THREAD_ALLOCS_PROP);			
+		}
+		if(uac.histograms()) {
+			System.setProperty(UnsafeAdapter.HISTOGRAMS_PROP, "true");
+		} else {
+			System.clearProperty(UnsafeAdapter.HISTOGRAMS_PROP);			
+		}
+		System.setProperty(UnsafeAdapter.CLEANER_THREADS_PROP, "" + uac.cleanerThreads());
+		System.setProperty(UnsafeAdapter.CLEANER_BATCH_PROP, "" + uac.cleanerBatchSize());
 		if(uac.offHeap()) {
 			System.clearProperty(UnsafeAdapter.SAFE_ALLOCS_ONHEAP_PROP);			
 		} else {
@@ -124,6 +161,10 @@ public class UnsafeAdapterConfigurator {
 			System.setProperty(AllocationPointerOperations.ALLOC_SIZE_PROP, "" + uac.apAllocSize());
 			ReflectionHelper.setFieldValue(AllocationPointerOperations.class, "ALLOC_SIZE", uac.apAllocSize());
 		}
+		if(AllocationPointerOperations.PACKED_LAYOUT != uac.apPacked()) {
+			System.setProperty(AllocationPointerOperations.PACKED_LAYOUT_PROP, "" + uac.apPacked());
+			ReflectionHelper.setFieldValue(AllocationPointerOperations.class, "PACKED_LAYOUT", uac.apPacked());
+		}
 	}
 	
 	// ALLOC_MEM_SIZE = ALLOC_SIZE 
@@ -154,8 +195,9 @@ public class UnsafeAdapterConfigurator {
 	public static boolean requiresReset(UnsafeAdapterConfiguration uac) {
 		final int[] current = getCurrentConfiguration();
 		final int[] requested = getRequestedConfiguration(uac);
-		int indexCnt = requested[0]==1 ? PROP_SIZE-1 : PROP_SIZE;
-		for(int i = 0; i < indexCnt; i++ ) {
+		for(int i = 0; i < PROP_SIZE; i++ ) {
+			// safe off-heap is only applicable to the safe adapter
+			if(i==3 && requested[0]==1) continue;
 			if(current[i] != requested[i]) return true;
 		}
 		return false;
@@ -172,6 +214,16 @@ public class UnsafeAdapterConfigurator {
 		current[2] = UnsafeAdapter.getMemoryMBean().isAlignmentEnabled() ? 1 : 0;
 		current[3] = UnsafeAdapter.getMemoryMBean().isSafeMemoryOffHeap() ? 1 : 0;
 		current[4] = AllocationPointerOperations.ALLOC_SIZE; 
+		current[5] = UnsafeAdapter.getMemoryMBean().isSlabAllocationEnabled() ? 1 : 0;
+		current[6] = UnsafeAdapter.getMemoryMBean().isThreadLocalAllocationEnabled() ? 1 : 0;
+		current[7] = UnsafeAdapter.getMemoryMBean().isBuddyAllocationEnabled() ? 1 : 0;
+		current[8] = (int)Math.max(0L, UnsafeAdapter.getMemoryMBean().getMemoryBudget());
+		current[9] = AllocationPointerOperations.PACKED_LAYOUT ? 1 : 0;
+		current[10] = UnsafeAdapter.getMemoryMBean().getCleanerCount();
+		current[11] = UnsafeAdapter.getMemoryMBean().getCleanerBatchSize();
+		current[12] = (int)Math.max(0L, UnsafeAdapter.getMemoryMBean().getSampleInterval());
+		current[13] = UnsafeAdapter.getMemoryMBean().isThreadAccountingEnabled() ? 1 : 0;
+		current[14] = UnsafeAdapter.getMemoryMBean().isHistogramsEnabled() ? 1 : 0;
 		return current;
 	}
 	
@@ -187,6 +239,16 @@ public class UnsafeAdapterConfigurator {
 		requested[2] = config.memAlignment() ? 1 : 0;
 		requested[3] = config.offHeap() ? 1 : 0;
 		requested[4] = config.apAllocSize();
+		requested[5] = config.slabAllocation() ? 1 : 0;
+		requested[6] = config.threadLocalAllocation() ? 1 : 0;
+		requested[7] = config.buddyAllocation() ? 1 : 0;
+		requested[8] = config.memTracking() ? config.memoryBudget() : 0;
+		requested[9] = config.apPacked() ? 1 : 0;
+		requested[10] = config.cleanerThreads();
+		requested[11] = config.cleanerBatchSize();
+		requested[12] = config.memTracking() ? 0 : config.sampleInterval();
+		requested[13] = config.threadAccounting() ? 1 : 0;
+		requested[14] = config.histograms() ? 1 : 0;
 		return requested;
 	}
 	
@@ -200,8 +262,18 @@ public class UnsafeAdapterConfigurator {
 			.append("Unsafe:").append(config.unsafe()).append(", ")
 			.append("Mem Tracking:").append(config.memTracking()).append(", ")
 			.append("Mem Alignment:").append(config.memAlignment()).append(", ")
+			.append("Slab Allocation:").append(config.slabAllocation()).append(", ")
+			.append("TLAB Allocation:").append(config.threadLocalAllocation()).append(", ")
+			.append("Buddy Allocation:").append(config.buddyAllocation()).append(", ")
+			.append("Memory Budget:").append(config.memoryBudget()).append(", ")
+			.append("Sample Interval:").append(config.sampleInterval()).append(", ")
+			.append("Thread Accounting:").append(config.threadAccounting()).append(", ")
+			.append("Histograms:").append(config.histograms()).append(", ")
+			.append("Cleaner Threads:").append(config.cleanerThreads()).append(", ")
+			.append("Cleaner Batch Size:").append(config.cleanerBatchSize()).append(", ")
 			.append("AP Alloc Size:").append(config.apAllocSize()).append(", ")
-			.append("AP Managed:").append(config.apManaged());
+			.append("AP Managed:").append(config.apManaged()).append(", ")
+			.append("AP Packed:").append(config.apPacked());
 		if(!config.unsafe()) {
 			b.append(", Safe OffHeap:").append(config.offHeap());
 		}		
@@ -217,8 +289,18 @@ public class UnsafeAdapterConfigurator {
 			.append("Unsafe:").append(!UnsafeAdapter.getMemoryMBean().isSafeMemory()).append(", ")
 			.append("Mem Tracking:").append(UnsafeAdapter.getMemoryMBean().isTrackingEnabled()).append(", ")
 			.append("Mem Alignment:").append(UnsafeAdapter.getMemoryMBean().isAlignmentEnabled()).append(", ")
+			.append("Slab Allocation:").append(UnsafeAdapter.getMemoryMBean().isSlabAllocationEnabled()).append(", ")
+			.append("TLAB Allocation:").append(UnsafeAdapter.getMemoryMBean().isThreadLocalAllocationEnabled()).append(", ")
+			.append("Buddy Allocation:").append(UnsafeAdapter.getMemoryMBean().isBuddyAllocationEnabled()).append(", ")
+			.append("Memory Budget:").append(UnsafeAdapter.getMemoryMBean().getMemoryBudget()).append(", ")
+			.append("Sample Interval:").append(UnsafeAdapter.getMemoryMBean().getSampleInterval()).append(", ")
+			.append("Thread Accounting:").append(UnsafeAdapter.getMemoryMBean().isThreadAccountingEnabled()).append(", ")
+			.append("Histograms:").append(UnsafeAdapter.getMemoryMBean().isHistogramsEnabled()).append(", ")
+			.append("Cleaner Threads:").append(UnsafeAdapter.getMemoryMBean().getCleanerCount()).append(", ")
+			.append("Cleaner Batch Size:").append(UnsafeAdapter.getMemoryMBean().getCleanerBatchSize()).append(", ")
 			.append("AP Alloc Size:").append(AllocationPointerOperations.ALLOC_SIZE).append(", ")
-			.append("AP Managed:").append(AllocationPointerOperations.MANAGED_ALLOC);
+			.append("AP Managed:").append(AllocationPointerOperations.MANAGED_ALLOC).append(", ")
+			.append("AP Packed:").append(AllocationPointerOperations.PACKED_LAYOUT);
 		if(UnsafeAdapter.isSafeAdapter()) {
 			b.append(", Safe OffHeap:").append(UnsafeAdapter.getMemoryMBean().isSafeMemoryOffHeap());
 		}			
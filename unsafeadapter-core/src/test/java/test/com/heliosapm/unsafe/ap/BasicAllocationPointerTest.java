@@ -36,6 +36,7 @@ import test.com.heliosapm.unsafe.UnsafeAdapterConfigurator;
 
 import com.heliosapm.unsafe.AllocationPointer;
 import com.heliosapm.unsafe.AllocationPointerOperations;
+import com.heliosapm.unsafe.Callbacks.SlotVisitor;
 import com.heliosapm.unsafe.UnsafeAdapter;
 
 /**
@@ -117,11 +118,14 @@ public class BasicAllocationPointerTest extends BaseTest {
 			Assert.assertEquals("AllocationPointer Size", 0, size);
 			
 			
-			int expectedSize = AllocationPointerOperations.HEADER_SIZE + (AllocationPointerOperations.ADDRESS_SIZE * AllocationPointerOperations.ALLOC_SIZE); 
+			// a packed AP has one block of all the dims, otherwise there is one block per dim
+			final int stride = ap.isPacked() ? dim : 1;
+			final int blocks = dim / stride;
+			int expectedSize = AllocationPointerOperations.HEADER_SIZE + (AllocationPointerOperations.ADDRESS_SIZE * AllocationPointerOperations.ALLOC_SIZE * stride); 
 			
 			
 			Assert.assertEquals("AllocationPointer Local Byte Size", expectedSize, AllocationPointerOperations.getEndOffset(rootAddress));
-			long expectedDeepSize = (dim * expectedSize) + (dim * AllocationPointerOperations.ADDRESS_SIZE);
+			long expectedDeepSize = (blocks * expectedSize) + (blocks * AllocationPointerOperations.ADDRESS_SIZE);
 					
 					
 					
@@ -134,7 +138,7 @@ public class BasicAllocationPointerTest extends BaseTest {
 			
 			
 			Assert.assertEquals("AllocationPointer Deep Byte Size", expectedDeepSize, AllocationPointerOperations.getDeepByteSize(rootAddress));
-			validateAPAllocated(expectedDeepSize, dim + 1);
+			validateAPAllocated(expectedDeepSize, blocks + 1);
 		} finally {
 			ap.free();
 			validateAPAllocated(0, 0);
@@ -179,6 +183,54 @@ public class BasicAllocationPointerTest extends BaseTest {
 	}
 	
 	
+	/**
+	 * Tests that slot iteration visits the occupied slots in order, skips cleared slots and stops when asked
+	 */
+	@Test
+	public void testForEachSlot() {
+		final AllocationPointer ap = AllocationPointerOperations.newAllocationPointerInstance(MEM_TRACKING, AL_TRACKING);
+		final int count = AllocationPointerOperations.ALLOC_SIZE * 2 + 1;
+		final long[] addresses = new long[count];
+		try {
+			for(int i = 0; i < count; i++) {
+				addresses[i] = testUnsafe.allocateMemory(8);
+				ap.assignSlot(addresses[i], i + 8, 0L);
+			}
+			ap.clearAddress(1);
+			testUnsafe.freeMemory(addresses[1]);
+			final int[] visitedIndexes = new int[count];
+			final int visited = ap.forEachSlot(new SlotVisitor() {
+				int next = 0;
+				@Override
+				public boolean visitSlot(final int index, final long address, final long size, final long alignmentOverhead) {
+					visitedIndexes[next++] = index;
+					Assert.assertEquals("Unexpected address at index " + index, addresses[index], address);
+					Assert.assertEquals("Unexpected size at index " + index, ap.getAllocationSize(index), size);
+					return true;
+				}
+			});
+			Assert.assertEquals("Unexpected visited count", count - 1, visited);
+			Assert.assertEquals("First slot was not visited first", 0, visitedIndexes[0]);
+			Assert.assertEquals("Cleared slot was visited", 2, visitedIndexes[1]);
+			Assert.assertEquals("Visiting did not stop", 1, ap.forEachSlot(new SlotVisitor() {
+				@Override
+				public boolean visitSlot(final int index, final long address, final long size, final long alignmentOverhead) {
+					return false;
+				}
+			}));
+		} finally {
+			ap.forEachSlot(new SlotVisitor() {
+				@Override
+				public boolean visitSlot(final int index, final long address, final long size, final long alignmentOverhead) {
+					testUnsafe.freeMemory(address);
+					return true;
+				}
+			});
+			ap.free();
+			validateAPAllocated(0, 0);
+		}
+	}
+	
 	/**
 	 * Tests AllocationPointer incrementing size extension
 	 */
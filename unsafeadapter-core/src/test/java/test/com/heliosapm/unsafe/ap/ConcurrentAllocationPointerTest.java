@@ -0,0 +1,236 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe.ap;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.unsafe.BaseTest;
+import test.com.heliosapm.unsafe.UnsafeAdapterConfiguration;
+
+import com.heliosapm.unsafe.AllocationPointer;
+import com.heliosapm.unsafe.AllocationPointerOperations;
+import com.heliosapm.unsafe.ReflectionHelper;
+import com.heliosapm.unsafe.UnsafeAdapter;
+
+/**
+ * <p>Title: ConcurrentAllocationPointerTest</p>
+ * <p>Description: Test cases for {@link AllocationPointer}s shared by several allocating threads</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.ap.ConcurrentAllocationPointerTest</code></p>
+ */
+@UnsafeAdapterConfiguration(memTracking=true)
+public class ConcurrentAllocationPointerTest extends BaseTest {
+	/** The number of allocating threads */
+	static final int THREAD_COUNT = 4;
+	/** The number of blocks allocated by each thread */
+	static final int BLOCK_COUNT = 500;
+
+	/**
+	 * Tests that several threads allocating into and then freeing from one concurrent AllocationPointer 
+	 * get a slot each and leave nothing allocated
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testConcurrentAllocations() throws Exception {
+		final AllocationPointer ap = UnsafeAdapter.newConcurrentAllocationPointer();
+		Assert.assertTrue("AP was not concurrent", ap.isConcurrent());
+		final long[][] addresses = new long[THREAD_COUNT][BLOCK_COUNT];
+		final long[] expectedBytes = new long[THREAD_COUNT];
+		run(new Worker() {
+			@Override
+			public void work(final int id) {
+				for(int i = 0; i < BLOCK_COUNT; i++) {
+					final long size = nextPosInt(64) + 8;
+					addresses[id][i] = UnsafeAdapter.allocateMemory(size, ap);
+					expectedBytes[id] += size;
+				}
+			}
+		});
+		Assert.assertEquals("Unexpected AP size", THREAD_COUNT * BLOCK_COUNT, ap.getSize());
+		Assert.assertTrue("AP capacity was less than its size", ap.getCapacity() >= ap.getSize());
+		final Set<Integer> slots = new HashSet<Integer>(THREAD_COUNT * BLOCK_COUNT);
+		long totalBytes = 0;
+		for(int t = 0; t < THREAD_COUNT; t++) {
+			totalBytes += expectedBytes[t];
+			for(int i = 0; i < BLOCK_COUNT; i++) {
+				final int index = ap.findIndexForAddress(addresses[t][i]);
+				Assert.assertTrue("Address was not found", index >= 0);
+				Assert.assertTrue("Slot was assigned twice", slots.add(index));
+			}
+		}
+		validateAllocated("testConcurrentAllocations", totalBytes, -1, THREAD_COUNT * BLOCK_COUNT);
+		run(new Worker() {
+			@Override
+			public void work(final int id) {
+				UnsafeAdapter.freeMemory(addresses[id], ap);
+			}
+		});
+		for(int t = 0; t < THREAD_COUNT; t++) {
+			for(int i = 0; i < BLOCK_COUNT; i++) {
+				Assert.assertEquals("Freed address still assigned", -1, ap.findIndexForAddress(addresses[t][i]));
+			}
+		}
+		Assert.assertEquals("Cleared slots were not recycled", THREAD_COUNT * BLOCK_COUNT, ap.getFreeSlotCount());
+		validateDeallocated("testConcurrentAllocations", 0, -1);
+	}
+	
+	/**
+	 * Tests that the slots cleared by threads churning allocations through a long lived concurrent AllocationPointer 
+	 * are recycled, so the pointer only grows to the most slots live at once
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testConcurrentSlotRecycling() throws Exception {
+		final AllocationPointer ap = UnsafeAdapter.newConcurrentAllocationPointer();
+		final int live = 16;
+		final int cycles = 200;
+		run(new Worker() {
+			@Override
+			public void work(final int id) {
+				final long[] addresses = new long[live];
+				for(int c = 0; c < cycles; c++) {
+					for(int i = 0; i < live; i++) {
+						addresses[i] = UnsafeAdapter.allocateMemory(nextPosInt(64) + 8, ap);
+					}
+					for(int i = 0; i < live; i++) {
+						Assert.assertTrue("Address was not found", ap.findIndexForAddress(addresses[i]) >= 0);
+					}
+					if(c % 2 == 0) {
+						UnsafeAdapter.freeMemory(addresses, ap);
+					} else {
+						for(int i = 0; i < live; i++) {
+							UnsafeAdapter.freeMemory(new long[]{addresses[i]}, ap);
+						}
+					}
+				}
+			}
+		});
+		Assert.assertTrue("Cleared slots were not recycled. Size: " + ap.getSize(), ap.getSize() <= THREAD_COUNT * live);
+		Assert.assertEquals("Unexpected free slot count", ap.getSize(), ap.getFreeSlotCount());
+		validateDeallocated("testConcurrentSlotRecycling", 0, -1);
+		// the recycled slots are handed out again
+		final long address = UnsafeAdapter.allocateMemory(64, ap);
+		Assert.assertTrue("Recycled slot not reused", ap.findIndexForAddress(address) < THREAD_COUNT * live);
+		Assert.assertEquals("Unexpected free slot count", ap.getSize() - 1, ap.getFreeSlotCount());
+		UnsafeAdapter.freeMemory(new long[]{address}, ap);
+	}
+	
+	/**
+	 * Tests that a concurrent AllocationPointer refuses to compact
+	 * @throws Exception thrown on any error
+	 */
+	@Test(expected=IllegalStateException.class)
+	public void testCompactRejected() throws Exception {
+		UnsafeAdapter.newConcurrentAllocationPointer().compact();
+	}
+	
+	/**
+	 * Tests that the chunk of the last int slot index is addressed without overflowing, 
+	 * and that the chunk starts of the whole directory are computed in long arithmetic
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testChunkAddressing() throws Exception {
+		final int firstChunk = AllocationPointerOperations.MIN_FIRST_CHUNK;
+		final int lastIndex = Integer.MAX_VALUE - 1;
+		final int chunk = chunkFor(lastIndex, firstChunk);
+		Assert.assertTrue("Last slot index not in its chunk", chunkStart(chunk, firstChunk) <= lastIndex);
+		Assert.assertTrue("Last slot index not in its chunk", chunkStart(chunk + 1, firstChunk) > lastIndex);
+		final int lastChunk = AllocationPointerOperations.CHUNK_DIRECTORY_SIZE - 1;
+		Assert.assertEquals("Chunk start overflowed", firstChunk * ((1L << lastChunk) - 1L), chunkStart(lastChunk, firstChunk));
+	}
+	
+	/**
+	 * Invokes the private chunk lookup of a concurrent AllocationPointer
+	 * @param index The slot index
+	 * @param firstChunk The number of slots in the first chunk
+	 * @return the chunk number
+	 */
+	static int chunkFor(final int index, final int firstChunk) {
+		return (Integer)ReflectionHelper.invoke(AllocationPointerOperations.class, "chunkFor", (Object)null, new Class<?>[]{int.class, int.class}, index, firstChunk);
+	}
+	
+	/**
+	 * Invokes the private chunk start computation of a concurrent AllocationPointer
+	 * @param chunk The chunk number
+	 * @param firstChunk The number of slots in the first chunk
+	 * @return the index of the first slot in the chunk
+	 */
+	static long chunkStart(final int chunk, final int firstChunk) {
+		return (Long)ReflectionHelper.invoke(AllocationPointerOperations.class, "chunkStart", (Object)null, new Class<?>[]{int.class, int.class}, chunk, firstChunk);
+	}
+	
+	/**
+	 * <p>Title: Worker</p>
+	 * <p>Description: A task run concurrently by each test thread</p> 
+	 */
+	static interface Worker {
+		/**
+		 * Runs the task
+		 * @param id The zero based id of the thread running the task
+		 */
+		public void work(int id);
+	}
+	
+	/**
+	 * Runs the passed worker on {@link #THREAD_COUNT} threads released together, and waits for them all to finish
+	 * @param worker The worker to run
+	 * @throws Exception thrown if a worker fails or the threads do not finish in time
+	 */
+	static void run(final Worker worker) throws Exception {
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		final CountDownLatch endLatch = new CountDownLatch(THREAD_COUNT);
+		final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+		for(int t = 0; t < THREAD_COUNT; t++) {
+			final int id = t;
+			final Thread thread = new Thread("ConcurrentAPWorker#" + id) {
+				@Override
+				public void run() {
+					try {
+						startLatch.await();
+						worker.work(id);
+					} catch (Throwable ex) {
+						failure.compareAndSet(null, ex);
+					} finally {
+						endLatch.countDown();
+					}
+				}
+			};
+			thread.setDaemon(true);
+			thread.start();
+		}
+		startLatch.countDown();
+		Assert.assertTrue("Workers did not finish", endLatch.await(30, TimeUnit.SECONDS));
+		if(failure.get()!=null) throw new Exception("Worker failed", failure.get());
+	}
+}
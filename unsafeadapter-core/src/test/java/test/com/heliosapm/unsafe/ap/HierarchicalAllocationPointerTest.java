@@ -0,0 +1,140 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe.ap;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.unsafe.BaseTest;
+import test.com.heliosapm.unsafe.UnsafeAdapterConfiguration;
+
+import com.heliosapm.unsafe.AllocationPointer;
+import com.heliosapm.unsafe.UnsafeAdapter;
+
+/**
+ * <p>Title: HierarchicalAllocationPointerTest</p>
+ * <p>Description: Test cases for parent and child {@link AllocationPointer}s and the cascading release of their trees</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.ap.HierarchicalAllocationPointerTest</code></p>
+ */
+@UnsafeAdapterConfiguration(memTracking=true)
+public class HierarchicalAllocationPointerTest extends BaseTest {
+
+	/**
+	 * Tests that tree totals follow allocations and frees in every member of the tree, 
+	 * and that releasing the root frees the whole tree at once
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCascadingRelease() throws Exception {
+		final int pendingRefs = UnsafeAdapter.getMemoryMBean().getPendingRefs();
+		final AllocationPointer root = UnsafeAdapter.newAllocationPointer();
+		final String rootRefId = String.valueOf(root.getReferenceId());
+		UnsafeAdapter.allocateMemory(100, root);
+		Assert.assertEquals("Lone AP reported a tree", -1, root.getTreeAllocatedBytes());
+		final AllocationPointer child1 = UnsafeAdapter.newChildAllocationPointer(root);
+		final AllocationPointer child2 = UnsafeAdapter.newChildAllocationPointer(root);
+		final AllocationPointer grandChild = UnsafeAdapter.newChildAllocationPointer(child1);
+		Assert.assertSame("Unexpected parent", root, child1.getParent());
+		Assert.assertSame("Unexpected parent", child1, grandChild.getParent());
+		Assert.assertEquals("Root allocation was not counted in the tree", 100, root.getTreeAllocatedBytes());
+		final long address1 = UnsafeAdapter.allocateMemory(200, child1);
+		UnsafeAdapter.allocateMemory(new long[]{10, 20, 30}, child2);
+		final long address3 = UnsafeAdapter.allocateMemory(400, grandChild);
+		UnsafeAdapter.reallocateMemory(address3, 500, grandChild);
+		Assert.assertEquals("Unexpected tree total", 860, root.getTreeAllocatedBytes());
+		Assert.assertEquals("Tree members disagree on the total", 860, grandChild.getTreeAllocatedBytes());
+		UnsafeAdapter.freeMemory(new long[]{address1}, child1);
+		final Map<String, Long> trees = UnsafeAdapter.getMemoryMBean().getAllocationTreeTotals();
+		Assert.assertEquals("Unexpected tree total after free", Long.valueOf(660), trees.get(rootRefId));
+		validateAllocated("testCascadingRelease", 660, -1, 5);
+		Assert.assertEquals("Unexpected pending refs", pendingRefs + 4, UnsafeAdapter.getMemoryMBean().getPendingRefs());
+		UnsafeAdapter.releaseAllocationPointer(root);
+		Assert.assertEquals("Tree refs were not all dropped", pendingRefs, UnsafeAdapter.getMemoryMBean().getPendingRefs());
+		Assert.assertFalse("Released tree still reported", UnsafeAdapter.getMemoryMBean().getAllocationTreeTotals().containsKey(rootRefId));
+		validateDeallocated("testCascadingRelease", 0, -1);
+	}
+
+	/**
+	 * Tests that a child released ahead of its parent leaves the rest of the tree intact and is removed from the tree total
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testChildReleasedFirst() throws Exception {
+		final AllocationPointer root = UnsafeAdapter.newAllocationPointer();
+		final AllocationPointer child = UnsafeAdapter.newChildAllocationPointer(root);
+		final AllocationPointer grandChild = UnsafeAdapter.newChildAllocationPointer(child);
+		UnsafeAdapter.allocateMemory(64, root);
+		UnsafeAdapter.allocateMemory(128, child);
+		UnsafeAdapter.allocateMemory(256, grandChild);
+		Assert.assertEquals("Unexpected tree total", 448, root.getTreeAllocatedBytes());
+		UnsafeAdapter.releaseAllocationPointer(child);
+		Assert.assertEquals("Released subtree still counted", 64, root.getTreeAllocatedBytes());
+		validateAllocated("testChildReleasedFirst", 64, -1, 1);
+		try {
+			UnsafeAdapter.newChildAllocationPointer(child);
+			Assert.fail("Child of a released AP was created");
+		} catch (IllegalArgumentException iex) {
+			/* expected */
+		}
+		UnsafeAdapter.releaseAllocationPointer(root);
+		validateDeallocated("testChildReleasedFirst", 0, -1);
+	}
+
+	/**
+	 * Tests that collecting a parent releases its children in the same pass of the cleaner
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCollectedTreeRelease() throws Exception {
+		final int children = 10;
+		final CountDownLatch latch = new CountDownLatch(children + 1);
+		final Runnable r = new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		};
+		AllocationPointer root = UnsafeAdapter.newAllocationPointer(r);
+		UnsafeAdapter.allocateMemory(128, root);
+		for(int i = 0; i < children; i++) {
+			UnsafeAdapter.allocateMemory(128, UnsafeAdapter.newChildAllocationPointer(root, r));
+		}
+		validateAllocated("testCollectedTreeRelease", 128 * (children + 1), -1, children + 1);
+		root = null;
+		if(!latch.await(100, TimeUnit.MILLISECONDS)) {
+			log("PHANTOM still here. Call GC.");
+			System.gc();
+		}
+		final boolean collected = latch.await(5000, TimeUnit.MILLISECONDS);
+		Assert.assertTrue("AllocationPointer tree Not Collected", collected);
+		Assert.assertEquals("Allocated memory was not released", 0, UnsafeAdapter.getMemoryMBean().getTotalAllocatedMemory());
+		Assert.assertTrue("Collected tree still reported", UnsafeAdapter.getMemoryMBean().getAllocationTreeTotals().isEmpty());
+	}
+}
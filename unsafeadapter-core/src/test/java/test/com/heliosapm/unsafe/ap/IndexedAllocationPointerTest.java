@@ -0,0 +1,89 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe.ap;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.unsafe.BaseTest;
+import test.com.heliosapm.unsafe.UnsafeAdapterConfiguration;
+
+import com.heliosapm.unsafe.AllocationPointer;
+import com.heliosapm.unsafe.AllocationPointerOperations;
+import com.heliosapm.unsafe.UnsafeAdapter;
+
+/**
+ * <p>Title: IndexedAllocationPointerTest</p>
+ * <p>Description: Test cases for the hashed address index of large {@link AllocationPointer}s</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.ap.IndexedAllocationPointerTest</code></p>
+ */
+@UnsafeAdapterConfiguration(memTracking=true)
+public class IndexedAllocationPointerTest extends BaseTest {
+	/** The number of blocks allocated into the AllocationPointer */
+	static final int BLOCK_COUNT = 1000;
+
+	/**
+	 * Tests that an AllocationPointer builds its index once past the threshold and that lookups, 
+	 * reallocations and frees keep it consistent with the slots
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testIndexedLookups() throws Exception {
+		final AllocationPointer ap = UnsafeAdapter.newAllocationPointer();
+		final long[] addresses = new long[BLOCK_COUNT];
+		for(int i = 0; i < BLOCK_COUNT; i++) {
+			addresses[i] = UnsafeAdapter.allocateMemory(nextPosInt(64) + 8, ap);
+			if(i < AllocationPointerOperations.INDEX_THRESHOLD) {
+				Assert.assertFalse("AP was indexed at size " + (i+1), ap.isIndexed());
+			}
+		}
+		Assert.assertTrue("AP was not indexed", ap.isIndexed());
+		for(int i = 0; i < BLOCK_COUNT; i++) {
+			Assert.assertEquals("Unexpected slot for address", i, ap.findIndexForAddress(addresses[i]));
+		}
+		for(int i = 0; i < BLOCK_COUNT; i += 10) {
+			final long newAddress = UnsafeAdapter.reallocateMemory(addresses[i], 256, ap);
+			if(newAddress!=addresses[i]) {
+				Assert.assertEquals("Stale address still indexed", -1, ap.findIndexForAddress(addresses[i]));
+			}
+			addresses[i] = newAddress;
+			Assert.assertEquals("Reallocated address moved slot", i, ap.findIndexForAddress(newAddress));
+		}
+		final long[] firstHalf = Arrays.copyOfRange(addresses, 0, BLOCK_COUNT / 2);
+		UnsafeAdapter.freeMemory(firstHalf, ap);
+		for(int i = 0; i < BLOCK_COUNT; i++) {
+			Assert.assertEquals("Unexpected slot after free", i < BLOCK_COUNT / 2 ? -1 : i, ap.findIndexForAddress(addresses[i]));
+		}
+		for(int i = BLOCK_COUNT / 2; i < BLOCK_COUNT; i++) {
+			UnsafeAdapter.freeMemory(new long[]{addresses[i]}, ap);
+			Assert.assertEquals("Freed address still indexed", -1, ap.findIndexForAddress(addresses[i]));
+		}
+		validateDeallocated("testIndexedLookups", 0, -1);
+	}
+}
@@ -0,0 +1,108 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe.ap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.unsafe.UnsafeAdapterConfiguration;
+
+import com.heliosapm.unsafe.AllocationPointer;
+import com.heliosapm.unsafe.AllocationPointerOperations;
+
+/**
+ * <p>Title: PackedAllocationPointerTest</p>
+ * <p>Description: Runs the {@link AllocationPointer} test cases against the packed single block layout with all three dimensions</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.ap.PackedAllocationPointerTest</code></p>
+ */
+@UnsafeAdapterConfiguration(memTracking=true, memAlignment=true, apAllocSize=10, apManaged=true, apPacked=true)
+public class PackedAllocationPointerTest extends MemTrackingAllocationPointerTest {
+
+	/**
+	 * Tests that clearing, reusing and compacting slots keeps each slot's address, size and overhead together
+	 */
+	@Test
+	public void testPackedSlots() {
+		AllocationPointer ap = AllocationPointerOperations.newAllocationPointerInstance(MEM_TRACKING, AL_TRACKING);
+		try {
+			Assert.assertTrue("AllocationPointer was not packed", ap.isPacked());
+			final int count = AllocationPointerOperations.ALLOC_SIZE * 3;
+			final long[] addresses = new long[count];
+			for(int i = 0; i < count; i++) {
+				addresses[i] = testUnsafe.allocateMemory(8);
+				Assert.assertEquals("Unexpected slot", i, ap.assignSlot(addresses[i], i + 100, i + 200));
+			}
+			for(int i = 0; i < count; i += 3) {
+				testUnsafe.freeMemory(addresses[i]);
+				ap.freeIndex(i);
+				addresses[i] = 0L;
+			}
+			final long reused = testUnsafe.allocateMemory(8);
+			final int reusedIndex = ap.assignSlot(reused, 1000, 2000);
+			Assert.assertEquals("Cleared slot was not reused", 0, reusedIndex % 3);
+			addresses[reusedIndex] = reused;
+			final long[][] expected = new long[count][];
+			for(int i = 0; i < count; i++) {
+				if(addresses[i]!=0L) expected[i] = AllocationPointerOperations.getTriplet(ap.getAddressBase(), i);
+			}
+			ap.compact();
+			int slot = 0;
+			for(int i = 0; i < count; i++) {
+				if(expected[i]==null) continue;
+				Assert.assertArrayEquals("Triplet was not moved intact", expected[i], AllocationPointerOperations.getTriplet(ap.getAddressBase(), slot));
+				slot++;
+			}
+			Assert.assertEquals("Unexpected size after compact", slot, ap.getSize());
+		} finally {
+			ap.free();
+			validateAPAllocated(0, 0);
+		}
+	}
+	
+	/**
+	 * Tests that a packed AllocationPointer only exposes the address of its single block
+	 */
+	@Test
+	public void testPackedDimAddress() {
+		AllocationPointer ap = AllocationPointerOperations.newAllocationPointerInstance(MEM_TRACKING, AL_TRACKING);
+		try {
+			Assert.assertTrue("AllocationPointer was not packed", ap.isPacked());
+			Assert.assertTrue("No block address", ap.getAddressOfDim(AllocationPointerOperations.ZERO_BYTE)!=0L);
+			for(byte dim = 1; dim < 3; dim++) {
+				try {
+					ap.getAddressOfDim(dim);
+					Assert.fail("Packed AllocationPointer returned an address for dimension " + dim);
+				} catch (IllegalArgumentException iae) {
+					/* expected */
+				}
+			}
+		} finally {
+			ap.free();
+			validateAPAllocated(0, 0);
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe.ap;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.unsafe.BaseTest;
+import test.com.heliosapm.unsafe.UnsafeAdapterConfiguration;
+
+import com.heliosapm.unsafe.AllocationPointer;
+import com.heliosapm.unsafe.AllocationPointerOperations;
+import com.heliosapm.unsafe.MemoryScope;
+import com.heliosapm.unsafe.ReflectionHelper;
+import com.heliosapm.unsafe.UnsafeAdapter;
+
+/**
+ * <p>Title: PooledAllocationPointerTest</p>
+ * <p>Description: Test cases for the reuse of released {@link AllocationPointer} structures</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.ap.PooledAllocationPointerTest</code></p>
+ */
+@UnsafeAdapterConfiguration(memTracking=true)
+public class PooledAllocationPointerTest extends BaseTest {
+
+	/**
+	 * Tests that the structure of a collected AllocationPointer is handed to the next new AllocationPointer, reset
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCollectedStructureReused() throws Exception {
+		AllocationPointerOperations.drainPool();
+		final CountDownLatch latch = new CountDownLatch(1);
+		final Runnable r = new Runnable() {
+			public void run() {
+				latch.countDown();
+			}
+		};
+		AllocationPointer ap = UnsafeAdapter.newAllocationPointer(r);
+		final long structureAddress = ap.getAddressOfDim(AllocationPointerOperations.ZERO_BYTE);
+		final long firstRefId = ap.getReferenceId();
+		UnsafeAdapter.allocateMemory(64, ap);
+		ap = null;
+		if(!latch.await(100, TimeUnit.MILLISECONDS)) {
+			log("PHANTOM still here. Call GC.");
+			System.gc();
+		}
+		Assert.assertTrue("AllocationPointer Not Collected", latch.await(5000, TimeUnit.MILLISECONDS));
+		Assert.assertEquals("Collected structure was not pooled", 1, AllocationPointerOperations.getPooledCount());
+		validateDeallocated("testCollectedStructureReused", 0, -1);
+		final AllocationPointer reused = UnsafeAdapter.newAllocationPointer();
+		Assert.assertEquals("Pooled structure was not reused", 0, AllocationPointerOperations.getPooledCount());
+		Assert.assertEquals("Unexpected structure", structureAddress, reused.getAddressOfDim(AllocationPointerOperations.ZERO_BYTE));
+		Assert.assertFalse("Reference id was not reassigned", firstRefId==reused.getReferenceId());
+		Assert.assertEquals("Reused structure was not empty", 0, reused.getSize());
+		Assert.assertEquals("Reused structure has unexpected capacity", AllocationPointerOperations.ALLOC_SIZE, reused.getCapacity());
+		Assert.assertEquals("Reused structure has free slots", 0, reused.getFreeSlotCount());
+		final long address = UnsafeAdapter.allocateMemory(32, reused);
+		Assert.assertEquals("Unexpected slot in reused structure", 0, reused.findIndexForAddress(address));
+		validateAllocated("testCollectedStructureReused", 32, -1, 1);
+		UnsafeAdapter.releaseAllocationPointer(reused);
+		Assert.assertEquals("Explicitly released structure was pooled", 0, AllocationPointerOperations.getPooledCount());
+		validateDeallocated("testCollectedStructureReused", 0, -1);
+	}
+
+	/**
+	 * Tests that closed scopes recycle their structure unless it has grown
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testScopeStructureReused() throws Exception {
+		AllocationPointerOperations.drainPool();
+		final MemoryScope scope = UnsafeAdapter.newMemoryScope();
+		scope.allocateMemory(16);
+		scope.close();
+		Assert.assertEquals("Closed scope structure was not pooled", 1, AllocationPointerOperations.getPooledCount());
+		final MemoryScope grown = UnsafeAdapter.newMemoryScope();
+		Assert.assertEquals("Pooled structure was not reused", 0, AllocationPointerOperations.getPooledCount());
+		for(int i = 0; i <= AllocationPointerOperations.ALLOC_SIZE; i++) {
+			grown.allocateMemory(16);
+		}
+		grown.close();
+		Assert.assertEquals("Grown structure was pooled", 0, AllocationPointerOperations.getPooledCount());
+		validateDeallocated("testScopeStructureReused", 0, -1);
+	}
+	
+	/**
+	 * Tests that the pooled structures are freed when the adapter is reset and its reference manager shut down
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testPoolDrainedOnShutdown() throws Exception {
+		AllocationPointerOperations.drainPool();
+		final MemoryScope scope = UnsafeAdapter.newMemoryScope();
+		scope.allocateMemory(16);
+		scope.close();
+		Assert.assertEquals("Closed scope structure was not pooled", 1, AllocationPointerOperations.getPooledCount());
+		ReflectionHelper.invoke(UnsafeAdapter.class, "reset");
+		Assert.assertEquals("Pooled structure was not freed on shutdown", 0, AllocationPointerOperations.getPooledCount());
+	}
+}
@@ -0,0 +1,149 @@
+/**
+ * Helios, OpenSource Monitoring
+ * Brought to you by the Helios Development Group
+ *
+ * Copyright 2007, Helios Development Group and individual contributors
+ * as indicated by the @author tags. See the copyright.txt file in the
+ * distribution for a full listing of individual contributors.
+ *
+ * This is free software; you can redistribute it and/or modify it
+ * under the terms of the GNU Lesser General Public License as
+ * published by the Free Software Foundation; either version 2.1 of
+ * the License, or (at your option) any later version.
+ *
+ * This software is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this software; if not, write to the Free
+ * Software Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA
+ * 02110-1301 USA, or see the FSF site: http://www.fsf.org. 
+ *
+ */
+package test.com.heliosapm.unsafe.ap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import test.com.heliosapm.unsafe.BaseTest;
+import test.com.heliosapm.unsafe.UnsafeAdapterConfiguration;
+
+import com.heliosapm.unsafe.AllocationPointer;
+import com.heliosapm.unsafe.AllocationPointerOperations;
+import com.heliosapm.unsafe.UnsafeAdapter;
+
+/**
+ * <p>Title: SlotReuseAllocationPointerTest</p>
+ * <p>Description: Test cases for {@link AllocationPointer} capacity growth, cleared slot reuse and compaction</p> 
+ * <p>Company: Helios Development Group LLC</p>
+ * @author Whitehead (nwhitehead AT heliosdev DOT org)
+ * <p><code>test.com.heliosapm.unsafe.ap.SlotReuseAllocationPointerTest</code></p>
+ */
+@UnsafeAdapterConfiguration(memTracking=true)
+public class SlotReuseAllocationPointerTest extends BaseTest {
+	/** The number of blocks allocated into the AllocationPointer */
+	static final int BLOCK_COUNT = 200;
+
+	/**
+	 * Frees the passed address through the AllocationPointer that manages it
+	 * @param address The address to free
+	 * @param ap The AllocationPointer
+	 */
+	private static void free(final long address, final AllocationPointer ap) {
+		UnsafeAdapter.freeMemory(new long[]{address}, ap);
+	}
+
+	/**
+	 * Tests that the capacity grows geometrically
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testGeometricGrowth() throws Exception {
+		final AllocationPointer ap = UnsafeAdapter.newAllocationPointer();
+		final long[] addresses = new long[BLOCK_COUNT];
+		int extends_ = 0;
+		int priorCap = ap.getCapacity();
+		for(int i = 0; i < BLOCK_COUNT; i++) {
+			addresses[i] = UnsafeAdapter.allocateMemory(8, ap);
+			if(ap.getCapacity()!=priorCap) {
+				Assert.assertTrue("Capacity did not double", ap.getCapacity() >= priorCap * 2);
+				priorCap = ap.getCapacity();
+				extends_++;
+			}
+		}
+		Assert.assertEquals("Unexpected AP size", BLOCK_COUNT, ap.getSize());
+		Assert.assertTrue("Too many extends: " + extends_, extends_ <= 32 - Integer.numberOfLeadingZeros(BLOCK_COUNT));
+		UnsafeAdapter.freeMemory(addresses, ap);
+		validateDeallocated("testGeometricGrowth", 0, -1);
+	}
+
+	/**
+	 * Tests that cleared slots are reused before the AllocationPointer grows
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testSlotReuse() throws Exception {
+		final AllocationPointer ap = UnsafeAdapter.newAllocationPointer();
+		final long[] addresses = new long[BLOCK_COUNT];
+		for(int i = 0; i < BLOCK_COUNT; i++) {
+			addresses[i] = UnsafeAdapter.allocateMemory(8, ap);
+		}
+		final int cap = ap.getCapacity();
+		for(int i = 0; i < BLOCK_COUNT; i += 2) {
+			free(addresses[i], ap);
+			Assert.assertEquals("Freed slot was not cleared", 0L, ap.getAddress(i));
+		}
+		Assert.assertEquals("Unexpected free slot count", BLOCK_COUNT / 2, ap.getFreeSlotCount());
+		for(int i = 0; i < BLOCK_COUNT; i += 2) {
+			addresses[i] = UnsafeAdapter.allocateMemory(16, ap);
+			final int index = ap.findIndexForAddress(addresses[i]);
+			Assert.assertEquals("Cleared slot was not reused", 0, index % 2);
+			Assert.assertEquals("Unexpected slot size", 16, ap.getAllocationSize(index));
+		}
+		Assert.assertEquals("Free slots were not all reused", 0, ap.getFreeSlotCount());
+		Assert.assertEquals("AP grew", BLOCK_COUNT, ap.getSize());
+		Assert.assertEquals("AP grew", cap, ap.getCapacity());
+		for(int i = 0; i < BLOCK_COUNT; i++) {
+			free(addresses[i], ap);
+		}
+		validateDeallocated("testSlotReuse", 0, -1);
+	}
+
+	/**
+	 * Tests that compaction squeezes out cleared slots, keeps the live ones in order and shrinks the capacity
+	 * @throws Exception thrown on any error
+	 */
+	@Test
+	public void testCompact() throws Exception {
+		final AllocationPointer ap = UnsafeAdapter.newAllocationPointer();
+		final long[] addresses = new long[BLOCK_COUNT];
+		for(int i = 0; i < BLOCK_COUNT; i++) {
+			addresses[i] = UnsafeAdapter.allocateMemory(i + 8, ap);
+		}
+		for(int i = 0; i < BLOCK_COUNT; i++) {
+			if(i % 4 != 0) free(addresses[i], ap);
+		}
+		Assert.assertEquals("Unexpected reclaimed count", BLOCK_COUNT - BLOCK_COUNT / 4, ap.compact());
+		Assert.assertEquals("Unexpected AP size", BLOCK_COUNT / 4, ap.getSize());
+		Assert.assertEquals("Unexpected free slot count", 0, ap.getFreeSlotCount());
+		Assert.assertTrue("AP did not shrink: " + ap.getCapacity(), ap.getCapacity() < BLOCK_COUNT / 4 + AllocationPointerOperations.ALLOC_SIZE);
+		Assert.assertEquals("Index not kept in step", BLOCK_COUNT / 4 > AllocationPointerOperations.INDEX_THRESHOLD, ap.isIndexed());
+		for(int i = 0; i < BLOCK_COUNT / 4; i++) {
+			Assert.assertEquals("Unexpected slot address", addresses[i * 4], ap.getAddress(i));
+			Assert.assertEquals("Unexpected slot size", i * 4 + 8, ap.getAllocationSize(i));
+			Assert.assertEquals("Unexpected slot for address", i, ap.findIndexForAddress(addresses[i * 4]));
+		}
+		Assert.assertEquals("Nothing to reclaim", 0, ap.compact());
+		long liveBytes = 0L;
+		for(int i = 0; i < BLOCK_COUNT; i += 4) {
+			liveBytes += i + 8;
+		}
+		validateAllocated("testCompact", liveBytes, -1, BLOCK_COUNT / 4);
+		for(int i = 0; i < BLOCK_COUNT; i += 4) {
+			free(addresses[i], ap);
+		}
+		validateDeallocated("testCompact", 0, -1);
+	}
+}